@@ -0,0 +1,104 @@
+package com.rojakcoder.archly.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rojakcoder.archly.Acl;
+
+/**
+ * Benchmarks the imports, exports and visualizations of whole ACLs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkBenchmark {
+	@Param({ "8", "32" })
+	int depth;
+
+	@Param({ "16" })
+	int fanOut;
+
+	@Param({ "0.1" })
+	double ruleDensity;
+
+	Fixture fixture;
+
+	Map<String, String> roles;
+
+	Map<String, String> resources;
+
+	Map<String, Map<String, Boolean>> permissions;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new Fixture(depth, fanOut, ruleDensity);
+		roles = fixture.acl.exportRoles();
+		resources = fixture.acl.exportResources();
+		permissions = fixture.acl.exportPermissions();
+	}
+
+	@Benchmark
+	public Acl importAll() {
+		Acl acl = Acl.makeInstance();
+
+		acl.clear();
+		acl.importRoles(roles);
+		acl.importResources(resources);
+		acl.importPermissions(permissions);
+
+		return acl;
+	}
+
+	@Benchmark
+	public Map<String, Map<String, Boolean>> exportPermissions() {
+		return fixture.acl.exportPermissions();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Map<String, Map<String, Boolean>> exportPermissionsParallel() {
+		return fixture.acl.exportPermissions();
+	}
+
+	@Benchmark
+	public Map<String, String> exportRoles() {
+		return fixture.acl.exportRoles();
+	}
+
+	@Benchmark
+	public Map<String, String> exportResources() {
+		return fixture.acl.exportResources();
+	}
+
+	@Benchmark
+	public String visualizePermissions() {
+		return fixture.acl.visualizePermissions();
+	}
+
+	@Benchmark
+	public String visualizeRoles() {
+		return fixture.acl.visualizeRoles(fixture.roles[0]);
+	}
+
+	@Benchmark
+	public String visualizeResources() {
+		return fixture.acl.visualizeResources(fixture.resources[0]);
+	}
+}
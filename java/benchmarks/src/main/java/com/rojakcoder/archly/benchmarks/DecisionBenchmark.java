@@ -0,0 +1,200 @@
+package com.rojakcoder.archly.benchmarks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rojakcoder.archly.ResourceHandle;
+import com.rojakcoder.archly.RoleHandle;
+
+/**
+ * Benchmarks the access checks of the lowest roles on the lowest resources,
+ * whose paths are the longest.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecisionBenchmark {
+	@Param({ "2", "8", "32" })
+	int depth;
+
+	@Param({ "4", "16" })
+	int fanOut;
+
+	@Param({ "0.01", "0.1", "0.5" })
+	double ruleDensity;
+
+	Fixture fixture;
+
+	List<Entry> leafResources;
+
+	RoleHandle[] leafRoleHandles;
+
+	ResourceHandle[] leafResourceHandles;
+
+	/**
+	 * The pair whose permission the writer of the contended benchmarks
+	 * toggles.
+	 */
+	Entry writtenRole;
+
+	Entry writtenResource;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new Fixture(depth, fanOut, ruleDensity);
+		leafResources = Arrays.asList(fixture.leafResources);
+		writtenRole = fixture.roles[0];
+		writtenResource = fixture.resources[0];
+
+		leafRoleHandles = new RoleHandle[fixture.leafRoles.length];
+		for (int i = 0; i < leafRoleHandles.length; i++) {
+			leafRoleHandles[i] = fixture.acl.lookupRole(fixture.leafRoles[i]);
+		}
+		leafResourceHandles = new ResourceHandle[fixture.leafResources.length];
+		for (int i = 0; i < leafResourceHandles.length; i++) {
+			leafResourceHandles[i] = fixture.acl.lookupResource(
+					fixture.leafResources[i]);
+		}
+	}
+
+	/**
+	 * Cycles through the role-resource pairs, separately for each thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		Entry role(Fixture fixture) {
+			return fixture.leafRoles[next % fixture.leafRoles.length];
+		}
+
+		Entry resource(Fixture fixture) {
+			return fixture.leafResources[(next++ / fixture.leafRoles.length)
+					% fixture.leafResources.length];
+		}
+
+		RoleHandle role(DecisionBenchmark benchmark) {
+			return benchmark.leafRoleHandles[next
+					% benchmark.leafRoleHandles.length];
+		}
+
+		ResourceHandle resource(DecisionBenchmark benchmark) {
+			return benchmark.leafResourceHandles[(next++
+					/ benchmark.leafRoleHandles.length)
+					% benchmark.leafResourceHandles.length];
+		}
+	}
+
+	@Benchmark
+	public boolean isAllowed(Cursor cursor) {
+		return fixture.acl.isAllowed(cursor.role(fixture), cursor.resource(
+				fixture));
+	}
+
+	@Benchmark
+	public boolean isAllowedAction(Cursor cursor) {
+		return fixture.acl.isAllowed(cursor.role(fixture), cursor.resource(
+				fixture), "READ");
+	}
+
+	/**
+	 * Checks the same pairs as {@link #isAllowedAction(Cursor)} by their
+	 * handles, whose paths are remembered while the ACL is unchanged.
+	 */
+	@Benchmark
+	public boolean isAllowedHandles(Cursor cursor) {
+		return fixture.acl.isAllowed(cursor.role(this), cursor.resource(this),
+				"READ");
+	}
+
+	@Benchmark
+	public boolean isDenied(Cursor cursor) {
+		return fixture.acl.isDenied(cursor.role(fixture), cursor.resource(
+				fixture));
+	}
+
+	@Benchmark
+	public boolean isDeniedAction(Cursor cursor) {
+		return fixture.acl.isDenied(cursor.role(fixture), cursor.resource(
+				fixture), "READ");
+	}
+
+	/**
+	 * Filters all the lowest resources for a role in one batch.
+	 */
+	@Benchmark
+	public BitSet areAllowed(Cursor cursor) {
+		return fixture.acl.areAllowed(cursor.role(fixture), leafResources,
+				"READ");
+	}
+
+	/**
+	 * Filters all the lowest resources for a role one at a time, the baseline
+	 * of {@link #areAllowed(Cursor)}.
+	 */
+	@Benchmark
+	public BitSet areAllowedOneByOne(Cursor cursor) {
+		Entry role = cursor.role(fixture);
+		BitSet allowed = new BitSet(leafResources.size());
+
+		for (int i = 0; i < leafResources.size(); i++) {
+			if (fixture.acl.isAllowed(role, leafResources.get(i), "READ")) {
+				allowed.set(i);
+			}
+		}
+
+		return allowed;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean isAllowedParallel(Cursor cursor) {
+		return fixture.acl.isAllowed(cursor.role(fixture), cursor.resource(
+				fixture), "READ");
+	}
+
+	/**
+	 * Checks access while a writer changes a permission. Run with e.g.
+	 * <code>-tg 1,1 -tg 2,1 -tg 4,1</code> to see how the checks scale with
+	 * the number of readers.
+	 */
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public boolean contendedIsAllowed(Cursor cursor) {
+		return fixture.acl.isAllowed(cursor.role(fixture), cursor.resource(
+				fixture), "READ");
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void contendedWrite(Cursor cursor) {
+		if ((cursor.next++ & 1) == 0) {
+			fixture.acl.allow(writtenRole, writtenResource, "UPDATE");
+		} else {
+			fixture.acl.deny(writtenRole, writtenResource, "UPDATE");
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.rojakcoder.archly.benchmarks;
+
+import com.rojakcoder.archly.AclEntry;
+
+/**
+ * Entry is a role or resource of the benchmarks.
+ */
+final class Entry implements AclEntry {
+	private final String id;
+
+	Entry(String id) {
+		this.id = id;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getEntryDescription() {
+		return id;
+	}
+
+	@Override
+	public AclEntry retrieveEntry(String entryId) {
+		return new Entry(entryId);
+	}
+}
@@ -0,0 +1,106 @@
+package com.rojakcoder.archly.benchmarks;
+
+import java.util.Random;
+
+import com.rojakcoder.archly.Acl;
+
+/**
+ * Fixture is an ACL with hierarchies of roles and resources of a given shape
+ * and permissions on a given fraction of the role-resource pairs.
+ * <p>
+ * Each hierarchy has <code>depth</code> levels of <code>fanOut</code>
+ * entries. The parent of each entry is a random entry of the level above,
+ * so the path from an entry of the lowest level to the root is
+ * <code>depth</code> entries long. The permissions are grants and denials of
+ * all actions or of one action, picked at random. The same parameters always
+ * make the same fixture.
+ * </p>
+ */
+final class Fixture {
+	private static final String[] ACTIONS = { null, "CREATE", "READ",
+			"UPDATE", "DELETE" };
+
+	final Acl acl;
+
+	final Entry[] roles;
+
+	final Entry[] resources;
+
+	/**
+	 * The roles of the lowest level, whose paths are the longest.
+	 */
+	final Entry[] leafRoles;
+
+	/**
+	 * The resources of the lowest level.
+	 */
+	final Entry[] leafResources;
+
+	Fixture(int depth, int fanOut, double ruleDensity) {
+		Random random = new Random(42);
+
+		acl = Acl.makeInstance();
+		roles = hierarchy("role", depth, fanOut, random, true);
+		resources = hierarchy("resource", depth, fanOut, random, false);
+		leafRoles = lowest(roles, fanOut);
+		leafResources = lowest(resources, fanOut);
+
+		for (Entry role: roles) {
+			for (Entry resource: resources) {
+				if (random.nextDouble() >= ruleDensity) {
+					continue;
+				}
+
+				String action = ACTIONS[random.nextInt(ACTIONS.length)];
+				boolean allow = random.nextBoolean();
+				if (action == null && allow) {
+					acl.allow(role, resource);
+				} else if (action == null) {
+					acl.deny(role, resource);
+				} else if (allow) {
+					acl.allow(role, resource, action);
+				} else {
+					acl.deny(role, resource, action);
+				}
+			}
+		}
+	}
+
+	private Entry[] hierarchy(String prefix, int depth, int fanOut,
+			Random random, boolean isRole) {
+		Entry[] entries = new Entry[depth * fanOut];
+
+		for (int level = 0; level < depth; level++) {
+			for (int i = 0; i < fanOut; i++) {
+				Entry entry = new Entry(prefix + "-" + level + "-" + i);
+				int at = level * fanOut + i;
+
+				entries[at] = entry;
+				if (level == 0 && isRole) {
+					acl.addRole(entry);
+				} else if (level == 0) {
+					acl.addResource(entry);
+				} else {
+					Entry parent = entries[(level - 1) * fanOut + random
+							.nextInt(fanOut)];
+
+					if (isRole) {
+						acl.addRole(entry, parent);
+					} else {
+						acl.addResource(entry, parent);
+					}
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	private static Entry[] lowest(Entry[] entries, int fanOut) {
+		Entry[] lowest = new Entry[fanOut];
+
+		System.arraycopy(entries, entries.length - fanOut, lowest, 0, fanOut);
+
+		return lowest;
+	}
+}
@@ -0,0 +1,119 @@
+package com.rojakcoder.archly.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the grants, denials and removals of subtrees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MutationBenchmark {
+	@Param({ "8", "32" })
+	int depth;
+
+	@Param({ "16" })
+	int fanOut;
+
+	@Param({ "0.1" })
+	double ruleDensity;
+
+	Fixture fixture;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new Fixture(depth, fanOut, ruleDensity);
+	}
+
+	/**
+	 * Cycles through the role-resource pairs, separately for each thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		Entry role(Fixture fixture) {
+			return fixture.roles[next % fixture.roles.length];
+		}
+
+		Entry resource(Fixture fixture) {
+			return fixture.resources[(next++ / fixture.roles.length)
+					% fixture.resources.length];
+		}
+	}
+
+	@Benchmark
+	public void allow(Cursor cursor) {
+		fixture.acl.allow(cursor.role(fixture), cursor.resource(fixture));
+	}
+
+	@Benchmark
+	public void allowAction(Cursor cursor) {
+		fixture.acl.allow(cursor.role(fixture), cursor.resource(fixture),
+				"READ");
+	}
+
+	@Benchmark
+	public void deny(Cursor cursor) {
+		fixture.acl.deny(cursor.role(fixture), cursor.resource(fixture));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void allowParallel(Cursor cursor) {
+		fixture.acl.allow(cursor.role(fixture), cursor.resource(fixture),
+				"UPDATE");
+	}
+
+	/**
+	 * A fixture whose top entries are removed with their descendants, made
+	 * again before each removal.
+	 */
+	@State(Scope.Thread)
+	public static class Subtree {
+		Fixture fixture;
+
+		@Setup(Level.Invocation)
+		public void setUp(MutationBenchmark benchmark) {
+			fixture = new Fixture(benchmark.depth, 4, benchmark.ruleDensity);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 20)
+	@Measurement(iterations = 50)
+	public Fixture removeRoleSubtree(Subtree subtree) {
+		subtree.fixture.acl.removeRole(subtree.fixture.roles[0], true);
+
+		return subtree.fixture;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 20)
+	@Measurement(iterations = 50)
+	public Fixture removeResourceSubtree(Subtree subtree) {
+		subtree.fixture.acl.removeResource(subtree.fixture.resources[0],
+				true);
+
+		return subtree.fixture;
+	}
+}
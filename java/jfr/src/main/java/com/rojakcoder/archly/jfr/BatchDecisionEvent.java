@@ -0,0 +1,43 @@
+package com.rojakcoder.archly.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * BatchDecisionEvent records a batch of access checks of a role against many
+ * resources.
+ */
+@Name("com.rojakcoder.archly.BatchDecision")
+@Label("ACL Batch Decision")
+@Category("Archly")
+@Description("A batch of access checks that was slow or sampled")
+@StackTrace(false)
+final class BatchDecisionEvent extends jdk.jfr.Event {
+	@Label("Check")
+	String check;
+
+	@Label("Role")
+	String role;
+
+	@Label("Action")
+	String action;
+
+	@Label("Resources")
+	@Description("The number of resources checked")
+	int resources;
+
+	@Label("Results")
+	@Description("The number of resources for which the result is true")
+	int results;
+
+	@Label("Check Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long checkTime;
+
+	@Label("Role Path Length")
+	int rolePathLength;
+}
@@ -0,0 +1,27 @@
+package com.rojakcoder.archly.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * BulkChangeEvent records an import, a removal with descendants or a clear
+ * of an ACL.
+ */
+@Name("com.rojakcoder.archly.BulkChange")
+@Label("ACL Bulk Change")
+@Category("Archly")
+final class BulkChangeEvent extends jdk.jfr.Event {
+	@Label("Operation")
+	String operation;
+
+	@Label("Change Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long changeTime;
+
+	@Label("Entries")
+	@Description("The number of roles, resources and permissions added or removed")
+	int entries;
+}
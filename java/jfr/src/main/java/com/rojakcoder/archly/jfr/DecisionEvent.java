@@ -0,0 +1,47 @@
+package com.rojakcoder.archly.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * DecisionEvent records an access check of an ACL.
+ */
+@Name("com.rojakcoder.archly.Decision")
+@Label("ACL Decision")
+@Category("Archly")
+@Description("An access check that was slow or sampled")
+@StackTrace(false)
+final class DecisionEvent extends jdk.jfr.Event {
+	@Label("Check")
+	String check;
+
+	@Label("Role")
+	String role;
+
+	@Label("Resource")
+	String resource;
+
+	@Label("Action")
+	String action;
+
+	@Label("Result")
+	boolean result;
+
+	@Label("Check Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long checkTime;
+
+	@Label("Role Path Length")
+	int rolePathLength;
+
+	@Label("Resource Path Length")
+	int resourcePathLength;
+
+	@Label("Probes")
+	@Description("The number of role-resource pairs looked up")
+	int probes;
+}
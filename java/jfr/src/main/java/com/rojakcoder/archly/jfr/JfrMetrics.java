@@ -0,0 +1,144 @@
+package com.rojakcoder.archly.jfr;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.rojakcoder.archly.AclMetrics;
+
+/**
+ * JfrMetrics records the access checks and changes of ACLs as Java Flight
+ * Recorder events, so they can be seen alongside the GC and lock events of a
+ * recording.
+ * <p>
+ * Access checks are too many to record each of them, so only those that take
+ * at least the threshold are recorded, plus a sample of the rest. The same
+ * goes for batches of checks, which are recorded as one event each. Changes
+ * and bulk changes are always recorded. The events are in the
+ * <code>Archly</code> category and can be turned off in the settings of the
+ * recording; nothing is recorded while no recording is running.
+ * </p>
+ * <p>
+ * This class requires a JVM with the <code>jdk.jfr</code> module, e.g. Java
+ * 11 or later.
+ * </p>
+ *
+ * @see com.rojakcoder.archly.Acl#setMetrics(AclMetrics)
+ */
+public final class JfrMetrics implements AclMetrics {
+	private final long thresholdNanos;
+
+	private final int sampleEvery;
+
+	/**
+	 * Creates the metrics that record the access checks that take at least a
+	 * millisecond and a sample of one in 1000 of the rest.
+	 */
+	public JfrMetrics() {
+		this(Duration.ofMillis(1), 1000);
+	}
+
+	/**
+	 * Creates the metrics.
+	 *
+	 * @param threshold The time from which access checks are always recorded.
+	 * @param sampleEvery Records one in this many of the other access checks
+	 * on average. 0 to record none of them.
+	 */
+	public JfrMetrics(Duration threshold, int sampleEvery) {
+		if (threshold == null || threshold.isNegative() || sampleEvery < 0) {
+			throw new RuntimeException("Invalid threshold or sampling");
+		}
+
+		this.thresholdNanos = threshold.toNanos();
+		this.sampleEvery = sampleEvery;
+	}
+
+	@Override
+	public void decided(Check check, String roleId, String resourceId,
+			String action, boolean result, long nanos, int rolePathLength,
+			int resourcePathLength, int probes) {
+		if (!isRecorded(nanos)) {
+			return;
+		}
+
+		DecisionEvent event = new DecisionEvent();
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.check = check.name();
+		event.role = roleId;
+		event.resource = resourceId;
+		event.action = action;
+		event.result = result;
+		event.checkTime = nanos;
+		event.rolePathLength = rolePathLength;
+		event.resourcePathLength = resourcePathLength;
+		event.probes = probes;
+		event.commit();
+	}
+
+	@Override
+	public void batchDecided(Check check, String roleId,
+			List<String> resourceIds, String action, BitSet results,
+			long nanos, int rolePathLength) {
+		if (!isRecorded(nanos)) {
+			return;
+		}
+
+		BatchDecisionEvent event = new BatchDecisionEvent();
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.check = check.name();
+		event.role = roleId;
+		event.action = action;
+		event.resources = resourceIds.size();
+		event.results = results.cardinality();
+		event.checkTime = nanos;
+		event.rolePathLength = rolePathLength;
+		event.commit();
+	}
+
+	@Override
+	public void mutated(String operation, String first, String second,
+			long nanos, int roleCount, int resourceCount,
+			int permissionCount) {
+		MutationEvent event = new MutationEvent();
+
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.operation = operation;
+		event.first = first;
+		event.second = second;
+		event.changeTime = nanos;
+		event.roleCount = roleCount;
+		event.resourceCount = resourceCount;
+		event.permissionCount = permissionCount;
+		event.commit();
+	}
+
+	@Override
+	public void bulkChanged(String operation, long nanos, int entries) {
+		BulkChangeEvent event = new BulkChangeEvent();
+
+		if (!event.shouldCommit()) {
+			return;
+		}
+		event.operation = operation;
+		event.changeTime = nanos;
+		event.entries = entries;
+		event.commit();
+	}
+
+	/**
+	 * Checks if an access check or batch that took the time is recorded:
+	 * if it took at least the threshold or is in the sample.
+	 */
+	private boolean isRecorded(long nanos) {
+		return nanos >= thresholdNanos || (sampleEvery != 0
+				&& ThreadLocalRandom.current().nextInt(sampleEvery) == 0);
+	}
+}
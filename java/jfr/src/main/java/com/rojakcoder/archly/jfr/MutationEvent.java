@@ -0,0 +1,38 @@
+package com.rojakcoder.archly.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * MutationEvent records a change to an ACL.
+ */
+@Name("com.rojakcoder.archly.Mutation")
+@Label("ACL Mutation")
+@Category("Archly")
+@StackTrace(false)
+final class MutationEvent extends jdk.jfr.Event {
+	@Label("Operation")
+	String operation;
+
+	@Label("First ID")
+	String first;
+
+	@Label("Second ID")
+	String second;
+
+	@Label("Change Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long changeTime;
+
+	@Label("Roles")
+	int roleCount;
+
+	@Label("Resources")
+	int resourceCount;
+
+	@Label("Permissions")
+	int permissionCount;
+}
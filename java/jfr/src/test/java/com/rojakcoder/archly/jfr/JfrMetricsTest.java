@@ -0,0 +1,111 @@
+package com.rojakcoder.archly.jfr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rojakcoder.archly.Acl;
+import com.rojakcoder.archly.AclEntry;
+
+public class JfrMetricsTest {
+	@Test
+	public void testEvents() throws Exception {
+		Acl acl = Acl.makeInstance();
+		Path file = Files.createTempFile("archly", ".jfr");
+
+		try (Recording recording = new Recording()) {
+			recording.enable(DecisionEvent.class);
+			recording.enable(MutationEvent.class);
+			recording.enable(BulkChangeEvent.class);
+			recording.enable(BatchDecisionEvent.class);
+			recording.start();
+
+			acl.setMetrics(new JfrMetrics(Duration.ZERO, 0));
+			acl.addRole(new Entry("jedi"));
+			acl.addResource(new Entry("light-sabre"));
+			acl.allow(new Entry("jedi"), new Entry("light-sabre"));
+			acl.isAllowed(new Entry("jedi"), new Entry("light-sabre"), "READ");
+			acl.areAllowed(new Entry("jedi"), Arrays.asList(new Entry(
+					"light-sabre"), new Entry("blaster")), "READ");
+			acl.clear();
+
+			//nothing is below the threshold and nothing is sampled
+			acl.setMetrics(new JfrMetrics(Duration.ofDays(1), 0));
+			acl.isAllowed(new Entry("jedi"), new Entry("light-sabre"));
+
+			recording.stop();
+			recording.dump(file);
+		}
+
+		Map<String, RecordedEvent> events = new HashMap<>();
+		int decisions = 0;
+		List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+		for (RecordedEvent event: recorded) {
+			String name = event.getEventType().getName();
+
+			if (name.equals("com.rojakcoder.archly.Decision")) {
+				decisions++;
+			}
+			events.put(name + " " + (event.hasField("operation") ? event
+					.getString("operation") : ""), event);
+		}
+		Files.delete(file);
+
+		Assert.assertEquals(decisions, 1);
+		RecordedEvent decision = events.get("com.rojakcoder.archly.Decision ");
+		Assert.assertEquals(decision.getString("role"), "jedi");
+		Assert.assertEquals(decision.getString("resource"), "light-sabre");
+		Assert.assertEquals(decision.getString("action"), "READ");
+		Assert.assertTrue(decision.getBoolean("result"));
+		Assert.assertEquals(decision.getInt("probes"), 1);
+
+		RecordedEvent batch = events.get(
+				"com.rojakcoder.archly.BatchDecision ");
+		Assert.assertEquals(batch.getString("role"), "jedi");
+		Assert.assertEquals(batch.getInt("resources"), 2);
+		Assert.assertEquals(batch.getInt("results"), 1);
+		Assert.assertTrue(batch.getLong("checkTime") > 0);
+
+		RecordedEvent allow = events.get("com.rojakcoder.archly.Mutation ALLOW");
+		Assert.assertEquals(allow.getString("first"), "jedi");
+		Assert.assertEquals(allow.getInt("permissionCount"), 2);
+
+		RecordedEvent clear = events.get(
+				"com.rojakcoder.archly.BulkChange CLEAR");
+		Assert.assertEquals(clear.getInt("entries"), 4);
+	}
+
+	private static class Entry implements AclEntry {
+		private final String id;
+
+		Entry(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public String getEntryDescription() {
+			return id;
+		}
+
+		@Override
+		public AclEntry retrieveEntry(String id) {
+			return new Entry(id);
+		}
+	}
+}
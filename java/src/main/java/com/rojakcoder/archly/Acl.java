@@ -1,10 +1,34 @@
 package com.rojakcoder.archly;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.lang.ref.WeakReference;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
 
 import com.rojakcoder.archly.exceptions.DuplicateEntryException;
 import com.rojakcoder.archly.exceptions.EntryNotFoundException;
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
 import com.rojakcoder.archly.exceptions.NonEmptyException;
 
 /**
@@ -13,16 +37,131 @@ import com.rojakcoder.archly.exceptions.NonEmptyException;
 public class Acl {
 	private static final String NON_EMPTY = "%s registry is not empty.";
 
+	/**
+	 * The estimated size of an empty ACL in bytes.
+	 */
+	private static final long ACL_BYTES = 4096;
+
+	/**
+	 * The estimated size of a role or resource in bytes.
+	 */
+	private static final long ENTRY_BYTES = 128;
+
+	/**
+	 * The estimated size of a permission in bytes.
+	 */
+	private static final long PERMISSION_BYTES = 320;
+
+	/**
+	 * The number of entries of a streaming import that are added as one
+	 * change.
+	 */
+	private static final int IMPORT_CHUNK = 1024;
+
+	/**
+	 * Whether measurements can be taken at all. Being a constant, the JIT
+	 * compiler removes the measurements when it is false.
+	 */
+	private static final boolean METRICS = !Boolean.getBoolean(
+			"archly.metrics.disabled");
+
+	/**
+	 * Whether any ACL has metrics set. The JIT compiler treats the target of
+	 * the call site as a constant and recompiles its callers when the target
+	 * is swapped, so while no ACL has metrics the checks do not even read
+	 * them.
+	 */
+	private static final MutableCallSite MEASURED = new MutableCallSite(
+			MethodHandles.constant(boolean.class, false));
+
+	private static final MethodHandle IS_MEASURED = MEASURED
+			.dynamicInvoker();
+
+	/**
+	 * The number of ACLs with metrics set. Only accessed while holding the
+	 * lock of {@link #MEASURED}. An ACL that is collected with its metrics
+	 * set is still counted.
+	 */
+	private static int measuredCount;
+
 	private Permission perms;
 
 	private Registry resources;
 
 	private Registry roles;
 
+	/**
+	 * Guards the registries and permissions so that multi-step changes are
+	 * seen by the access checks either completely or not at all.
+	 */
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * The sequence number of the latest change. Only modified while holding
+	 * the write lock.
+	 */
+	private volatile long sequence;
+
+	/**
+	 * The number of changes made to the ACL that may have changed the paths,
+	 * which the handles remember their paths by. Granting or denying on a
+	 * role and resource that already have rules keeps it. Unlike the sequence
+	 * number, it is never set back. Only modified while holding the write
+	 * lock, after the change is made.
+	 */
+	private volatile long changes;
+
+	private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+
+	private final List<AclEventFeed> feeds = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The events of the change being made, if there are any feeds. Only
+	 * accessed while holding the write lock.
+	 */
+	private List<AclEvent> events;
+
+	/**
+	 * Runs the removal of the expired rules of all ACLs.
+	 */
+	private static final ScheduledExecutorService EXPIRY = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "archly-expiry");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/**
+	 * Whether the expired rules are removed. Only set while holding the write
+	 * lock.
+	 */
+	private volatile boolean expiring = true;
+
+	/**
+	 * The periodic removal of the expired rules, started when the first timed
+	 * rule is added. Only accessed while holding the write lock.
+	 */
+	private Expirer expirer;
+
+	/**
+	 * The versions kept of a versioned ACL, null otherwise.
+	 */
+	private History history;
+
+	/**
+	 * Receives the measurements of the checks and changes, if set.
+	 */
+	private volatile AclMetrics metrics;
+
 	private Acl(Registry roles, Registry resources, Permission perms) {
 		this.roles = roles;
 		this.resources = resources;
 		this.perms = perms;
+
+		ChangeObserver collector = new EventCollector();
+		roles.setObserver(collector);
+		resources.setObserver(collector);
+		perms.setObserver(collector);
 	}
 
 	/**
@@ -38,15 +177,106 @@ public class Acl {
 		return new Acl(roles, resources, perms);
 	}
 
+	/**
+	 * Gets an instance of Acl that starts with the roles, resources and
+	 * permissions of a shared base.
+	 * <p>
+	 * The instance only holds its changes to the base, and looks up
+	 * everything else in the base, so many instances can share a large base
+	 * at little cost each. Changes to the instance, including removals, do
+	 * not affect the base or the other instances.
+	 * </p>
+	 *
+	 * @param base The base, e.g. from {@link #makeBase()}.
+	 * @return Returns a new instance of Acl.
+	 */
+	public static Acl makeInstance(AclBase base) {
+		if (base == null) {
+			throw new RuntimeException("Cannot layer over null base");
+		}
+
+		Registry roles = new RoleRegistry(new LayeredMap<>(base.roles));
+		Registry resources = new ResourceRegistry(new LayeredMap<>(
+				base.resources));
+		Permission perms = new Permission(base.permissions);
+
+		return new Acl(roles, resources, perms);
+	}
+
+	/**
+	 * Gets an instance of Acl whose resource IDs are paths.
+	 * <p>
+	 * The IDs of the resources must be paths such as
+	 * <code>/org/42/proj/7</code>. The ancestors of a resource are derived
+	 * from its path, so <code>/org/42/proj</code> and its ancestors do not
+	 * have to be added before <code>/org/42/proj/7</code>, and a rule on
+	 * <code>/org/42</code> applies to every resource under it.
+	 * </p>
+	 *
+	 * @return Returns a new, empty instance of Acl.
+	 */
+	public static Acl makePathInstance() {
+		Registry roles = new RoleRegistry();
+		Registry resources = new PathRegistry();
+		Permission perms = new Permission();
+
+		return new Acl(roles, resources, perms);
+	}
+
+	/**
+	 * Gets an instance of Acl that keeps its latest versions.
+	 * <p>
+	 * The roles, resources and permissions are held in persistent tries, so
+	 * each change makes a new version that shares all that did not change
+	 * with the previous one. Getting the current version is as cheap as
+	 * reading a field and never blocks the changes, which suits exporters,
+	 * and past versions can be checked for access, e.g. for audits.
+	 * </p>
+	 *
+	 * @param versions The number of latest versions to keep, including the
+	 * current one.
+	 * @return Returns a new, empty instance of Acl.
+	 * @see #getVersion()
+	 */
+	public static Acl makeVersionedInstance(int versions) {
+		if (versions < 1) {
+			throw new RuntimeException("At least 1 version must be kept");
+		}
+
+		HamtMap<String> roleMap = new HamtMap<>();
+		HamtMap<String> resourceMap = new HamtMap<>();
+		HamtMap<Map<String, Boolean>> permissionMap = new HamtMap<>();
+		Acl acl = new Acl(new RoleRegistry(roleMap), new ResourceRegistry(
+				resourceMap), new Permission(permissionMap));
+
+		acl.history = new History(roleMap, resourceMap, permissionMap,
+				versions);
+		acl.history.record(0, false);
+
+		return acl;
+	}
+
+	/**
+	 * Gets a read-only instance of Acl over a version.
+	 */
+	static Acl makeView(Hamt<String> roles, Hamt<String> resources,
+			Hamt<Map<String, Boolean>> permissions, long asOf,
+			boolean withPatterns) {
+		return new Acl(new RoleRegistry(new HamtMap<>(roles)),
+				new ResourceRegistry(new HamtMap<>(resources)), new Permission(
+						new HamtMap<>(permissions), asOf, withPatterns));
+	}
+
 	/**
 	 * Adds a resource to the registry.
 	 *
 	 * @param resource The resource to add.
 	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
 	 * the resource registry.
+	 * @see #addResourceHandle(AclEntry)
 	 */
 	public void addResource(AclEntry resource) throws DuplicateEntryException {
-		resources.add(resource.getId());
+		mutate(Mutation.addResource(resource.getId(), null));
 	}
 
 	/**
@@ -58,10 +288,46 @@ public class Acl {
 	 * the resource registry.
 	 * @throws EntryNotFoundException Throws this exception if the parent entry
 	 * is not in the registry.
+	 * @see #addResourceHandle(AclEntry, AclEntry)
 	 */
 	public void addResource(AclEntry resource, AclEntry parent)
 			throws DuplicateEntryException, EntryNotFoundException {
-		resources.add(resource.getId(), parent.getId());
+		mutate(Mutation.addResource(resource.getId(), parent.getId()));
+	}
+
+	/**
+	 * Adds a resource to the registry and returns its handle.
+	 *
+	 * @param resource The resource to add.
+	 * @return The handle of the resource.
+	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
+	 * the resource registry.
+	 */
+	public ResourceHandle addResourceHandle(AclEntry resource)
+			throws DuplicateEntryException {
+		addResource(resource);
+
+		return added(resources, resource, ResourceHandle::new);
+	}
+
+	/**
+	 * Adds a resource under a parent resource to the registry and returns
+	 * its handle.
+	 *
+	 * @param resource The resource to add.
+	 * @param parent The resource under which the new resource is added.
+	 * @return The handle of the resource.
+	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
+	 * the resource registry.
+	 * @throws EntryNotFoundException Throws this exception if the parent entry
+	 * is not in the registry.
+	 */
+	public ResourceHandle addResourceHandle(AclEntry resource,
+			AclEntry parent) throws DuplicateEntryException,
+			EntryNotFoundException {
+		addResource(resource, parent);
+
+		return added(resources, resource, ResourceHandle::new);
 	}
 
 	/**
@@ -72,10 +338,11 @@ public class Acl {
 	 * the role registry.
 	 * @throws EntryNotFoundException Throws this exception if the parent entry
 	 * is not in the registry.
+	 * @see #addRoleHandle(AclEntry)
 	 */
 	public void addRole(AclEntry role) throws DuplicateEntryException,
 			EntryNotFoundException {
-		roles.add(role.getId());
+		mutate(Mutation.addRole(role.getId(), null));
 	}
 
 	/**
@@ -85,10 +352,45 @@ public class Acl {
 	 * @param parent The role under which the new role is added.
 	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
 	 * the role registry.
+	 * @see #addRoleHandle(AclEntry, AclEntry)
 	 */
 	public void addRole(AclEntry role, AclEntry parent)
 			throws DuplicateEntryException {
-		roles.add(role.getId(), parent.getId());
+		mutate(Mutation.addRole(role.getId(), parent.getId()));
+	}
+
+	/**
+	 * Adds a role to the registry and returns its handle.
+	 *
+	 * @param role The role to add.
+	 * @return The handle of the role.
+	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
+	 * the role registry.
+	 */
+	public RoleHandle addRoleHandle(AclEntry role)
+			throws DuplicateEntryException {
+		addRole(role);
+
+		return added(roles, role, RoleHandle::new);
+	}
+
+	/**
+	 * Adds a role under a parent role to the registry and returns its
+	 * handle.
+	 *
+	 * @param role The role to add.
+	 * @param parent The role under which the new role is added.
+	 * @return The handle of the role.
+	 * @throws DuplicateEntryException Re-throws DuplicateEntryException from
+	 * the role registry.
+	 * @throws EntryNotFoundException Throws this exception if the parent entry
+	 * is not in the registry.
+	 */
+	public RoleHandle addRoleHandle(AclEntry role, AclEntry parent)
+			throws DuplicateEntryException, EntryNotFoundException {
+		addRole(role, parent);
+
+		return added(roles, role, RoleHandle::new);
 	}
 
 	/**
@@ -97,12 +399,7 @@ public class Acl {
 	 * @param role The role to grant the permissions to.
 	 */
 	public void allowAllResource(AclEntry role) {
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.allow(role.getId(), new RootEntry().getId());
+		mutate(Mutation.allow(role.getId(), null, null), role);
 	}
 
 	/**
@@ -111,12 +408,7 @@ public class Acl {
 	 * @param resource The resource to grant the permissions on.
 	 */
 	public void allowAllRole(AclEntry resource) {
-		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.allow(new RootEntry().getId(), resource.getId());
+		mutate(Mutation.allow(null, resource.getId(), null), resource);
 	}
 
 	/**
@@ -126,17 +418,8 @@ public class Acl {
 	 * @param resource The resource to grant the permissions on.
 	 */
 	public void allow(AclEntry role, AclEntry resource) {
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.allow(role.getId(), resource.getId());
+		mutate(Mutation.allow(role.getId(), resource.getId(), null), role,
+				resource);
 	}
 
 	/**
@@ -148,19 +431,172 @@ public class Acl {
 	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
 	 */
 	public void allow(AclEntry role, AclEntry resource, String action) {
-		Permission.Types actionType = Permission.Types.valueOf(action);
+		Permission.Types.valueOf(action);
 
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
+		mutate(Mutation.allow(role.getId(), resource.getId(), action), role,
+				resource);
+	}
+
+	/**
+	 * Grants permission on the resource to the role for an action type.
+	 *
+	 * @param role The handle of the role to grant the permissions to.
+	 * @param resource The handle of the resource to grant the permissions on.
+	 * @param action The action type which the grant acts on.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 * @see #allow(AclEntry, AclEntry, String)
+	 */
+	public void allow(RoleHandle role, ResourceHandle resource, String action) {
+		allow((AclEntry) role, (AclEntry) resource, action);
+	}
+
+	/**
+	 * Grants permission on the resource to the role for an action type when a
+	 * condition on the attributes of the request holds.
+	 * <p>
+	 * The condition is compiled once and is only evaluated by the access
+	 * checks that are given attributes, such as
+	 * {@link #isAllowed(AclEntry, AclEntry, String, Map)}. Conditions compare
+	 * attributes with literals or other attributes using
+	 * <code>== != &lt; &lt;= &gt; &gt;= in</code>, combined with
+	 * <code>&amp;&amp; || !</code>. For example,
+	 * <code>hour &gt;= 9 &amp;&amp; hour &lt; 17</code>,
+	 * <code>ip in '10.0.0.0/8'</code> or <code>owner == user</code>.
+	 * </p>
+	 *
+	 * @param role The role to grant the permissions to.
+	 * @param resource The resource to grant the permissions on.
+	 * @param action The action type which the grant acts on. Accepted values
+	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
+	 * @param condition The condition under which the grant applies.
+	 * @throws InvalidConditionException Throws this exception if the condition
+	 * is not valid.
+	 */
+	public void allow(AclEntry role, AclEntry resource, String action,
+			String condition) throws InvalidConditionException {
+		String conditional = Permission.makeConditional(Permission.Types
+				.valueOf(action), condition);
+
+		mutate(Mutation.allow(role.getId(), resource.getId(), conditional), role,
+				resource);
+	}
+
+	/**
+	 * Grants permission on the resource to the role for an action type until
+	 * a given time.
+	 * <p>
+	 * The grant replaces any existing permission on the action. Access checks
+	 * do not honour the grant from the time it expires; it is removed from the
+	 * ACL shortly after.
+	 * </p>
+	 *
+	 * @param role The role to grant the permissions to.
+	 * @param resource The resource to grant the permissions on.
+	 * @param action The action type which the grant acts on. Accepted values
+	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
+	 * @param expiry The time when the grant expires.
+	 */
+	public void allow(AclEntry role, AclEntry resource, String action,
+			Instant expiry) {
+		String timed = Permission.makeTimed(Permission.Types.valueOf(action),
+				expiry.toEpochMilli());
+
+		mutate(Mutation.allow(role.getId(), resource.getId(), timed), role,
+				resource);
+	}
+
+	/**
+	 * Applies a set of changes to the registries and permissions.
+	 * <p>
+	 * Unlike the <code>import*</code> methods, the registries and permissions
+	 * do not have to be empty. The changes are applied in place, so the cost
+	 * is proportional to the size of the delta and not to the size of the
+	 * ACL. Access checks running concurrently see either none or all of the
+	 * changes.
+	 * </p>
+	 * <p>
+	 * The entries are applied in this order: roles and resources are added or
+	 * re-parented, permissions are removed and replaced, and finally roles and
+	 * resources are removed. Removing a role or resource moves its children to
+	 * its parent, and does not remove the permissions on it - those have to be
+	 * removed explicitly in the delta. Removal of entries that are not present
+	 * is ignored.
+	 * </p>
+	 *
+	 * @param delta The changes to apply.
+	 * @throws RuntimeException Throws RuntimeException, and applies none of
+	 * the changes, if a role or resource would be put within itself.
+	 */
+	public void applyDelta(AclDelta delta) {
+		if (delta == null) {
+			throw new RuntimeException("Cannot apply null delta");
+		}
+
+		mutate(Mutation.delta(delta));
+	}
+
+	/**
+	 * Compares this ACL with another ACL.
+	 * <p>
+	 * Both ACLs are read in place without being exported, and neither can be
+	 * changed while they are being compared.
+	 * </p>
+	 *
+	 * @param target The ACL to compare with.
+	 * @return The changes that turn this ACL into the target ACL.
+	 */
+	public AclDiff diff(Acl target) {
+		if (target == null) {
+			throw new RuntimeException("Cannot compare with null ACL");
 		}
+
+		//lock in a fixed order so that concurrent comparisons do not deadlock
+		boolean thisFirst = System.identityHashCode(this) <= System
+				.identityHashCode(target);
+		StampedLock firstLock = thisFirst ? lock : target.lock;
+		StampedLock secondLock = thisFirst ? target.lock : lock;
+
+		long first = firstLock.readLock();
 		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
+			long second = target == this ? 0 : secondLock.readLock();
+			try {
+				return AclDiff.compare(roles.entries(), resources.entries(),
+						perms.permissions, target.roles.entries(),
+						target.resources.entries(), target.perms.permissions);
+			} finally {
+				if (target != this) {
+					secondLock.unlockRead(second);
+				}
+			}
+		} finally {
+			firstLock.unlockRead(first);
+		}
+	}
+
+	/**
+	 * Makes a base that other ACLs can share from the current state of this
+	 * ACL.
+	 * <p>
+	 * The base is a copy; later changes to this ACL do not affect it. ACLs
+	 * whose resource IDs are paths cannot be used as a base.
+	 * </p>
+	 *
+	 * @return The base.
+	 * @see #makeInstance(AclBase)
+	 */
+	public AclBase makeBase() {
+		if (resources instanceof PathRegistry) {
+			throw new RuntimeException("Cannot make base of path ACL");
 		}
-		perms.allow(role.getId(), resource.getId(), actionType);
+
+		Map<String, String> roleCopy = new HashMap<>();
+		Map<String, String> resourceCopy = new HashMap<>();
+		Map<String, Map<String, Boolean>> permCopy = new HashMap<>();
+
+		copy(roleCopy, resourceCopy, permCopy);
+
+		return new AclBase(roleCopy, resourceCopy, permCopy);
 	}
 
 	/**
@@ -171,9 +607,7 @@ public class Acl {
 	 * called after this method is invoked.
 	 */
 	public void clear() {
-		perms.clear();
-		resources.clear();
-		roles.clear();
+		mutate(Mutation.clear());
 	}
 
 	/**
@@ -182,12 +616,7 @@ public class Acl {
 	 * @param role The role to deny the permissions to.
 	 */
 	public void denyAllResource(AclEntry role) {
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.deny(role.getId(), new RootEntry().getId());
+		mutate(Mutation.deny(role.getId(), null, null), role);
 	}
 
 	/**
@@ -196,12 +625,7 @@ public class Acl {
 	 * @param resource The resource to deny the permissions on.
 	 */
 	public void denyAllRole(AclEntry resource) {
-		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.deny(new RootEntry().getId(), resource.getId());
+		mutate(Mutation.deny(null, resource.getId(), null), resource);
 	}
 
 	/**
@@ -211,17 +635,8 @@ public class Acl {
 	 * @param resource The resource to deny the permissions on.
 	 */
 	public void deny(AclEntry role, AclEntry resource) {
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.deny(role.getId(), resource.getId());
+		mutate(Mutation.deny(role.getId(), resource.getId(), null), role,
+				resource);
 	}
 
 	/**
@@ -233,379 +648,2074 @@ public class Acl {
 	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
 	 */
 	public void deny(AclEntry role, AclEntry resource, String action) {
-		Permission.Types actionType = Permission.Types.valueOf(action);
+		Permission.Types.valueOf(action);
 
-		try {
-			roles.add(role.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		try {
-			resources.add(resource.getId());
-		} catch (DuplicateEntryException e) {
-			//do nothing
-		}
-		perms.deny(role.getId(), resource.getId(), actionType);
+		mutate(Mutation.deny(role.getId(), resource.getId(), action), role,
+				resource);
 	}
 
 	/**
-	 * Exports a snapshot of the permissions map.
+	 * Denies permission on the resource to the role for an action type.
 	 *
-	 * @return A String to String-Boolean map typically for persistent storage.
+	 * @param role The handle of the role to deny the permissions to.
+	 * @param resource The handle of the resource to deny the permissions on.
+	 * @param action The action type which the denial acts on.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 * @see #deny(AclEntry, AclEntry, String)
 	 */
-	public Map<String, Map<String, Boolean>> exportPermissions() {
-		return this.perms.export();
+	public void deny(RoleHandle role, ResourceHandle resource, String action) {
+		deny((AclEntry) role, (AclEntry) resource, action);
 	}
 
 	/**
-	 * Exports a snapshot of the resources registry.
+	 * Denies permission on the resource to the role for an action type when a
+	 * condition on the attributes of the request holds.
 	 *
-	 * @return A HashMap typically meant for persistent storage.
+	 * @param role The role to deny the permissions to.
+	 * @param resource The resource to deny the permissions on.
+	 * @param action The action type which the deny acts on. Accepted values
+	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
+	 * @param condition The condition under which the deny applies.
+	 * @throws InvalidConditionException Throws this exception if the condition
+	 * is not valid.
+	 * @see #allow(AclEntry, AclEntry, String, String)
 	 */
-	public Map<String, String> exportResources() {
-		return this.resources.export();
+	public void deny(AclEntry role, AclEntry resource, String action,
+			String condition) throws InvalidConditionException {
+		String conditional = Permission.makeConditional(Permission.Types
+				.valueOf(action), condition);
+
+		mutate(Mutation.deny(role.getId(), resource.getId(), conditional), role,
+				resource);
 	}
 
 	/**
-	 * Exports a snapshot of the roles registry.
+	 * Denies permission on the resource to the role for an action type until
+	 * a given time.
 	 *
-	 * @return A HashMap typically meant for persistent storage.
+	 * @param role The role to deny the permissions to.
+	 * @param resource The resource to deny the permissions on.
+	 * @param action The action type which the deny acts on. Accepted values
+	 * are: "ALL", "CREATE", "UPDATE", "DELETE".
+	 * @param expiry The time when the denial expires.
+	 * @see #allow(AclEntry, AclEntry, String, Instant)
 	 */
-	public Map<String, String> exportRoles() {
-		return this.roles.export();
+	public void deny(AclEntry role, AclEntry resource, String action,
+			Instant expiry) {
+		String timed = Permission.makeTimed(Permission.Types.valueOf(action),
+				expiry.toEpochMilli());
+
+		mutate(Mutation.deny(role.getId(), resource.getId(), timed), role,
+				resource);
 	}
 
 	/**
-	 * Imports a new set of permissions.
+	 * Exports a snapshot of the permissions map.
+	 * <p>
+	 * The conditional and timed rules are left out, as the other versions of
+	 * the library do not have them. Use
+	 * {@link #exportPermissionsWithRules()} to export them as well.
+	 * </p>
 	 *
-	 * @param map The map containing the permissions.
+	 * @return A String to String-Boolean map typically for persistent storage.
 	 */
-	public void importPermissions(Map<String, Map<String, Boolean>> map) {
-		if (this.perms.size() != 0) {
-			throw new NonEmptyException(String.format(NON_EMPTY, "Permissions"));
-		}
-		this.perms.importMap(map);
+	public Map<String, Map<String, Boolean>> exportPermissions() {
+		return this.perms.export();
 	}
 
 	/**
-	 * Imports a new hierarchy of resources.
+	 * Exports a snapshot of the permissions map, including the conditional and
+	 * timed rules.
+	 * <p>
+	 * The rules are exported as actions such as
+	 * <code>READ if hour &lt; 17</code> and
+	 * <code>READ until 1508284800000</code>, which only this version of the
+	 * library can import.
+	 * </p>
 	 *
-	 * @param roles The map containing the new hierarchy.
+	 * @return A String to String-Boolean map typically for persistent storage.
 	 */
-	public void importResources(Map<String, String> resources) {
-		if (this.resources.size() != 0) {
-			throw new NonEmptyException(String.format(NON_EMPTY, "Resource"));
-		}
-		this.resources.importRegistry(resources);
+	public Map<String, Map<String, Boolean>> exportPermissionsWithRules() {
+		return this.perms.exportWithRules();
 	}
 
 	/**
-	 * Imports a new hierarchy of roles.
+	 * Exports a snapshot of the resources registry.
 	 *
-	 * @param roles The map containing the new hierarchy.
+	 * @return A HashMap typically meant for persistent storage.
 	 */
-	public void importRoles(Map<String, String> roles) {
-		if (this.roles.size() != 0) {
-			throw new NonEmptyException(String.format(NON_EMPTY, "Role"));
-		}
-		this.roles.importRegistry(roles);
+	public Map<String, String> exportResources() {
+		return this.resources.export();
 	}
 
 	/**
-	 * Determines if the role has access to the resource.
+	 * Exports a snapshot of the roles registry.
 	 *
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @return Returns true if the role has access to the resource, false
-	 * otherwise.
+	 * @return A HashMap typically meant for persistent storage.
 	 */
-	public boolean isAllowed(AclEntry role, AclEntry resource) {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-
-		//get the traversal path for role
-		List<String> rolePath = roles.traverseRoot(rol);
-
-		//get the traversal path for resource
-		List<String> resPath = resources.traverseRoot(res);
-
-		//check role-resource
-		for (String aro: rolePath) {
-			for (String aco: resPath) {
-				Boolean grant = perms.isAllowed(aro, aco);
-
-				if (grant != null) {
-					return grant;
-				} // else null, continue
-			}
-		}
-
-		return false;
+	public Map<String, String> exportRoles() {
+		return this.roles.export();
 	}
 
 	/**
-	 * Determines if the role has access to the resource for the specific
-	 * action.
+	 * Gets the current version of a versioned ACL.
 	 *
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @param action The action type to check the access for.
-	 * @return Returns true if the role has access on the resource, false
-	 * otherwise.
+	 * @return The version after the latest change.
+	 * @see #makeVersionedInstance(int)
 	 */
-	public boolean isAllowed(AclEntry role, AclEntry resource, String action) {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-
-		//get the traversal path for role
-		List<String> rolePath = roles.traverseRoot(rol);
-
-		//get the traversal path for resource
-		List<String> resPath = resources.traverseRoot(res);
-
-		Permission.Types actionType = Permission.Types.valueOf(action);
-
-		//check role-resource
-		for (String aro: rolePath) {
-			for (String aco: resPath) {
-				Boolean grant = perms.isAllowed(aro, aco, actionType);
-
-				if (grant != null) {
-					return grant;
-				} //else null, continue
-			}
-		}
-
-		return false;
+	public AclVersion getVersion() {
+		return versions().latest;
 	}
 
 	/**
-	 * Determines if the role is denied access to the resource.
+	 * Gets the version of a versioned ACL after a change.
 	 *
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @return Returns true if the role is denied access to the resource, false
-	 * otherwise.
+	 * @param sequence The sequence number of the change.
+	 * @return The version that was current after the change, or null if it
+	 * is no longer kept.
 	 */
-	public boolean isDenied(AclEntry role, AclEntry resource) {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-
-		//get the traversal path for role
-		List<String> rolePath = roles.traverseRoot(rol);
-
-		//get the traversal path for resource
-		List<String> resPath = resources.traverseRoot(res);
-
-		//check role-resource
-		for (String aro: rolePath) {
-			for (String aco: resPath) {
-				Boolean grant = perms.isDenied(aro, aco);
+	public AclVersion getVersion(long sequence) {
+		AclVersion found = null;
 
-				if (grant != null) {
-					return grant;
-				} //else null, continue
+		for (AclVersion version: versions().list()) {
+			if (version.getSequence() > sequence) {
+				break;
 			}
+			found = version;
 		}
 
-		return false;
+		return found;
 	}
 
 	/**
-	 * Determines if the role is denied access to the resource for the specific
-	 * action.
+	 * Gets the version of a versioned ACL at a time.
 	 *
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @param action The action type to check the access for.
-	 * @return Returns true if the role is denied access on the resource, false
-	 * otherwise.
+	 * @param time The time.
+	 * @return The version that was current at the time, or null if it is no
+	 * longer kept.
 	 */
-	public boolean isDenied(AclEntry role, AclEntry resource, String action) {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-
-		//get the traversal path for role
-		List<String> rolePath = roles.traverseRoot(rol);
-
-		//get the traversal path for resource
-		List<String> resPath = resources.traverseRoot(res);
-
-		Permission.Types actionType = Permission.Types.valueOf(action);
+	public AclVersion getVersionAt(Instant time) {
+		AclVersion found = null;
 
-		//check role-resource
-		for (String aro: rolePath) {
-			for (String aco: resPath) {
-				Boolean grant = perms.isDenied(aro, aco, actionType);
-
-				if (grant != null) {
-					return grant;
-				} //else null, continue
+		for (AclVersion version: versions().list()) {
+			if (version.getTime().isAfter(time)) {
+				break;
 			}
+			found = version;
 		}
 
-		return false;
+		return found;
 	}
 
 	/**
-	 * Makes the default permission allow, making it a blacklist.
+	 * Gets the versions kept of a versioned ACL.
+	 *
+	 * @return The versions, the oldest first.
 	 */
-	public void makeDefaultAllow() {
-		perms.makeDefaultAllow();
+	public List<AclVersion> getVersions() {
+		return versions().list();
 	}
 
 	/**
-	 * Makes the default permission deny, making it a whitelist.
+	 * Imports a new set of permissions.
+	 *
+	 * @param map The map containing the permissions.
 	 */
-	public void makeDefaultDeny() {
-		perms.makeDefaultDeny();
+	public void importPermissions(Map<String, Map<String, Boolean>> map) {
+		importPermissions(map.entrySet().iterator());
 	}
 
 	/**
-	 * Removes the permission on the resource from the role.
+	 * Imports a new hierarchy of resources.
 	 *
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
-	 * permissions.
+	 * @param roles The map containing the new hierarchy.
 	 */
-	public void remove(AclEntry role, AclEntry resource)
-			throws EntryNotFoundException {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-
-		perms.remove(rol, res);
+	public void importResources(Map<String, String> resources) {
+		importResources(resources.entrySet().iterator());
 	}
 
 	/**
-	 * Removes the permission on the resource from the role for an action type.
-	 * 
-	 * @param role The access request object.
-	 * @param resource The access control object.
-	 * @param action
-	 * @param action The action type to remove the permission from. Accepted
-	 * values are: "ALL", "CREATE", "UPDATE", "DELETE".
-	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
-	 * permissions.
+	 * Imports a new hierarchy of roles.
+	 *
+	 * @param roles The map containing the new hierarchy.
 	 */
-	public void remove(AclEntry role, AclEntry resource, String action)
-			throws EntryNotFoundException {
-		String rol = role == null ? null : role.getId();
-		String res = resource == null ? null : resource.getId();
-		Permission.Types actionType = Permission.Types.valueOf(action);
-
-		perms.remove(rol, res, actionType);
+	public void importRoles(Map<String, String> roles) {
+		importRoles(roles.entrySet().iterator());
 	}
 
 	/**
-	 * Removes a resource and its permissions.
+	 * Imports a new set of permissions from a stream of entries.
 	 * <p>
-	 * Any permissions applicable to the resource are also removed. If the
-	 * descendants are to be removed as well, the corresponding permissions are
-	 * removed too.
+	 * The entries are added in chunks as they are read from the iterator, so
+	 * the caller does not have to hold the full set of permissions in memory.
+	 * The iterator is read without holding any lock, so it may block; each
+	 * chunk of up to 1024 entries is added as one change, which the access
+	 * checks see at once. The permissions must be empty when the import
+	 * starts.
 	 * </p>
 	 *
-	 * @param resource The resource to remove.
-	 * @param removeDescendants If true, all descendant resources of this
-	 * resource are also removed.
+	 * @param entries The iterator over the permissions. The key of each entry
+	 * is the permission key (<code>role::resource</code>); the value is the map
+	 * of actions to grants.
+	 * @return The number of permissions imported.
 	 */
-	public void removeResource(AclEntry resource, boolean removeDescendants) {
-		if (resource == null) {
-			throw new RuntimeException("Cannot remove null resource");
-		}
+	public int importPermissions(
+			Iterator<? extends Map.Entry<String, Map<String, Boolean>>> entries) {
+		return importChunks("IMPORT_PERMISSIONS", "Permissions", perms::size,
+				entries, (delta, entry) -> delta.putPermission(entry.getKey(),
+						entry.getValue()));
+	}
 
-		removeResource(resource.getId(), removeDescendants);
+	/**
+	 * Imports a new set of permissions from a stream of entries.
+	 *
+	 * @param entries The spliterator over the permissions, e.g. from
+	 * {@link java.util.stream.Stream#spliterator()}.
+	 * @return The number of permissions imported.
+	 * @see #importPermissions(Iterator)
+	 */
+	public int importPermissions(
+			Spliterator<? extends Map.Entry<String, Map<String, Boolean>>> entries) {
+		return importPermissions(Spliterators.iterator(entries));
 	}
 
 	/**
-	 * Removes a resource and its permissions.
+	 * Imports a new hierarchy of resources from a stream of entries.
 	 * <p>
-	 * Any permissions applicable to the resource are also removed. If the
-	 * descendants are to be removed as well, the corresponding permissions are
-	 * removed too.
+	 * The entries are added in chunks as they are read from the iterator.
+	 * Parent entries need not be read before their children.
 	 * </p>
 	 *
-	 * @param resourceId The ID of the resource to remove.
-	 * @param removeDescendants If true, all descendant resources of this
-	 * resource also removed.
+	 * @param entries The iterator over the resources. The key of each entry is
+	 * the resource ID; the value is the ID of the parent resource.
+	 * @return The number of resources imported.
+	 * @see #importPermissions(Iterator)
 	 */
-	public void removeResource(String resourceId, boolean removeDescendants) {
-		if (resourceId == null) {
-			throw new RuntimeException("Cannot remove null resource");
-		}
+	public int importResources(Iterator<? extends Map.Entry<String, String>> entries) {
+		return importChunks("IMPORT_RESOURCES", "Resource", resources::size,
+				entries, (delta, entry) -> delta.putResource(entry.getKey(),
+						entry.getValue()));
+	}
 
-		List<String> res = this.resources.remove(resourceId, removeDescendants);
-		for (String r: res) {
-			this.perms.removeByResource(r);
-		}
+	/**
+	 * Imports a new hierarchy of resources from a stream of entries.
+	 *
+	 * @param entries The spliterator over the resources.
+	 * @return The number of resources imported.
+	 * @see #importResources(Iterator)
+	 */
+	public int importResources(Spliterator<? extends Map.Entry<String, String>> entries) {
+		return importResources(Spliterators.iterator(entries));
 	}
 
 	/**
-	 * Removes a role and its permissions.
+	 * Imports a new hierarchy of roles from a stream of entries.
 	 * <p>
-	 * Any permissions applicable to the role are also removed. If the
-	 * descendants are to be removed as well, the corresponding permissions are
-	 * removed too.
+	 * The entries are added in chunks as they are read from the iterator.
+	 * Parent entries need not be read before their children.
 	 * </p>
 	 *
-	 * @param role The role to remove.
-	 * @param removeDescendants If true, all descendant roles of this role are
-	 * also removed.
+	 * @param entries The iterator over the roles. The key of each entry is the
+	 * role ID; the value is the ID of the parent role.
+	 * @return The number of roles imported.
+	 * @see #importPermissions(Iterator)
 	 */
-	public void removeRole(AclEntry role, boolean removeDescendants) {
-		if (role == null) {
-			throw new RuntimeException("Cannot remove null role");
-		}
+	public int importRoles(Iterator<? extends Map.Entry<String, String>> entries) {
+		return importChunks("IMPORT_ROLES", "Role", roles::size, entries, (
+				delta, entry) -> delta.putRole(entry.getKey(), entry
+						.getValue()));
+	}
 
-		removeRole(role.getId(), removeDescendants);
+	/**
+	 * Imports a new hierarchy of roles from a stream of entries.
+	 *
+	 * @param entries The spliterator over the roles.
+	 * @return The number of roles imported.
+	 * @see #importRoles(Iterator)
+	 */
+	public int importRoles(Spliterator<? extends Map.Entry<String, String>> entries) {
+		return importRoles(Spliterators.iterator(entries));
 	}
 
 	/**
-	 * Removes a role and its permissions.
+	 * Determines which of the resources the role has access to for the
+	 * specific action.
 	 * <p>
-	 * Any permissions applicable to the role are also removed. If the
-	 * descendants are to be removed as well, the corresponding permissions are
-	 * removed too.
+	 * The result is the same as checking each resource with
+	 * {@link #isAllowed(AclEntry, AclEntry, String)}, but the resources are
+	 * checked against a single view of the ACL, the path of the role is looked
+	 * up once, and the rules on each resource and ancestor are looked up once
+	 * for the whole batch. Filtering many resources that share ancestors
+	 * therefore costs little more per resource than a lookup of its path.
 	 * </p>
 	 *
-	 * @param roleId The ID of the role to remove.
-	 * @param removeDescendants If true, all descendant resources of this
-	 * resource are also removed.
+	 * @param role The access request object.
+	 * @param resources The access control objects.
+	 * @param action The action type to check the access for.
+	 * @return The positions in the list of the resources that the role has
+	 * access to.
 	 */
-	public void removeRole(String roleId, boolean removeDescendants) {
-		if (roleId == null) {
-			throw new RuntimeException("Cannot remove null role");
+	public BitSet areAllowed(AclEntry role, List<? extends AclEntry> resources,
+			String action) {
+		Permission.Types actionType = Permission.Types.valueOf(action);
+		Grant grant = (aro, aco) -> perms.isAllowed(aro, aco, actionType,
+				null);
+		BitSet allowed = new BitSet(resources.size());
+		AclMetrics sink = sink();
+		long start = sink == null ? 0 : System.nanoTime();
+		int[] rolePathLength = new int[1];
+
+		read(() -> {
+			allowed.clear(); //the optimistic read may be retried
+			rolePathLength[0] = traverse(role, resources, grant, allowed);
+
+			return true;
+		});
+
+		if (sink != null && !resources.isEmpty()) {
+			long nanos = System.nanoTime() - start;
+			List<String> resourceIds = new ArrayList<>(resources.size());
+
+			for (AclEntry resource: resources) {
+				resourceIds.add(resource == null ? null : resource.getId());
+			}
+			sink.batchDecided(AclMetrics.Check.ALLOWED, role == null ? null
+					: role.getId(), resourceIds, action, (BitSet) allowed
+							.clone(), nanos, rolePathLength[0]);
 		}
 
-		List<String> rol = this.roles.remove(roleId, removeDescendants);
-		for (String r: rol) {
-			this.perms.removeByRole(r);
-		}
+		return allowed;
 	}
 
-	public String visualize() {
-		StringBuffer sb = new StringBuffer();
+	/**
+	 * Keeps only the resources that the role has access to for the specific
+	 * action.
+	 *
+	 * @param role The access request object.
+	 * @param resources The access control objects.
+	 * @param action The action type to check the access for.
+	 * @return The resources that the role has access to, in the same order.
+	 * @see #areAllowed(AclEntry, List, String)
+	 */
+	public <T extends AclEntry> List<T> filterAllowed(AclEntry role,
+			List<T> resources, String action) {
+		BitSet allowed = areAllowed(role, resources, action);
+		List<T> filtered = new ArrayList<>(allowed.cardinality());
+
+		for (int i = allowed.nextSetBit(0); i >= 0; i = allowed.nextSetBit(i
+				+ 1)) {
+			filtered.add(resources.get(i));
+		}
 
-		sb.append(roles);
-		sb.append("\n");
-		sb.append(resources);
-		sb.append("\n");
-		sb.append(perms);
-		sb.append("\n");
+		return filtered;
+	}
 
-		return sb.toString();
+	/**
+	 * Determines if the role has access to the resource.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @return Returns true if the role has access to the resource, false
+	 * otherwise.
+	 */
+	public boolean isAllowed(AclEntry role, AclEntry resource) {
+		return decide(AclMetrics.Check.ALLOWED, role, resource, null, (aro,
+				aco) -> perms.isAllowed(aro, aco));
 	}
 
-	public String visualizePermissions() {
-		return perms.toString();
+	/**
+	 * Determines if the role has access to the resource.
+	 * <p>
+	 * The paths of the role and the resource are remembered by their handles
+	 * until the ACL is next changed, so repeated checks skip looking them up.
+	 * </p>
+	 *
+	 * @param role The handle of the access request object.
+	 * @param resource The handle of the access control object.
+	 * @return Returns true if the role has access to the resource, false
+	 * otherwise.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 */
+	public boolean isAllowed(RoleHandle role, ResourceHandle resource) {
+		return isAllowed((AclEntry) role, (AclEntry) resource);
 	}
 
-	public String visualizeResources(AclEntry loader) {
-		return resources.display(loader, null, null);
+	/**
+	 * Determines if the role has access to the resource for the specific
+	 * action.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role has access on the resource, false
+	 * otherwise.
+	 */
+	public boolean isAllowed(AclEntry role, AclEntry resource, String action) {
+		return isAllowed(role, resource, action, null);
 	}
 
-	public String visualizeRoles(AclEntry loader) {
-		return roles.display(loader, null, null);
+	/**
+	 * Determines if the role has access to the resource for the specific
+	 * action.
+	 *
+	 * @param role The handle of the access request object.
+	 * @param resource The handle of the access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role has access on the resource, false
+	 * otherwise.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 * @see #isAllowed(RoleHandle, ResourceHandle)
+	 */
+	public boolean isAllowed(RoleHandle role, ResourceHandle resource,
+			String action) {
+		return isAllowed((AclEntry) role, (AclEntry) resource, action, null);
+	}
+
+	/**
+	 * Determines if the role has access to the resource for the specific
+	 * action, given the attributes of the request.
+	 * <p>
+	 * The conditional permissions are evaluated against the attributes only
+	 * for the role-resource pairs on the paths that have them. At each pair,
+	 * a conditional denial that holds takes precedence over a conditional
+	 * grant that holds, and both take precedence over the unconditional
+	 * permission.
+	 * </p>
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @param attributes The attributes of the request, e.g. the time or the
+	 * IP address. Null if there are none, in which case the conditional
+	 * permissions are skipped.
+	 * @return Returns true if the role has access on the resource, false
+	 * otherwise.
+	 */
+	public boolean isAllowed(AclEntry role, AclEntry resource, String action,
+			Map<String, ?> attributes) {
+		Permission.Types actionType = Permission.Types.valueOf(action);
+
+		return decide(AclMetrics.Check.ALLOWED, role, resource, action, (aro,
+				aco) -> perms.isAllowed(aro, aco, actionType, attributes));
+	}
+
+	/**
+	 * Determines if the role is denied access to the resource.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @return Returns true if the role is denied access to the resource, false
+	 * otherwise.
+	 */
+	public boolean isDenied(AclEntry role, AclEntry resource) {
+		return decide(AclMetrics.Check.DENIED, role, resource, null, (aro,
+				aco) -> perms.isDenied(aro, aco));
+	}
+
+	/**
+	 * Determines if the role is denied access to the resource.
+	 *
+	 * @param role The handle of the access request object.
+	 * @param resource The handle of the access control object.
+	 * @return Returns true if the role is denied access to the resource, false
+	 * otherwise.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 * @see #isAllowed(RoleHandle, ResourceHandle)
+	 */
+	public boolean isDenied(RoleHandle role, ResourceHandle resource) {
+		return isDenied((AclEntry) role, (AclEntry) resource);
+	}
+
+	/**
+	 * Determines if the role is denied access to the resource for the specific
+	 * action.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role is denied access on the resource, false
+	 * otherwise.
+	 */
+	public boolean isDenied(AclEntry role, AclEntry resource, String action) {
+		return isDenied(role, resource, action, null);
+	}
+
+	/**
+	 * Determines if the role is denied access to the resource for the specific
+	 * action.
+	 *
+	 * @param role The handle of the access request object.
+	 * @param resource The handle of the access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role is denied access on the resource, false
+	 * otherwise.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 * @see #isAllowed(RoleHandle, ResourceHandle)
+	 */
+	public boolean isDenied(RoleHandle role, ResourceHandle resource,
+			String action) {
+		return isDenied((AclEntry) role, (AclEntry) resource, action, null);
+	}
+
+	/**
+	 * Determines if the role is denied access to the resource for the specific
+	 * action, given the attributes of the request.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @param attributes The attributes of the request. Null if there are
+	 * none, in which case the conditional permissions are skipped.
+	 * @return Returns true if the role is denied access on the resource, false
+	 * otherwise.
+	 * @see #isAllowed(AclEntry, AclEntry, String, Map)
+	 */
+	public boolean isDenied(AclEntry role, AclEntry resource, String action,
+			Map<String, ?> attributes) {
+		Permission.Types actionType = Permission.Types.valueOf(action);
+
+		return decide(AclMetrics.Check.DENIED, role, resource, action, (aro,
+				aco) -> perms.isDenied(aro, aco, actionType, attributes));
+	}
+
+	/**
+	 * Determines if the resource is within the subtree of another resource,
+	 * i.e. is the other resource or one of its descendants.
+	 * <p>
+	 * The check compares the positions of the two resources in an index of
+	 * the hierarchy, so it takes the same time however deep they are. Leaves
+	 * added and removed are kept in the index, which is rebuilt by one thread
+	 * on the first such check after a subtree moves.
+	 * </p>
+	 *
+	 * @param resource The resource to check.
+	 * @param ancestor The resource at the top of the subtree. Null for the
+	 * root, under which all resources are.
+	 * @return Returns true if the resource is within the subtree, false
+	 * otherwise, including if either is not in the registry.
+	 */
+	public boolean isResourceUnder(AclEntry resource, AclEntry ancestor) {
+		String res = resource == null ? null : resource.getId();
+		String top = ancestor == null ? null : ancestor.getId();
+
+		return read(() -> resources.isWithin(res, top));
+	}
+
+	/**
+	 * Determines if the role is within the subtree of another role, i.e. is
+	 * the other role or inherits from it.
+	 *
+	 * @param role The role to check.
+	 * @param ancestor The role at the top of the subtree. Null for the root,
+	 * under which all roles are.
+	 * @return Returns true if the role is within the subtree, false otherwise,
+	 * including if either is not in the registry.
+	 * @see #isResourceUnder(AclEntry, AclEntry)
+	 */
+	public boolean isRoleUnder(AclEntry role, AclEntry ancestor) {
+		String rol = role == null ? null : role.getId();
+		String top = ancestor == null ? null : ancestor.getId();
+
+		return read(() -> roles.isWithin(rol, top));
+	}
+
+	/**
+	 * Gets the handle of a resource in the registry.
+	 *
+	 * @param resource The resource to look up.
+	 * @return The handle of the resource, or null if it is not in the
+	 * registry.
+	 */
+	public ResourceHandle lookupResource(AclEntry resource) {
+		return resource == null ? null : handle(resources, resource,
+				ResourceHandle::new);
+	}
+
+	/**
+	 * Gets the handle of a role in the registry.
+	 * <p>
+	 * The same handle is returned for as long as the role stays in the
+	 * registry.
+	 * </p>
+	 *
+	 * @param role The role to look up.
+	 * @return The handle of the role, or null if it is not in the registry.
+	 */
+	public RoleHandle lookupRole(AclEntry role) {
+		return role == null ? null : handle(roles, role, RoleHandle::new);
+	}
+
+	/**
+	 * Makes the default permission allow, making it a blacklist.
+	 */
+	public void makeDefaultAllow() {
+		mutate(Mutation.makeDefaultAllow());
+	}
+
+	/**
+	 * Makes the default permission deny, making it a whitelist.
+	 */
+	public void makeDefaultDeny() {
+		mutate(Mutation.makeDefaultDeny());
+	}
+
+	/**
+	 * Moves a resource, together with its descendants, under another parent
+	 * resource.
+	 * <p>
+	 * The permissions on the resource and its descendants are kept, and
+	 * access checks see the resource either under its old parent or under its
+	 * new parent. Resources of an ACL made with {@link #makePathInstance()}
+	 * cannot be moved.
+	 * </p>
+	 *
+	 * @param resource The resource to move.
+	 * @param parent The new parent resource. Null to move the resource to the
+	 * root.
+	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
+	 * resource registry if either resource is not in the registry.
+	 * @throws RuntimeException Throws RuntimeException if the parent is the
+	 * resource or one of its descendants.
+	 */
+	public void moveResource(AclEntry resource, AclEntry parent)
+			throws EntryNotFoundException {
+		mutate(Mutation.moveResource(resource.getId(), parent == null ? null
+				: parent.getId()), resource, parent);
+	}
+
+	/**
+	 * Moves a role, together with the roles that inherit from it, under
+	 * another parent role.
+	 * <p>
+	 * The permissions of the role and its descendants are kept.
+	 * </p>
+	 *
+	 * @param role The role to move.
+	 * @param parent The new parent role. Null to move the role to the root.
+	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
+	 * role registry if either role is not in the registry.
+	 * @throws RuntimeException Throws RuntimeException if the parent is the
+	 * role or one of its descendants.
+	 * @see #moveResource(AclEntry, AclEntry)
+	 */
+	public void moveRole(AclEntry role, AclEntry parent)
+			throws EntryNotFoundException {
+		mutate(Mutation.moveRole(role.getId(), parent == null ? null : parent
+				.getId()), role, parent);
+	}
+
+	/**
+	 * Removes the permission on the resource from the role.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
+	 * permissions.
+	 */
+	public void remove(AclEntry role, AclEntry resource)
+			throws EntryNotFoundException {
+		String rol = role == null ? null : role.getId();
+		String res = resource == null ? null : resource.getId();
+
+		mutate(Mutation.remove(rol, res, null), role, resource);
+	}
+
+	/**
+	 * Removes the permission on the resource from the role.
+	 *
+	 * @param role The handle of the access request object.
+	 * @param resource The handle of the access control object.
+	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
+	 * permissions.
+	 * @throws RuntimeException Throws RuntimeException if either handle is no
+	 * longer valid.
+	 */
+	public void remove(RoleHandle role, ResourceHandle resource)
+			throws EntryNotFoundException {
+		remove((AclEntry) role, (AclEntry) resource);
+	}
+
+	/**
+	 * Removes the permission on the resource from the role for an action type.
+	 * 
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action
+	 * @param action The action type to remove the permission from. Accepted
+	 * values are: "ALL", "CREATE", "UPDATE", "DELETE".
+	 * @throws EntryNotFoundException Re-throws EntryNotFoundException from the
+	 * permissions.
+	 */
+	public void remove(AclEntry role, AclEntry resource, String action)
+			throws EntryNotFoundException {
+		String rol = role == null ? null : role.getId();
+		String res = resource == null ? null : resource.getId();
+
+		Permission.Types.valueOf(action);
+		mutate(Mutation.remove(rol, res, action), role, resource);
+	}
+
+	/**
+	 * Removes a resource and its permissions.
+	 * <p>
+	 * Any permissions applicable to the resource are also removed. If the
+	 * descendants are to be removed as well, the corresponding permissions are
+	 * removed too.
+	 * </p>
+	 *
+	 * @param resource The resource to remove.
+	 * @param removeDescendants If true, all descendant resources of this
+	 * resource are also removed.
+	 */
+	public void removeResource(AclEntry resource, boolean removeDescendants) {
+		if (resource == null || resource.getId() == null) {
+			throw new RuntimeException("Cannot remove null resource");
+		}
+
+		mutate(Mutation.removeResource(resource.getId(), removeDescendants),
+				resource);
+	}
+
+	/**
+	 * Removes a resource and its permissions.
+	 * <p>
+	 * Any permissions applicable to the resource are also removed. If the
+	 * descendants are to be removed as well, the corresponding permissions are
+	 * removed too.
+	 * </p>
+	 *
+	 * @param resourceId The ID of the resource to remove.
+	 * @param removeDescendants If true, all descendant resources of this
+	 * resource also removed.
+	 */
+	public void removeResource(String resourceId, boolean removeDescendants) {
+		if (resourceId == null) {
+			throw new RuntimeException("Cannot remove null resource");
+		}
+
+		mutate(Mutation.removeResource(resourceId, removeDescendants));
+	}
+
+	/**
+	 * Removes a role and its permissions.
+	 * <p>
+	 * Any permissions applicable to the role are also removed. If the
+	 * descendants are to be removed as well, the corresponding permissions are
+	 * removed too.
+	 * </p>
+	 *
+	 * @param role The role to remove.
+	 * @param removeDescendants If true, all descendant roles of this role are
+	 * also removed.
+	 */
+	public void removeRole(AclEntry role, boolean removeDescendants) {
+		if (role == null || role.getId() == null) {
+			throw new RuntimeException("Cannot remove null role");
+		}
+
+		mutate(Mutation.removeRole(role.getId(), removeDescendants), role);
+	}
+
+	/**
+	 * Removes a role and its permissions.
+	 * <p>
+	 * Any permissions applicable to the role are also removed. If the
+	 * descendants are to be removed as well, the corresponding permissions are
+	 * removed too.
+	 * </p>
+	 *
+	 * @param roleId The ID of the role to remove.
+	 * @param removeDescendants If true, all descendant resources of this
+	 * resource are also removed.
+	 */
+	public void removeRole(String roleId, boolean removeDescendants) {
+		if (roleId == null) {
+			throw new RuntimeException("Cannot remove null role");
+		}
+
+		mutate(Mutation.removeRole(roleId, removeDescendants));
+	}
+
+	/**
+	 * Gets the metrics that receive the measurements of the access checks and
+	 * changes.
+	 *
+	 * @return The metrics, or null if there are none.
+	 */
+	public AclMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics to receive the measurements of the access checks and
+	 * changes.
+	 *
+	 * @param metrics The metrics. Null to stop measuring.
+	 */
+	public void setMetrics(AclMetrics metrics) {
+		synchronized (MEASURED) {
+			boolean had = this.metrics != null;
+
+			this.metrics = metrics;
+			if (had != (metrics != null)) {
+				measuredCount += had ? -1 : 1;
+				if (measuredCount == (had ? 0 : 1)) {
+					MEASURED.setTarget(MethodHandles.constant(boolean.class,
+							!had));
+					MutableCallSite.syncAll(new MutableCallSite[] {
+							MEASURED });
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subscribes to the changes made to the ACL.
+	 * <p>
+	 * The events are delivered in batches of up to 1000 events, waiting up to
+	 * 10 milliseconds for a batch to fill up.
+	 * </p>
+	 *
+	 * @param listener The listener to receive the events.
+	 * @return The feed delivering the events. Close the feed to unsubscribe.
+	 */
+	public AclEventFeed subscribe(AclListener listener) {
+		return subscribe(listener, 1000, 10);
+	}
+
+	/**
+	 * Subscribes to the changes made to the ACL.
+	 * <p>
+	 * Only changes made after the subscription are delivered. To keep a copy of
+	 * the ACL up to date, export it after subscribing and apply only the
+	 * events with greater sequence numbers than the exported state.
+	 * </p>
+	 *
+	 * @param listener The listener to receive the events.
+	 * @param maxBatchSize The maximum number of events in a batch.
+	 * @param maxDelay The maximum time in milliseconds to wait for a batch to
+	 * fill up.
+	 * @return The feed delivering the events. Close the feed to unsubscribe.
+	 */
+	public AclEventFeed subscribe(AclListener listener, int maxBatchSize,
+			long maxDelay) {
+		if (listener == null) {
+			throw new RuntimeException("Cannot subscribe null listener");
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			AclEventFeed feed = new AclEventFeed(this, listener, maxBatchSize,
+					maxDelay, sequence);
+
+			feeds.add(feed);
+			feed.start();
+
+			return feed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	void unsubscribe(AclEventFeed feed) {
+		feeds.remove(feed);
+	}
+
+	/**
+	 * Registers a listener to be notified of every change to the ACL.
+	 *
+	 * @param listener The listener to add.
+	 */
+	void addListener(MutationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	void removeListener(MutationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Gets the sequence number of the latest change made to the ACL.
+	 *
+	 * @return The sequence number, or 0 if no change has been made.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Sets the sequence number of the latest change, e.g. after the state has
+	 * been restored from a snapshot.
+	 *
+	 * @param sequence The sequence number.
+	 */
+	void setSequence(long sequence) {
+		long stamp = lock.writeLock();
+
+		try {
+			this.sequence = sequence;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Applies a change that has been recorded earlier, e.g. in a journal.
+	 *
+	 * @param mutation The change to make.
+	 */
+	void replay(Mutation mutation) {
+		mutate(mutation);
+	}
+
+	/**
+	 * Sets whether the expired rules are removed from the ACL. An ACL that
+	 * receives its changes from elsewhere, such as a replica, does not remove
+	 * them itself; expired rules are never honoured either way.
+	 *
+	 * @param expiring True to remove the expired rules.
+	 */
+	void setExpiring(boolean expiring) {
+		long stamp = lock.writeLock();
+
+		try {
+			this.expiring = expiring;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the timed rules that have expired, each as a change of its own.
+	 *
+	 * @param now The current time in milliseconds.
+	 */
+	void expire(long now) {
+		List<String[]> due = perms.expired(now);
+
+		if (due.isEmpty() || !expiring) {
+			if (!perms.hasExpiries()) {
+				//the timed rules were removed or replaced before they expired
+				long stamp = lock.writeLock();
+
+				try {
+					updateExpirer();
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+			return;
+		}
+
+		long stamp = lock.writeLock();
+		long last = 0;
+
+		try {
+			for (String[] item: due) {
+				//may have been replaced in the meantime
+				if (expiring && perms.hasAction(item[0], item[1])) {
+					last = applyAndRecord(Mutation.expire(item[0], item[1]));
+				}
+			}
+			updateExpirer();
+		} finally {
+			lock.unlockWrite(stamp);
+			commit(last);
+		}
+	}
+
+	/**
+	 * Copies the whole ACL at a single point in the sequence of changes.
+	 *
+	 * @param roleCopy The map to copy the roles into.
+	 * @param resourceCopy The map to copy the resources into.
+	 * @param permCopy The map to copy the permissions into. The actions are
+	 * copied as well.
+	 * @return The sequence number of the latest change in the copy.
+	 */
+	long copy(Map<String, String> roleCopy, Map<String, String> resourceCopy,
+			Map<String, Map<String, Boolean>> permCopy) {
+		long stamp = lock.readLock();
+
+		try {
+			roleCopy.putAll(roles.entries());
+			resourceCopy.putAll(resources.entries());
+			for (Map.Entry<String, Map<String, Boolean>> entry: perms.permissions
+					.entrySet()) {
+				permCopy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+			}
+
+			return sequence;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Replaces the whole ACL with a copy taken at another ACL.
+	 * <p>
+	 * Only the differences are applied, as a single change with the sequence
+	 * number of the copy.
+	 * </p>
+	 *
+	 * @param roleCopy The roles to load.
+	 * @param resourceCopy The resources to load.
+	 * @param permCopy The permissions to load.
+	 * @param copySequence The sequence number of the latest change in the
+	 * copy.
+	 */
+	void load(Map<String, String> roleCopy, Map<String, String> resourceCopy,
+			Map<String, Map<String, Boolean>> permCopy, long copySequence) {
+		long stamp = lock.writeLock();
+		long last = 0;
+
+		try {
+			AclDelta delta = AclDiff.compare(roles.entries(),
+					resources.entries(), perms.permissions, roleCopy,
+					resourceCopy, permCopy).toDelta();
+
+			sequence = copySequence - 1;
+			last = applyAndRecord(Mutation.delta(delta));
+		} finally {
+			lock.unlockWrite(stamp);
+			commit(last);
+		}
+	}
+
+	/**
+	 * Estimates the memory taken up by the ACL from the number of its
+	 * entries. Only the changes of an ACL layered over a base are counted.
+	 *
+	 * @return The estimated size in bytes.
+	 */
+	long estimateSize() {
+		return ACL_BYTES + (ownSize(roles.entries()) + ownSize(resources
+				.entries())) * ENTRY_BYTES + ownSize(perms.permissions)
+				* PERMISSION_BYTES;
+	}
+
+	private static int ownSize(Map<?, ?> map) {
+		return map instanceof LayeredMap ? ((LayeredMap<?>) map).changeCount()
+				: map.size();
+	}
+
+	Permission permissions() {
+		return perms;
+	}
+
+	/**
+	 * Checks if the removal of the expired rules is scheduled.
+	 *
+	 * @return True if the ACL has timed rules waiting to expire.
+	 */
+	boolean hasExpirer() {
+		long stamp = lock.readLock();
+
+		try {
+			return expirer != null;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Gets the metrics to pass the measurements to.
+	 *
+	 * @return The metrics, or null if none are set.
+	 */
+	private AclMetrics sink() {
+		if (!METRICS) {
+			return null;
+		}
+
+		boolean measured;
+		try {
+			measured = (boolean) IS_MEASURED.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e); //a constant cannot throw
+		}
+
+		return measured ? metrics : null;
+	}
+
+	/**
+	 * Starts the removal of the expired rules when there are timed rules, and
+	 * stops it once there are none left. Must be called with the write lock
+	 * held.
+	 */
+	private void updateExpirer() {
+		boolean expiries = perms.hasExpiries();
+
+		if (expirer == null && expiries) {
+			expirer = Expirer.start(this);
+		} else if (expirer != null && !expiries) {
+			expirer.stop();
+			expirer = null;
+		}
+	}
+
+	Registry resourceRegistry() {
+		return resources;
+	}
+
+	Registry roleRegistry() {
+		return roles;
+	}
+
+	private History versions() {
+		if (history == null) {
+			throw new RuntimeException("ACL is not versioned");
+		}
+
+		return history;
+	}
+
+	/**
+	 * Checks the access of a role to a resource, measuring the check if there
+	 * are metrics.
+	 *
+	 * @param check The kind of check.
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action checked, null for all actions.
+	 * @param grant Looks up a role-resource pair.
+	 * @return The result of the first pair that has one, or false.
+	 */
+	private boolean decide(AclMetrics.Check check, AclEntry role,
+			AclEntry resource, String action, Grant grant) {
+		AclMetrics sink = sink();
+
+		if (sink == null) {
+			return read(() -> traverse(role, resource, grant, null));
+		}
+
+		Probe probe = new Probe();
+		long start = System.nanoTime();
+		boolean result = read(() -> traverse(role, resource, grant, probe));
+		sink.decided(check, role == null ? null : role.getId(),
+				resource == null ? null : resource.getId(), action, result,
+				System.nanoTime() - start, probe.rolePathLength,
+				probe.resourcePathLength, probe.probes);
+
+		return result;
+	}
+
+	/**
+	 * Looks up the role-resource pairs on the paths of a role and a resource,
+	 * the nearest first. Must be called with a lock or stamp held.
+	 *
+	 * @param probe Records the traversal, if not null.
+	 */
+	private boolean traverse(AclEntry role, AclEntry resource, Grant grant,
+			Probe probe) {
+		//get the traversal path for role, skipping roles without rules
+		List<String> rolePath = rolePath(role);
+
+		//get the traversal path for resource, likewise
+		Permission.ResourcePath resPath = resourcePath(resource);
+
+		if (probe != null) {
+			probe.rolePathLength = rolePath.size();
+			probe.resourcePathLength = resPath.ids.size();
+			probe.probes = 0; //the optimistic read may be retried
+		}
+
+		//check role-resource
+		for (String aro: rolePath) {
+			//only the resources on the path that the role has rules on
+			for (String aco: perms.ruledResources(aro, resPath)) {
+				Boolean granted = grant.lookup(aro, aco);
+
+				if (probe != null) {
+					probe.probes++;
+				}
+				if (granted != null) {
+					return granted;
+				} //else null, continue
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Looks up the role-resource pairs for many resources, looking up each
+	 * pair of a role on the path and a resource or ancestor at most once. Must
+	 * be called with a lock or stamp held.
+	 *
+	 * @param batch The resources to check.
+	 * @param decided Records the positions of the resources that are granted.
+	 * @return The number of roles on the path of the role that have rules.
+	 */
+	private int traverse(AclEntry role, List<? extends AclEntry> batch,
+			Grant grant, BitSet decided) {
+		List<String> rolePath = rolePath(role);
+		Map<String, Batched> looked = new HashMap<>();
+
+		for (int i = 0; i < batch.size(); i++) {
+			AclEntry resource = batch.get(i);
+			String res = resource == null ? null : resource.getId();
+			List<String> path = resources.traverseRoot(res);
+
+			if (res == null || !res.equals(path.get(0))) {
+				//not registered, so its path is not shared with others
+				if (traverse(role, resource, grant, null)) {
+					decided.set(i);
+				}
+				continue;
+			}
+
+			Batched[] nodes = new Batched[path.size()];
+			for (int r = 0; r < rolePath.size(); r++) {
+				byte granted = lookup(rolePath, r, path, nodes, grant, looked);
+
+				if (granted != Batched.NONE) {
+					if (granted == Batched.ALLOWED) {
+						decided.set(i);
+					}
+					break;
+				}
+			}
+		}
+
+		return rolePath.size();
+	}
+
+	/**
+	 * Finds the nearest grant of a role on the path of a resource, recording
+	 * it at the resources on the path that have no say.
+	 *
+	 * @param r The position of the role on the path of roles.
+	 * @param nodes The resources on the path looked up so far.
+	 * @param looked The resources looked up in the batch, by ID.
+	 * @return {@link Batched#ALLOWED}, {@link Batched#DENIED} or
+	 * {@link Batched#NONE}.
+	 */
+	private byte lookup(List<String> rolePath, int r, List<String> path,
+			Batched[] nodes, Grant grant, Map<String, Batched> looked) {
+		String aro = rolePath.get(r);
+		byte found = Batched.NONE;
+		int j = 0;
+
+		for (; j < path.size(); j++) {
+			if (nodes[j] == null) {
+				String id = path.get(j);
+
+				nodes[j] = looked.get(id);
+				if (nodes[j] == null) {
+					nodes[j] = new Batched(new Permission.ResourcePath(perms
+							.withResourceRules(perms.withPatterns(id,
+									Collections.singletonList(id)))),
+							rolePath.size());
+					looked.put(id, nodes[j]);
+				}
+			}
+
+			Batched node = nodes[j];
+			if (node.grants[r] != Batched.UNKNOWN) {
+				found = node.grants[r];
+				break;
+			}
+			for (String aco: node.ruled.ids.isEmpty() ? node.ruled.ids
+					: perms.ruledResources(aro, node.ruled)) {
+				Boolean granted = grant.lookup(aro, aco);
+
+				if (granted != null) {
+					found = granted ? Batched.ALLOWED : Batched.DENIED;
+					break;
+				}
+			}
+			if (found != Batched.NONE) {
+				node.grants[r] = found;
+				break;
+			}
+		}
+		//the resources below the grant share it
+		for (int k = 0; k < j; k++) {
+			nodes[k].grants[r] = found;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Runs an access check against a consistent view of the ACL.
+	 * <p>
+	 * The check is first run without locking; it is only repeated under the
+	 * read lock if a change was made while it was running.
+	 * </p>
+	 *
+	 * @param check The access check.
+	 * @return The result of the access check.
+	 */
+	private boolean read(BooleanSupplier check) {
+		long stamp = lock.tryOptimisticRead();
+
+		if (stamp != 0L) {
+			try {
+				boolean result = check.getAsBoolean();
+
+				if (lock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (lock.validate(stamp)) {
+					throw e;
+				} //else caused by a concurrent change, retry
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return check.getAsBoolean();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Applies a change to the ACL under the write lock.
+	 *
+	 * @param mutation The change to make.
+	 * @param entries The entries that the change was given, checked to be
+	 * valid if they are handles of this ACL.
+	 */
+	private void mutate(Mutation mutation, AclEntry... entries) {
+		long stamp = lock.writeLock();
+		long last = 0;
+
+		try {
+			for (AclEntry entry: entries) {
+				checkHandle(entry);
+			}
+			last = applyAndRecord(mutation);
+		} finally {
+			lock.unlockWrite(stamp);
+			commit(last);
+		}
+	}
+
+	/**
+	 * Gets the handle of an entry that has just been added.
+	 *
+	 * @return The handle, already invalid if the entry was removed again in
+	 * the meantime.
+	 */
+	private <T extends EntryHandle> T added(Registry registry, AclEntry entry,
+			HandleFactory<T> factory) {
+		T handle = handle(registry, entry, factory);
+
+		if (handle == null) {
+			handle = factory.make(entry.getId(), entry, registry);
+			handle.invalidate();
+		}
+
+		return handle;
+	}
+
+	/**
+	 * Gets the handle of an entry, making it if there is none yet.
+	 *
+	 * @return The handle, or null if the entry is not registered.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends EntryHandle> T handle(Registry registry,
+			AclEntry entry, HandleFactory<T> factory) {
+		//the read lock keeps the entry from being removed while making it
+		long stamp = lock.readLock();
+
+		try {
+			return (T) registry.handle(entry.getId(), id -> factory.make(id,
+					entry, registry));
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Checks that an entry is not a handle of this ACL that is no longer
+	 * valid.
+	 */
+	private void checkHandle(AclEntry entry) {
+		if (entry instanceof EntryHandle) {
+			EntryHandle handle = (EntryHandle) entry;
+
+			if (handle.registry == roles || handle.registry == resources) {
+				handle.check();
+			}
+		}
+	}
+
+	/**
+	 * Gets the path of a role, with only the roles that have rules. Must be
+	 * called with a lock or stamp held.
+	 *
+	 * @param role The role, which may be a handle.
+	 * @return The path, the role first.
+	 * @throws RuntimeException Throws RuntimeException if the role is a
+	 * handle of this ACL that is no longer valid.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<String> rolePath(AclEntry role) {
+		if (!(role instanceof RoleHandle)
+				|| ((EntryHandle) role).registry != roles) {
+			String rol = role == null ? null : role.getId();
+
+			return perms.withRoleRules(roles.traverseRoot(rol));
+		}
+
+		EntryHandle handle = (EntryHandle) role;
+		long current = changes;
+
+		handle.check();
+		List<String> path = (List<String>) handle.path(current);
+		if (path == null) {
+			path = perms.withRoleRules(roles.traverseRoot(handle.getId()));
+			handle.remember(current, path);
+		}
+
+		return path;
+	}
+
+	/**
+	 * Gets the path of a resource, with only the resources that have rules
+	 * and the patterns that match it. Must be called with a lock or stamp
+	 * held.
+	 *
+	 * @param resource The resource, which may be a handle.
+	 * @return The path.
+	 * @throws RuntimeException Throws RuntimeException if the resource is a
+	 * handle of this ACL that is no longer valid.
+	 */
+	private Permission.ResourcePath resourcePath(AclEntry resource) {
+		if (!(resource instanceof ResourceHandle)
+				|| ((EntryHandle) resource).registry != resources) {
+			String res = resource == null ? null : resource.getId();
+
+			return new Permission.ResourcePath(perms.withResourceRules(perms
+					.withPatterns(res, resources.traverseRoot(res))));
+		}
+
+		EntryHandle handle = (EntryHandle) resource;
+		long current = changes;
+
+		handle.check();
+		Permission.ResourcePath path = (Permission.ResourcePath) handle.path(
+				current);
+		if (path == null) {
+			String res = handle.getId();
+
+			path = new Permission.ResourcePath(perms.withResourceRules(perms
+					.withPatterns(res, resources.traverseRoot(res))));
+			handle.remember(current, path);
+		}
+
+		return path;
+	}
+
+	/**
+	 * Applies a change and notifies the listeners. Must be called with the
+	 * write lock held.
+	 *
+	 * @param mutation The change to make.
+	 * @return The sequence number assigned to the change.
+	 */
+	private long applyAndRecord(Mutation mutation) {
+		for (MutationListener listener: listeners) {
+			listener.mutating(mutation);
+		}
+		if (!feeds.isEmpty()) {
+			events = new ArrayList<>();
+		}
+		AclMetrics sink = sink();
+		long start = 0;
+		int before = 0;
+		if (sink != null) {
+			start = System.nanoTime();
+			before = roles.size() + resources.size() + perms.size();
+		}
+		long ruled = perms.ruledChanges();
+		try {
+			apply(mutation);
+		} catch (RuntimeException e) {
+			//even a failed change may have been partly made
+			changes++;
+			events = null;
+			throw e;
+		}
+		if (!keepsPaths(mutation.op) || perms.ruledChanges() != ruled) {
+			changes++;
+		}
+		if (sink != null) {
+			measure(sink, mutation, System.nanoTime() - start, before);
+		}
+
+		updateExpirer();
+
+		long seq = ++sequence;
+		if (history != null) {
+			history.record(seq, perms.hasPatterns());
+		}
+		for (MutationListener listener: listeners) {
+			listener.mutated(seq, mutation);
+		}
+		if (events != null) {
+			if (!events.isEmpty()) {
+				for (AclEventFeed feed: feeds) {
+					feed.publish(events);
+				}
+			}
+			events = null;
+		}
+
+		return seq;
+	}
+
+	/**
+	 * Checks if a change only sets permissions, which keeps the paths of the
+	 * handles unless a role or resource gains its first rule or loses its
+	 * last.
+	 *
+	 * @param op The kind of change.
+	 * @return Returns true if the change leaves the hierarchies as they are.
+	 */
+	private static boolean keepsPaths(Mutation.Op op) {
+		switch (op) {
+		case ALLOW:
+		case DENY:
+		case REMOVE:
+		case DEFAULT_ALLOW:
+		case DEFAULT_DENY:
+		case PUT_PERMISSION:
+		case EXPIRE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Reports a change to the metrics.
+	 *
+	 * @param before The number of entries before the change.
+	 */
+	private void measure(AclMetrics sink, Mutation mutation, long nanos,
+			int before) {
+		int roleCount = roles.size();
+		int resourceCount = resources.size();
+		int permissionCount = perms.size();
+
+		sink.mutated(mutation.op.name(), mutation.first, mutation.second,
+				nanos, roleCount, resourceCount, permissionCount);
+		if (mutation.op == Mutation.Op.CLEAR || (mutation.descendants
+				&& (mutation.op == Mutation.Op.REMOVE_ROLE
+						|| mutation.op == Mutation.Op.REMOVE_RESOURCE))) {
+			sink.bulkChanged(mutation.op.name(), nanos, before - roleCount
+					- resourceCount - permissionCount);
+		}
+	}
+
+	/**
+	 * Imports entries into an empty part of the ACL a chunk at a time. The
+	 * entries are read without holding the lock, and each chunk is applied
+	 * and recorded as one delta.
+	 *
+	 * @param operation The name of the import for the metrics.
+	 * @param name The name of the part for the error message.
+	 * @param size The size of the part, which must be 0 to start with.
+	 * @param put Adds an entry to a chunk.
+	 * @return The number of entries imported.
+	 */
+	private <E> int importChunks(String operation, String name,
+			IntSupplier size, Iterator<? extends E> entries,
+			BiConsumer<AclDelta, E> put) {
+		long start = METRICS ? System.nanoTime() : 0;
+		int count = 0;
+
+		//fail before reading any entry, and again for the first chunk
+		if (read(() -> size.getAsInt() != 0)) {
+			throw new NonEmptyException(String.format(NON_EMPTY, name));
+		}
+		try {
+			boolean first = true;
+
+			while (first || entries.hasNext()) {
+				AclDelta chunk = new AclDelta();
+				int chunked = 0;
+
+				while (chunked < IMPORT_CHUNK && entries.hasNext()) {
+					put.accept(chunk, entries.next());
+					chunked++;
+				}
+
+				long stamp = lock.writeLock();
+				long last = 0;
+				try {
+					if (first && size.getAsInt() != 0) {
+						throw new NonEmptyException(String.format(NON_EMPTY,
+								name));
+					}
+					if (chunked > 0) {
+						last = applyAndRecord(Mutation.delta(chunk));
+					}
+				} finally {
+					lock.unlockWrite(stamp);
+					commit(last);
+				}
+				first = false;
+				count += chunked;
+			}
+		} finally {
+			measureImport(operation, start, count);
+		}
+
+		return count;
+	}
+
+	private void measureImport(String operation, long start, int count) {
+		AclMetrics sink = sink();
+
+		if (sink != null) {
+			sink.bulkChanged(operation, System.nanoTime() - start, count);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the changes up to the sequence number are
+	 * visible. Must be called after the write lock is released.
+	 *
+	 * @param last The sequence number of the latest change, or 0 if no change
+	 * has been made.
+	 */
+	private void commit(long last) {
+		if (last == 0) {
+			return;
+		}
+		for (MutationListener listener: listeners) {
+			listener.committed(last);
+		}
+	}
+
+	/**
+	 * Makes the change described by the mutation.
+	 *
+	 * @param m The change to make.
+	 */
+	private void apply(Mutation m) {
+		switch (m.op) {
+		case ADD_ROLE:
+			if (m.second == null) {
+				roles.add(m.first);
+			} else {
+				roles.add(m.first, m.second);
+			}
+			break;
+		case ADD_RESOURCE:
+			if (m.second == null) {
+				resources.add(m.first);
+			} else {
+				resources.add(m.first, m.second);
+			}
+			break;
+		case ALLOW:
+		case DENY:
+			if (m.first != null && !roles.has(m.first)) {
+				roles.add(m.first);
+			}
+			if (m.second != null && !resources.has(m.second)
+					&& !ResourcePatterns.isPattern(m.second)) {
+				resources.add(m.second);
+			}
+			perms.grant(m.first, m.second, m.action,
+					m.op == Mutation.Op.ALLOW);
+			break;
+		case REMOVE:
+			if (m.action == null) {
+				perms.remove(m.first, m.second);
+			} else {
+				perms.remove(m.first, m.second,
+						Permission.Types.valueOf(m.action));
+			}
+			break;
+		case REMOVE_ROLE:
+			for (String r: roles.remove(m.first, m.descendants)) {
+				perms.removeByRole(r);
+			}
+			break;
+		case REMOVE_RESOURCE:
+			for (String r: resources.remove(m.first, m.descendants)) {
+				perms.removeByResource(r);
+			}
+			break;
+		case DEFAULT_ALLOW:
+			perms.makeDefaultAllow();
+			break;
+		case DEFAULT_DENY:
+			perms.makeDefaultDeny();
+			break;
+		case CLEAR:
+			perms.clear();
+			resources.clear();
+			roles.clear();
+			if (events != null) {
+				events.add(new AclEvent(AclEvent.Type.CLEARED, sequence + 1,
+						null, null, null, null));
+			}
+			break;
+		case PUT_ROLE:
+			roles.checkPuts(Collections.singletonMap(m.first, m.second));
+			roles.put(m.first, m.second);
+			break;
+		case PUT_RESOURCE:
+			resources.checkPuts(Collections.singletonMap(m.first, m.second));
+			resources.put(m.first, m.second);
+			break;
+		case PUT_PERMISSION:
+			perms.importEntry(m.first, m.actions);
+			break;
+		case DELTA:
+			applyDelta(m.delta, roles, resources, perms);
+			break;
+		case EXPIRE:
+			perms.expire(m.first, m.action);
+			break;
+		case MOVE_ROLE:
+			roles.move(m.first, m.second);
+			break;
+		case MOVE_RESOURCE:
+			resources.move(m.first, m.second);
+			break;
+		}
+	}
+
+	private static void applyDelta(AclDelta delta, Registry roles,
+			Registry resources, Permission perms) {
+		//the entries may be put in any order, so check the end result first
+		roles.checkPuts(delta.getPutRoles());
+		resources.checkPuts(delta.getPutResources());
+		for (Map.Entry<String, String> entry: delta.getPutRoles().entrySet()) {
+			roles.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, String> entry: delta.getPutResources()
+				.entrySet()) {
+			resources.put(entry.getKey(), entry.getValue());
+		}
+		for (String key: delta.getRemovedPermissions()) {
+			perms.removeKey(key);
+		}
+		for (Map.Entry<String, Map<String, Boolean>> entry: delta
+				.getPutPermissions().entrySet()) {
+			perms.put(entry.getKey(), entry.getValue());
+		}
+		for (String resource: delta.getRemovedResources()) {
+			if (resources.has(resource)) {
+				resources.remove(resource, false);
+			}
+		}
+		for (String role: delta.getRemovedRoles()) {
+			if (roles.has(role)) {
+				roles.remove(role, false);
+			}
+		}
+	}
+
+	public String visualize() {
+		StringBuilder sb = new StringBuilder();
+
+		try {
+			visualize(sb);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); //not thrown by StringBuilder
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the roles, resources and permissions as they are written by
+	 * {@link #visualize()}, one line at a time.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	public void visualize(Appendable out) throws IOException {
+		roles.print(out);
+		out.append("\n");
+		resources.print(out);
+		out.append("\n");
+		perms.print(out);
+		out.append("\n");
+	}
+
+	public String visualizePermissions() {
+		return perms.toString();
+	}
+
+	public String visualizeResources(AclEntry loader) {
+		return resources.display(loader, null, null);
+	}
+
+	/**
+	 * Writes the hierarchy of resources, one resource per line, indented
+	 * under its parent.
+	 * <p>
+	 * The resources are written as the hierarchy is walked, without
+	 * recursion, so hierarchies of any size and depth can be written to a
+	 * file or a stream. The output is not locked against changes made while
+	 * it is written.
+	 * </p>
+	 *
+	 * @param loader The instance that retrieves the resources by ID.
+	 * @param out The output to write to.
+	 * @param maxDepth The number of levels to write, e.g. 1 for the resources
+	 * at the root only.
+	 * @param maxNodes The number of resources to write. A line of
+	 * <code>...</code> stands for the rest.
+	 * @return The number of resources written.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	public int visualizeResources(AclEntry loader, Appendable out,
+			int maxDepth, int maxNodes) throws IOException {
+		return resources.display(loader, out, null, null, maxDepth, maxNodes);
+	}
+
+	public String visualizeRoles(AclEntry loader) {
+		return roles.display(loader, null, null);
+	}
+
+	/**
+	 * Writes the hierarchy of roles, one role per line, indented under its
+	 * parent.
+	 *
+	 * @param loader The instance that retrieves the roles by ID.
+	 * @param out The output to write to.
+	 * @param maxDepth The number of levels to write.
+	 * @param maxNodes The number of roles to write.
+	 * @return The number of roles written.
+	 * @throws IOException Re-throws IOException from the output.
+	 * @see #visualizeResources(AclEntry, Appendable, int, int)
+	 */
+	public int visualizeRoles(AclEntry loader, Appendable out, int maxDepth,
+			int maxNodes) throws IOException {
+		return roles.display(loader, out, null, null, maxDepth, maxNodes);
+	}
+
+	/**
+	 * Makes the handle of a registered entry.
+	 */
+	@FunctionalInterface
+	private static interface HandleFactory<T extends EntryHandle> {
+		T make(String id, AclEntry entry, Registry registry);
+	}
+
+	/**
+	 * Looks up the grant of a role-resource pair for an access check.
+	 */
+	@FunctionalInterface
+	private static interface Grant {
+		/**
+		 * @return True if granted, false if denied, null if the pair has no
+		 * say.
+		 */
+		Boolean lookup(String role, String resource);
+	}
+
+	/**
+	 * A resource in a batch of access checks.
+	 */
+	private static final class Batched {
+		static final byte UNKNOWN = 0;
+
+		static final byte NONE = 1;
+
+		static final byte ALLOWED = 2;
+
+		static final byte DENIED = 3;
+
+		/**
+		 * The resource and the patterns matching it that have rules.
+		 */
+		final Permission.ResourcePath ruled;
+
+		/**
+		 * The nearest grant of each role on the path of roles, from this
+		 * resource upwards.
+		 */
+		final byte[] grants;
+
+		Batched(Permission.ResourcePath ruled, int roles) {
+			this.ruled = ruled;
+			this.grants = new byte[roles];
+		}
+	}
+
+	/**
+	 * The traversal of an access check that is being measured.
+	 */
+	private static final class Probe {
+		int rolePathLength;
+
+		int resourcePathLength;
+
+		int probes;
+	}
+
+	/**
+	 * The latest versions of the roles, resources and permissions of a
+	 * versioned ACL.
+	 */
+	private static final class History {
+		private final HamtMap<String> roles;
+
+		private final HamtMap<String> resources;
+
+		private final HamtMap<Map<String, Boolean>> permissions;
+
+		/**
+		 * The versions in a ring, guarded by this object.
+		 */
+		private final AclVersion[] versions;
+
+		private int next;
+
+		private int count;
+
+		volatile AclVersion latest;
+
+		History(HamtMap<String> roles, HamtMap<String> resources,
+				HamtMap<Map<String, Boolean>> permissions, int size) {
+			this.roles = roles;
+			this.resources = resources;
+			this.permissions = permissions;
+			this.versions = new AclVersion[size];
+		}
+
+		/**
+		 * Keeps the current state as the version after a change, in place of
+		 * the oldest version. Must be called with the write lock held.
+		 */
+		void record(long sequence, boolean withPatterns) {
+			AclVersion version = new AclVersion(sequence, System
+					.currentTimeMillis(), roles.snapshot(), resources.snapshot(),
+					permissions.snapshot(), withPatterns);
+
+			synchronized (this) {
+				versions[next] = version;
+				next = (next + 1) % versions.length;
+				count = Math.min(count + 1, versions.length);
+			}
+			latest = version;
+		}
+
+		synchronized List<AclVersion> list() {
+			List<AclVersion> list = new ArrayList<>(count);
+
+			for (int i = count; i > 0; i--) {
+				list.add(versions[(next - i + versions.length)
+						% versions.length]);
+			}
+
+			return list;
+		}
+	}
+
+	/**
+	 * Removes the expired rules of an ACL on every tick of its expiry wheel,
+	 * until the ACL is no longer used.
+	 */
+	private static final class Expirer implements Runnable {
+		private final WeakReference<Acl> acl;
+
+		private volatile ScheduledFuture<?> task;
+
+		Expirer(Acl acl) {
+			this.acl = new WeakReference<>(acl);
+		}
+
+		static Expirer start(Acl acl) {
+			Expirer expirer = new Expirer(acl);
+
+			expirer.task = EXPIRY.scheduleWithFixedDelay(expirer,
+					Permission.EXPIRY_TICK, Permission.EXPIRY_TICK,
+					TimeUnit.MILLISECONDS);
+
+			return expirer;
+		}
+
+		void stop() {
+			ScheduledFuture<?> current = task;
+
+			if (current != null) {
+				current.cancel(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			Acl target = acl.get();
+
+			if (target == null) {
+				stop();
+				return;
+			}
+			try {
+				target.expire(System.currentTimeMillis());
+			} catch (RuntimeException e) {
+				//try again on the next tick
+			}
+		}
+	}
+
+	/**
+	 * Collects the events of the change being made.
+	 */
+	private class EventCollector implements ChangeObserver {
+		@Override
+		public void entryChanged(Registry registry, String entry,
+				String parent, String previous) {
+			if (events != null) {
+				events.add(new AclEvent(registry == roles
+						? AclEvent.Type.ROLE_CHANGED
+						: AclEvent.Type.RESOURCE_CHANGED, sequence + 1, entry,
+						parent, previous, null));
+			}
+		}
+
+		@Override
+		public void entryRemoved(Registry registry, String entry) {
+			if (events != null) {
+				events.add(new AclEvent(registry == roles
+						? AclEvent.Type.ROLE_REMOVED
+						: AclEvent.Type.RESOURCE_REMOVED, sequence + 1, entry,
+						null, null, null));
+			}
+		}
+
+		@Override
+		public void permissionChanged(String key, Map<String, Boolean> perm) {
+			if (events != null) {
+				events.add(new AclEvent(AclEvent.Type.PERMISSION_CHANGED,
+						sequence + 1, key, null, null, perm));
+			}
+		}
+
+		@Override
+		public void permissionRemoved(String key) {
+			if (events != null) {
+				events.add(new AclEvent(AclEvent.Type.PERMISSION_REMOVED,
+						sequence + 1, key, null, null, null));
+			}
+		}
 	}
 }
 
@@ -0,0 +1,58 @@
+package com.rojakcoder.archly;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AclBase is a snapshot of an ACL that is shared by many ACLs.
+ * <p>
+ * An ACL created with {@link Acl#makeInstance(AclBase)} starts with the
+ * roles, resources and permissions of the base, but only holds the changes
+ * made to it; everything else is looked up in the base. This suits the ACLs
+ * of tenants that differ from a common set of roles and rules in only a few
+ * places. The base itself is never changed.
+ * </p>
+ */
+public final class AclBase {
+	final Map<String, String> roles;
+
+	final Map<String, String> resources;
+
+	final Permission permissions;
+
+	AclBase(Map<String, String> roles, Map<String, String> resources,
+			Map<String, Map<String, Boolean>> permissions) {
+		this.roles = Collections.unmodifiableMap(new HashMap<>(roles));
+		this.resources = Collections.unmodifiableMap(new HashMap<>(
+				resources));
+		this.permissions = Permission.makeBase(permissions);
+	}
+
+	/**
+	 * Gets the number of roles in the base.
+	 *
+	 * @return The number of roles.
+	 */
+	public int getRoleCount() {
+		return roles.size();
+	}
+
+	/**
+	 * Gets the number of resources in the base.
+	 *
+	 * @return The number of resources.
+	 */
+	public int getResourceCount() {
+		return resources.size();
+	}
+
+	/**
+	 * Gets the number of permissions in the base.
+	 *
+	 * @return The number of permissions.
+	 */
+	public int getPermissionCount() {
+		return permissions.size();
+	}
+}
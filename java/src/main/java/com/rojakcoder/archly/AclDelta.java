@@ -0,0 +1,215 @@
+package com.rojakcoder.archly;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AclDelta is a set of changes to apply to an existing {@link Acl}.
+ * <p>
+ * The entries use the same formats as the <code>export*</code> methods of
+ * {@link Acl}: roles and resources are mapped to the IDs of their parents
+ * (empty for entries at the root), and permissions are keyed by
+ * <code>role::resource</code>. Putting an entry that is marked for removal
+ * cancels the removal and vice versa.
+ * </p>
+ *
+ * @see Acl#applyDelta(AclDelta)
+ */
+public class AclDelta {
+	private final Map<String, String> putRoles = new LinkedHashMap<>();
+
+	private final Set<String> removedRoles = new LinkedHashSet<>();
+
+	private final Map<String, String> putResources = new LinkedHashMap<>();
+
+	private final Set<String> removedResources = new LinkedHashSet<>();
+
+	private final Map<String, Map<String, Boolean>> putPermissions = new LinkedHashMap<>();
+
+	private final Set<String> removedPermissions = new LinkedHashSet<>();
+
+	/**
+	 * Adds a role, or moves an existing role under another parent.
+	 *
+	 * @param role The ID of the role.
+	 * @param parent The ID of the parent role. Null or empty if the role is at
+	 * the root.
+	 * @return This delta.
+	 */
+	public AclDelta putRole(String role, String parent) {
+		removedRoles.remove(role);
+		putRoles.put(role, parent == null ? "" : parent);
+
+		return this;
+	}
+
+	/**
+	 * Removes a role.
+	 *
+	 * @param role The ID of the role.
+	 * @return This delta.
+	 */
+	public AclDelta removeRole(String role) {
+		putRoles.remove(role);
+		removedRoles.add(role);
+
+		return this;
+	}
+
+	/**
+	 * Adds a resource, or moves an existing resource under another parent.
+	 *
+	 * @param resource The ID of the resource.
+	 * @param parent The ID of the parent resource. Null or empty if the
+	 * resource is at the root.
+	 * @return This delta.
+	 */
+	public AclDelta putResource(String resource, String parent) {
+		removedResources.remove(resource);
+		putResources.put(resource, parent == null ? "" : parent);
+
+		return this;
+	}
+
+	/**
+	 * Removes a resource.
+	 *
+	 * @param resource The ID of the resource.
+	 * @return This delta.
+	 */
+	public AclDelta removeResource(String resource) {
+		putResources.remove(resource);
+		removedResources.add(resource);
+
+		return this;
+	}
+
+	/**
+	 * Replaces the permissions of a role on a resource.
+	 *
+	 * @param key The permission key (<code>role::resource</code>).
+	 * @param actions The map of actions to grants. The map is copied.
+	 * @return This delta.
+	 */
+	public AclDelta putPermission(String key, Map<String, Boolean> actions) {
+		removedPermissions.remove(key);
+		putPermissions.put(key, new HashMap<>(actions));
+
+		return this;
+	}
+
+	/**
+	 * Replaces the permissions of a role on a resource.
+	 *
+	 * @param role The ID of the role. Null for all roles.
+	 * @param resource The ID of the resource. Null for all resources.
+	 * @param actions The map of actions to grants. The map is copied.
+	 * @return This delta.
+	 */
+	public AclDelta putPermission(String role, String resource,
+			Map<String, Boolean> actions) {
+		return putPermission(Permission.makeKey(role, resource), actions);
+	}
+
+	/**
+	 * Removes the permissions of a role on a resource.
+	 *
+	 * @param key The permission key (<code>role::resource</code>).
+	 * @return This delta.
+	 */
+	public AclDelta removePermission(String key) {
+		putPermissions.remove(key);
+		removedPermissions.add(key);
+
+		return this;
+	}
+
+	/**
+	 * Removes the permissions of a role on a resource.
+	 *
+	 * @param role The ID of the role. Null for all roles.
+	 * @param resource The ID of the resource. Null for all resources.
+	 * @return This delta.
+	 */
+	public AclDelta removePermission(String role, String resource) {
+		return removePermission(Permission.makeKey(role, resource));
+	}
+
+	/**
+	 * Gets the roles to add or re-parent.
+	 *
+	 * @return An unmodifiable map of role IDs to parent IDs.
+	 */
+	public Map<String, String> getPutRoles() {
+		return Collections.unmodifiableMap(putRoles);
+	}
+
+	/**
+	 * Gets the roles to remove.
+	 *
+	 * @return An unmodifiable set of role IDs.
+	 */
+	public Set<String> getRemovedRoles() {
+		return Collections.unmodifiableSet(removedRoles);
+	}
+
+	/**
+	 * Gets the resources to add or re-parent.
+	 *
+	 * @return An unmodifiable map of resource IDs to parent IDs.
+	 */
+	public Map<String, String> getPutResources() {
+		return Collections.unmodifiableMap(putResources);
+	}
+
+	/**
+	 * Gets the resources to remove.
+	 *
+	 * @return An unmodifiable set of resource IDs.
+	 */
+	public Set<String> getRemovedResources() {
+		return Collections.unmodifiableSet(removedResources);
+	}
+
+	/**
+	 * Gets the permissions to replace.
+	 *
+	 * @return An unmodifiable map of permission keys to actions.
+	 */
+	public Map<String, Map<String, Boolean>> getPutPermissions() {
+		return Collections.unmodifiableMap(putPermissions);
+	}
+
+	/**
+	 * Gets the permissions to remove.
+	 *
+	 * @return An unmodifiable set of permission keys.
+	 */
+	public Set<String> getRemovedPermissions() {
+		return Collections.unmodifiableSet(removedPermissions);
+	}
+
+	/**
+	 * Checks if there are no changes in this delta.
+	 *
+	 * @return True if there are no changes.
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the number of changes in this delta.
+	 *
+	 * @return The number of entries to put or remove.
+	 */
+	public int size() {
+		return putRoles.size() + removedRoles.size() + putResources.size()
+				+ removedResources.size() + putPermissions.size()
+				+ removedPermissions.size();
+	}
+}
@@ -0,0 +1,350 @@
+package com.rojakcoder.archly;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AclDiff is the set of differences between two states of an ACL.
+ * <p>
+ * The entries use the same formats as the <code>export*</code> methods of
+ * {@link Acl}. Roles and resources that are present in both states but have
+ * different parents are reported as reparented; permissions that are present
+ * in both states but have different actions are reported as changed.
+ * </p>
+ * <p>
+ * Both states are divided into segments by the hash of the keys, and only
+ * the segments whose fingerprints differ are compared key by key. Comparing
+ * two large states that are mostly the same is therefore mostly a matter of
+ * iterating over them once. The fingerprints are 64-bit, so the chance that a
+ * difference goes unnoticed is negligible but not zero.
+ * </p>
+ *
+ * @see Acl#diff(Acl)
+ */
+public class AclDiff {
+	/**
+	 * The number of entries in a segment to aim for.
+	 */
+	private static final int SEGMENT_SIZE = 64;
+
+	private static final int MAX_SEGMENTS = 1 << 20;
+
+	private final Map<String, String> addedRoles = new HashMap<>();
+
+	private final Map<String, String> removedRoles = new HashMap<>();
+
+	private final Map<String, String> reparentedRoles = new HashMap<>();
+
+	private final Map<String, String> addedResources = new HashMap<>();
+
+	private final Map<String, String> removedResources = new HashMap<>();
+
+	private final Map<String, String> reparentedResources = new HashMap<>();
+
+	private final Map<String, Map<String, Boolean>> addedPermissions = new HashMap<>();
+
+	private final Map<String, Map<String, Boolean>> removedPermissions = new HashMap<>();
+
+	private final Map<String, Map<String, Boolean>> changedPermissions = new HashMap<>();
+
+	private AclDiff() {
+	}
+
+	/**
+	 * Compares two exported states of an ACL.
+	 *
+	 * @param fromRoles The roles of the original state.
+	 * @param fromResources The resources of the original state.
+	 * @param fromPermissions The permissions of the original state.
+	 * @param toRoles The roles of the new state.
+	 * @param toResources The resources of the new state.
+	 * @param toPermissions The permissions of the new state.
+	 * @return The changes that turn the original state into the new state.
+	 */
+	public static AclDiff compare(Map<String, String> fromRoles,
+			Map<String, String> fromResources,
+			Map<String, Map<String, Boolean>> fromPermissions,
+			Map<String, String> toRoles, Map<String, String> toResources,
+			Map<String, Map<String, Boolean>> toPermissions) {
+		AclDiff diff = new AclDiff();
+
+		compare(fromRoles, toRoles, diff.addedRoles, diff.removedRoles,
+				diff.reparentedRoles);
+		compare(fromResources, toResources, diff.addedResources,
+				diff.removedResources, diff.reparentedResources);
+		compare(fromPermissions, toPermissions, diff.addedPermissions,
+				diff.removedPermissions, diff.changedPermissions);
+
+		return diff;
+	}
+
+	/**
+	 * Gets the roles that are only in the new state.
+	 *
+	 * @return The map of role IDs to the IDs of their parents.
+	 */
+	public Map<String, String> getAddedRoles() {
+		return Collections.unmodifiableMap(addedRoles);
+	}
+
+	/**
+	 * Gets the roles that are only in the original state.
+	 *
+	 * @return The map of role IDs to the IDs of their original parents.
+	 */
+	public Map<String, String> getRemovedRoles() {
+		return Collections.unmodifiableMap(removedRoles);
+	}
+
+	/**
+	 * Gets the roles that have different parents in the new state.
+	 *
+	 * @return The map of role IDs to the IDs of their new parents.
+	 */
+	public Map<String, String> getReparentedRoles() {
+		return Collections.unmodifiableMap(reparentedRoles);
+	}
+
+	/**
+	 * Gets the resources that are only in the new state.
+	 *
+	 * @return The map of resource IDs to the IDs of their parents.
+	 */
+	public Map<String, String> getAddedResources() {
+		return Collections.unmodifiableMap(addedResources);
+	}
+
+	/**
+	 * Gets the resources that are only in the original state.
+	 *
+	 * @return The map of resource IDs to the IDs of their original parents.
+	 */
+	public Map<String, String> getRemovedResources() {
+		return Collections.unmodifiableMap(removedResources);
+	}
+
+	/**
+	 * Gets the resources that have different parents in the new state.
+	 *
+	 * @return The map of resource IDs to the IDs of their new parents.
+	 */
+	public Map<String, String> getReparentedResources() {
+		return Collections.unmodifiableMap(reparentedResources);
+	}
+
+	/**
+	 * Gets the permissions that are only in the new state.
+	 *
+	 * @return The map of permission keys to the actions.
+	 */
+	public Map<String, Map<String, Boolean>> getAddedPermissions() {
+		return Collections.unmodifiableMap(addedPermissions);
+	}
+
+	/**
+	 * Gets the permissions that are only in the original state.
+	 *
+	 * @return The map of permission keys to the original actions.
+	 */
+	public Map<String, Map<String, Boolean>> getRemovedPermissions() {
+		return Collections.unmodifiableMap(removedPermissions);
+	}
+
+	/**
+	 * Gets the permissions that have different actions in the new state.
+	 *
+	 * @return The map of permission keys to the new actions.
+	 */
+	public Map<String, Map<String, Boolean>> getChangedPermissions() {
+		return Collections.unmodifiableMap(changedPermissions);
+	}
+
+	/**
+	 * Checks if the two states are the same.
+	 *
+	 * @return True if there are no differences.
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the number of differences.
+	 *
+	 * @return The total number of added, removed, reparented and changed
+	 * entries.
+	 */
+	public int size() {
+		return addedRoles.size() + removedRoles.size() + reparentedRoles.size()
+				+ addedResources.size() + removedResources.size()
+				+ reparentedResources.size() + addedPermissions.size()
+				+ removedPermissions.size() + changedPermissions.size();
+	}
+
+	/**
+	 * Converts the differences to a delta.
+	 *
+	 * @return The delta that turns the original state into the new state when
+	 * applied with {@link Acl#applyDelta(AclDelta)}.
+	 */
+	public AclDelta toDelta() {
+		AclDelta delta = new AclDelta();
+
+		for (Map.Entry<String, String> entry: addedRoles.entrySet()) {
+			delta.putRole(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, String> entry: reparentedRoles.entrySet()) {
+			delta.putRole(entry.getKey(), entry.getValue());
+		}
+		for (String role: removedRoles.keySet()) {
+			delta.removeRole(role);
+		}
+		for (Map.Entry<String, String> entry: addedResources.entrySet()) {
+			delta.putResource(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, String> entry: reparentedResources.entrySet()) {
+			delta.putResource(entry.getKey(), entry.getValue());
+		}
+		for (String resource: removedResources.keySet()) {
+			delta.removeResource(resource);
+		}
+		for (Map.Entry<String, Map<String, Boolean>> entry: addedPermissions
+				.entrySet()) {
+			delta.putPermission(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Map<String, Boolean>> entry: changedPermissions
+				.entrySet()) {
+			delta.putPermission(entry.getKey(), entry.getValue());
+		}
+		for (String key: removedPermissions.keySet()) {
+			delta.removePermission(key);
+		}
+
+		return delta;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("roles +%d -%d ~%d, resources +%d -%d ~%d, "
+				+ "permissions +%d -%d ~%d", addedRoles.size(),
+				removedRoles.size(), reparentedRoles.size(),
+				addedResources.size(), removedResources.size(),
+				reparentedResources.size(), addedPermissions.size(),
+				removedPermissions.size(), changedPermissions.size());
+	}
+
+	/**
+	 * Compares two maps segment by segment.
+	 *
+	 * @param from The original map.
+	 * @param to The new map.
+	 * @param added The map to put the entries that are only in the new map.
+	 * @param removed The map to put the entries that are only in the original
+	 * map.
+	 * @param changed The map to put the entries of the new map that have
+	 * different values.
+	 */
+	private static <V> void compare(Map<String, V> from, Map<String, V> to,
+			Map<String, V> added, Map<String, V> removed,
+			Map<String, V> changed) {
+		int segments = Integer.highestOneBit(Math.max(1,
+				Math.max(from.size(), to.size()) / SEGMENT_SIZE));
+		segments = Math.min(segments, MAX_SEGMENTS);
+
+		long[] fromPrints = fingerprint(from, segments);
+		long[] toPrints = fingerprint(to, segments);
+		BitSet dirty = new BitSet(segments);
+
+		for (int i = 0; i < segments; i++) {
+			if (fromPrints[i] != toPrints[i]) {
+				dirty.set(i);
+			}
+		}
+		if (dirty.isEmpty()) {
+			return;
+		}
+
+		for (Map.Entry<String, V> entry: from.entrySet()) {
+			if (!dirty.get(segment(entry.getKey(), segments))) {
+				continue;
+			}
+
+			V value = to.get(entry.getKey());
+
+			if (value == null) {
+				removed.put(entry.getKey(), entry.getValue());
+			} else if (!value.equals(entry.getValue())) {
+				changed.put(entry.getKey(), value);
+			}
+		}
+		for (Map.Entry<String, V> entry: to.entrySet()) {
+			if (dirty.get(segment(entry.getKey(), segments))
+					&& !from.containsKey(entry.getKey())) {
+				added.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Computes the fingerprints of the segments of a map.
+	 * <p>
+	 * The fingerprint of a segment is the sum of the hashes of its entries, so
+	 * it does not depend on the order of iteration.
+	 * </p>
+	 *
+	 * @param map The map to fingerprint.
+	 * @param segments The number of segments, a power of 2.
+	 * @return The fingerprints indexed by segment.
+	 */
+	private static <V> long[] fingerprint(Map<String, V> map, int segments) {
+		long[] prints = new long[segments];
+
+		for (Map.Entry<String, V> entry: map.entrySet()) {
+			int keyHash = entry.getKey().hashCode();
+
+			prints[spread(keyHash) & (segments - 1)] += mix(mix(keyHash)
+					+ hash(entry.getValue()));
+		}
+
+		return prints;
+	}
+
+	private static long hash(Object value) {
+		if (!(value instanceof Map)) {
+			return mix(value.hashCode());
+		}
+
+		//the hash code of a map cannot tell {a=true, b=false} from
+		//{a=false, b=true} for some keys
+		long hash = 0;
+		for (Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+			hash += mix(((long) entry.getKey().hashCode() << 1)
+					| (Boolean.TRUE.equals(entry.getValue()) ? 1 : 0));
+		}
+
+		return hash;
+	}
+
+	private static int segment(String key, int segments) {
+		return spread(key.hashCode()) & (segments - 1);
+	}
+
+	private static int spread(int hash) {
+		return (int) (mix(hash) >>> 32);
+	}
+
+	/**
+	 * Scrambles the bits of a hash (the finalizer of MurmurHash3).
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+}
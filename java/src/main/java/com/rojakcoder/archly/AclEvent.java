@@ -0,0 +1,155 @@
+package com.rojakcoder.archly;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AclEvent describes a single change to the roles, resources or permissions
+ * of an Acl.
+ * <p>
+ * A change made through one method of {@link Acl} may give several events,
+ * e.g. removing a role also removes the permissions of the role. All the
+ * events of a change have the same sequence number; the sequence numbers of
+ * the changes increase in the order that the changes are made.
+ * </p>
+ */
+public class AclEvent {
+	/**
+	 * The types of changes.
+	 */
+	public static enum Type {
+		/**
+		 * A role is added or moved under another parent.
+		 */
+		ROLE_CHANGED,
+		/**
+		 * A role is removed.
+		 */
+		ROLE_REMOVED,
+		/**
+		 * A resource is added or moved under another parent.
+		 */
+		RESOURCE_CHANGED,
+		/**
+		 * A resource is removed.
+		 */
+		RESOURCE_REMOVED,
+		/**
+		 * A permission is added or changed.
+		 */
+		PERMISSION_CHANGED,
+		/**
+		 * A permission is removed.
+		 */
+		PERMISSION_REMOVED,
+		/**
+		 * All the roles, resources and permissions are removed.
+		 */
+		CLEARED
+	}
+
+	private final Type type;
+
+	private final long sequence;
+
+	private final String id;
+
+	private final String parent;
+
+	private final String previousParent;
+
+	private final Map<String, Boolean> actions;
+
+	AclEvent(Type type, long sequence, String id, String parent,
+			String previousParent, Map<String, Boolean> actions) {
+		this.type = type;
+		this.sequence = sequence;
+		this.id = id;
+		this.parent = parent;
+		this.previousParent = previousParent;
+		this.actions = actions == null ? null : Collections
+				.unmodifiableMap(new HashMap<>(actions));
+	}
+
+	/**
+	 * Gets the type of change.
+	 *
+	 * @return The type of change.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the sequence number of the change.
+	 *
+	 * @return The sequence number.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Gets the ID of the changed entry.
+	 *
+	 * @return The ID of the role or resource, or the permission key
+	 * (<code>role::resource</code>). Null for {@link Type#CLEARED}.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the parent of the changed role or resource.
+	 *
+	 * @return The ID of the parent entry, empty if the entry is at the root.
+	 * Null if the event is not for an added or moved entry.
+	 */
+	public String getParent() {
+		return parent;
+	}
+
+	/**
+	 * Gets the previous parent of a moved role or resource.
+	 *
+	 * @return The ID of the previous parent entry. Null if the entry is added
+	 * or the event is not for a role or resource.
+	 */
+	public String getPreviousParent() {
+		return previousParent;
+	}
+
+	/**
+	 * Gets the new permissions of a changed permission.
+	 *
+	 * @return An unmodifiable map of actions to grants. Null if the event is
+	 * not for a changed permission.
+	 */
+	public Map<String, Boolean> getActions() {
+		return actions;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(sequence);
+		sb.append(" ");
+		sb.append(type);
+		if (id != null) {
+			sb.append(" ");
+			sb.append(id);
+		}
+		if (parent != null) {
+			sb.append(" -> ");
+			sb.append(parent.isEmpty() ? "*" : parent);
+		}
+		if (actions != null) {
+			sb.append(" ");
+			sb.append(actions);
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,145 @@
+package com.rojakcoder.archly;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AclEventFeed delivers the changes made to an Acl to a listener in batches.
+ * <p>
+ * Events are queued while the change is made and delivered on a separate
+ * thread, so a slow listener does not hold up the changes to the ACL. A batch
+ * is delivered once it is full, or once the oldest event in it has waited for
+ * the maximum delay.
+ * </p>
+ *
+ * @see Acl#subscribe(AclListener, int, long)
+ */
+public class AclEventFeed implements Closeable {
+	private final Acl acl;
+
+	private final AclListener listener;
+
+	private final int maxBatchSize;
+
+	private final long maxDelay;
+
+	private final long startSequence;
+
+	private final ArrayDeque<AclEvent> queue = new ArrayDeque<>();
+
+	private final Thread thread;
+
+	private volatile long lastDelivered;
+
+	private boolean closed;
+
+	AclEventFeed(Acl acl, AclListener listener, int maxBatchSize,
+			long maxDelay, long startSequence) {
+		if (maxBatchSize < 1) {
+			throw new RuntimeException("Batch size must be at least 1");
+		}
+
+		this.acl = acl;
+		this.listener = listener;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelay = maxDelay;
+		this.startSequence = startSequence;
+		this.lastDelivered = startSequence;
+		this.thread = new Thread(this::deliverLoop, "archly-events");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Gets the sequence number of the latest change made before the feed
+	 * started.
+	 *
+	 * @return The sequence number. The first event delivered has a greater
+	 * sequence number.
+	 */
+	public long getStartSequence() {
+		return startSequence;
+	}
+
+	/**
+	 * Gets the sequence number of the last event delivered to the listener.
+	 *
+	 * @return The sequence number, or the start sequence if no event has been
+	 * delivered.
+	 */
+	public long getLastDeliveredSequence() {
+		return lastDelivered;
+	}
+
+	/**
+	 * Stops delivering the events. Events that have not been delivered are
+	 * discarded.
+	 */
+	@Override
+	public void close() {
+		acl.unsubscribe(this);
+		synchronized (queue) {
+			closed = true;
+			queue.clear();
+			queue.notifyAll();
+		}
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Queues the events of a change for delivery.
+	 *
+	 * @param events The events to deliver.
+	 */
+	void publish(List<AclEvent> events) {
+		synchronized (queue) {
+			if (closed) {
+				return;
+			}
+			queue.addAll(events);
+			queue.notifyAll();
+		}
+	}
+
+	private void deliverLoop() {
+		while (true) {
+			List<AclEvent> batch = new ArrayList<>();
+
+			try {
+				synchronized (queue) {
+					while (queue.isEmpty() && !closed) {
+						queue.wait();
+					}
+
+					//wait for the batch to fill up
+					long deadline = System.currentTimeMillis() + maxDelay;
+					long remaining = maxDelay;
+					while (queue.size() < maxBatchSize && !closed
+							&& remaining > 0) {
+						queue.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+					if (closed) {
+						return;
+					}
+					while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+						batch.add(queue.poll());
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			lastDelivered = batch.get(batch.size() - 1).getSequence();
+			try {
+				listener.onEvents(batch);
+			} catch (RuntimeException e) {
+				//the listener is responsible for its own errors
+			}
+		}
+	}
+}
@@ -0,0 +1,635 @@
+package com.rojakcoder.archly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * AclJournal persists every change made to an Acl in an append-only journal.
+ * <p>
+ * The journal directory holds at most a few snapshots of the whole ACL and a
+ * number of journal segments with the changes made after the snapshot. On
+ * {@link #recover()}, the latest snapshot is loaded and the changes in the
+ * journal are replayed on top of it.
+ * </p>
+ * <p>
+ * Changes are written by a background thread. Changes made while the journal
+ * is being synced to the disk are written and synced together on the next
+ * round, so concurrent writers share the cost of a sync. With synchronous
+ * writes (the default), the methods of {@link Acl} that change the ACL return
+ * only after the change has been synced.
+ * </p>
+ * <p>
+ * Once a write to the journal fails, the ACL rejects further changes with an
+ * UncheckedIOException before making them, and {@link #flush()} and
+ * {@link #close()} throw the failure. A change that was made before the
+ * failure is known stays in the ACL and is notified to every listener, even
+ * if it did not reach the journal.
+ * </p>
+ * <p>
+ * When the journal grows beyond the compaction threshold, the journal is
+ * folded into a new snapshot in the background. Compaction does not read the
+ * live ACL - it replays the journal onto the previous snapshot - so writers
+ * are not blocked while it runs.
+ * </p>
+ */
+public class AclJournal implements Closeable {
+	private static final int SNAPSHOT_MAGIC = 0x41434C53;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+
+	private final File directory;
+
+	/**
+	 * Guards the pending records and the state shared with the writers.
+	 */
+	private final Object monitor = new Object();
+
+	/**
+	 * Guards the active segment.
+	 */
+	private final Object segmentLock = new Object();
+
+	/**
+	 * Serializes compactions.
+	 */
+	private final Object compactionLock = new Object();
+
+	private final MutationListener writer = new Writer();
+
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	private final DataOutputStream pendingOut = new DataOutputStream(pending);
+
+	private long pendingSequence;
+
+	private long durableSequence;
+
+	private IOException failure;
+
+	private boolean closed;
+
+	private boolean compacting;
+
+	private FileChannel segment;
+
+	private long segmentSize;
+
+	private long writtenSequence;
+
+	private boolean syncWrites = true;
+
+	private long compactionThreshold = 64L * 1024 * 1024;
+
+	private Acl acl;
+
+	private Thread flusher;
+
+	private ExecutorService compactor;
+
+	/**
+	 * Creates a journal in the directory.
+	 *
+	 * @param directory The directory holding the snapshots and the journal
+	 * segments. It is created if it does not exist.
+	 */
+	public AclJournal(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets whether changes to the ACL wait for the journal to be synced to the
+	 * disk.
+	 *
+	 * @param syncWrites If true, the methods changing the ACL return only after
+	 * the change is durable. If false, the changes are synced in the
+	 * background and may be lost on a crash.
+	 */
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	/**
+	 * Sets the size of the journal beyond which it is folded into a new
+	 * snapshot in the background.
+	 *
+	 * @param bytes The size of the journal in bytes. 0 to disable the
+	 * background compaction.
+	 */
+	public void setCompactionThreshold(long bytes) {
+		synchronized (monitor) {
+			this.compactionThreshold = bytes;
+		}
+	}
+
+	/**
+	 * Restores the ACL from the latest snapshot and journal, and starts
+	 * journaling the changes made to it.
+	 * <p>
+	 * An empty or non-existent directory gives a new, empty ACL.
+	 * </p>
+	 *
+	 * @return The restored ACL.
+	 * @throws IOException Throws IOException if the journal cannot be read or
+	 * written.
+	 */
+	public Acl recover() throws IOException {
+		if (acl != null) {
+			throw new RuntimeException("Journal has already been recovered");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory "
+					+ directory);
+		}
+
+		Acl restored = Acl.makeInstance();
+		long sequence = restore(restored, Long.MAX_VALUE);
+
+		openSegment(sequence + 1);
+		writtenSequence = sequence;
+		pendingSequence = sequence;
+		durableSequence = sequence;
+
+		flusher = new Thread(this::flushLoop, "archly-journal-" + directory.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+		compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "archly-compactor-" + directory.getName());
+			t.setDaemon(true);
+			return t;
+		});
+
+		this.acl = restored;
+		restored.addListener(writer);
+
+		return restored;
+	}
+
+	/**
+	 * Folds the journal into a new snapshot.
+	 * <p>
+	 * The active journal segment is sealed and a new one is started, so the
+	 * ACL can be changed while the compaction runs. The sealed segments are
+	 * replayed onto the latest snapshot to create the new snapshot, after
+	 * which the sealed segments and the older snapshot are deleted.
+	 * </p>
+	 *
+	 * @throws IOException Throws IOException if the journal cannot be read or
+	 * written.
+	 */
+	public void compact() throws IOException {
+		if (acl == null) {
+			throw new RuntimeException("Journal has not been recovered");
+		}
+
+		synchronized (compactionLock) {
+			long sealed = rotate();
+			Acl scratch = Acl.makeInstance();
+			long previous = latestSnapshot();
+			long sequence = restore(scratch, sealed);
+
+			if (sequence > previous) {
+				writeSnapshot(scratch, sequence);
+			}
+			for (long snapshot: list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+				if (snapshot < sequence) {
+					Files.deleteIfExists(file(SNAPSHOT_PREFIX, snapshot,
+							SNAPSHOT_SUFFIX).toPath());
+				}
+			}
+			for (long start: list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+				if (start <= sealed) {
+					Files.deleteIfExists(file(SEGMENT_PREFIX, start,
+							SEGMENT_SUFFIX).toPath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until all the changes made so far are synced to the disk.
+	 * <p>
+	 * This is only needed if the writes are not synchronous.
+	 * </p>
+	 */
+	public void flush() {
+		long sequence;
+
+		synchronized (monitor) {
+			sequence = pendingSequence;
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Gets the sequence number of the latest change that is synced to the
+	 * disk.
+	 *
+	 * @return The sequence number.
+	 */
+	public long getDurableSequence() {
+		synchronized (monitor) {
+			return durableSequence;
+		}
+	}
+
+	/**
+	 * Stops journaling the changes to the ACL.
+	 * <p>
+	 * The pending changes are synced to the disk before the journal is
+	 * closed. Changes made to the ACL afterwards are not journaled.
+	 * </p>
+	 *
+	 * @throws IOException Re-throws the IOException that caused the journal to
+	 * fail, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (acl == null) {
+			return;
+		}
+
+		acl.removeListener(writer);
+		synchronized (monitor) {
+			closed = true;
+			monitor.notifyAll();
+		}
+		try {
+			flusher.join();
+			compactor.shutdown();
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (segmentLock) {
+			segment.close();
+		}
+		synchronized (monitor) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending records to the active segment until the journal is
+	 * closed.
+	 */
+	private void flushLoop() {
+		while (true) {
+			byte[] batch;
+			long batchSequence;
+
+			synchronized (monitor) {
+				while (pending.size() == 0 && !closed) {
+					try {
+						monitor.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.size() == 0) {
+					return; //closed and drained
+				}
+				batch = pending.toByteArray();
+				batchSequence = pendingSequence;
+				pending.reset();
+			}
+
+			long size;
+			try {
+				synchronized (segmentLock) {
+					ByteBuffer buffer = ByteBuffer.wrap(batch);
+					while (buffer.hasRemaining()) {
+						segment.write(buffer);
+					}
+					segment.force(false);
+					writtenSequence = batchSequence;
+					segmentSize += batch.length;
+					size = segmentSize;
+				}
+			} catch (IOException e) {
+				synchronized (monitor) {
+					failure = e;
+					monitor.notifyAll();
+				}
+				return;
+			}
+
+			synchronized (monitor) {
+				durableSequence = batchSequence;
+				monitor.notifyAll();
+				if (compactionThreshold > 0 && size >= compactionThreshold
+						&& !compacting && !closed) {
+					compacting = true;
+					compactor.execute(this::compactInBackground);
+				}
+			}
+		}
+	}
+
+	private void compactInBackground() {
+		try {
+			compact();
+		} catch (IOException e) {
+			//the journal is still intact; compaction is retried when it grows
+		} finally {
+			synchronized (monitor) {
+				compacting = false;
+			}
+		}
+	}
+
+	private void awaitDurable(long sequence) {
+		synchronized (monitor) {
+			while (durableSequence < sequence) {
+				if (failure != null) {
+					throw new UncheckedIOException(failure);
+				}
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 *
+	 * @return The sequence number of the last change in the sealed segments.
+	 * @throws IOException Re-throws IOException from the file system.
+	 */
+	private long rotate() throws IOException {
+		synchronized (segmentLock) {
+			long sealed = writtenSequence;
+
+			segment.close();
+			openSegment(sealed + 1);
+
+			return sealed;
+		}
+	}
+
+	private void openSegment(long start) throws IOException {
+		File file = file(SEGMENT_PREFIX, start, SEGMENT_SUFFIX);
+
+		//an existing segment with this name holds no complete record
+		segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		segmentSize = 0;
+	}
+
+	/**
+	 * Loads the latest snapshot into the ACL and replays the journal.
+	 *
+	 * @param target The ACL to restore. It must not have any listeners.
+	 * @param upTo The sequence number of the last change to replay.
+	 * @return The sequence number of the last change restored.
+	 * @throws IOException Re-throws IOException from the file system.
+	 */
+	private long restore(Acl target, long upTo) throws IOException {
+		long snapshot = latestSnapshot();
+
+		if (snapshot > 0) {
+			readSnapshot(target, file(SNAPSHOT_PREFIX, snapshot,
+					SNAPSHOT_SUFFIX));
+		}
+		target.setSequence(snapshot);
+
+		for (long start: list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (start > upTo) {
+				break;
+			}
+			File file = file(SEGMENT_PREFIX, start, SEGMENT_SUFFIX);
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)))) {
+				replaySegment(target, in, upTo);
+			}
+		}
+
+		return target.getSequence();
+	}
+
+	private void replaySegment(Acl target, DataInputStream in, long upTo)
+			throws IOException {
+		CRC32 crc = new CRC32();
+
+		while (true) {
+			byte[] payload;
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+
+				payload = new byte[length];
+				in.readFully(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					return; //torn write
+				}
+			} catch (EOFException e) {
+				return;
+			}
+
+			DataInputStream record = new DataInputStream(
+					new ByteArrayInputStream(payload));
+			long sequence = record.readLong();
+			if (sequence > upTo) {
+				return;
+			}
+			if (sequence <= target.getSequence()) {
+				continue; //already in the snapshot
+			}
+			if (sequence != target.getSequence() + 1) {
+				target.setSequence(sequence - 1);
+			}
+			target.replay(Mutation.read(record));
+		}
+	}
+
+	private long latestSnapshot() {
+		List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+
+		return snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+	}
+
+	private void writeSnapshot(Acl source, long sequence) throws IOException {
+		File target = file(SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX);
+		File tmp = new File(directory, target.getName() + ".tmp");
+
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos));
+
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(sequence);
+			writeRegistry(out, source.roleRegistry().entries());
+			writeRegistry(out, source.resourceRegistry().entries());
+			for (Map.Entry<String, Map<String, Boolean>> entry: source
+					.permissions().permissions.entrySet()) {
+				out.writeBoolean(true);
+				out.writeUTF(entry.getKey());
+				Mutation.writeActions(out, entry.getValue());
+			}
+			out.writeBoolean(false);
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void readSnapshot(Acl target, File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			in.readLong();
+
+			Registry roles = target.roleRegistry();
+			Registry resources = target.resourceRegistry();
+			Permission perms = target.permissions();
+
+			roles.clear();
+			resources.clear();
+			perms.clear();
+			while (in.readBoolean()) {
+				roles.put(in.readUTF(), in.readUTF());
+			}
+			while (in.readBoolean()) {
+				resources.put(in.readUTF(), in.readUTF());
+			}
+			while (in.readBoolean()) {
+				perms.importEntry(in.readUTF(), Mutation.readActions(in));
+			}
+		}
+	}
+
+	private static void writeRegistry(DataOutputStream out,
+			Map<String, String> registry) throws IOException {
+		for (Map.Entry<String, String> entry: registry.entrySet()) {
+			out.writeBoolean(true);
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+		out.writeBoolean(false);
+	}
+
+	/**
+	 * Lists the sequence numbers in the names of the files.
+	 *
+	 * @param prefix The prefix of the file names.
+	 * @param suffix The suffix of the file names.
+	 * @return The sorted sequence numbers.
+	 */
+	private List<Long> list(String prefix, String suffix) {
+		List<Long> sequences = new ArrayList<>();
+		String[] names = directory.list();
+
+		if (names != null) {
+			for (String name: names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					sequences.add(Long.parseLong(name.substring(
+							prefix.length(), name.length() - suffix.length())));
+				}
+			}
+		}
+		Collections.sort(sequences);
+
+		return sequences;
+	}
+
+	private File file(String prefix, long sequence, String suffix) {
+		return new File(directory, String.format("%s%020d%s", prefix,
+				sequence, suffix));
+	}
+
+	/**
+	 * Appends the changes made to the ACL to the pending records.
+	 */
+	private class Writer implements MutationListener {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(buffer);
+
+		private final CRC32 crc = new CRC32();
+
+		@Override
+		public void mutating(Mutation mutation) {
+			synchronized (monitor) {
+				if (failure != null) {
+					throw new UncheckedIOException(failure);
+				}
+			}
+		}
+
+		@Override
+		public void mutated(long sequence, Mutation mutation) {
+			//called under the write lock of the Acl so no other writer is here
+			try {
+				buffer.reset();
+				out.writeLong(sequence);
+				mutation.write(out);
+				crc.reset();
+				crc.update(buffer.toByteArray(), 0, buffer.size());
+
+				synchronized (monitor) {
+					if (failure != null) {
+						return; //failed since the change was accepted
+					}
+					pendingOut.writeInt(buffer.size());
+					pendingOut.writeInt((int) crc.getValue());
+					buffer.writeTo(pendingOut);
+					pendingSequence = sequence;
+					monitor.notifyAll();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e); //not thrown by the buffers
+			}
+		}
+
+		@Override
+		public void committed(long sequence) {
+			if (syncWrites) {
+				try {
+					awaitDurable(sequence);
+				} catch (UncheckedIOException e) {
+					//the change is made; the failure rejects the next one
+				}
+			}
+		}
+	}
+}
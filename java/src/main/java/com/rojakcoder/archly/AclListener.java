@@ -0,0 +1,21 @@
+package com.rojakcoder.archly;
+
+import java.util.List;
+
+/**
+ * AclListener receives the changes made to an Acl in batches.
+ *
+ * @see Acl#subscribe(AclListener, int, long)
+ */
+public interface AclListener {
+	/**
+	 * Receives a batch of changes.
+	 * <p>
+	 * Batches are delivered one at a time on the thread of the feed, in the
+	 * order of the sequence numbers of the events.
+	 * </p>
+	 *
+	 * @param events The events in the batch. The list is never empty.
+	 */
+	public void onEvents(List<AclEvent> events);
+}
@@ -0,0 +1,28 @@
+package com.rojakcoder.archly;
+
+/**
+ * AclLoader loads the ACLs of tenants for an {@link AclManager}.
+ */
+public interface AclLoader {
+	/**
+	 * Loads the ACL of a tenant, e.g. from a snapshot or a journal.
+	 * <p>
+	 * Called at most once at a time for each tenant; concurrent requests for
+	 * the same tenant wait for the same load.
+	 * </p>
+	 *
+	 * @param tenantId The ID of the tenant.
+	 * @return The ACL of the tenant. Must not be null.
+	 */
+	public Acl load(String tenantId);
+
+	/**
+	 * Called when the ACL of a tenant has been evicted, e.g. to save the
+	 * changes made to it since it was loaded. Does nothing by default.
+	 *
+	 * @param tenantId The ID of the tenant.
+	 * @param acl The evicted ACL.
+	 */
+	public default void evicted(String tenantId, Acl acl) {
+	}
+}
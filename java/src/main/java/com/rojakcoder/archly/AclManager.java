@@ -0,0 +1,268 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AclManager holds the ACLs of many tenants within a memory budget.
+ * <p>
+ * The ACL of a tenant is loaded by the {@link AclLoader} the first time it
+ * is requested. Concurrent requests for a tenant that is being loaded wait
+ * for the same load. When the estimated size of the loaded ACLs exceeds the
+ * budget, the ACLs that have not been requested for the longest time are
+ * evicted until the size is back within the budget, and are loaded again
+ * when next requested.
+ * </p>
+ * <p>
+ * The size of an ACL is estimated from the number of its roles, resources
+ * and permissions; for an ACL layered over a shared base, only its own
+ * changes are counted.
+ * </p>
+ */
+public class AclManager {
+	/**
+	 * When evicting, the size is brought down to this fraction of the budget
+	 * so that every load does not have to evict.
+	 */
+	private static final double EVICT_TO = 0.9;
+
+	private final AclLoader loader;
+
+	private final long budget;
+
+	private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+	/**
+	 * Orders the requests for recency without a shared lock.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	private final AtomicLong size = new AtomicLong();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final Object evictLock = new Object();
+
+	/**
+	 * Creates a manager.
+	 *
+	 * @param loader The loader of the ACLs.
+	 * @param budget The maximum estimated size of the loaded ACLs in bytes.
+	 */
+	public AclManager(AclLoader loader, long budget) {
+		if (loader == null) {
+			throw new RuntimeException("Cannot manage with null loader");
+		}
+
+		this.loader = loader;
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the ACL of a tenant, loading it if it is not loaded.
+	 *
+	 * @param tenantId The ID of the tenant.
+	 * @return The ACL.
+	 * @throws RuntimeException Re-throws the exception from the loader.
+	 */
+	public Acl get(String tenantId) {
+		Tenant tenant = tenants.get(tenantId);
+
+		if (tenant == null) {
+			Tenant created = new Tenant(tenantId);
+
+			created.lastAccess = clock.incrementAndGet(); //not evicted first
+			tenant = tenants.putIfAbsent(tenantId, created);
+			if (tenant == null) {
+				tenant = created;
+				load(created);
+			}
+		}
+		tenant.lastAccess = clock.incrementAndGet();
+
+		return tenant.await();
+	}
+
+	/**
+	 * Gets the ACL of a tenant if it is loaded.
+	 *
+	 * @param tenantId The ID of the tenant.
+	 * @return The ACL, or null if it is not loaded or is still loading.
+	 */
+	public Acl getIfLoaded(String tenantId) {
+		Tenant tenant = tenants.get(tenantId);
+
+		if (tenant == null || !tenant.acl.isDone()
+				|| tenant.acl.isCompletedExceptionally()) {
+			return null;
+		}
+		tenant.lastAccess = clock.incrementAndGet();
+
+		return tenant.acl.join();
+	}
+
+	/**
+	 * Evicts the ACL of a tenant.
+	 *
+	 * @param tenantId The ID of the tenant.
+	 * @return True if the ACL was loaded.
+	 */
+	public boolean evict(String tenantId) {
+		Tenant tenant = tenants.get(tenantId);
+
+		if (tenant == null || !tenant.acl.isDone()) {
+			return false;
+		}
+		synchronized (evictLock) {
+			return evict(tenant);
+		}
+	}
+
+	/**
+	 * Gets the number of tenants whose ACLs are loaded or loading.
+	 *
+	 * @return The number of tenants.
+	 */
+	public int getLoadedCount() {
+		return tenants.size();
+	}
+
+	/**
+	 * Gets the estimated size of the loaded ACLs, as of when they were last
+	 * requested.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getEstimatedSize() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the number of ACLs that have been loaded.
+	 *
+	 * @return The number of loads.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * Gets the number of ACLs that have been evicted.
+	 *
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private void load(Tenant tenant) {
+		try {
+			Acl acl = loader.load(tenant.id);
+
+			if (acl == null) {
+				throw new RuntimeException("Loaded null ACL for " + tenant.id);
+			}
+			tenant.weight = acl.estimateSize();
+			size.addAndGet(tenant.weight);
+			loads.incrementAndGet();
+			tenant.acl.complete(acl);
+		} catch (RuntimeException | Error e) {
+			tenants.remove(tenant.id, tenant); //the next request tries again
+			tenant.acl.completeExceptionally(e);
+			throw e;
+		}
+		if (size.get() > budget) {
+			evictCold();
+		}
+	}
+
+	/**
+	 * Evicts the least recently requested ACLs until the estimated size is
+	 * within the budget. The sizes of the ACLs are estimated again first, as
+	 * they may have grown since they were loaded.
+	 */
+	private void evictCold() {
+		synchronized (evictLock) {
+			List<Tenant> loaded = new ArrayList<>();
+
+			for (Tenant tenant: tenants.values()) {
+				if (tenant.acl.isDone() && !tenant.acl
+						.isCompletedExceptionally()) {
+					long weight = tenant.acl.join().estimateSize();
+
+					size.addAndGet(weight - tenant.weight);
+					tenant.weight = weight;
+					loaded.add(tenant);
+				}
+			}
+			if (size.get() <= budget) {
+				return;
+			}
+
+			loaded.sort(Comparator.comparingLong(t -> t.lastAccess));
+			long target = (long) (budget * EVICT_TO);
+			for (Tenant tenant: loaded) {
+				if (size.get() <= target) {
+					break;
+				}
+				evict(tenant);
+			}
+		}
+	}
+
+	/**
+	 * Evicts a loaded ACL. Must be called while holding the eviction lock.
+	 */
+	private boolean evict(Tenant tenant) {
+		if (!tenants.remove(tenant.id, tenant)) {
+			return false;
+		}
+		size.addAndGet(-tenant.weight);
+		evictions.incrementAndGet();
+		loader.evicted(tenant.id, tenant.acl.join());
+
+		return true;
+	}
+
+	private static final class Tenant {
+		final String id;
+
+		final CompletableFuture<Acl> acl = new CompletableFuture<>();
+
+		volatile long lastAccess;
+
+		/**
+		 * The estimated size of the ACL. Only changed on load or while
+		 * holding the eviction lock.
+		 */
+		volatile long weight;
+
+		Tenant(String id) {
+			this.id = id;
+		}
+
+		Acl await() {
+			try {
+				return acl.join();
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause();
+
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw e;
+			}
+		}
+	}
+}
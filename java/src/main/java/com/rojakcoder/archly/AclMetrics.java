@@ -0,0 +1,115 @@
+package com.rojakcoder.archly;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * AclMetrics receives measurements of the access checks and changes of an
+ * ACL, e.g. to feed them to a metrics library.
+ * <p>
+ * The methods are called on the threads that make the checks and changes,
+ * the latter while the write lock of the ACL is held, so they must be quick
+ * and must not block. They do nothing by default.
+ * </p>
+ * <p>
+ * Nothing is measured while no metrics are set. Setting the system property
+ * <code>archly.metrics.disabled</code> to true disables the measurements
+ * altogether, so the JIT compiler removes them.
+ * </p>
+ *
+ * @see Acl#setMetrics(AclMetrics)
+ */
+public interface AclMetrics {
+	/**
+	 * The kinds of access checks.
+	 */
+	public static enum Check {
+		/**
+		 * {@link Acl#isAllowed(AclEntry, AclEntry)} and its overloads, and
+		 * {@link Acl#areAllowed(AclEntry, List, String)}.
+		 */
+		ALLOWED,
+
+		/**
+		 * {@link Acl#isDenied(AclEntry, AclEntry)} and its overloads.
+		 */
+		DENIED
+	}
+
+	/**
+	 * Called after an access check.
+	 *
+	 * @param check The kind of check.
+	 * @param roleId The ID of the role, null for all roles.
+	 * @param resourceId The ID of the resource, null for all resources.
+	 * @param action The action checked, null for all actions.
+	 * @param result The result of the check.
+	 * @param nanos The time taken in nanoseconds.
+	 * @param rolePathLength The number of roles on the path of the role that
+	 * have permissions.
+	 * @param resourcePathLength The number of resources and patterns on the
+	 * path of the resource that have permissions.
+	 * @param probes The number of role-resource pairs looked up.
+	 */
+	public default void decided(Check check, String roleId,
+			String resourceId, String action, boolean result, long nanos,
+			int rolePathLength, int resourcePathLength, int probes) {
+	}
+
+	/**
+	 * Called after a batch of access checks of a role against many
+	 * resources, e.g. by {@link Acl#areAllowed(AclEntry, List, String)}. The
+	 * checks in the batch share the lookups, so they are reported together
+	 * rather than to {@link #decided}.
+	 *
+	 * @param check The kind of checks.
+	 * @param roleId The ID of the role, null for all roles.
+	 * @param resourceIds The IDs of the resources, null for all resources.
+	 * @param action The action checked, null for all actions.
+	 * @param results The positions in the list of the resources for which
+	 * the result is true.
+	 * @param nanos The time taken by the whole batch in nanoseconds.
+	 * @param rolePathLength The number of roles on the path of the role that
+	 * have permissions.
+	 */
+	public default void batchDecided(Check check, String roleId,
+			List<String> resourceIds, String action, BitSet results,
+			long nanos, int rolePathLength) {
+	}
+
+	/**
+	 * Called after a change to the ACL.
+	 *
+	 * @param operation The name of the operation, e.g. <code>ALLOW</code> or
+	 * <code>ADD_ROLE</code>.
+	 * @param first The ID the change is about, e.g. of the role to add or
+	 * grant to. Null if there is none.
+	 * @param second The other ID the change is about, e.g. of the parent or
+	 * the resource to grant on. Null if there is none.
+	 * @param nanos The time taken in nanoseconds, excluding the wait for the
+	 * write lock.
+	 * @param roleCount The number of roles after the change.
+	 * @param resourceCount The number of resources after the change.
+	 * @param permissionCount The number of permissions after the change.
+	 */
+	public default void mutated(String operation, String first,
+			String second, long nanos, int roleCount, int resourceCount,
+			int permissionCount) {
+	}
+
+	/**
+	 * Called after an operation that changes many entries at once: an import,
+	 * a removal with descendants or a clear. The changes it is made of are
+	 * reported as well.
+	 *
+	 * @param operation The name of the operation, e.g.
+	 * <code>IMPORT_ROLES</code> or <code>CLEAR</code>.
+	 * @param nanos The time taken in nanoseconds. Includes the wait for the
+	 * write lock for imports.
+	 * @param entries The number of roles, resources and permissions added or
+	 * removed.
+	 */
+	public default void bulkChanged(String operation, long nanos,
+			int entries) {
+	}
+}
@@ -0,0 +1,346 @@
+package com.rojakcoder.archly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AclPrimary streams the changes made to an Acl to replicas over TCP.
+ * <p>
+ * The changes are kept in a backlog of a fixed number of changes. A replica
+ * that connects with a sequence number that is still in the backlog is sent
+ * the changes after that sequence number; any other replica is first sent a
+ * snapshot of the whole ACL. A replica that falls further behind than the
+ * backlog is disconnected, and gets a snapshot when it reconnects.
+ * </p>
+ * <p>
+ * Every run of the primary has a random epoch, so replicas that were synced
+ * with an earlier run or another primary are always sent a snapshot.
+ * </p>
+ *
+ * @see AclReplica
+ */
+public class AclPrimary implements Closeable {
+	static final int MAGIC = 0x41434C52;
+
+	static final byte SNAPSHOT = 1;
+
+	static final byte MUTATION = 2;
+
+	static final byte HEARTBEAT = 3;
+
+	/**
+	 * The maximum number of changes sent to a replica in one go.
+	 */
+	private static final int MAX_BATCH = 1024;
+
+	private final Acl acl;
+
+	private final ServerSocket server;
+
+	private final long epoch;
+
+	private final MutationListener recorder = new Recorder();
+
+	/**
+	 * Guards the backlog.
+	 */
+	private final Object monitor = new Object();
+
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	private byte[][] backlog;
+
+	/**
+	 * The sequence number of the oldest change in the backlog.
+	 */
+	private long first;
+
+	/**
+	 * The sequence number of the latest change in the backlog.
+	 */
+	private long last;
+
+	private int backlogSize = 65536;
+
+	private long heartbeatInterval = 1000;
+
+	private Thread acceptor;
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a primary listening on all interfaces.
+	 *
+	 * @param acl The ACL to replicate.
+	 * @param port The port to listen on, or 0 for any free port.
+	 * @throws IOException Re-throws IOException from binding the port.
+	 */
+	public AclPrimary(Acl acl, int port) throws IOException {
+		this(acl, new InetSocketAddress(port));
+	}
+
+	/**
+	 * Creates a primary.
+	 *
+	 * @param acl The ACL to replicate.
+	 * @param address The address to listen on.
+	 * @throws IOException Re-throws IOException from binding the address.
+	 */
+	public AclPrimary(Acl acl, InetSocketAddress address) throws IOException {
+		if (acl == null) {
+			throw new RuntimeException("Cannot replicate null ACL");
+		}
+
+		long random = 0;
+		while (random == 0) {
+			random = new Random().nextLong();
+		}
+
+		this.acl = acl;
+		this.epoch = random;
+		this.server = new ServerSocket();
+		this.server.bind(address);
+	}
+
+	/**
+	 * Sets the number of changes kept for replicas that reconnect. Must be
+	 * called before {@link #start()}.
+	 *
+	 * @param changes The number of changes. Defaults to 65536.
+	 */
+	public void setBacklogSize(int changes) {
+		if (changes < 1) {
+			throw new RuntimeException("Backlog size must be at least 1");
+		}
+
+		this.backlogSize = changes;
+	}
+
+	/**
+	 * Sets how often the replicas are told the latest sequence number when
+	 * there are no changes to send.
+	 *
+	 * @param millis The interval in milliseconds. Defaults to 1000.
+	 */
+	public void setHeartbeatInterval(long millis) {
+		this.heartbeatInterval = millis;
+	}
+
+	/**
+	 * Starts recording the changes and accepting replicas.
+	 */
+	public void start() {
+		synchronized (monitor) {
+			backlog = new byte[backlogSize][];
+			last = acl.getSequence();
+			first = last + 1;
+		}
+		acl.addListener(recorder);
+
+		acceptor = new Thread(this::acceptLoop, "archly-primary");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Gets the port the primary is listening on.
+	 *
+	 * @return The port number.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Gets the number of connected replicas.
+	 *
+	 * @return The number of replicas.
+	 */
+	public int getReplicaCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Stops replicating and disconnects the replicas.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		acl.removeListener(recorder);
+		server.close();
+		for (Socket socket: connections) {
+			socket.close();
+		}
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				Thread thread = new Thread(() -> serve(socket),
+						"archly-primary-" + socket.getRemoteSocketAddress());
+
+				connections.add(socket);
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				//closed, or the connection failed before it was accepted
+			}
+		}
+	}
+
+	/**
+	 * Sends the changes to a replica until either side disconnects.
+	 *
+	 * @param socket The connection to the replica.
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream()));
+
+			if (in.readInt() != MAGIC) {
+				return;
+			}
+
+			long replicaEpoch = in.readLong();
+			long replicaSequence = in.readLong();
+			boolean inBacklog;
+
+			synchronized (monitor) {
+				inBacklog = replicaEpoch == epoch
+						&& replicaSequence >= first - 1
+						&& replicaSequence <= last;
+			}
+
+			long cursor = inBacklog ? replicaSequence + 1
+					: sendSnapshot(out) + 1;
+			while (!closed) {
+				List<byte[]> batch = new ArrayList<>();
+				long latest;
+
+				synchronized (monitor) {
+					if (cursor > last) {
+						monitor.wait(heartbeatInterval);
+					}
+					if (cursor < first && cursor <= last) {
+						return; //fell behind the backlog
+					}
+					for (long seq = cursor; seq <= last
+							&& batch.size() < MAX_BATCH; seq++) {
+						batch.add(backlog[(int) (seq % backlog.length)]);
+					}
+					latest = last;
+				}
+
+				for (byte[] record: batch) {
+					out.writeByte(MUTATION);
+					out.writeInt(record.length);
+					out.write(record);
+				}
+				cursor += batch.size();
+				out.writeByte(HEARTBEAT);
+				out.writeLong(latest);
+				out.flush();
+			}
+		} catch (IOException e) {
+			//the replica reconnects
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			connections.remove(socket);
+		}
+	}
+
+	/**
+	 * Sends a snapshot of the whole ACL.
+	 *
+	 * @param out The output to the replica.
+	 * @return The sequence number of the latest change in the snapshot.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	private long sendSnapshot(DataOutputStream out) throws IOException {
+		Map<String, String> roles = new HashMap<>();
+		Map<String, String> resources = new HashMap<>();
+		Map<String, Map<String, Boolean>> perms = new HashMap<>();
+		long sequence = acl.copy(roles, resources, perms);
+
+		out.writeByte(SNAPSHOT);
+		out.writeLong(epoch);
+		out.writeLong(sequence);
+		writeRegistry(out, roles);
+		writeRegistry(out, resources);
+		out.writeInt(perms.size());
+		for (Map.Entry<String, Map<String, Boolean>> entry: perms.entrySet()) {
+			out.writeUTF(entry.getKey());
+			Mutation.writeActions(out, entry.getValue());
+		}
+
+		return sequence;
+	}
+
+	private static void writeRegistry(DataOutputStream out,
+			Map<String, String> registry) throws IOException {
+		out.writeInt(registry.size());
+		for (Map.Entry<String, String> entry: registry.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+	}
+
+	/**
+	 * Appends the changes made to the ACL to the backlog.
+	 */
+	private class Recorder implements MutationListener {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(buffer);
+
+		@Override
+		public void mutated(long sequence, Mutation mutation) {
+			//called under the write lock of the Acl so no other writer is here
+			try {
+				buffer.reset();
+				out.writeLong(sequence);
+				mutation.write(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			byte[] record = buffer.toByteArray();
+
+			synchronized (monitor) {
+				if (sequence != last + 1) {
+					first = sequence; //the sequence was reset, start over
+				}
+				backlog[(int) (sequence % backlog.length)] = record;
+				last = sequence;
+				if (last - first >= backlog.length) {
+					first = last - backlog.length + 1;
+				}
+				monitor.notifyAll();
+			}
+		}
+	}
+}
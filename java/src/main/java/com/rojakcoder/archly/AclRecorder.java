@@ -0,0 +1,288 @@
+package com.rojakcoder.archly;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AclRecorder records the access checks and changes of an Acl to a trace
+ * file, to be replayed later with an {@link AclReplayer}.
+ * <p>
+ * The trace is compact: each role, resource and action ID is written once
+ * and referred to by number afterwards, so a check takes a few bytes. The
+ * checks are recorded through the metrics of the ACL, which the recorder
+ * takes over while it is open and passes the measurements on to. Nothing is
+ * recorded of the checks if the metrics are disabled altogether.
+ * </p>
+ * <p>
+ * A check is recorded after it is made, so a check that is concurrent with a
+ * change may be recorded after the change even though it did not see it.
+ * The attributes of conditional checks are not recorded.
+ * </p>
+ */
+public final class AclRecorder implements Closeable {
+	static final int MAGIC = 0x41434C54;
+
+	static final byte VERSION = 1;
+
+	/**
+	 * Defines the next ID: the string it stands for.
+	 */
+	static final byte STRING = 1;
+
+	/**
+	 * An access check: its flags and the numbers of its role, resource and
+	 * action.
+	 */
+	static final byte DECISION = 2;
+
+	/**
+	 * A change: the serialized mutation.
+	 */
+	static final byte MUTATION = 3;
+
+	/**
+	 * The check was {@link AclMetrics.Check#DENIED}.
+	 */
+	static final int DENIED = 1;
+
+	/**
+	 * The result of the check was true.
+	 */
+	static final int RESULT = 2;
+
+	private final Acl acl;
+
+	private final AclMetrics previous;
+
+	private final DataOutputStream out;
+
+	/**
+	 * The numbers of the IDs written so far. 0 stands for null.
+	 */
+	private final Map<String, Integer> ids = new HashMap<>();
+
+	private final Recorder recorder = new Recorder();
+
+	private long decisions;
+
+	private long mutations;
+
+	/**
+	 * The first error writing the trace, after which nothing more is
+	 * recorded.
+	 */
+	private IOException failure;
+
+	private boolean closed;
+
+	/**
+	 * Starts recording an ACL.
+	 *
+	 * @param acl The ACL to record.
+	 * @param file The trace file, which is overwritten.
+	 * @throws IOException Re-throws IOException from the file system.
+	 */
+	public AclRecorder(Acl acl, File file) throws IOException {
+		this.acl = acl;
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+
+		this.previous = acl.getMetrics();
+		acl.setMetrics(recorder);
+		acl.addListener(recorder);
+	}
+
+	/**
+	 * Gets the number of checks recorded so far.
+	 *
+	 * @return The number of checks.
+	 */
+	public synchronized long getDecisionCount() {
+		return decisions;
+	}
+
+	/**
+	 * Gets the number of changes recorded so far.
+	 *
+	 * @return The number of changes.
+	 */
+	public synchronized long getMutationCount() {
+		return mutations;
+	}
+
+	/**
+	 * Stops recording, gives the metrics back to the ACL and closes the
+	 * trace.
+	 *
+	 * @throws IOException Re-throws the IOException that stopped the
+	 * recording, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		acl.removeListener(recorder);
+		if (acl.getMetrics() == recorder) {
+			acl.setMetrics(previous);
+		}
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private synchronized void decided(AclMetrics.Check check, String roleId,
+			String resourceId, String action, boolean result) {
+		if (closed || failure != null) {
+			return;
+		}
+		try {
+			int role = id(roleId);
+			int resource = id(resourceId);
+			int act = id(action);
+
+			out.writeByte(DECISION);
+			out.writeByte((check == AclMetrics.Check.DENIED ? DENIED : 0)
+					| (result ? RESULT : 0));
+			writeVarInt(out, role);
+			writeVarInt(out, resource);
+			writeVarInt(out, act);
+			decisions++;
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	private synchronized void mutated(Mutation mutation) {
+		if (closed || failure != null) {
+			return;
+		}
+		try {
+			out.writeByte(MUTATION);
+			mutation.write(out);
+			mutations++;
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Gets the number of an ID, defining it first if it is new.
+	 */
+	private int id(String id) throws IOException {
+		if (id == null) {
+			return 0;
+		}
+
+		Integer number = ids.get(id);
+		if (number == null) {
+			number = ids.size() + 1;
+			ids.put(id, number);
+			out.writeByte(STRING);
+			out.writeUTF(id);
+		}
+
+		return number;
+	}
+
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed number in trace");
+	}
+
+	/**
+	 * Records the checks and changes, passing the measurements on to the
+	 * previous metrics.
+	 */
+	private class Recorder implements AclMetrics, MutationListener {
+		@Override
+		public void decided(Check check, String roleId, String resourceId,
+				String action, boolean result, long nanos, int rolePathLength,
+				int resourcePathLength, int probes) {
+			AclRecorder.this.decided(check, roleId, resourceId, action,
+					result);
+			if (previous != null) {
+				previous.decided(check, roleId, resourceId, action, result,
+						nanos, rolePathLength, resourcePathLength, probes);
+			}
+		}
+
+		@Override
+		public void batchDecided(Check check, String roleId,
+				List<String> resourceIds, String action, BitSet results,
+				long nanos, int rolePathLength) {
+			//replayed one check at a time
+			for (int i = 0; i < resourceIds.size(); i++) {
+				AclRecorder.this.decided(check, roleId, resourceIds.get(i),
+						action, results.get(i));
+			}
+			if (previous != null) {
+				previous.batchDecided(check, roleId, resourceIds, action,
+						results, nanos, rolePathLength);
+			}
+		}
+
+		@Override
+		public void mutated(String operation, String first, String second,
+				long nanos, int roleCount, int resourceCount,
+				int permissionCount) {
+			if (previous != null) {
+				previous.mutated(operation, first, second, nanos, roleCount,
+						resourceCount, permissionCount);
+			}
+		}
+
+		@Override
+		public void bulkChanged(String operation, long nanos, int entries) {
+			if (previous != null) {
+				previous.bulkChanged(operation, nanos, entries);
+			}
+		}
+
+		@Override
+		public void mutated(long sequence, Mutation mutation) {
+			AclRecorder.this.mutated(mutation);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package com.rojakcoder.archly;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AclReplayer replays a trace recorded by an {@link AclRecorder} against an
+ * Acl, e.g. to load test another configuration with the access patterns of
+ * production.
+ * <p>
+ * The checks between two changes are spread over the threads; each change
+ * is made once the checks before it are done, and the checks after it start
+ * once it is made. The result of each check is compared with the recorded
+ * one. The ACL should start in the state that the recorded ACL was in when
+ * the recording started.
+ * </p>
+ */
+public final class AclReplayer {
+	private static final int MAX_SAMPLES = 100;
+
+	/**
+	 * The checks and changes in the order recorded: {@link Decision} and
+	 * {@link Mutation} objects.
+	 */
+	private final List<Object> records = new ArrayList<>();
+
+	private int decisionCount;
+
+	/**
+	 * Loads a trace.
+	 *
+	 * @param trace The trace file.
+	 * @throws IOException Throws IOException if the trace cannot be read or
+	 * is not a trace.
+	 */
+	public AclReplayer(File trace) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(trace), 1 << 16))) {
+			if (in.readInt() != AclRecorder.MAGIC
+					|| in.readByte() != AclRecorder.VERSION) {
+				throw new IOException("Not a trace: " + trace);
+			}
+
+			List<String> ids = new ArrayList<>();
+			ids.add(null);
+			while (true) {
+				int type = in.read();
+
+				if (type < 0) {
+					break;
+				}
+				if (type == AclRecorder.STRING) {
+					ids.add(in.readUTF());
+				} else if (type == AclRecorder.DECISION) {
+					int flags = in.readByte();
+					String role = ids.get(AclRecorder.readVarInt(in));
+					String resource = ids.get(AclRecorder.readVarInt(in));
+					String action = ids.get(AclRecorder.readVarInt(in));
+
+					records.add(new Decision((flags & AclRecorder.DENIED) != 0,
+							role, resource, action,
+							(flags & AclRecorder.RESULT) != 0));
+					decisionCount++;
+				} else if (type == AclRecorder.MUTATION) {
+					records.add(Mutation.read(in));
+				} else {
+					throw new IOException("Unknown record in trace: " + type);
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated trace: " + trace, e);
+		}
+	}
+
+	/**
+	 * Gets the number of checks in the trace.
+	 *
+	 * @return The number of checks.
+	 */
+	public int getDecisionCount() {
+		return decisionCount;
+	}
+
+	/**
+	 * Gets the number of changes in the trace.
+	 *
+	 * @return The number of changes.
+	 */
+	public int getMutationCount() {
+		return records.size() - decisionCount;
+	}
+
+	/**
+	 * Replays the trace.
+	 *
+	 * @param acl The ACL to replay the trace against.
+	 * @param threads The number of threads making the checks.
+	 * @param decisionsPerSecond The rate at which to make the checks. 0 for
+	 * as fast as possible.
+	 * @return The report of the replay.
+	 */
+	public Report replay(Acl acl, int threads, double decisionsPerSecond) {
+		if (threads < 1 || decisionsPerSecond < 0) {
+			throw new RuntimeException("Invalid thread count or rate");
+		}
+
+		Run run = new Run(acl, decisionsPerSecond);
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "archly-replay");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try {
+			int i = 0;
+			while (i < records.size()) {
+				Object record = records.get(i);
+
+				if (record instanceof Mutation) {
+					run.mutate((Mutation) record);
+					i++;
+					continue;
+				}
+
+				int end = i;
+				while (end < records.size()
+						&& records.get(end) instanceof Decision) {
+					end++;
+				}
+				run.decide(executor, threads, records.subList(i, end));
+				i = end;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return run.report();
+	}
+
+	/**
+	 * A recorded access check.
+	 */
+	private static final class Decision {
+		final boolean denied;
+
+		final String role;
+
+		final String resource;
+
+		final String action;
+
+		final boolean result;
+
+		Decision(boolean denied, String role, String resource, String action,
+				boolean result) {
+			this.denied = denied;
+			this.role = role;
+			this.resource = resource;
+			this.action = action;
+			this.result = result;
+		}
+
+		boolean check(Acl acl) {
+			AclEntry aro = role == null ? null : new Entry(role);
+			AclEntry aco = resource == null ? null : new Entry(resource);
+
+			if (action == null) {
+				return denied ? acl.isDenied(aro, aco) : acl.isAllowed(aro,
+						aco);
+			}
+
+			return denied ? acl.isDenied(aro, aco, action) : acl.isAllowed(
+					aro, aco, action);
+		}
+
+		@Override
+		public String toString() {
+			return (denied ? "isDenied(" : "isAllowed(") + role + ", "
+					+ resource + (action == null ? "" : ", " + action)
+					+ ") was " + result;
+		}
+	}
+
+	private static final class Entry implements AclEntry {
+		private final String id;
+
+		Entry(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public String getEntryDescription() {
+			return id;
+		}
+
+		@Override
+		public AclEntry retrieveEntry(String entryId) {
+			return new Entry(entryId);
+		}
+	}
+
+	/**
+	 * The state of a replay.
+	 */
+	private final class Run {
+		private final Acl acl;
+
+		private final long intervalNanos;
+
+		private final long start = System.nanoTime();
+
+		private final long[] latencies = new long[decisionCount];
+
+		/**
+		 * The number of checks made before the current run of checks.
+		 */
+		private int made;
+
+		private int mutations;
+
+		private int failedMutations;
+
+		private final AtomicLong mismatches = new AtomicLong();
+
+		private final List<String> samples = Collections
+				.synchronizedList(new ArrayList<>());
+
+		Run(Acl acl, double decisionsPerSecond) {
+			this.acl = acl;
+			this.intervalNanos = decisionsPerSecond == 0 ? 0
+					: (long) (1e9 / decisionsPerSecond);
+		}
+
+		void mutate(Mutation mutation) {
+			try {
+				acl.replay(mutation);
+			} catch (RuntimeException e) {
+				failedMutations++;
+				sample(mutation.op + " " + mutation.first + " "
+						+ mutation.second + " failed: " + e.getMessage());
+			}
+			mutations++;
+		}
+
+		/**
+		 * Makes a run of checks on the threads and waits for them.
+		 */
+		void decide(ExecutorService executor, int threads,
+				List<Object> decisions) {
+			AtomicInteger next = new AtomicInteger();
+			int offset = made;
+			Callable<Void> worker = () -> {
+				int i;
+
+				while ((i = next.getAndIncrement()) < decisions.size()) {
+					Decision decision = (Decision) decisions.get(i);
+
+					if (intervalNanos > 0) {
+						pace(offset + i);
+					}
+
+					long begin = System.nanoTime();
+					boolean result = decision.check(acl);
+					latencies[offset + i] = System.nanoTime() - begin;
+					if (result != decision.result) {
+						mismatches.incrementAndGet();
+						sample(decision.toString());
+					}
+				}
+
+				return null;
+			};
+
+			List<Future<Void>> futures = new ArrayList<>(threads);
+			for (int t = 0; t < Math.min(threads, decisions.size()); t++) {
+				futures.add(executor.submit(worker));
+			}
+			try {
+				for (Future<Void> future: futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Replay interrupted", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Replay failed", e.getCause());
+			}
+			made += decisions.size();
+		}
+
+		/**
+		 * Waits until a check is due.
+		 */
+		private void pace(int index) {
+			long due = start + index * intervalNanos;
+			long wait;
+
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+
+		private void sample(String sample) {
+			synchronized (samples) {
+				if (samples.size() < MAX_SAMPLES) {
+					samples.add(sample);
+				}
+			}
+		}
+
+		Report report() {
+			long elapsed = System.nanoTime() - start;
+			long[] sorted = Arrays.copyOf(latencies, made);
+
+			Arrays.sort(sorted);
+
+			return new Report(made, mutations, failedMutations, mismatches
+					.get(), new ArrayList<>(samples), elapsed, sorted);
+		}
+	}
+
+	/**
+	 * Report is the outcome of a replay.
+	 */
+	public static final class Report {
+		private final int decisions;
+
+		private final int mutations;
+
+		private final int failedMutations;
+
+		private final long mismatches;
+
+		private final List<String> samples;
+
+		private final long elapsedNanos;
+
+		private final long[] latencies;
+
+		Report(int decisions, int mutations, int failedMutations,
+				long mismatches, List<String> samples, long elapsedNanos,
+				long[] latencies) {
+			this.decisions = decisions;
+			this.mutations = mutations;
+			this.failedMutations = failedMutations;
+			this.mismatches = mismatches;
+			this.samples = Collections.unmodifiableList(samples);
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+		}
+
+		/**
+		 * Gets the number of checks made.
+		 *
+		 * @return The number of checks.
+		 */
+		public int getDecisions() {
+			return decisions;
+		}
+
+		/**
+		 * Gets the number of changes replayed, including those that failed.
+		 *
+		 * @return The number of changes.
+		 */
+		public int getMutations() {
+			return mutations;
+		}
+
+		/**
+		 * Gets the number of changes that failed, e.g. because an entry was
+		 * missing.
+		 *
+		 * @return The number of failed changes.
+		 */
+		public int getFailedMutations() {
+			return failedMutations;
+		}
+
+		/**
+		 * Gets the number of checks whose result differed from the recorded
+		 * one.
+		 *
+		 * @return The number of mismatches.
+		 */
+		public long getMismatches() {
+			return mismatches;
+		}
+
+		/**
+		 * Gets descriptions of the first mismatches and failed changes.
+		 *
+		 * @return Up to 100 descriptions.
+		 */
+		public List<String> getMismatchSamples() {
+			return samples;
+		}
+
+		/**
+		 * Gets the time taken by the replay.
+		 *
+		 * @return The time taken.
+		 */
+		public Duration getElapsed() {
+			return Duration.ofNanos(elapsedNanos);
+		}
+
+		/**
+		 * Gets the number of checks made per second.
+		 *
+		 * @return The throughput.
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : decisions * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Gets a percentile of the time taken by the checks.
+		 *
+		 * @param percentile The percentile, e.g. 99 or 99.9.
+		 * @return The time within which that percentage of the checks were
+		 * made. Zero if there were no checks.
+		 */
+		public Duration getLatency(double percentile) {
+			if (latencies.length == 0) {
+				return Duration.ZERO;
+			}
+
+			int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+			int at = Math.min(Math.max(rank, 1), latencies.length) - 1;
+
+			return Duration.ofNanos(latencies[at]);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d checks, %d changes (%d failed) in %d ms: "
+					+ "%.0f checks/s, p50 %d ns, p99 %d ns, p99.9 %d ns, "
+					+ "max %d ns, %d mismatches", decisions, mutations,
+					failedMutations, TimeUnit.NANOSECONDS.toMillis(
+							elapsedNanos), getThroughput(), getLatency(50)
+									.toNanos(), getLatency(99).toNanos(),
+					getLatency(99.9).toNanos(), getLatency(100).toNanos(),
+					mismatches);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.rojakcoder.archly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AclReplica keeps an Acl in sync with an {@link AclPrimary}.
+ * <p>
+ * The replica connects to the primary and applies the changes as they are
+ * streamed. After a disconnect, it reconnects and asks for the changes after
+ * the latest one it has applied; if the primary no longer has them, the
+ * primary sends a snapshot and only the differences are applied. The ACL of
+ * the replica should not be changed other than by the replica.
+ * </p>
+ */
+public class AclReplica implements Closeable {
+	private final Acl acl;
+
+	private final InetSocketAddress primary;
+
+	private long retryDelay = 1000;
+
+	private int timeout = 5000;
+
+	/**
+	 * The epoch of the primary that the ACL was synced with, or 0 if it was
+	 * never synced.
+	 */
+	private volatile long epoch;
+
+	private volatile long primarySequence;
+
+	/**
+	 * The time when the replica was last known to be up to date.
+	 */
+	private volatile long syncedAt;
+
+	private volatile long snapshotCount;
+
+	private volatile boolean connected;
+
+	private volatile boolean closed;
+
+	private volatile Socket socket;
+
+	private Thread thread;
+
+	/**
+	 * Creates a replica.
+	 *
+	 * @param acl The ACL to keep in sync.
+	 * @param host The host name of the primary.
+	 * @param port The port of the primary.
+	 */
+	public AclReplica(Acl acl, String host, int port) {
+		this(acl, new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Creates a replica.
+	 *
+	 * @param acl The ACL to keep in sync.
+	 * @param primary The address of the primary.
+	 */
+	public AclReplica(Acl acl, InetSocketAddress primary) {
+		if (acl == null) {
+			throw new RuntimeException("Cannot replicate into null ACL");
+		}
+
+		this.acl = acl;
+		this.primary = primary;
+	}
+
+	/**
+	 * Sets how long to wait before reconnecting to the primary.
+	 *
+	 * @param millis The delay in milliseconds. Defaults to 1000.
+	 */
+	public void setRetryDelay(long millis) {
+		this.retryDelay = millis;
+	}
+
+	/**
+	 * Sets how long to wait for the primary before the connection is deemed
+	 * lost. This should be a few times the heartbeat interval of the primary.
+	 *
+	 * @param millis The timeout in milliseconds. Defaults to 5000.
+	 */
+	public void setTimeout(int millis) {
+		this.timeout = millis;
+	}
+
+	/**
+	 * Starts replicating in the background.
+	 */
+	public void start() {
+		acl.setExpiring(false); //expired rules are removed by the primary
+		syncedAt = System.currentTimeMillis();
+		thread = new Thread(this::replicateLoop, "archly-replica");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the sequence number of the latest change applied to the ACL.
+	 *
+	 * @return The sequence number.
+	 */
+	public long getAppliedSequence() {
+		return acl.getSequence();
+	}
+
+	/**
+	 * Gets the sequence number of the latest change made at the primary, as
+	 * last heard from the primary.
+	 *
+	 * @return The sequence number.
+	 */
+	public long getPrimarySequence() {
+		return primarySequence;
+	}
+
+	/**
+	 * Gets the number of changes that have not been applied yet.
+	 *
+	 * @return The number of changes the replica is behind the primary.
+	 */
+	public long getLag() {
+		return Math.max(0, primarySequence - acl.getSequence());
+	}
+
+	/**
+	 * Gets how long the replica has been behind the primary.
+	 *
+	 * @return The time in milliseconds since the replica was last up to date,
+	 * or 0 if it is up to date.
+	 */
+	public long getLagMillis() {
+		if (connected && getLag() == 0) {
+			return 0;
+		}
+
+		return System.currentTimeMillis() - syncedAt;
+	}
+
+	/**
+	 * Gets the number of snapshots received from the primary.
+	 *
+	 * @return The number of snapshots.
+	 */
+	public long getSnapshotCount() {
+		return snapshotCount;
+	}
+
+	/**
+	 * Checks if the replica is connected to the primary.
+	 *
+	 * @return True if connected.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Stops replicating.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		disconnect();
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		acl.setExpiring(true);
+	}
+
+	/**
+	 * Drops the current connection; the replica reconnects after the retry
+	 * delay.
+	 */
+	void disconnect() throws IOException {
+		Socket current = socket;
+
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	private void replicateLoop() {
+		while (!closed) {
+			try (Socket s = new Socket()) {
+				socket = s;
+				if (closed) {
+					return;
+				}
+				s.connect(primary, timeout);
+				s.setSoTimeout(timeout);
+				replicate(s);
+			} catch (IOException e) {
+				//reconnect after the delay
+			} finally {
+				connected = false;
+			}
+
+			try {
+				Thread.sleep(retryDelay);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes sent by the primary until the connection is lost.
+	 *
+	 * @param s The connection to the primary.
+	 * @throws IOException Re-throws IOException from the connection.
+	 */
+	private void replicate(Socket s) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				s.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				s.getOutputStream()));
+
+		out.writeInt(AclPrimary.MAGIC);
+		out.writeLong(epoch);
+		out.writeLong(acl.getSequence());
+		out.flush();
+		connected = true;
+
+		while (!closed) {
+			byte type = in.readByte();
+
+			if (type == AclPrimary.SNAPSHOT) {
+				loadSnapshot(in);
+			} else if (type == AclPrimary.MUTATION) {
+				byte[] record = new byte[in.readInt()];
+
+				in.readFully(record);
+				applyRecord(record);
+			} else if (type == AclPrimary.HEARTBEAT) {
+				primarySequence = in.readLong();
+			} else {
+				throw new IOException("Unknown message type " + type);
+			}
+			if (acl.getSequence() >= primarySequence) {
+				syncedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void loadSnapshot(DataInputStream in) throws IOException {
+		long snapshotEpoch = in.readLong();
+		long sequence = in.readLong();
+		Map<String, String> roles = readRegistry(in);
+		Map<String, String> resources = readRegistry(in);
+		Map<String, Map<String, Boolean>> perms = new HashMap<>();
+
+		for (int i = in.readInt(); i > 0; i--) {
+			perms.put(in.readUTF(), Mutation.readActions(in));
+		}
+
+		acl.load(roles, resources, perms, sequence);
+		epoch = snapshotEpoch;
+		primarySequence = Math.max(primarySequence, sequence);
+		snapshotCount++;
+	}
+
+	private void applyRecord(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		long sequence = in.readLong();
+		Mutation mutation = Mutation.read(in);
+		long applied = acl.getSequence();
+
+		if (sequence <= applied) {
+			return;
+		}
+		if (sequence != applied + 1) {
+			throw new IOException("Missing changes " + (applied + 1) + " to "
+					+ (sequence - 1));
+		}
+		try {
+			acl.replay(mutation);
+		} catch (RuntimeException e) {
+			epoch = 0; //the ACL has diverged, ask for a snapshot
+			throw new IOException("Cannot apply change " + sequence, e);
+		}
+		primarySequence = Math.max(primarySequence, sequence);
+	}
+
+	private static Map<String, String> readRegistry(DataInputStream in)
+			throws IOException {
+		Map<String, String> registry = new HashMap<>();
+
+		for (int i = in.readInt(); i > 0; i--) {
+			registry.put(in.readUTF(), in.readUTF());
+		}
+
+		return registry;
+	}
+}
@@ -0,0 +1,235 @@
+package com.rojakcoder.archly;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AclVersion is the state of a versioned ACL after one of its changes.
+ * <p>
+ * A version shares all that did not change with the versions before and
+ * after it, so keeping it costs only what the change touched, and it is
+ * never modified. The access checks of a version are made as of the time of
+ * the version, so timed rules that have expired since still apply. They look
+ * up every role and resource in the paths, which makes them slower than
+ * those of the ACL itself.
+ * </p>
+ *
+ * @see Acl#makeVersionedInstance(int)
+ */
+public final class AclVersion {
+	private final long sequence;
+
+	private final long timestamp;
+
+	private final Hamt<String> roles;
+
+	private final Hamt<String> resources;
+
+	private final Hamt<Map<String, Boolean>> permissions;
+
+	private final boolean withPatterns;
+
+	/**
+	 * The read-only ACL over this version, created when first needed.
+	 */
+	private volatile Acl view;
+
+	AclVersion(long sequence, long timestamp, Hamt<String> roles,
+			Hamt<String> resources, Hamt<Map<String, Boolean>> permissions,
+			boolean withPatterns) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.roles = roles;
+		this.resources = resources;
+		this.permissions = permissions;
+		this.withPatterns = withPatterns;
+	}
+
+	/**
+	 * Gets the sequence number of the change that made this version.
+	 *
+	 * @return The sequence number, 0 for the state before the first change.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Gets the time of the change that made this version.
+	 *
+	 * @return The time.
+	 */
+	public Instant getTime() {
+		return Instant.ofEpochMilli(timestamp);
+	}
+
+	/**
+	 * Gets the number of roles in this version.
+	 *
+	 * @return The number of roles.
+	 */
+	public int getRoleCount() {
+		return roles.size();
+	}
+
+	/**
+	 * Gets the number of resources in this version.
+	 *
+	 * @return The number of resources.
+	 */
+	public int getResourceCount() {
+		return resources.size();
+	}
+
+	/**
+	 * Gets the number of permissions in this version.
+	 *
+	 * @return The number of permissions.
+	 */
+	public int getPermissionCount() {
+		return permissions.size();
+	}
+
+	/**
+	 * Exports the permissions of this version, leaving out the conditional
+	 * and timed rules.
+	 *
+	 * @return A String to String-Boolean map typically for persistent storage.
+	 * @see Acl#exportPermissions()
+	 */
+	public Map<String, Map<String, Boolean>> exportPermissions() {
+		Map<String, Map<String, Boolean>> copy = new HashMap<>();
+
+		for (Map.Entry<String, Map<String, Boolean>> entry: permissions) {
+			Map<String, Boolean> plain = Permission.withoutRules(entry
+					.getValue());
+
+			if (!plain.isEmpty()) {
+				copy.put(entry.getKey(), new HashMap<>(plain));
+			}
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Exports the permissions of this version, including the conditional and
+	 * timed rules.
+	 *
+	 * @return A String to String-Boolean map typically for persistent storage.
+	 * @see Acl#exportPermissionsWithRules()
+	 */
+	public Map<String, Map<String, Boolean>> exportPermissionsWithRules() {
+		Map<String, Map<String, Boolean>> copy = new HashMap<>();
+
+		for (Map.Entry<String, Map<String, Boolean>> entry: permissions) {
+			copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Exports the resources of this version.
+	 *
+	 * @return A HashMap typically meant for persistent storage.
+	 */
+	public Map<String, String> exportResources() {
+		return export(resources);
+	}
+
+	/**
+	 * Exports the roles of this version.
+	 *
+	 * @return A HashMap typically meant for persistent storage.
+	 */
+	public Map<String, String> exportRoles() {
+		return export(roles);
+	}
+
+	/**
+	 * Determines if the role had access to the resource in this version.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @return Returns true if the role had access to the resource, false
+	 * otherwise.
+	 * @see Acl#isAllowed(AclEntry, AclEntry)
+	 */
+	public boolean isAllowed(AclEntry role, AclEntry resource) {
+		return view().isAllowed(role, resource);
+	}
+
+	/**
+	 * Determines if the role had access to the resource for the specific
+	 * action in this version.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role had access on the resource, false
+	 * otherwise.
+	 * @see Acl#isAllowed(AclEntry, AclEntry, String)
+	 */
+	public boolean isAllowed(AclEntry role, AclEntry resource, String action) {
+		return view().isAllowed(role, resource, action);
+	}
+
+	/**
+	 * Determines if the role was denied access to the resource in this
+	 * version.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @return Returns true if the role was denied access to the resource,
+	 * false otherwise.
+	 * @see Acl#isDenied(AclEntry, AclEntry)
+	 */
+	public boolean isDenied(AclEntry role, AclEntry resource) {
+		return view().isDenied(role, resource);
+	}
+
+	/**
+	 * Determines if the role was denied access to the resource for the
+	 * specific action in this version.
+	 *
+	 * @param role The access request object.
+	 * @param resource The access control object.
+	 * @param action The action type to check the access for.
+	 * @return Returns true if the role was denied access on the resource,
+	 * false otherwise.
+	 * @see Acl#isDenied(AclEntry, AclEntry, String)
+	 */
+	public boolean isDenied(AclEntry role, AclEntry resource, String action) {
+		return view().isDenied(role, resource, action);
+	}
+
+	@Override
+	public String toString() {
+		return "AclVersion[" + sequence + " at " + getTime() + "]";
+	}
+
+	private Acl view() {
+		Acl acl = view;
+
+		if (acl == null) {
+			//racing threads create equivalent views
+			acl = Acl.makeView(roles, resources, permissions, timestamp,
+					withPatterns);
+			view = acl;
+		}
+
+		return acl;
+	}
+
+	private static Map<String, String> export(Hamt<String> registry) {
+		Map<String, String> copy = new HashMap<>();
+
+		for (Map.Entry<String, String> entry: registry) {
+			copy.put(entry.getKey(), entry.getValue());
+		}
+
+		return copy;
+	}
+}
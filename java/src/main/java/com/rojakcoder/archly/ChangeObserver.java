@@ -0,0 +1,44 @@
+package com.rojakcoder.archly;
+
+import java.util.Map;
+
+/**
+ * ChangeObserver is notified of every change to the entries of a registry or
+ * to the permissions.
+ */
+interface ChangeObserver {
+	/**
+	 * Called when an entry is added or moved under another parent.
+	 *
+	 * @param registry The registry holding the entry.
+	 * @param entry The ID of the entry.
+	 * @param parent The ID of the parent entry, empty if at the root.
+	 * @param previous The ID of the previous parent entry, null if the entry
+	 * was added.
+	 */
+	void entryChanged(Registry registry, String entry, String parent,
+			String previous);
+
+	/**
+	 * Called when an entry is removed.
+	 *
+	 * @param registry The registry that held the entry.
+	 * @param entry The ID of the entry.
+	 */
+	void entryRemoved(Registry registry, String entry);
+
+	/**
+	 * Called when a permission is added or changed.
+	 *
+	 * @param key The tuple of role and resource.
+	 * @param perm The map of actions to grants.
+	 */
+	void permissionChanged(String key, Map<String, Boolean> perm);
+
+	/**
+	 * Called when a permission is removed.
+	 *
+	 * @param key The tuple of role and resource.
+	 */
+	void permissionRemoved(String key);
+}
@@ -0,0 +1,35 @@
+package com.rojakcoder.archly;
+
+import java.util.Map;
+
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
+
+/**
+ * Condition is a compiled condition of a rule over the attributes of an
+ * access request.
+ *
+ * @see ConditionParser
+ */
+interface Condition {
+	/**
+	 * Evaluates the condition.
+	 *
+	 * @param attributes The attributes of the request. Null if there are none.
+	 * @return True if the condition holds.
+	 */
+	boolean test(Map<String, ?> attributes);
+
+	/**
+	 * Compiles a condition.
+	 *
+	 * @param expression The condition in the expression form described in
+	 * {@link ConditionParser}.
+	 * @return The compiled condition.
+	 * @throws InvalidConditionException Throws this exception if the
+	 * expression is not valid.
+	 */
+	static Condition compile(String expression)
+			throws InvalidConditionException {
+		return new ConditionParser(expression).parse();
+	}
+}
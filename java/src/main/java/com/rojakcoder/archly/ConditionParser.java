@@ -0,0 +1,462 @@
+package com.rojakcoder.archly;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
+
+/**
+ * ConditionParser compiles the condition of a rule into a {@link Condition}.
+ * <p>
+ * A condition is an expression over the attributes of the request:
+ * </p>
+ * <ul>
+ * <li>Attributes are referred to by name, e.g. <code>hour</code> or
+ * <code>user.id</code>. Missing attributes are null.</li>
+ * <li>Literals are numbers, strings in single or double quotes,
+ * <code>true</code>, <code>false</code>, <code>null</code> and lists such as
+ * <code>['a', 'b']</code>.</li>
+ * <li>Comparisons are <code>== != &lt; &lt;= &gt; &gt;=</code>. Numbers are
+ * compared by value and strings alphabetically; comparing other values is
+ * false.</li>
+ * <li><code>x in [...]</code> checks if the value is in a list, and
+ * <code>ip in '10.0.0.0/8'</code> checks if an IPv4 address is in a
+ * range.</li>
+ * <li>Conditions are combined with <code>&amp;&amp; || !</code> and
+ * parentheses. A bare value holds only if it is <code>true</code>.</li>
+ * </ul>
+ * <p>
+ * For example: <code>hour &gt;= 9 &amp;&amp; hour &lt; 17 &amp;&amp;
+ * ip in '10.0.0.0/8'</code> or <code>owner == user</code>.
+ * </p>
+ */
+final class ConditionParser {
+	private final String expression;
+
+	private int pos;
+
+	ConditionParser(String expression) {
+		if (expression == null || expression.trim().isEmpty()) {
+			throw new InvalidConditionException("Condition is empty");
+		}
+
+		this.expression = expression;
+	}
+
+	Condition parse() {
+		Operand operand = parseOr();
+
+		skipSpaces();
+		if (pos < expression.length()) {
+			throw error("Unexpected '" + expression.charAt(pos) + "'");
+		}
+
+		return attributes -> isTrue(operand.value(attributes));
+	}
+
+	private Operand parseOr() {
+		Operand left = parseAnd();
+
+		while (match("||")) {
+			Operand l = left;
+			Operand r = parseAnd();
+
+			left = a -> isTrue(l.value(a)) || isTrue(r.value(a));
+		}
+
+		return left;
+	}
+
+	private Operand parseAnd() {
+		Operand left = parseNot();
+
+		while (match("&&")) {
+			Operand l = left;
+			Operand r = parseNot();
+
+			left = a -> isTrue(l.value(a)) && isTrue(r.value(a));
+		}
+
+		return left;
+	}
+
+	private Operand parseNot() {
+		skipSpaces();
+		if (pos < expression.length() && expression.charAt(pos) == '!'
+				&& !expression.startsWith("!=", pos)) {
+			pos++;
+
+			Operand operand = parseNot();
+
+			return a -> !isTrue(operand.value(a));
+		}
+
+		return parseComparison();
+	}
+
+	private Operand parseComparison() {
+		Operand left = parsePrimary();
+
+		if (match("==")) {
+			Operand right = parsePrimary();
+			return a -> equal(left.value(a), right.value(a));
+		}
+		if (match("!=")) {
+			Operand right = parsePrimary();
+			return a -> !equal(left.value(a), right.value(a));
+		}
+		if (match("<=")) {
+			Operand right = parsePrimary();
+			return a -> ordered(left.value(a), right.value(a), c -> c <= 0);
+		}
+		if (match(">=")) {
+			Operand right = parsePrimary();
+			return a -> ordered(left.value(a), right.value(a), c -> c >= 0);
+		}
+		if (match("<")) {
+			Operand right = parsePrimary();
+			return a -> ordered(left.value(a), right.value(a), c -> c < 0);
+		}
+		if (match(">")) {
+			Operand right = parsePrimary();
+			return a -> ordered(left.value(a), right.value(a), c -> c > 0);
+		}
+		if (matchWord("in")) {
+			return parseIn(left);
+		}
+
+		return left;
+	}
+
+	/**
+	 * Compiles the right side of <code>in</code>. Ranges and lists of
+	 * literals are prepared once here.
+	 */
+	private Operand parseIn(Operand left) {
+		Operand right = parsePrimary();
+
+		if (right instanceof Constant
+				&& ((Constant) right).value instanceof String) {
+			Cidr range = Cidr.parse((String) ((Constant) right).value);
+
+			if (range == null) {
+				throw error("Not an IPv4 range: " + ((Constant) right).value);
+			}
+
+			return a -> range.contains(left.value(a));
+		}
+
+		return a -> {
+			Object items = right.value(a);
+
+			if (!(items instanceof Collection)) {
+				return false;
+			}
+
+			Object value = left.value(a);
+			for (Object item: (Collection<?>) items) {
+				if (equal(value, item)) {
+					return true;
+				}
+			}
+
+			return false;
+		};
+	}
+
+	private Operand parsePrimary() {
+		skipSpaces();
+		if (pos >= expression.length()) {
+			throw error("Unexpected end");
+		}
+
+		char c = expression.charAt(pos);
+
+		if (c == '(') {
+			pos++;
+
+			Operand operand = parseOr();
+
+			expect(')');
+
+			return operand;
+		}
+		if (c == '[') {
+			return parseList();
+		}
+		if (c == '\'' || c == '"') {
+			return new Constant(parseString(c));
+		}
+		if (Character.isDigit(c) || (c == '-' && pos + 1 < expression.length()
+				&& Character.isDigit(expression.charAt(pos + 1)))) {
+			return new Constant(parseNumber());
+		}
+		if (Character.isLetter(c) || c == '_') {
+			String name = parseName();
+
+			switch (name) {
+			case "true":
+				return new Constant(Boolean.TRUE);
+			case "false":
+				return new Constant(Boolean.FALSE);
+			case "null":
+				return new Constant(null);
+			default:
+				return a -> a == null ? null : a.get(name);
+			}
+		}
+
+		throw error("Unexpected '" + c + "'");
+	}
+
+	private Operand parseList() {
+		List<Operand> items = new ArrayList<>();
+		boolean constant = true;
+
+		pos++;
+		skipSpaces();
+		if (!match("]")) {
+			do {
+				Operand item = parsePrimary();
+
+				constant &= item instanceof Constant;
+				items.add(item);
+			} while (match(","));
+			expect(']');
+		}
+
+		if (constant) {
+			List<Object> values = new ArrayList<>();
+			for (Operand item: items) {
+				values.add(((Constant) item).value);
+			}
+
+			return new Constant(values);
+		}
+
+		return a -> {
+			List<Object> values = new ArrayList<>();
+			for (Operand item: items) {
+				values.add(item.value(a));
+			}
+
+			return values;
+		};
+	}
+
+	private String parseString(char quote) {
+		int end = expression.indexOf(quote, pos + 1);
+
+		if (end < 0) {
+			throw error("Unterminated string");
+		}
+
+		String value = expression.substring(pos + 1, end);
+		pos = end + 1;
+
+		return value;
+	}
+
+	private Number parseNumber() {
+		int start = pos;
+
+		pos++;
+		while (pos < expression.length()
+				&& (Character.isDigit(expression.charAt(pos))
+						|| expression.charAt(pos) == '.')) {
+			pos++;
+		}
+
+		String number = expression.substring(start, pos);
+		try {
+			if (number.indexOf('.') >= 0) {
+				return Double.valueOf(number);
+			}
+
+			return Long.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw error("Not a number: " + number);
+		}
+	}
+
+	private String parseName() {
+		int start = pos;
+
+		while (pos < expression.length()
+				&& (Character.isLetterOrDigit(expression.charAt(pos))
+						|| expression.charAt(pos) == '_'
+						|| expression.charAt(pos) == '.')) {
+			pos++;
+		}
+
+		return expression.substring(start, pos);
+	}
+
+	private boolean match(String token) {
+		skipSpaces();
+		if (expression.startsWith(token, pos)) {
+			pos += token.length();
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean matchWord(String word) {
+		skipSpaces();
+
+		int end = pos + word.length();
+		if (expression.startsWith(word, pos) && (end == expression.length()
+				|| !Character.isLetterOrDigit(expression.charAt(end)))) {
+			pos = end;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!match(String.valueOf(c))) {
+			throw error("Expected '" + c + "'");
+		}
+	}
+
+	private void skipSpaces() {
+		while (pos < expression.length()
+				&& Character.isWhitespace(expression.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	private InvalidConditionException error(String message) {
+		return new InvalidConditionException(String.format("%s at %d in '%s'",
+				message, pos, expression));
+	}
+
+	private static boolean isTrue(Object value) {
+		return Boolean.TRUE.equals(value);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		}
+
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Compares two values.
+	 *
+	 * @param a The left value.
+	 * @param b The right value.
+	 * @param test The test on the result of the comparison.
+	 * @return The result of the test, or false if the values are not both
+	 * numbers or both strings.
+	 */
+	private static boolean ordered(Object a, Object b, IntPredicate test) {
+		if (a instanceof Number && b instanceof Number) {
+			return test.test(Double.compare(((Number) a).doubleValue(),
+					((Number) b).doubleValue()));
+		}
+		if (a instanceof String && b instanceof String) {
+			return test.test(((String) a).compareTo((String) b));
+		}
+
+		return false;
+	}
+
+	private interface Operand {
+		Object value(Map<String, ?> attributes);
+	}
+
+	private static final class Constant implements Operand {
+		final Object value;
+
+		Constant(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object value(Map<String, ?> attributes) {
+			return value;
+		}
+	}
+
+	/**
+	 * A range of IPv4 addresses.
+	 */
+	private static final class Cidr {
+		private final int network;
+
+		private final int mask;
+
+		private Cidr(int network, int mask) {
+			this.network = network;
+			this.mask = mask;
+		}
+
+		static Cidr parse(String range) {
+			int slash = range.indexOf('/');
+			if (slash < 0) {
+				return null;
+			}
+
+			Integer address = parseAddress(range.substring(0, slash));
+			int bits;
+			try {
+				bits = Integer.parseInt(range.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (address == null || bits < 0 || bits > 32) {
+				return null;
+			}
+
+			int mask = bits == 0 ? 0 : -1 << (32 - bits);
+
+			return new Cidr(address & mask, mask);
+		}
+
+		boolean contains(Object value) {
+			Integer address = null;
+
+			if (value instanceof String) {
+				address = parseAddress((String) value);
+			} else if (value instanceof Inet4Address) {
+				byte[] bytes = ((Inet4Address) value).getAddress();
+				address = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16
+						| (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+			}
+
+			return address != null && (address & mask) == network;
+		}
+
+		private static Integer parseAddress(String address) {
+			String[] parts = address.split("\\.", -1);
+			if (parts.length != 4) {
+				return null;
+			}
+
+			int result = 0;
+			for (String part: parts) {
+				int octet;
+				try {
+					octet = Integer.parseInt(part);
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (octet < 0 || octet > 255) {
+					return null;
+				}
+				result = result << 8 | octet;
+			}
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.rojakcoder.archly;
+
+/**
+ * EntryHandle is the common part of {@link RoleHandle} and
+ * {@link ResourceHandle}.
+ * <p>
+ * A handle remembers the traversal path of its entry, with only the entries
+ * that have rules, for as long as the hierarchies and the entries that have
+ * rules are unchanged, so access checks with handles skip looking up the
+ * path by ID. A handle is invalidated when
+ * its entry is removed from the registry; it stays invalid even if an entry
+ * with the same ID is added again.
+ * </p>
+ */
+abstract class EntryHandle implements AclEntry {
+	static final String INVALID_HANDLE = "Entry '%s' has been removed - its handle is no longer valid.";
+
+	private final String id;
+
+	private final AclEntry entry;
+
+	/**
+	 * The registry that issued the handle.
+	 */
+	final Registry registry;
+
+	private volatile boolean valid = true;
+
+	private volatile Path path;
+
+	EntryHandle(String id, AclEntry entry, Registry registry) {
+		this.id = id;
+		this.entry = entry;
+		this.registry = registry;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getEntryDescription() {
+		return entry.getEntryDescription();
+	}
+
+	@Override
+	public AclEntry retrieveEntry(String entryId) {
+		return entry.retrieveEntry(entryId);
+	}
+
+	/**
+	 * Checks if the handle can still be used.
+	 *
+	 * @return False if the entry has been removed since the handle was made.
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Gets the entry that the handle was made for.
+	 *
+	 * @return The entry.
+	 */
+	public AclEntry getEntry() {
+		return entry;
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+
+	/**
+	 * Throws if the entry has been removed.
+	 */
+	void check() {
+		if (!valid) {
+			throw new RuntimeException(String.format(INVALID_HANDLE, id));
+		}
+	}
+
+	void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * Gets the path remembered for a state of the ACL.
+	 *
+	 * @param changes The number of changes made to the ACL.
+	 * @return The path, or null if none is remembered for the state.
+	 */
+	Object path(long changes) {
+		Path current = path;
+
+		return current != null && current.changes == changes ? current.ids
+				: null;
+	}
+
+	/**
+	 * Remembers the path for a state of the ACL.
+	 *
+	 * @param changes The number of changes made to the ACL.
+	 * @param ids The path. It must not be modified afterwards.
+	 */
+	void remember(long changes, Object ids) {
+		path = new Path(changes, ids);
+	}
+
+	private static final class Path {
+		final long changes;
+
+		final Object ids;
+
+		Path(long changes, Object ids) {
+			this.changes = changes;
+			this.ids = ids;
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.rojakcoder.archly;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Hamt is a persistent hash array mapped trie of string keys.
+ * <p>
+ * A Hamt is never modified: {@link #put(String, Object)} and
+ * {@link #remove(String)} return a new trie that shares all but the path to
+ * the changed key with the old one, so keeping the old version costs only
+ * the nodes on that path. Each node branches on 5 bits of the hash of the
+ * key, so lookups and changes visit at most 7 nodes.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+final class Hamt<V> implements Iterable<Map.Entry<String, V>> {
+	private static final int BITS = 5;
+
+	private static final int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final Hamt EMPTY = new Hamt<>(null, 0);
+
+	private final Node root;
+
+	private final int size;
+
+	private Hamt(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> Hamt<V> empty() {
+		return EMPTY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(String key) {
+		return root == null ? null : (V) root.get(hash(key), key, 0);
+	}
+
+	/**
+	 * Associates a value with a key.
+	 *
+	 * @param key The key.
+	 * @param value The value. Must not be null.
+	 * @return The new trie, or this trie if the key already has the value.
+	 */
+	Hamt<V> put(String key, V value) {
+		int hash = hash(key);
+		Change change = new Change();
+		Node node = root == null ? new BitmapNode(0, new Object[0]).put(hash,
+				key, value, 0, change) : root.put(hash, key, value, 0, change);
+
+		if (node == root) {
+			return this;
+		}
+
+		return new Hamt<>(node, change.added ? size + 1 : size);
+	}
+
+	/**
+	 * Removes a key.
+	 *
+	 * @param key The key.
+	 * @return The new trie, or this trie if the key is not present.
+	 */
+	Hamt<V> remove(String key) {
+		if (root == null) {
+			return this;
+		}
+
+		Node node = root.remove(hash(key), key, 0);
+		if (node == root) {
+			return this;
+		}
+
+		return size == 1 ? empty() : new Hamt<>(node, size - 1);
+	}
+
+	/**
+	 * Iterates over the entries in no particular order.
+	 */
+	@Override
+	public Iterator<Map.Entry<String, V>> iterator() {
+		return new EntryIterator<>(root);
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+
+		return h ^ (h >>> 16);
+	}
+
+	private static int index(int hash, int shift) {
+		return (hash >>> shift) & MASK;
+	}
+
+	/**
+	 * Whether a change added a key.
+	 */
+	private static final class Change {
+		boolean added;
+	}
+
+	private static final class Leaf {
+		final int hash;
+
+		final String key;
+
+		final Object value;
+
+		Leaf(int hash, String key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private abstract static class Node {
+		abstract Object get(int hash, String key, int shift);
+
+		abstract Node put(int hash, String key, Object value, int shift,
+				Change change);
+
+		/**
+		 * @return The new node, null if it is empty, or this node if the key
+		 * is not present.
+		 */
+		abstract Node remove(int hash, String key, int shift);
+	}
+
+	/**
+	 * A node with up to 32 children, each a leaf or a node, stored in the
+	 * order of their bits in the bitmap.
+	 */
+	private static final class BitmapNode extends Node {
+		final int bitmap;
+
+		final Object[] children;
+
+		BitmapNode(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+
+		@Override
+		Object get(int hash, String key, int shift) {
+			int bit = 1 << index(hash, shift);
+
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+
+			Object child = children[Integer.bitCount(bitmap & (bit - 1))];
+			if (child instanceof Leaf) {
+				Leaf leaf = (Leaf) child;
+
+				return leaf.key.equals(key) ? leaf.value : null;
+			}
+
+			return ((Node) child).get(hash, key, shift + BITS);
+		}
+
+		@Override
+		Node put(int hash, String key, Object value, int shift,
+				Change change) {
+			int bit = 1 << index(hash, shift);
+			int at = Integer.bitCount(bitmap & (bit - 1));
+
+			if ((bitmap & bit) == 0) {
+				Object[] added = new Object[children.length + 1];
+
+				System.arraycopy(children, 0, added, 0, at);
+				added[at] = new Leaf(hash, key, value);
+				System.arraycopy(children, at, added, at + 1, children.length
+						- at);
+				change.added = true;
+
+				return new BitmapNode(bitmap | bit, added);
+			}
+
+			Object child = children[at];
+			Object replaced;
+			if (child instanceof Leaf) {
+				Leaf leaf = (Leaf) child;
+
+				if (leaf.key.equals(key)) {
+					if (leaf.value == value) {
+						return this;
+					}
+					replaced = new Leaf(hash, key, value);
+				} else {
+					replaced = merge(leaf, new Leaf(hash, key, value), shift
+							+ BITS);
+					change.added = true;
+				}
+			} else {
+				replaced = ((Node) child).put(hash, key, value, shift + BITS,
+						change);
+				if (replaced == child) {
+					return this;
+				}
+			}
+
+			Object[] copy = children.clone();
+			copy[at] = replaced;
+
+			return new BitmapNode(bitmap, copy);
+		}
+
+		@Override
+		Node remove(int hash, String key, int shift) {
+			int bit = 1 << index(hash, shift);
+
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+
+			int at = Integer.bitCount(bitmap & (bit - 1));
+			Object child = children[at];
+			Object replaced;
+			if (child instanceof Leaf) {
+				if (!((Leaf) child).key.equals(key)) {
+					return this;
+				}
+				replaced = null;
+			} else {
+				replaced = ((Node) child).remove(hash, key, shift + BITS);
+				if (replaced == child) {
+					return this;
+				}
+			}
+
+			if (replaced != null) {
+				Object[] copy = children.clone();
+				copy[at] = replaced;
+
+				return new BitmapNode(bitmap, copy);
+			}
+			if (children.length == 1) {
+				return null;
+			}
+
+			Object[] removed = new Object[children.length - 1];
+			System.arraycopy(children, 0, removed, 0, at);
+			System.arraycopy(children, at + 1, removed, at, removed.length
+					- at);
+
+			return new BitmapNode(bitmap & ~bit, removed);
+		}
+
+		/**
+		 * Makes the node holding two leaves that were in the same slot.
+		 */
+		private static Node merge(Leaf first, Leaf second, int shift) {
+			if (first.hash == second.hash) {
+				return new CollisionNode(first.hash, new Leaf[] { first,
+						second });
+			}
+
+			int i1 = index(first.hash, shift);
+			int i2 = index(second.hash, shift);
+			if (i1 == i2) {
+				return new BitmapNode(1 << i1, new Object[] { merge(first,
+						second, shift + BITS) });
+			}
+
+			return new BitmapNode((1 << i1) | (1 << i2), i1 < i2
+					? new Object[] { first, second }
+					: new Object[] { second, first });
+		}
+	}
+
+	/**
+	 * A node with the leaves whose keys have the same hash.
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		final Leaf[] leaves;
+
+		CollisionNode(int hash, Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		@Override
+		Object get(int hash, String key, int shift) {
+			for (Leaf leaf: leaves) {
+				if (leaf.key.equals(key)) {
+					return leaf.value;
+				}
+			}
+
+			return null;
+		}
+
+		@Override
+		Node put(int hash, String key, Object value, int shift,
+				Change change) {
+			if (hash != this.hash) {
+				//branch on the hashes, with this node as one of the children
+				Node branch = new BitmapNode(1 << index(this.hash, shift),
+						new Object[] { this });
+
+				return branch.put(hash, key, value, shift, change);
+			}
+
+			for (int i = 0; i < leaves.length; i++) {
+				if (leaves[i].key.equals(key)) {
+					if (leaves[i].value == value) {
+						return this;
+					}
+
+					Leaf[] copy = leaves.clone();
+					copy[i] = new Leaf(hash, key, value);
+
+					return new CollisionNode(hash, copy);
+				}
+			}
+
+			Leaf[] added = new Leaf[leaves.length + 1];
+			System.arraycopy(leaves, 0, added, 0, leaves.length);
+			added[leaves.length] = new Leaf(hash, key, value);
+			change.added = true;
+
+			return new CollisionNode(hash, added);
+		}
+
+		@Override
+		Node remove(int hash, String key, int shift) {
+			for (int i = 0; i < leaves.length; i++) {
+				if (leaves[i].key.equals(key)) {
+					if (leaves.length == 1) {
+						return null;
+					}
+
+					Leaf[] removed = new Leaf[leaves.length - 1];
+					System.arraycopy(leaves, 0, removed, 0, i);
+					System.arraycopy(leaves, i + 1, removed, i, removed.length
+							- i);
+
+					return new CollisionNode(hash, removed);
+				}
+			}
+
+			return this;
+		}
+	}
+
+	/**
+	 * Walks the trie depth first.
+	 */
+	private static final class EntryIterator<V> implements
+			Iterator<Map.Entry<String, V>> {
+		private final Deque<Object> pending = new ArrayDeque<>();
+
+		private Leaf next;
+
+		EntryIterator(Node root) {
+			if (root != null) {
+				pending.push(root);
+			}
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Map.Entry<String, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			Leaf current = next;
+			advance();
+
+			return new AbstractMap.SimpleImmutableEntry<>(current.key,
+					(V) current.value);
+		}
+
+		private void advance() {
+			next = null;
+			while (!pending.isEmpty()) {
+				Object item = pending.pop();
+
+				if (item instanceof Leaf) {
+					next = (Leaf) item;
+					return;
+				}
+				if (item instanceof CollisionNode) {
+					for (Leaf leaf: ((CollisionNode) item).leaves) {
+						pending.push(leaf);
+					}
+				} else {
+					for (Object child: ((BitmapNode) item).children) {
+						pending.push(child);
+					}
+				}
+			}
+		}
+	}
+}
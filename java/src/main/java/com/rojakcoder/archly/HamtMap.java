@@ -0,0 +1,141 @@
+package com.rojakcoder.archly;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * HamtMap is a map whose entries are held in a {@link Hamt}.
+ * <p>
+ * Each change replaces the trie with a new version, so taking a snapshot of
+ * the map is a matter of reading the current version and never blocks the
+ * writers. Like the maps of the registries and permissions, the map is only
+ * modified under the write lock of the Acl. Null values are not supported.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+final class HamtMap<V> extends AbstractMap<String, V> implements
+		ConcurrentMap<String, V> {
+	private volatile Hamt<V> root;
+
+	HamtMap() {
+		this(Hamt.empty());
+	}
+
+	/**
+	 * Creates a map with the entries of a version of a trie.
+	 *
+	 * @param root The trie.
+	 */
+	HamtMap(Hamt<V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Gets the current version of the entries.
+	 *
+	 * @return The trie, which is never modified.
+	 */
+	Hamt<V> snapshot() {
+		return root;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		return key instanceof String ? root.get((String) key) : null;
+	}
+
+	@Override
+	public V put(String key, V value) {
+		Hamt<V> current = root;
+		V previous = current.get(key);
+
+		root = current.put(key, value);
+
+		return previous;
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+
+		Hamt<V> current = root;
+		V previous = current.get((String) key);
+
+		root = current.remove((String) key);
+
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		root = Hamt.empty();
+	}
+
+	@Override
+	public int size() {
+		return root.size();
+	}
+
+	@Override
+	public V putIfAbsent(String key, V value) {
+		V current = get(key);
+
+		return current == null ? put(key, value) : current;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (value == null || !value.equals(get(key))) {
+			return false;
+		}
+		remove(key);
+
+		return true;
+	}
+
+	@Override
+	public boolean replace(String key, V oldValue, V newValue) {
+		if (oldValue == null || !oldValue.equals(get(key))) {
+			return false;
+		}
+		put(key, newValue);
+
+		return true;
+	}
+
+	@Override
+	public V replace(String key, V value) {
+		return containsKey(key) ? put(key, value) : null;
+	}
+
+	/**
+	 * Gets the entries of the current version. Changes made while iterating
+	 * are not seen by the iterator.
+	 */
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return root.iterator();
+			}
+
+			@Override
+			public int size() {
+				return root.size();
+			}
+		};
+	}
+}
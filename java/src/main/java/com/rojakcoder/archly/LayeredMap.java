@@ -0,0 +1,227 @@
+package com.rojakcoder.archly;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * LayeredMap is a map made of the changes to a shared map that is never
+ * modified.
+ * <p>
+ * Lookups fall through to the base map unless the key has been changed or
+ * removed in this map, so the map only takes up the memory of its changes.
+ * Like the maps of the registries and permissions, the map is only modified
+ * under the write lock of the Acl and is safe to read concurrently. Null
+ * values are not supported.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+final class LayeredMap<V> extends AbstractMap<String, V> implements
+		ConcurrentMap<String, V> {
+	/**
+	 * Marks the keys of the base map that have been removed.
+	 */
+	private static final Object REMOVED = new Object();
+
+	private volatile Map<String, V> base;
+
+	private final ConcurrentMap<String, Object> changes = new ConcurrentHashMap<>();
+
+	private volatile int size;
+
+	/**
+	 * Creates a map over a base map.
+	 *
+	 * @param base The base map. It must not be modified afterwards.
+	 */
+	LayeredMap(Map<String, V> base) {
+		this.base = base;
+		this.size = base.size();
+	}
+
+	/**
+	 * Gets the number of changes to the base map.
+	 *
+	 * @return The number of keys that have been added, changed or removed.
+	 */
+	int changeCount() {
+		return changes.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		Object value = changes.get(key);
+
+		if (value != null) {
+			return value == REMOVED ? null : (V) value;
+		}
+
+		return base.get(key);
+	}
+
+	@Override
+	public V put(String key, V value) {
+		V previous = get(key);
+
+		if (Objects.equals(base.get(key), value)) {
+			changes.remove(key); //same as the base again
+		} else {
+			changes.put(key, value);
+		}
+		if (previous == null) {
+			size++;
+		}
+
+		return previous;
+	}
+
+	@Override
+	public V remove(Object key) {
+		V previous = get(key);
+
+		if (previous == null) {
+			return null;
+		}
+		if (base.containsKey(key)) {
+			changes.put((String) key, REMOVED);
+		} else {
+			changes.remove(key);
+		}
+		size--;
+
+		return previous;
+	}
+
+	/**
+	 * Removes all the entries, including those of the base map.
+	 */
+	@Override
+	public void clear() {
+		base = Collections.emptyMap();
+		changes.clear();
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public V putIfAbsent(String key, V value) {
+		V current = get(key);
+
+		return current == null ? put(key, value) : current;
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (value == null || !value.equals(get(key))) {
+			return false;
+		}
+		remove(key);
+
+		return true;
+	}
+
+	@Override
+	public boolean replace(String key, V oldValue, V newValue) {
+		if (oldValue == null || !oldValue.equals(get(key))) {
+			return false;
+		}
+		put(key, newValue);
+
+		return true;
+	}
+
+	@Override
+	public V replace(String key, V value) {
+		return containsKey(key) ? put(key, value) : null;
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the changed entries and then over the entries of the base
+	 * map that have not been changed.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+		private final Iterator<Map.Entry<String, Object>> changed = changes
+				.entrySet().iterator();
+
+		private final Iterator<Map.Entry<String, V>> unchanged = base
+				.entrySet().iterator();
+
+		private Map.Entry<String, V> next;
+
+		EntryIterator() {
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			Map.Entry<String, V> current = next;
+			advance();
+
+			return current;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			next = null;
+			while (changed.hasNext()) {
+				Map.Entry<String, Object> entry = changed.next();
+
+				if (entry.getValue() != REMOVED) {
+					next = new AbstractMap.SimpleImmutableEntry<>(entry
+							.getKey(), (V) entry.getValue());
+					return;
+				}
+			}
+			while (unchanged.hasNext()) {
+				Map.Entry<String, V> entry = unchanged.next();
+
+				if (!changes.containsKey(entry.getKey())) {
+					next = entry;
+					return;
+				}
+			}
+		}
+	}
+}
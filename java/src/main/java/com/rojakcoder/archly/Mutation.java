@@ -0,0 +1,314 @@
+package com.rojakcoder.archly;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mutation is a single change made to an Acl.
+ * <p>
+ * Every change made through the public methods of {@link Acl} is described
+ * by a mutation before it is applied. Mutations are what gets written to the
+ * journal and what gets replayed when the Acl is restored, so applying the
+ * same sequence of mutations to an empty Acl always gives the same state.
+ * </p>
+ */
+final class Mutation {
+	static enum Op {
+		ADD_ROLE, ADD_RESOURCE, ALLOW, DENY, REMOVE, REMOVE_ROLE,
+		REMOVE_RESOURCE, DEFAULT_ALLOW, DEFAULT_DENY, CLEAR, PUT_ROLE,
+		PUT_RESOURCE, PUT_PERMISSION, DELTA, EXPIRE, MOVE_ROLE, MOVE_RESOURCE
+	}
+
+	final Op op;
+
+	/**
+	 * The ID of the role or entry, or the permission key.
+	 */
+	final String first;
+
+	/**
+	 * The ID of the resource or parent entry.
+	 */
+	final String second;
+
+	/**
+	 * The action type, null for all actions. Grants and denials may follow the
+	 * action type with a condition or an expiry, as in the keys of the
+	 * permissions.
+	 */
+	final String action;
+
+	/**
+	 * Whether the descendants are removed as well.
+	 */
+	final boolean descendants;
+
+	final Map<String, Boolean> actions;
+
+	final AclDelta delta;
+
+	private Mutation(Op op, String first, String second, String action,
+			boolean descendants, Map<String, Boolean> actions, AclDelta delta) {
+		this.op = op;
+		this.first = first;
+		this.second = second;
+		this.action = action;
+		this.descendants = descendants;
+		this.actions = actions;
+		this.delta = delta;
+	}
+
+	static Mutation addRole(String role, String parent) {
+		return new Mutation(Op.ADD_ROLE, role, parent, null, false, null, null);
+	}
+
+	static Mutation addResource(String resource, String parent) {
+		return new Mutation(Op.ADD_RESOURCE, resource, parent, null, false,
+				null, null);
+	}
+
+	/**
+	 * Creates a grant.
+	 *
+	 * @param role The ID of the role. Null for all roles; the role is not
+	 * added to the registry.
+	 * @param resource The ID of the resource. Null for all resources; the
+	 * resource is not added to the registry.
+	 * @param action The action type, optionally with a condition or an
+	 * expiry. Null for all actions.
+	 * @return The mutation.
+	 */
+	static Mutation allow(String role, String resource, String action) {
+		return new Mutation(Op.ALLOW, role, resource, action, false, null, null);
+	}
+
+	/**
+	 * Creates a denial.
+	 *
+	 * @param role The ID of the role. Null for all roles; the role is not
+	 * added to the registry.
+	 * @param resource The ID of the resource. Null for all resources; the
+	 * resource is not added to the registry.
+	 * @param action The action type, optionally with a condition or an
+	 * expiry. Null for all actions.
+	 * @return The mutation.
+	 */
+	static Mutation deny(String role, String resource, String action) {
+		return new Mutation(Op.DENY, role, resource, action, false, null, null);
+	}
+
+	static Mutation remove(String role, String resource, String action) {
+		return new Mutation(Op.REMOVE, role, resource, action, false, null,
+				null);
+	}
+
+	static Mutation removeRole(String role, boolean descendants) {
+		return new Mutation(Op.REMOVE_ROLE, role, null, null, descendants,
+				null, null);
+	}
+
+	static Mutation removeResource(String resource, boolean descendants) {
+		return new Mutation(Op.REMOVE_RESOURCE, resource, null, null,
+				descendants, null, null);
+	}
+
+	static Mutation moveRole(String role, String parent) {
+		return new Mutation(Op.MOVE_ROLE, role, parent, null, false, null,
+				null);
+	}
+
+	static Mutation moveResource(String resource, String parent) {
+		return new Mutation(Op.MOVE_RESOURCE, resource, parent, null, false,
+				null, null);
+	}
+
+	static Mutation makeDefaultAllow() {
+		return new Mutation(Op.DEFAULT_ALLOW, null, null, null, false, null,
+				null);
+	}
+
+	static Mutation makeDefaultDeny() {
+		return new Mutation(Op.DEFAULT_DENY, null, null, null, false, null,
+				null);
+	}
+
+	static Mutation clear() {
+		return new Mutation(Op.CLEAR, null, null, null, false, null, null);
+	}
+
+	static Mutation putRole(String role, String parent) {
+		return new Mutation(Op.PUT_ROLE, role, parent, null, false, null, null);
+	}
+
+	static Mutation putResource(String resource, String parent) {
+		return new Mutation(Op.PUT_RESOURCE, resource, parent, null, false,
+				null, null);
+	}
+
+	static Mutation putPermission(String key, Map<String, Boolean> actions) {
+		return new Mutation(Op.PUT_PERMISSION, key, null, null, false, actions,
+				null);
+	}
+
+	static Mutation delta(AclDelta delta) {
+		return new Mutation(Op.DELTA, null, null, null, false, null, delta);
+	}
+
+	/**
+	 * Creates the removal of a timed action that has expired.
+	 *
+	 * @param key The permission key.
+	 * @param action The key of the timed action.
+	 * @return The mutation.
+	 */
+	static Mutation expire(String key, String action) {
+		return new Mutation(Op.EXPIRE, key, null, action, false, null, null);
+	}
+
+	/**
+	 * Reads a mutation written by {@link #write(DataOutput)}.
+	 *
+	 * @param in The input to read from.
+	 * @return The mutation.
+	 * @throws IOException Re-throws IOException from the input.
+	 */
+	static Mutation read(DataInput in) throws IOException {
+		Op op = Op.values()[in.readByte()];
+		String first = readString(in);
+		String second = readString(in);
+		String action = readString(in);
+		boolean descendants = in.readBoolean();
+		Map<String, Boolean> actions = null;
+		AclDelta delta = null;
+
+		if (op == Op.PUT_PERMISSION) {
+			actions = readActions(in);
+		} else if (op == Op.DELTA) {
+			delta = new AclDelta();
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.putRole(in.readUTF(), in.readUTF());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.removeRole(in.readUTF());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.putResource(in.readUTF(), in.readUTF());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.removeResource(in.readUTF());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.putPermission(in.readUTF(), readActions(in));
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				delta.removePermission(in.readUTF());
+			}
+		}
+
+		return new Mutation(op, first, second, action, descendants, actions,
+				delta);
+	}
+
+	/**
+	 * Writes the mutation in a compact binary form.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeByte(op.ordinal());
+		writeString(out, first);
+		writeString(out, second);
+		writeString(out, action);
+		out.writeBoolean(descendants);
+
+		if (op == Op.PUT_PERMISSION) {
+			writeActions(out, actions);
+		} else if (op == Op.DELTA) {
+			out.writeInt(delta.getPutRoles().size());
+			for (Map.Entry<String, String> entry: delta.getPutRoles()
+					.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.writeInt(delta.getRemovedRoles().size());
+			for (String role: delta.getRemovedRoles()) {
+				out.writeUTF(role);
+			}
+			out.writeInt(delta.getPutResources().size());
+			for (Map.Entry<String, String> entry: delta.getPutResources()
+					.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.writeInt(delta.getRemovedResources().size());
+			for (String resource: delta.getRemovedResources()) {
+				out.writeUTF(resource);
+			}
+			out.writeInt(delta.getPutPermissions().size());
+			for (Map.Entry<String, Map<String, Boolean>> entry: delta
+					.getPutPermissions().entrySet()) {
+				out.writeUTF(entry.getKey());
+				writeActions(out, entry.getValue());
+			}
+			out.writeInt(delta.getRemovedPermissions().size());
+			for (String key: delta.getRemovedPermissions()) {
+				out.writeUTF(key);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(op.toString());
+
+		if (first != null) {
+			sb.append(" ");
+			sb.append(first);
+		}
+		if (second != null) {
+			sb.append(" ");
+			sb.append(second);
+		}
+		if (action != null) {
+			sb.append(" ");
+			sb.append(action);
+		}
+
+		return sb.toString();
+	}
+
+	static Map<String, Boolean> readActions(DataInput in) throws IOException {
+		Map<String, Boolean> actions = new HashMap<>();
+
+		for (int i = in.readInt(); i > 0; i--) {
+			actions.put(in.readUTF(), in.readBoolean());
+		}
+
+		return actions;
+	}
+
+	static void writeActions(DataOutput out, Map<String, Boolean> actions)
+			throws IOException {
+		out.writeInt(actions.size());
+		for (Map.Entry<String, Boolean> entry: actions.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeBoolean(entry.getValue());
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+}
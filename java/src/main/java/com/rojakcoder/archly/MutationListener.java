@@ -0,0 +1,37 @@
+package com.rojakcoder.archly;
+
+/**
+ * MutationListener is notified of every change made to an Acl.
+ */
+interface MutationListener {
+	/**
+	 * Called before the mutation is applied, while the write lock of the Acl
+	 * is held. Listeners may throw a RuntimeException here to reject the
+	 * change, which is then not made.
+	 *
+	 * @param mutation The mutation about to be applied.
+	 */
+	default void mutating(Mutation mutation) {
+	}
+
+	/**
+	 * Called after the mutation has been applied, while the write lock of the
+	 * Acl is still held. Listeners are therefore called in the order of the
+	 * sequence numbers and must not block.
+	 *
+	 * @param sequence The sequence number assigned to the mutation.
+	 * @param mutation The mutation that has been applied.
+	 */
+	void mutated(long sequence, Mutation mutation);
+
+	/**
+	 * Called after the write lock of the Acl has been released, on the thread
+	 * that made the change. Listeners may block here, e.g. to wait for the
+	 * change to be persisted.
+	 *
+	 * @param sequence The sequence number of the latest mutation made by the
+	 * change.
+	 */
+	default void committed(long sequence) {
+	}
+}
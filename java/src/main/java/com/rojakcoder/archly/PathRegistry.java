@@ -0,0 +1,534 @@
+package com.rojakcoder.archly;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.rojakcoder.archly.exceptions.DuplicateEntryException;
+import com.rojakcoder.archly.exceptions.EntryNotFoundException;
+
+/**
+ * PathRegistry is a resource registry for IDs that are paths, such as
+ * <code>/org/42/proj/7/doc/99</code>.
+ * <p>
+ * The ancestors of an entry are derived from its path, so the intermediate
+ * entries do not have to be registered: adding
+ * <code>/org/42/proj/7</code> makes <code>/org/42/proj</code>,
+ * <code>/org/42</code> and <code>/org</code> its ancestors. The entries are
+ * kept in a tree of path segments, so the entries share their common
+ * prefixes and finding the ancestors of an entry is a single walk down the
+ * tree.
+ * </p>
+ * <p>
+ * Entries cannot be moved: the parent given when adding or importing an
+ * entry is ignored in favour of its path. Removing an entry without its
+ * descendants leaves the descendants under their paths.
+ * </p>
+ */
+class PathRegistry extends Registry {
+	private static final String INVALID_PATH = "Entry '%s' is not a path.";
+
+	private static final String NOT_MOVABLE = "Entry '%s' cannot be moved; its parent is given by its path.";
+
+	private static final char SEPARATOR = '/';
+
+	private final Node root = new Node(null, "");
+
+	private final Map<String, String> view = new EntriesView();
+
+	/**
+	 * The number of registered entries. Only modified while holding the write
+	 * lock of the Acl.
+	 */
+	private volatile int size;
+
+	PathRegistry() {
+	}
+
+	/**
+	 * Gets the parent of a path.
+	 *
+	 * @param path The path.
+	 * @return The path without its last segment, empty if the path has only
+	 * one segment.
+	 */
+	static String parentOf(String path) {
+		int last = path.lastIndexOf(SEPARATOR);
+
+		return last <= 0 ? "" : path.substring(0, last);
+	}
+
+	/**
+	 * Checks if an ID is a path.
+	 *
+	 * @param id The ID.
+	 * @return True if the ID starts with <code>/</code>, does not end with it
+	 * and has no empty segments.
+	 */
+	static boolean isPath(String id) {
+		return id != null && id.length() > 1 && id.charAt(0) == SEPARATOR
+				&& id.charAt(id.length() - 1) != SEPARATOR
+				&& !id.contains("//");
+	}
+
+	@Override
+	void add(String entry) throws DuplicateEntryException {
+		Node node = find(entry, true);
+
+		if (node.registered) {
+			throw new DuplicateEntryException(String.format(DUPLICATE_ENTRIES,
+					entry));
+		}
+		register(node, entry);
+	}
+
+	/**
+	 * Adds an entry. The parent must be an ancestor of the entry in its path.
+	 */
+	@Override
+	void add(String child, String parent) throws DuplicateEntryException,
+			EntryNotFoundException {
+		if (!isPath(parent) || !child.startsWith(parent + SEPARATOR)) {
+			throw new EntryNotFoundException(String.format(NOT_FOUND, parent));
+		}
+		add(child);
+	}
+
+	@Override
+	void clear() {
+		root.children = null;
+		size = 0;
+		invalidateHandles();
+	}
+
+	@Override
+	Map<String, String> entries() {
+		return view;
+	}
+
+	@Override
+	Map<String, String> export() {
+		return new HashMap<>(view);
+	}
+
+	/**
+	 * Checks if the entry is registered or is an ancestor of a registered
+	 * entry.
+	 */
+	@Override
+	boolean has(String entry) {
+		return find(entry, false) != null;
+	}
+
+	@Override
+	boolean hasChild(String parentId) {
+		Node node = parentId.isEmpty() ? root : find(parentId, false);
+
+		return node != null && node.children != null
+				&& !node.children.isEmpty();
+	}
+
+	/**
+	 * Checks if an entry is within the subtree of another from their paths,
+	 * without looking up the entry itself.
+	 */
+	@Override
+	boolean isWithin(String entry, String ancestor) {
+		if (ancestor == null || ancestor.equals("*")) {
+			return true;
+		}
+		if (!isPath(entry) || !entry.startsWith(ancestor)) {
+			return false;
+		}
+
+		return (entry.length() == ancestor.length() || entry.charAt(ancestor
+				.length()) == SEPARATOR) && find(ancestor, false) != null;
+	}
+
+	@Override
+	void move(String entry, String parent) {
+		throw new RuntimeException(String.format(NOT_MOVABLE, entry));
+	}
+
+	@Override
+	void checkPuts(Map<String, String> puts) {
+		//the parents follow from the paths, which cannot loop
+	}
+
+	@Override
+	void put(String entry, String parent) {
+		Node node = find(entry, true);
+
+		if (!node.registered) {
+			register(node, entry);
+		}
+	}
+
+	/**
+	 * Creates the traversal path from the segments of the entry.
+	 * <p>
+	 * The path has the entry and its ancestors that are in the registry,
+	 * whether or not they are registered themselves.
+	 * </p>
+	 */
+	@Override
+	List<String> traverseRoot(String entry) {
+		List<String> path = new ArrayList<>();
+
+		if (isPath(entry)) {
+			Node node = root;
+			int start = 1;
+
+			while (start <= entry.length()) {
+				int end = entry.indexOf(SEPARATOR, start);
+				if (end < 0) {
+					end = entry.length();
+				}
+
+				ConcurrentMap<String, Node> children = node.children;
+				node = children == null ? null : children.get(entry.substring(
+						start, end));
+				if (node == null) {
+					break;
+				}
+				path.add(entry.substring(0, end));
+				start = end + 1;
+			}
+		}
+		//nearest first
+		for (int i = 0, j = path.size() - 1; i < j; i++, j--) {
+			String swap = path.get(i);
+			path.set(i, path.get(j));
+			path.set(j, swap);
+		}
+		path.add("*");
+
+		return path;
+	}
+
+	/**
+	 * Writes the registered entries under their paths. The entries that are
+	 * not registered are not written, but their descendants are indented
+	 * under them.
+	 */
+	@Override
+	int display(AclEntry loader, Appendable out, String leading,
+			String entryId, int maxDepth, int maxNodes) throws IOException {
+		Node node = entryId == null || entryId.isEmpty() ? root : find(
+				entryId, false);
+
+		if (node == null || node.children == null || maxDepth <= 0) {
+			return 0;
+		}
+
+		Deque<Iterator<Node>> stack = new ArrayDeque<>();
+		int written = 0;
+		stack.push(node.children.values().iterator());
+		while (!stack.isEmpty()) {
+			Iterator<Node> children = stack.peek();
+
+			if (!children.hasNext()) {
+				stack.pop();
+				continue;
+			}
+
+			Node child = children.next();
+			int depth = stack.size() - 1;
+			if (child.registered) {
+				if (written == maxNodes) {
+					indent(out, depth, leading);
+					out.append("...\n");
+					break;
+				}
+				indent(out, depth, leading);
+				out.append("- ");
+				out.append(loader.retrieveEntry(child.id())
+						.getEntryDescription());
+				out.append("\n");
+				written++;
+			}
+			if (child.children != null && depth + 1 < maxDepth) {
+				stack.push(child.children.values().iterator());
+			}
+		}
+
+		return written;
+	}
+
+	/**
+	 * Removes an entry. Without the descendants, only the entry itself is
+	 * unregistered; its descendants stay under their paths. The IDs returned
+	 * include the ancestors in the removed paths that were not registered
+	 * themselves.
+	 */
+	@Override
+	List<String> remove(String entry, boolean removeDescendants)
+			throws EntryNotFoundException {
+		Node node = find(entry, false);
+
+		if (node == null) {
+			throw new EntryNotFoundException(String.format(NOT_FOUND, entry));
+		}
+
+		List<String> removed = new ArrayList<>();
+
+		if (removeDescendants) {
+			Deque<Node> pending = new ArrayDeque<>();
+
+			pending.push(node);
+			while (!pending.isEmpty()) {
+				Node next = pending.pop();
+
+				if (next.children != null) {
+					pending.addAll(next.children.values());
+				}
+				if (next.registered) {
+					unregister(next);
+				}
+				removed.add(next.id());
+			}
+			node.children = null;
+		} else {
+			if (node.registered) {
+				unregister(node);
+			}
+			removed.add(entry);
+		}
+		prune(node);
+
+		return removed;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		try {
+			print(sb);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); //not thrown by StringBuilder
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	void print(Appendable out) throws IOException {
+		for (Map.Entry<String, String> entry: view.entrySet()) {
+			out.append("\t");
+			out.append(entry.getKey());
+			out.append("\t - \t");
+			out.append(entry.getValue().isEmpty() ? "*" : entry.getValue());
+			out.append("\n");
+		}
+	}
+
+	/**
+	 * Finds the node of an entry.
+	 *
+	 * @param entry The ID of the entry.
+	 * @param create Whether to create the missing nodes on the way.
+	 * @return The node, or null if it is not in the tree and is not created.
+	 */
+	private Node find(String entry, boolean create) {
+		if (!isPath(entry)) {
+			if (create) {
+				throw new RuntimeException(String.format(INVALID_PATH, entry));
+			}
+			return null;
+		}
+
+		Node node = root;
+		int start = 1;
+
+		while (node != null && start <= entry.length()) {
+			int end = entry.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = entry.length();
+			}
+			node = node.child(entry.substring(start, end), create);
+			start = end + 1;
+		}
+
+		return node;
+	}
+
+	private void register(Node node, String entry) {
+		node.registered = true;
+		size++;
+		changed(entry, parentOf(entry), null);
+	}
+
+	private void unregister(Node node) {
+		node.registered = false;
+		size--;
+		removed(node.id());
+	}
+
+	/**
+	 * Removes the nodes that are neither registered nor have children,
+	 * starting from a node and going up.
+	 */
+	private static void prune(Node node) {
+		while (node.parent != null && !node.registered
+				&& (node.children == null || node.children.isEmpty())) {
+			node.parent.children.remove(node.segment);
+			node = node.parent;
+		}
+	}
+
+	private static final class Node {
+		final Node parent;
+
+		final String segment;
+
+		/**
+		 * The child nodes by segment, null until the first child is added.
+		 */
+		volatile ConcurrentMap<String, Node> children;
+
+		volatile boolean registered;
+
+		Node(Node parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+
+		Node child(String segment, boolean create) {
+			ConcurrentMap<String, Node> map = children;
+
+			if (map == null) {
+				if (!create) {
+					return null;
+				}
+				map = new ConcurrentHashMap<>(4);
+				children = map;
+			}
+
+			Node child = map.get(segment);
+			if (child == null && create) {
+				child = new Node(this, segment);
+				map.put(segment, child);
+			}
+
+			return child;
+		}
+
+		String id() {
+			if (parent == null) {
+				return "";
+			}
+
+			return parent.id() + SEPARATOR + segment;
+		}
+	}
+
+	/**
+	 * A read-only view of the registered entries and the IDs of their
+	 * parents.
+	 */
+	private class EntriesView extends AbstractMap<String, String> {
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public String get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+
+			Node node = find((String) key, false);
+
+			return node != null && node.registered ? parentOf((String) key)
+					: null;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Walks the tree depth first, returning the registered entries.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private final Deque<Node> pending = new ArrayDeque<>();
+
+		private Node next;
+
+		EntryIterator() {
+			pending.push(root);
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			String id = next.id();
+			advance();
+
+			return new AbstractMap.SimpleImmutableEntry<>(id, parentOf(id));
+		}
+
+		private void advance() {
+			next = null;
+			while (!pending.isEmpty()) {
+				Node node = pending.pop();
+				ConcurrentMap<String, Node> children = node.children;
+
+				if (children != null) {
+					for (Node child: children.values()) {
+						pending.push(child);
+					}
+				}
+				if (node.registered) {
+					next = node;
+					return;
+				}
+			}
+		}
+	}
+}
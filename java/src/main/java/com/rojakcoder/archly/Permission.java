@@ -1,13 +1,20 @@
 package com.rojakcoder.archly;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import com.rojakcoder.archly.exceptions.EntryNotFoundException;
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
 
 /**
  * Permission manages the permissions assigned to role-resource tuples.
@@ -20,48 +27,249 @@ class Permission {
 
 	private static final String DEFAULT_KEY = "*::*";
 
+	/**
+	 * Separates the role from the resource in the keys of the permissions.
+	 */
+	private static final String SEPARATOR = "::";
+
+	/**
+	 * Separates the action from the condition in the key of a conditional
+	 * action, e.g. <code>READ if hour &lt; 17</code>.
+	 */
+	static final String CONDITION = " if ";
+
+	/**
+	 * Separates the action from the time it expires in the key of a timed
+	 * action, e.g. <code>READ until 1508284800000</code>. The time is in
+	 * milliseconds since the epoch.
+	 */
+	static final String EXPIRY = " until ";
+
+	/**
+	 * The length in milliseconds of a tick of the expiry wheel.
+	 */
+	static final long EXPIRY_TICK = 100;
+
 	/**
 	 * The map of role-resource tuple to permissions.
 	 * <p>
 	 * The first level key is the tuple, the second level key is the action.
-	 * Available values are "ALL", "CREATE", "READ", "UPDATE", "DELETE"
+	 * Available values are "ALL", "CREATE", "READ", "UPDATE", "DELETE", each
+	 * of which may be followed by a condition.
 	 * </p>
 	 */
 	ConcurrentMap<String, Map<String, Boolean>> permissions;
 
+	/**
+	 * The maximum number of resources listed for a role. Roles with more
+	 * permissions are checked against every resource in the path instead.
+	 */
+	static final int MAX_LISTED = 256;
+
+	/**
+	 * The resources that each role has permissions on, for checking only the
+	 * permissions that exist when checking access.
+	 */
+	private final ConcurrentMap<String, RoleRules> roleRules = new ConcurrentHashMap<>();
+
+	/**
+	 * The number of permissions on each resource.
+	 */
+	private final ConcurrentMap<String, Integer> resourceRules = new ConcurrentHashMap<>();
+
+	/**
+	 * The roles that the keys with more than one separator are counted under
+	 * in the indices, as the role cannot be told from such a key. Null for
+	 * the keys that were counted under every role they can be split into.
+	 * Only used while changing the permissions.
+	 */
+	private final Map<String, String> splits = new HashMap<>();
+
+	/**
+	 * The number of times a role or resource gained its first rule or lost
+	 * its last, which changes the paths that the checks keep. Only modified
+	 * while changing the permissions.
+	 */
+	private volatile long ruledChanges;
+
+	/**
+	 * The keys of the permissions that have conditional actions.
+	 */
+	private final Set<String> conditioned = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The keys of the permissions that have timed actions.
+	 */
+	private final Set<String> timed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The timed actions by when they expire, as pairs of permission key and
+	 * action.
+	 */
+	private volatile TimingWheel<String[]> expiries = new TimingWheel<>(
+			EXPIRY_TICK, System.currentTimeMillis());
+
+	/**
+	 * The compiled conditions by expression.
+	 */
+	private final ConcurrentMap<String, Condition> conditions = new ConcurrentHashMap<>();
+
+	/**
+	 * The resource patterns that have permissions.
+	 */
+	private final ResourcePatterns patterns = new ResourcePatterns();
+
+	/**
+	 * The shared permissions that these permissions are the changes to, if
+	 * any. The indices of both are consulted, so a rule that has been removed
+	 * from the base may still be looked up, but is not found.
+	 */
+	private volatile Permission base;
+
+	/**
+	 * Whether the indices are kept. Permissions without indices are only
+	 * read, and look up every role and resource in a path.
+	 */
+	private final boolean indexed;
+
+	/**
+	 * The time in milliseconds at which timed actions are checked for expiry,
+	 * or 0 for the current time.
+	 */
+	private final long asOf;
+
+	/**
+	 * Notified of the changes to the permissions, if set.
+	 */
+	private ChangeObserver observer;
+
 	static enum Types {
 		ALL, CREATE, READ, UPDATE, DELETE
 	}
 
 	Permission() {
-		permissions = new ConcurrentHashMap<>();
+		this(new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Creates the permissions held in a given map, e.g. a {@link HamtMap}
+	 * whose versions can be kept.
+	 *
+	 * @param permissions The empty map of role-resource tuples to
+	 * permissions.
+	 */
+	Permission(ConcurrentMap<String, Map<String, Boolean>> permissions) {
+		this.permissions = permissions;
+		this.indexed = true;
+		this.asOf = 0;
 		makeDefaultDeny();
 	}
 
+	/**
+	 * Creates read-only permissions over a version of the permissions.
+	 * <p>
+	 * No indices are built, so creating them is cheap, but the access checks
+	 * look up every role and resource in the paths.
+	 * </p>
+	 *
+	 * @param permissions The map of role-resource tuples to permissions. It
+	 * must not be modified afterwards.
+	 * @param asOf The time in milliseconds at which timed actions are checked
+	 * for expiry.
+	 * @param withPatterns Whether there are permissions on resource patterns,
+	 * which are then found in the map.
+	 */
+	Permission(ConcurrentMap<String, Map<String, Boolean>> permissions,
+			long asOf, boolean withPatterns) {
+		this.permissions = permissions;
+		this.indexed = false;
+		this.asOf = asOf;
+		if (withPatterns) {
+			for (String key: permissions.keySet()) {
+				//the resource may be after any of the separators
+				for (int at = key.indexOf(SEPARATOR); at >= 0; at = key
+						.indexOf(SEPARATOR, at + 1)) {
+					String resource = key.substring(at + SEPARATOR.length());
+
+					if (ResourcePatterns.isPattern(resource)) {
+						patterns.add(resource);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the permissions made of the changes to a shared set of
+	 * permissions.
+	 *
+	 * @param base The shared permissions. They must not be modified
+	 * afterwards.
+	 */
+	Permission(Permission base) {
+		this.base = base;
+		this.indexed = true;
+		this.asOf = 0;
+		permissions = new LayeredMap<>(base.permissions);
+	}
+
+	/**
+	 * Creates a set of permissions that can be shared by layered permissions.
+	 *
+	 * @param perms The permissions. The maps of actions are copied.
+	 * @return The permissions, which must not be modified.
+	 */
+	static Permission makeBase(Map<String, Map<String, Boolean>> perms) {
+		Permission permission = new Permission();
+
+		permission.clear();
+		for (Map.Entry<String, Map<String, Boolean>> entry: perms.entrySet()) {
+			permission.importEntry(entry.getKey(), Collections
+					.unmodifiableMap(new HashMap<>(entry.getValue())));
+		}
+
+		return permission;
+	}
+
 	@Override
 	public String toString() {
-		StringBuilder sb = new StringBuilder("Size: ");
+		StringBuilder sb = new StringBuilder();
+
+		try {
+			print(sb);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); //not thrown by StringBuilder
+		}
+
+		return sb.toString();
+	}
 
-		sb.append(permissions.size());
-		sb.append("\n-------\n");
+	/**
+	 * Writes the permissions, one action per line.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	void print(Appendable out) throws IOException {
+		out.append("Size: ");
+		out.append(String.valueOf(permissions.size()));
+		out.append("\n-------\n");
 
 		int i = 0;
 		for (Map.Entry<String, Map<String, Boolean>> entry: permissions
 				.entrySet()) {
 			i++;
-			sb.append(i + "- ");
-			sb.append(entry.getKey());
-			sb.append("\n");
+			out.append(i + "- ");
+			out.append(entry.getKey());
+			out.append("\n");
 			for (Map.Entry<String, Boolean> e: entry.getValue().entrySet()) {
-				sb.append("\t");
-				sb.append(e.getKey());
-				sb.append("\t");
-				sb.append(e.getValue());
-				sb.append("\n");
+				out.append("\t");
+				out.append(e.getKey());
+				out.append("\t");
+				out.append(String.valueOf(e.getValue()));
+				out.append("\n");
 			}
 		}
-
-		return sb.toString();
 	}
 
 	/**
@@ -77,7 +285,7 @@ class Permission {
 		String key = makeKey(role, resource);
 		Map<String, Boolean> perm = makePermission(Types.ALL, true);
 
-		permissions.put(key, perm);
+		store(key, id(role), perm);
 	}
 
 	/**
@@ -96,12 +304,95 @@ class Permission {
 		Map<String, Boolean> perm = null;
 
 		if (has(key)) {
-			perm = permissions.get(key);
+			perm = editable(key);
+			perm.keySet().removeIf(a -> a.startsWith(action + EXPIRY));
 			perm.put(action.toString(), true);
 		} else {
 			perm = makePermission(action, true);
 		}
-		permissions.put(key, perm);
+		store(key, id(role), perm);
+	}
+
+	/**
+	 * Grants action permission on resource to role when a condition holds.
+	 * <p>
+	 * Adds the conditional permission to any existing actions. Overrides the
+	 * existing permission with the same action and condition if any.
+	 * </p>
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The specific action on the resource.
+	 * @param condition The condition on the attributes of the request.
+	 * @throws InvalidConditionException Throws this exception if the condition
+	 * is not valid.
+	 */
+	void allow(String role, String resource, Types action, String condition)
+			throws InvalidConditionException {
+		putConditional(role, resource, makeConditional(action, condition),
+				true);
+	}
+
+	/**
+	 * Grants action permission on resource to role until a given time.
+	 * <p>
+	 * Overrides the existing permission on the action if any. The permission
+	 * is not honoured from the time it expires, and is removed by
+	 * {@link #expire(String, String)} some time after.
+	 * </p>
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The specific action on the resource.
+	 * @param expiresAt The time in milliseconds since the epoch when the
+	 * permission expires.
+	 */
+	void allow(String role, String resource, Types action, long expiresAt) {
+		putTimed(role, resource, action, expiresAt, true);
+	}
+
+	/**
+	 * Grants or denies permission on resource to role according to the key of
+	 * an action.
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The key of the action, which may have a condition or an
+	 * expiry. Null for all actions.
+	 * @param allow True to grant, false to deny.
+	 */
+	void grant(String role, String resource, String action, boolean allow) {
+		if (action == null) {
+			if (allow) {
+				allow(role, resource);
+			} else {
+				deny(role, resource);
+			}
+			return;
+		}
+
+		int at = action.indexOf(CONDITION);
+		if (at >= 0) {
+			Types type = Types.valueOf(action.substring(0, at));
+			String condition = action.substring(at + CONDITION.length());
+
+			if (allow) {
+				allow(role, resource, type, condition);
+			} else {
+				deny(role, resource, type, condition);
+			}
+			return;
+		}
+
+		at = expiryAt(action);
+		if (at >= 0) {
+			putTimed(role, resource, Types.valueOf(action.substring(0, at)),
+					expiresAt(action, at), allow);
+		} else if (allow) {
+			allow(role, resource, Types.valueOf(action));
+		} else {
+			deny(role, resource, Types.valueOf(action));
+		}
 	}
 
 	/**
@@ -109,6 +400,16 @@ class Permission {
 	 */
 	void clear() {
 		permissions.clear();
+		base = null;
+		conditioned.clear();
+		conditions.clear();
+		timed.clear();
+		expiries = new TimingWheel<>(EXPIRY_TICK, System.currentTimeMillis());
+		roleRules.clear();
+		resourceRules.clear();
+		splits.clear();
+		ruledChanges++;
+		patterns.clear();
 	}
 
 	/**
@@ -124,7 +425,7 @@ class Permission {
 		String key = makeKey(role, resource);
 		Map<String, Boolean> perm = makePermission(Types.ALL, false);
 
-		permissions.put(key, perm);
+		store(key, id(role), perm);
 	}
 
 	/**
@@ -143,24 +444,116 @@ class Permission {
 		Map<String, Boolean> perm = null;
 
 		if (has(key)) {
-			perm = permissions.get(key);
+			perm = editable(key);
+			perm.keySet().removeIf(a -> a.startsWith(action + EXPIRY));
 			perm.put(action.toString(), false);
 		} else {
 			perm = makePermission(action, false);
 		}
-		permissions.put(key, perm);
+		store(key, id(role), perm);
+	}
+
+	/**
+	 * Denies action permission on resource to role when a condition holds.
+	 * <p>
+	 * Adds the conditional permission to any existing actions. Overrides the
+	 * existing permission with the same action and condition if any.
+	 * </p>
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The specific action on the resource.
+	 * @param condition The condition on the attributes of the request.
+	 * @throws InvalidConditionException Throws this exception if the condition
+	 * is not valid.
+	 */
+	void deny(String role, String resource, Types action, String condition)
+			throws InvalidConditionException {
+		putConditional(role, resource, makeConditional(action, condition),
+				false);
+	}
+
+	/**
+	 * Denies action permission on resource to role until a given time.
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The specific action on the resource.
+	 * @param expiresAt The time in milliseconds since the epoch when the
+	 * denial expires.
+	 * @see #allow(String, String, Types, long)
+	 */
+	void deny(String role, String resource, Types action, long expiresAt) {
+		putTimed(role, resource, action, expiresAt, false);
 	}
 
 	/**
-	 * Exports a snapshot of the permissions map.
+	 * Exports a snapshot of the permissions map, leaving out the conditional
+	 * and timed actions.
 	 *
 	 * @return A map with string keys and map values where the values are maps
 	 * of string to boolean entries. Typically meant for persistent storage.
 	 */
 	Map<String, Map<String, Boolean>> export() {
+		Map<String, Map<String, Boolean>> copy = new HashMap<>();
+
+		for (Map.Entry<String, Map<String, Boolean>> entry: permissions
+				.entrySet()) {
+			Map<String, Boolean> plain = withoutRules(entry.getValue());
+
+			if (!plain.isEmpty()) {
+				copy.put(entry.getKey(), plain);
+			}
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Exports a snapshot of the permissions map, including the conditional
+	 * and timed actions.
+	 *
+	 * @return A map with string keys and map values where the values are maps
+	 * of string to boolean entries.
+	 */
+	Map<String, Map<String, Boolean>> exportWithRules() {
 		return new HashMap<String, Map<String, Boolean>>(permissions);
 	}
 
+	/**
+	 * Leaves out the conditional and timed actions of a permission.
+	 *
+	 * @param perm The actions of a permission.
+	 * @return The permission itself if it has only plain actions, otherwise
+	 * a copy with only those.
+	 */
+	static Map<String, Boolean> withoutRules(Map<String, Boolean> perm) {
+		boolean plain = true;
+
+		for (String action: perm.keySet()) {
+			if (isRule(action)) {
+				plain = false;
+				break;
+			}
+		}
+		if (plain) {
+			return perm;
+		}
+
+		Map<String, Boolean> copy = new HashMap<>();
+		for (Map.Entry<String, Boolean> entry: perm.entrySet()) {
+			if (!isRule(entry.getKey())) {
+				copy.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return copy;
+	}
+
+	private static boolean isRule(String action) {
+		return action.contains(CONDITION) || action.contains(EXPIRY);
+	}
+
 	/**
 	 * Re-creates the permission map with a new of permissions.
 	 *
@@ -170,7 +563,25 @@ class Permission {
 	 * granted/denied.
 	 */
 	void importMap(Map<String, Map<String, Boolean>> map) {
-		this.permissions = new ConcurrentHashMap<>(map);
+		for (Map.Entry<String, Map<String, Boolean>> entry: map.entrySet()) {
+			importEntry(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds a permission without copying it.
+	 * <p>
+	 * Unlike {@link #importMap(Map)}, permissions can be imported one at a
+	 * time so that the source does not have to be held in memory in its
+	 * entirety. An existing permission with the same key is overridden.
+	 * </p>
+	 *
+	 * @param key The tuple of role and resource (<aro>::<aco>).
+	 * @param perm The map of actions to grants.
+	 */
+	void importEntry(String key, Map<String, Boolean> perm) {
+		store(key, null, perm);
+		schedule(key, perm);
 	}
 
 	/**
@@ -191,16 +602,25 @@ class Permission {
 		}
 
 		Map<String, Boolean> perm = permissions.get(key);
+		long now = isTimed(key) ? now() : 0;
+		boolean all = false;
 		for (Map.Entry<String, Boolean> entry: perm.entrySet()) {
+			String action = unconditional(entry.getKey(), now);
+
+			if (action == null) {
+				continue; //conditional or expired
+			}
 			//if any entry is false, resource is NOT allowed
 			if (!entry.getValue()) {
 				return false;
 			}
-			if (!entry.getKey().equals(Types.ALL.toString())) {
+			if (!action.equals(Types.ALL.toString())) {
 				allSet++;
+			} else {
+				all = true;
 			}
 		}
-		if (perm.containsKey(Types.ALL.toString())) {
+		if (all) {
 			return true; //true because ALL = false would be caught in the loop
 		}
 
@@ -230,22 +650,45 @@ class Permission {
 	 */
 	Boolean isAllowed(String role, String resource, Types action) {
 		String key = makeKey(role, resource);
+		Map<String, Boolean> perm = permissions.get(key);
 
-		if (!has(key)) {
+		if (perm == null) {
 			return null;
 		}
 
-		Map<String, Boolean> perm = permissions.get(key);
-		if (!perm.containsKey(action.toString())) {
+		Boolean grant = lookup(key, perm, action);
+		if (grant == null) {
 			//if specific action is not present, check for ALL
-			if (!perm.containsKey(Types.ALL.toString())) {
-				return null;
-			}
-
-			return perm.get(Types.ALL.toString());
+			grant = lookup(key, perm, Types.ALL);
 		} //else specific action is present
 
-		return perm.get(action.toString());
+		return grant;
+	}
+
+	/**
+	 * Determines if the role has access on the resource for the specific
+	 * action, given the attributes of the request.
+	 * <p>
+	 * The conditional permissions on the action and on <code>ALL</code> are
+	 * evaluated first: a conditional denial that holds takes precedence over a
+	 * conditional grant that holds. If none of the conditions hold, the
+	 * permission is determined as in {@link #isAllowed(String, String, Types)}.
+	 * </p>
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The access action.
+	 * @param attributes The attributes of the request. Null if there are
+	 * none, in which case the conditional permissions are skipped.
+	 * @return Returns true if the role has access to the specified
+	 * action on the resource. Returns false if the role is denied
+	 * access. Returns null if no permission is specified.
+	 */
+	Boolean isAllowed(String role, String resource, Types action,
+			Map<String, ?> attributes) {
+		Boolean grant = evaluate(role, resource, action, attributes);
+
+		return grant != null ? grant : isAllowed(role, resource, action);
 	}
 
 	/**
@@ -266,16 +709,25 @@ class Permission {
 		}
 
 		Map<String, Boolean> perm = permissions.get(key);
+		long now = isTimed(key) ? now() : 0;
+		boolean all = false;
 		for (Map.Entry<String, Boolean> entry: perm.entrySet()) {
+			String action = unconditional(entry.getKey(), now);
+
+			if (action == null) {
+				continue; //conditional or expired
+			}
 			//if any entry is true, resource is NOT denied
 			if (entry.getValue()) {
 				return false;
 			}
-			if (!entry.getKey().equals(Types.ALL.toString())) {
+			if (!action.equals(Types.ALL.toString())) {
 				allSet++;
+			} else {
+				all = true;
 			}
 		}
-		if (perm.containsKey(Types.ALL.toString())) {
+		if (all) {
 			return true; //true because ALL = true would be caught in the loop
 		}
 
@@ -304,37 +756,61 @@ class Permission {
 	 * access. Returns null if no permission is specified.
 	 */
 	Boolean isDenied(String role, String resource, Types action) {
-		String key = makeKey(role, resource);
+		Boolean grant = isAllowed(role, resource, action);
 
-		if (!has(key)) {
-			return null;
-		}
+		return grant == null ? null : !grant;
+	}
 
-		Map<String, Boolean> perm = permissions.get(key);
-		if (!perm.containsKey(action.toString())) {
-			//if specific action is not present, check for ALL
-			if (!perm.containsKey(Types.ALL.toString())) {
-				return null;
-			}
+	/**
+	 * Determines if the role is denied access on the resource for the specific
+	 * action, given the attributes of the request.
+	 *
+	 * @param role The ID of the access request object.
+	 * @param resource The ID of the access control object.
+	 * @param action The access action.
+	 * @param attributes The attributes of the request. Null if there are
+	 * none, in which case the conditional permissions are skipped.
+	 * @return Returns true if the role is denied access to the specified
+	 * action on the resource. Returns false if the role has
+	 * access. Returns null if no permission is specified.
+	 * @see #isAllowed(String, String, Types, Map)
+	 */
+	Boolean isDenied(String role, String resource, Types action,
+			Map<String, ?> attributes) {
+		Boolean grant = evaluate(role, resource, action, attributes);
 
-			return !perm.get(Types.ALL.toString());
-		} //else specific action is present
+		if (grant != null) {
+			return !grant;
+		}
 
-		return !perm.get(action.toString());
+		return isDenied(role, resource, action);
 	}
 
 	/**
 	 * Makes the default permission allow.
 	 */
 	void makeDefaultAllow() {
-		permissions.put(DEFAULT_KEY, makePermission(Types.ALL, true));
+		store(DEFAULT_KEY, "*", makePermission(Types.ALL, true));
 	}
 
 	/**
 	 * Makes the default permission deny.
 	 */
 	void makeDefaultDeny() {
-		permissions.put(DEFAULT_KEY, makePermission(Types.ALL, false));
+		store(DEFAULT_KEY, "*", makePermission(Types.ALL, false));
+	}
+
+	/**
+	 * Replaces the permission on a role-resource tuple.
+	 *
+	 * @param key The tuple of role and resource (<aro>::<aco>).
+	 * @param perm The map of actions to grants. The map is copied.
+	 */
+	void put(String key, Map<String, Boolean> perm) {
+		Map<String, Boolean> copy = new HashMap<>(perm);
+
+		store(key, null, copy);
+		schedule(key, copy);
 	}
 
 	/**
@@ -357,11 +833,15 @@ class Permission {
 			throw new EntryNotFoundException(String.format(NOT_FOUND, key,
 					resId, roleId));
 		}
-		permissions.remove(key);
+		delete(key);
 	}
 
 	/**
 	 * Removes the specified permission on resource from role.
+	 * <p>
+	 * The conditional and timed permissions on the action are removed as
+	 * well.
+	 * </p>
 	 *
 	 * @param role The ID of the access request object.
 	 * @param resource The ID of the access control object.
@@ -378,7 +858,9 @@ class Permission {
 					resource, role));
 		}
 
-		Map<String, Boolean> perm = permissions.get(key);
+		Map<String, Boolean> perm = editable(key);
+		boolean removed = perm.keySet().removeIf(a -> a.startsWith(action
+				+ CONDITION) || a.startsWith(action + EXPIRY));
 
 		if (perm.containsKey(action.toString())) {
 			perm.remove(action.toString());
@@ -392,15 +874,15 @@ class Permission {
 					perm.put(type.toString(), originalValue);
 				}
 			}
-		} else {
+		} else if (!removed) {
 			throw new EntryNotFoundException(String.format(NOT_FOUND,
 					action.toString(), resource, role));
 		}
 
 		if (perm.size() == 0) {
-			permissions.remove(key);
+			delete(key);
 		} else {
-			permissions.put(key, perm);
+			store(key, id(role), perm);
 		}
 	}
 
@@ -413,7 +895,7 @@ class Permission {
 	 */
 	int removeByResource(String resource) {
 		Set<String> toRemove = new HashSet<>();
-		resource = "::" + resource;
+		resource = SEPARATOR + resource;
 
 		for (String key: permissions.keySet()) {
 			if (key.endsWith(resource)) {
@@ -433,7 +915,7 @@ class Permission {
 	 */
 	int removeByRole(String role) {
 		Set<String> toRemove = new HashSet<>();
-		role += "::";
+		role += SEPARATOR;
 
 		for (String key: permissions.keySet()) {
 			if (key.startsWith(role)) {
@@ -444,6 +926,16 @@ class Permission {
 		return del(toRemove);
 	}
 
+	/**
+	 * Removes the permission on a role-resource tuple if it is present.
+	 *
+	 * @param key The tuple of role and resource (<aro>::<aco>).
+	 * @return True if the permission was present.
+	 */
+	boolean removeKey(String key) {
+		return delete(key);
+	}
+
 	/**
 	 * The number of specified permissions.
 	 *
@@ -456,7 +948,7 @@ class Permission {
 	private int del(Set<String> keys) {
 		int removed = 0;
 		for (String key: keys) {
-			if (permissions.remove(key) != null) {
+			if (delete(key)) {
 				removed++;
 			}
 			/*
@@ -470,27 +962,810 @@ class Permission {
 	}
 
 	/**
-	 * Determines if the role-resource tuple is available.
+	 * Sets the observer to notify of the changes to the permissions.
 	 *
-	 * @param key The tuple of role and resource.
-	 * @return Returns true if the permission is available for this tuple.
+	 * @param observer The observer. Null to remove the observer.
 	 */
-	private boolean has(String key) {
-		return permissions.containsKey(key);
-	}
-
-	private String makeKey(String aro, String aco) {
-		String role = aro == null ? "*" : aro;
-		String resource = aco == null ? "*" : aco;
-
-		return role + "::" + resource;
+	void setObserver(ChangeObserver observer) {
+		this.observer = observer;
 	}
 
-	private Map<String, Boolean> makePermission(Types action, boolean allow) {
-		Map<String, Boolean> perm = new HashMap<>();
-
+	/**
+	 * Stores the permission on a role-resource tuple.
+	 * <p>
+	 * All changes to the permissions go through this method or
+	 * {@link #delete(String)}.
+	 * </p>
+	 *
+	 * @param key The tuple of role and resource.
+	 * @param role The ID of the role in the key. Null if only the key is
+	 * known, e.g. when importing.
+	 * @param perm The map of actions to grants.
+	 */
+	private void store(String key, String role, Map<String, Boolean> perm) {
+		boolean conditional = compileConditions(perm);
+		boolean expiring = false;
+
+		for (String action: perm.keySet()) {
+			if (expiryAt(action) >= 0) {
+				expiring = true;
+				break;
+			}
+		}
+		if (permissions.put(key, perm) == null && !inBase(key)) {
+			if (key.indexOf(SEPARATOR) != key.lastIndexOf(SEPARATOR)) {
+				splits.put(key, role);
+			}
+			count(key, role, 1);
+		}
+		if (conditional) {
+			conditioned.add(key);
+		} else {
+			conditioned.remove(key);
+		}
+		if (expiring) {
+			timed.add(key);
+		} else {
+			timed.remove(key);
+		}
+		if (observer != null) {
+			observer.permissionChanged(key, perm);
+		}
+	}
+
+	/**
+	 * Removes the permission on a role-resource tuple.
+	 *
+	 * @param key The tuple of role and resource.
+	 * @return True if the permission was present.
+	 */
+	private boolean delete(String key) {
+		if (permissions.remove(key) == null) {
+			return false;
+		}
+		conditioned.remove(key);
+		timed.remove(key);
+		if (!inBase(key)) {
+			count(key, splits.remove(key), -1);
+		}
+		if (observer != null) {
+			observer.permissionRemoved(key);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Keeps only the roles that have any permission.
+	 *
+	 * @param path The traversal path of a role.
+	 * @return The roles in the path that have permissions, in the same order.
+	 */
+	List<String> withRoleRules(List<String> path) {
+		if (!indexed) {
+			return path;
+		}
+
+		Permission shared = base;
+
+		return withRules(path, roleRules, shared == null ? null
+				: shared.roleRules);
+	}
+
+	/**
+	 * Keeps only the resources that have any permission.
+	 *
+	 * @param path The traversal path of a resource.
+	 * @return The resources in the path that have permissions, in the same
+	 * order.
+	 */
+	List<String> withResourceRules(List<String> path) {
+		if (!indexed) {
+			return path;
+		}
+
+		Permission shared = base;
+
+		return withRules(path, resourceRules, shared == null ? null
+				: shared.resourceRules);
+	}
+
+	/**
+	 * Adds the resource patterns that match the resources in a path.
+	 * <p>
+	 * The patterns that match a resource are placed right after it, the most
+	 * specific first, so a rule on a resource takes precedence over the
+	 * patterns that match it, and both take precedence over the rules on its
+	 * ancestors. Resources that are not registered are matched as well, ahead
+	 * of the rest of the path.
+	 * </p>
+	 *
+	 * @param resource The ID of the resource whose path it is. Null for all
+	 * resources.
+	 * @param path The traversal path of the resource.
+	 * @return The path with the matching patterns.
+	 */
+	List<String> withPatterns(String resource, List<String> path) {
+		Permission shared = base;
+		ResourcePatterns sharedPatterns = shared == null ? null
+				: shared.patterns;
+
+		if (patterns.isEmpty() && (sharedPatterns == null || sharedPatterns
+				.isEmpty())) {
+			return path;
+		}
+
+		List<String> expanded = new ArrayList<>(path.size());
+		if (resource != null && !resource.equals(path.get(0))) {
+			//not registered
+			expanded.addAll(ResourcePatterns.match(resource, patterns,
+					sharedPatterns));
+		}
+		for (String id: path) {
+			expanded.add(id);
+			if (!id.equals("*")) {
+				expanded.addAll(ResourcePatterns.match(id, patterns,
+						sharedPatterns));
+			}
+		}
+
+		return expanded;
+	}
+
+	/**
+	 * Finds the resources in a path that the role has permissions on.
+	 * <p>
+	 * If the role has fewer permissions than there are resources in the path,
+	 * its resources are looked up in the path; otherwise the resources in the
+	 * path are looked up in the sorted list of the role. Roles with more than
+	 * {@link #MAX_LISTED} permissions are not listed, so the whole path is
+	 * returned for them.
+	 * </p>
+	 *
+	 * @param role The ID of the role.
+	 * @param path The traversal path of a resource.
+	 * @return The resources in the same order as in the path.
+	 */
+	List<String> ruledResources(String role, ResourcePath path) {
+		if (!indexed) {
+			return path.ids;
+		}
+
+		List<String> found = ruledResources(roleRules.get(role), path);
+		Permission shared = base;
+
+		if (shared == null) {
+			return found;
+		}
+
+		List<String> sharedFound = ruledResources(shared.roleRules.get(role),
+				path);
+		if (sharedFound.isEmpty()) {
+			return found;
+		}
+		if (found.isEmpty()) {
+			return sharedFound;
+		}
+
+		Set<String> union = new HashSet<>(found);
+		union.addAll(sharedFound);
+
+		List<String> merged = new ArrayList<>(union.size());
+		for (String resource: path.ids) {
+			if (union.contains(resource)) {
+				merged.add(resource);
+			}
+		}
+
+		return merged;
+	}
+
+	private static List<String> ruledResources(RoleRules rules,
+			ResourcePath path) {
+		if (rules == null) {
+			return Collections.emptyList();
+		}
+		if (rules.resources == null) {
+			return path.ids;
+		}
+
+		String[] listed = rules.resources;
+		List<String> found = new ArrayList<>();
+
+		if (listed.length < path.ids.size()) {
+			int[] positions = new int[listed.length];
+			int n = 0;
+
+			for (String resource: listed) {
+				Integer position = path.position(resource);
+
+				if (position != null) {
+					positions[n++] = position;
+				}
+			}
+			Arrays.sort(positions, 0, n);
+			for (int i = 0; i < n; i++) {
+				found.add(path.ids.get(positions[i]));
+			}
+		} else {
+			for (String resource: path.ids) {
+				if (Arrays.binarySearch(listed, resource) >= 0) {
+					found.add(resource);
+				}
+			}
+		}
+
+		return found;
+	}
+
+	private static List<String> withRules(List<String> path,
+			Map<String, ?> rules, Map<String, ?> baseRules) {
+		List<String> pruned = new ArrayList<>(path.size());
+
+		for (String id: path) {
+			if (rules.containsKey(id) || (baseRules != null && baseRules
+					.containsKey(id))) {
+				pruned.add(id);
+			}
+		}
+
+		return pruned;
+	}
+
+	/**
+	 * Updates the indices of the permissions on the role and resource of a
+	 * key.
+	 * <p>
+	 * A key whose role is not known is counted under every role and resource
+	 * it can be split into, as IDs may contain the separator. The checks join
+	 * the IDs in the same way, so none of them misses the permission.
+	 * </p>
+	 *
+	 * @param key The tuple of role and resource.
+	 * @param role The ID of the role in the key. Null if it is not known.
+	 * @param delta 1 if the permission was added, -1 if it was removed.
+	 */
+	private void count(String key, String role, int delta) {
+		if (role != null) {
+			countRule(role, key.substring(role.length() + SEPARATOR
+					.length()), delta);
+			return;
+		}
+		for (int at = key.indexOf(SEPARATOR); at >= 0; at = key.indexOf(
+				SEPARATOR, at + 1)) {
+			countRule(key.substring(0, at), key.substring(at + SEPARATOR
+					.length()), delta);
+		}
+	}
+
+	private void countRule(String role, String resource, int delta) {
+		boolean roleRuled = roleRules.containsKey(role);
+		boolean resourceRuled = resourceRules.containsKey(resource);
+
+		roleRules.compute(role, (k, v) -> delta > 0
+				? RoleRules.add(v, resource) : RoleRules.remove(v, resource));
+		resourceRules.compute(resource, (k, v) -> {
+			int count = (v == null ? 0 : v) + delta;
+
+			return count > 0 ? count : null;
+		});
+		if (ResourcePatterns.isPattern(resource)) {
+			if (resourceRules.containsKey(resource)) {
+				patterns.add(resource);
+			} else {
+				patterns.remove(resource);
+			}
+		}
+		if (roleRuled != roleRules.containsKey(role)
+				|| resourceRuled != resourceRules.containsKey(resource)) {
+			ruledChanges++;
+		}
+	}
+
+	/**
+	 * Gets the number of times a role or resource gained its first rule or
+	 * lost its last.
+	 *
+	 * @return The number, which only grows.
+	 */
+	long ruledChanges() {
+		return ruledChanges;
+	}
+
+	/**
+	 * Evaluates the conditional permissions on an action.
+	 *
+	 * @return True if a conditional grant holds and no conditional denial
+	 * holds, false if a conditional denial holds, null if none hold.
+	 */
+	private Boolean evaluate(String role, String resource, Types action,
+			Map<String, ?> attributes) {
+		if (attributes == null) {
+			return null; //the check is not given attributes
+		}
+
+		Permission shared = base;
+		if (indexed && conditioned.isEmpty() && (shared == null
+				|| shared.conditioned.isEmpty())) {
+			return null;
+		}
+
+		String key = makeKey(role, resource);
+		if (indexed && !conditioned.contains(key) && (shared == null
+				|| !shared.conditioned.contains(key))) {
+			return null;
+		}
+
+		Map<String, Boolean> perm = permissions.get(key);
+		if (perm == null) {
+			return null; //removed concurrently
+		}
+
+		String specific = action + CONDITION;
+		String all = Types.ALL + CONDITION;
+		Boolean grant = null;
+		for (Map.Entry<String, Boolean> entry: perm.entrySet()) {
+			String a = entry.getKey();
+
+			if (!a.startsWith(specific) && !a.startsWith(all)) {
+				continue;
+			}
+
+			String expression = a.substring(a.indexOf(CONDITION)
+					+ CONDITION.length());
+			if (!compile(expression).test(attributes)) {
+				continue;
+			}
+			if (!entry.getValue()) {
+				return false;
+			}
+			grant = true;
+		}
+
+		return grant;
+	}
+
+	private void putConditional(String role, String resource,
+			String conditional, boolean allow) {
+		String key = makeKey(role, resource);
+		Map<String, Boolean> perm = editable(key);
+
+		if (perm == null) {
+			perm = new HashMap<>();
+		}
+		perm.put(conditional, allow);
+		store(key, id(role), perm);
+	}
+
+	/**
+	 * Compiles the conditions of the conditional actions in a permission.
+	 *
+	 * @param perm The map of actions to grants.
+	 * @return True if the permission has conditional actions.
+	 * @throws InvalidConditionException Throws this exception if a condition
+	 * is not valid.
+	 */
+	private boolean compileConditions(Map<String, Boolean> perm)
+			throws InvalidConditionException {
+		boolean conditional = false;
+
+		for (String action: perm.keySet()) {
+			int at = action.indexOf(CONDITION);
+
+			if (at >= 0) {
+				compile(action.substring(at + CONDITION.length()));
+				conditional = true;
+			}
+		}
+
+		return conditional;
+	}
+
+	private Condition compile(String expression) {
+		Condition condition = conditions.get(expression);
+
+		Permission shared = base;
+		if (condition == null && shared != null) {
+			condition = shared.conditions.get(expression);
+		}
+		if (condition == null) {
+			condition = Condition.compile(expression);
+			conditions.put(expression, condition);
+		}
+
+		return condition;
+	}
+
+	/**
+	 * Makes the key of a conditional action.
+	 *
+	 * @param action The action.
+	 * @param condition The condition on the attributes of the request.
+	 * @return The action and the condition.
+	 * @throws InvalidConditionException Throws this exception if the condition
+	 * is not valid.
+	 */
+	static String makeConditional(Types action, String condition)
+			throws InvalidConditionException {
+		Condition.compile(condition);
+
+		return action + CONDITION + condition.trim();
+	}
+
+	/**
+	 * Gets a copy of the permission on a role-resource tuple to change.
+	 * <p>
+	 * The maps of actions are replaced and never modified once stored, so
+	 * they can be read without locking and shared with layered permissions.
+	 * </p>
+	 *
+	 * @param key The tuple of role and resource.
+	 * @return The copy, or null if there is no permission.
+	 */
+	private Map<String, Boolean> editable(String key) {
+		Map<String, Boolean> perm = permissions.get(key);
+
+		return perm == null ? null : new HashMap<>(perm);
+	}
+
+	/**
+	 * Checks if a key is in the shared permissions, whose indices cover it.
+	 */
+	private boolean inBase(String key) {
+		Permission shared = base;
+
+		return shared != null && shared.permissions.containsKey(key);
+	}
+
+	private boolean isTimed(String key) {
+		Permission shared = base;
+
+		return !indexed || timed.contains(key) || (shared != null && shared.timed
+				.contains(key));
+	}
+
+	private long now() {
+		return asOf != 0 ? asOf : System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if there are permissions on resource patterns.
+	 *
+	 * @return True if any resource pattern has permissions.
+	 */
+	boolean hasPatterns() {
+		return !patterns.isEmpty();
+	}
+
+	/**
+	 * Removes a timed action that has expired.
+	 *
+	 * @param key The tuple of role and resource.
+	 * @param action The key of the timed action.
+	 * @return True if the action was present.
+	 */
+	boolean expire(String key, String action) {
+		Map<String, Boolean> perm = editable(key);
+
+		if (perm == null || perm.remove(action) == null) {
+			return false;
+		}
+		if (perm.isEmpty()) {
+			delete(key);
+		} else {
+			store(key, null, perm);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Takes the timed actions that have expired and are still present.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return The pairs of permission key and action.
+	 */
+	List<String[]> expired(long now) {
+		List<String[]> due = expiries.advance(now);
+
+		if (due.isEmpty()) {
+			return due;
+		}
+
+		List<String[]> present = new ArrayList<>(due.size());
+		for (String[] item: due) {
+			if (hasAction(item[0], item[1])) {
+				present.add(item);
+			}
+		}
+
+		return present;
+	}
+
+	/**
+	 * Checks if there are timed actions waiting to expire.
+	 *
+	 * @return True if the expiry wheel is not empty.
+	 */
+	boolean hasExpiries() {
+		return expiries.size() > 0;
+	}
+
+	/**
+	 * Checks if a permission has an action.
+	 *
+	 * @param key The tuple of role and resource.
+	 * @param action The key of the action.
+	 * @return True if the action is present.
+	 */
+	boolean hasAction(String key, String action) {
+		Map<String, Boolean> perm = permissions.get(key);
+
+		return perm != null && perm.containsKey(action);
+	}
+
+	/**
+	 * Makes the key of a timed action.
+	 *
+	 * @param action The action.
+	 * @param expiresAt The time in milliseconds since the epoch when the
+	 * action expires.
+	 * @return The action and the time.
+	 */
+	static String makeTimed(Types action, long expiresAt) {
+		return action + EXPIRY + expiresAt;
+	}
+
+	/**
+	 * Looks up the grant on an action, ignoring timed actions that have
+	 * expired.
+	 */
+	private Boolean lookup(String key, Map<String, Boolean> perm,
+			Types action) {
+		Boolean grant = perm.get(action.toString());
+
+		if (grant != null || !isTimed(key)) {
+			return grant;
+		}
+
+		String prefix = action + EXPIRY;
+		long now = now();
+		for (Map.Entry<String, Boolean> entry: perm.entrySet()) {
+			String a = entry.getKey();
+
+			if (a.startsWith(prefix) && expiryAt(a) >= 0 && expiresAt(a,
+					action.toString().length()) > now) {
+				return entry.getValue();
+			}
+		}
+
+		return null;
+	}
+
+	private void putTimed(String role, String resource, Types action,
+			long expiresAt, boolean allow) {
+		String key = makeKey(role, resource);
+		String timedAction = makeTimed(action, expiresAt);
+		Map<String, Boolean> perm = editable(key);
+
+		if (perm == null) {
+			perm = new HashMap<>();
+		} else {
+			perm.remove(action.toString());
+			perm.keySet().removeIf(a -> a.startsWith(action + EXPIRY));
+		}
+		perm.put(timedAction, allow);
+		store(key, id(role), perm);
+		expiries.schedule(new String[] { key, timedAction }, expiresAt,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Schedules the timed actions of a permission to expire.
+	 */
+	private void schedule(String key, Map<String, Boolean> perm) {
+		if (!isTimed(key)) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (String action: perm.keySet()) {
+			int at = expiryAt(action);
+
+			if (at >= 0) {
+				expiries.schedule(new String[] { key, action }, expiresAt(
+						action, at), now);
+			}
+		}
+	}
+
+	/**
+	 * Gets the action of an entry that applies to the checks without
+	 * attributes.
+	 *
+	 * @param action The key of the action.
+	 * @param now The current time in milliseconds.
+	 * @return The action, or null if it is conditional or has expired.
+	 */
+	private static String unconditional(String action, long now) {
+		if (action.contains(CONDITION)) {
+			return null;
+		}
+
+		int at = expiryAt(action);
+		if (at < 0) {
+			return action;
+		}
+
+		return expiresAt(action, at) > now ? action.substring(0, at) : null;
+	}
+
+	/**
+	 * Finds the time in the key of a timed action.
+	 * <p>
+	 * Only keys that end with {@link #EXPIRY} and a number are timed. The
+	 * condition of a conditional action may contain {@link #EXPIRY} as well,
+	 * so such actions are never timed.
+	 * </p>
+	 *
+	 * @param action The key of the action.
+	 * @return The position of {@link #EXPIRY} in the key, or -1 if the action
+	 * is not timed.
+	 */
+	static int expiryAt(String action) {
+		if (action.contains(CONDITION)) {
+			return -1;
+		}
+
+		int at = action.lastIndexOf(EXPIRY);
+		if (at < 0 || at + EXPIRY.length() == action.length()) {
+			return -1;
+		}
+		for (int i = at + EXPIRY.length(); i < action.length(); i++) {
+			char c = action.charAt(i);
+
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+		}
+
+		return at;
+	}
+
+	/**
+	 * Gets the time when a timed action expires.
+	 *
+	 * @param action The key of the timed action.
+	 * @param at The position of {@link #EXPIRY} in the key.
+	 * @return The time in milliseconds since the epoch.
+	 */
+	private static long expiresAt(String action, int at) {
+		return Long.parseLong(action.substring(at + EXPIRY.length()));
+	}
+
+	/**
+	 * Determines if the role-resource tuple is available.
+	 *
+	 * @param key The tuple of role and resource.
+	 * @return Returns true if the permission is available for this tuple.
+	 */
+	private boolean has(String key) {
+		return permissions.containsKey(key);
+	}
+
+	static String makeKey(String aro, String aco) {
+		return id(aro) + SEPARATOR + id(aco);
+	}
+
+	/**
+	 * Gets the ID of an entry in the keys.
+	 *
+	 * @param entry The ID of the entry. Null for all entries.
+	 * @return The ID, <code>*</code> for all entries.
+	 */
+	private static String id(String entry) {
+		return entry == null ? "*" : entry;
+	}
+
+	private Map<String, Boolean> makePermission(Types action, boolean allow) {
+		Map<String, Boolean> perm = new HashMap<>();
+
 		perm.put(action.toString(), allow);
 
 		return perm;
 	}
+
+	/**
+	 * The traversal path of a resource, with the positions of the resources
+	 * looked up lazily.
+	 */
+	static final class ResourcePath {
+		final List<String> ids;
+
+		/**
+		 * Built when first needed. A path may be shared by the threads
+		 * through a handle, so it is only published once it is filled.
+		 */
+		private volatile Map<String, Integer> positions;
+
+		ResourcePath(List<String> ids) {
+			this.ids = ids;
+		}
+
+		Integer position(String id) {
+			Map<String, Integer> found = positions;
+
+			if (found == null) {
+				found = new HashMap<>();
+				for (int i = ids.size() - 1; i >= 0; i--) {
+					found.put(ids.get(i), i);
+				}
+				positions = found;
+			}
+
+			return found.get(id);
+		}
+	}
+
+	/**
+	 * The resources that a role has permissions on. Instances are replaced
+	 * and not modified, so they can be read without locking.
+	 */
+	private static final class RoleRules {
+		/**
+		 * The sorted IDs of the resources, or null if there are more than
+		 * {@link Permission#MAX_LISTED}.
+		 */
+		final String[] resources;
+
+		final int count;
+
+		RoleRules(String[] resources, int count) {
+			this.resources = resources;
+			this.count = count;
+		}
+
+		static RoleRules add(RoleRules rules, String resource) {
+			if (rules == null) {
+				return new RoleRules(new String[] { resource }, 1);
+			}
+			if (rules.resources == null
+					|| rules.resources.length >= MAX_LISTED) {
+				return new RoleRules(null, rules.count + 1);
+			}
+
+			String[] listed = rules.resources;
+			int at = -Arrays.binarySearch(listed, resource) - 1;
+			String[] added = new String[listed.length + 1];
+
+			System.arraycopy(listed, 0, added, 0, at);
+			added[at] = resource;
+			System.arraycopy(listed, at, added, at + 1, listed.length - at);
+
+			return new RoleRules(added, added.length);
+		}
+
+		static RoleRules remove(RoleRules rules, String resource) {
+			if (rules == null || rules.count == 1) {
+				return null;
+			}
+			if (rules.resources == null) {
+				//not listed again until all the permissions are removed
+				return new RoleRules(null, rules.count - 1);
+			}
+
+			String[] listed = rules.resources;
+			int at = Arrays.binarySearch(listed, resource);
+
+			if (at < 0) {
+				return rules;
+			}
+
+			String[] removed = new String[listed.length - 1];
+
+			System.arraycopy(listed, 0, removed, 0, at);
+			System.arraycopy(listed, at + 1, removed, at, removed.length - at);
+
+			return new RoleRules(removed, removed.length);
+		}
+	}
 }
@@ -1,11 +1,18 @@
 package com.rojakcoder.archly;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 
 import com.rojakcoder.archly.exceptions.DuplicateEntryException;
 import com.rojakcoder.archly.exceptions.EntryNotFoundException;
@@ -21,11 +28,43 @@ class Registry {
 
 	static final String NOT_FOUND = "Entry '%s' not in registry.";
 
+	private static final String SPACES = "                                ";
+
+	static final String MOVE_UNDER_SELF = "Entry '%s' cannot be moved under '%s', which is within it.";
+
 	/**
 	 * The internal representation of the registry.
 	 */
 	protected ConcurrentMap<String, String> registry;
 
+	/**
+	 * Notified of the changes to the registry, if set.
+	 */
+	private ChangeObserver observer;
+
+	/**
+	 * Held while changing the registry and while building the index, so that
+	 * only one thread builds it and no change is missed by it.
+	 */
+	private final Object indexLock = new Object();
+
+	/**
+	 * The index of the hierarchy. Updated with the leaves added and removed,
+	 * and dropped to be built again when it is needed after any other change.
+	 */
+	private volatile Index index;
+
+	/**
+	 * The number of times the index was built.
+	 */
+	private int indexBuilds;
+
+	/**
+	 * The handles made for the entries, invalidated when the entries are
+	 * removed.
+	 */
+	private final ConcurrentMap<String, EntryHandle> handles = new ConcurrentHashMap<>();
+
 	/**
 	 * The constructor for creating the registry.
 	 * <p>
@@ -37,6 +76,16 @@ class Registry {
 		registry = new ConcurrentHashMap<>();
 	}
 
+	/**
+	 * The constructor for creating the registry over a given map, e.g. a
+	 * {@link LayeredMap} over a shared registry.
+	 *
+	 * @param registry The map of entry IDs to the IDs of their parents.
+	 */
+	protected Registry(ConcurrentMap<String, String> registry) {
+		this.registry = registry;
+	}
+
 	/**
 	 * Prints the traversal path from the entry to the root.
 	 *
@@ -67,7 +116,7 @@ class Registry {
 			throw new DuplicateEntryException(String.format(DUPLICATE_ENTRIES,
 					entry));
 		}
-		registry.put(entry, "");
+		store(entry, "");
 	}
 
 	/**
@@ -90,14 +139,18 @@ class Registry {
 		if (!registry.containsKey(parent)) {
 			throw new EntryNotFoundException(String.format(NOT_FOUND, parent));
 		}
-		registry.put(child, parent);
+		store(child, parent);
 	}
 
 	/**
 	 * Empties the registry.
 	 */
 	void clear() {
-		registry.clear();
+		synchronized (indexLock) {
+			registry.clear();
+			index = null;
+		}
+		invalidateHandles();
 	}
 
 	/**
@@ -109,6 +162,16 @@ class Registry {
 		return new HashMap<String, String>(registry);
 	}
 
+	/**
+	 * Gets a live view of the registry without copying it.
+	 *
+	 * @return The map of entry IDs to the IDs of their parents. It must not
+	 * be modified.
+	 */
+	Map<String, String> entries() {
+		return registry;
+	}
+
 	/**
 	 * Checks if the entry is stored in the registry.
 	 *
@@ -129,13 +192,131 @@ class Registry {
 		return registry.containsValue(parentId);
 	}
 
+	/**
+	 * Gets the handle of an entry, making it if there is none yet. Must not
+	 * be called concurrently with the removal of the entry.
+	 *
+	 * @param entry The ID of the entry.
+	 * @param factory Makes the handle.
+	 * @return The handle, or null if the entry is not registered.
+	 */
+	EntryHandle handle(String entry, Function<String, EntryHandle> factory) {
+		if (!entries().containsKey(entry)) {
+			return null;
+		}
+
+		return handles.computeIfAbsent(entry, factory);
+	}
+
+	/**
+	 * Checks if an entry is within the subtree of another entry, i.e. if the
+	 * other entry is on its traversal path.
+	 * <p>
+	 * The check is a comparison of the pre-order and post-order positions of
+	 * the entries in the hierarchy. Leaves added since the positions were
+	 * numbered are followed up to a numbered parent. The positions are
+	 * numbered again on the first check after any other change.
+	 * </p>
+	 *
+	 * @param entry The ID of the entry. Null for all entries.
+	 * @param ancestor The ID of the entry at the top of the subtree. Null or
+	 * <code>*</code> for the root.
+	 * @return True if the entry is the ancestor or one of its descendants.
+	 */
+	boolean isWithin(String entry, String ancestor) {
+		if (ancestor == null || ancestor.equals("*")) {
+			return true;
+		}
+		if (entry == null) {
+			return false;
+		}
+
+		return index(false).isWithin(entry, ancestor);
+	}
+
 	/**
 	 * Re-creates the registry with a new hierarchy.
 	 *
 	 * @param map The map containing the new hierarchy.
 	 */
 	void importRegistry(Map<String, String> map) {
-		registry = new ConcurrentHashMap<String, String>(map);
+		for (Map.Entry<String, String> entry: map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Moves an entry, together with its descendants, under another parent.
+	 * <p>
+	 * Only the parent of the entry changes; its descendants stay under it.
+	 * </p>
+	 *
+	 * @param entry The ID of the entry to move.
+	 * @param parent The ID of the new parent entry. Null or empty to move the
+	 * entry to the root.
+	 * @throws EntryNotFoundException Throws this exception if the entry or the
+	 * parent entry is not in the registry.
+	 * @throws RuntimeException Throws RuntimeException if the parent entry is
+	 * the entry or one of its descendants.
+	 */
+	void move(String entry, String parent) throws EntryNotFoundException {
+		String newParent = parent == null ? "" : parent;
+
+		if (!registry.containsKey(entry)) {
+			throw new EntryNotFoundException(String.format(NOT_FOUND, entry));
+		}
+		if (!newParent.isEmpty() && !registry.containsKey(newParent)) {
+			throw new EntryNotFoundException(String.format(NOT_FOUND, parent));
+		}
+		checkParent(entry, newParent, Collections.emptyMap());
+		store(entry, newParent);
+	}
+
+	/**
+	 * Checks that giving entries new parents all at once puts none of them
+	 * within itself.
+	 *
+	 * @param puts The new parents of the entries. Null or empty for the root.
+	 * @throws RuntimeException Throws RuntimeException if any entry would be
+	 * within itself.
+	 */
+	void checkPuts(Map<String, String> puts) {
+		for (Map.Entry<String, String> put: puts.entrySet()) {
+			checkParent(put.getKey(), put.getValue(), puts);
+		}
+	}
+
+	/**
+	 * Checks that an entry is not an ancestor of its new parent, given the
+	 * other new parents.
+	 */
+	private void checkParent(String entry, String parent,
+			Map<String, String> puts) {
+		//walk up from the new parent rather than index the whole registry
+		int steps = registry.size() + puts.size();
+		String id = parent;
+
+		while (id != null && !id.isEmpty() && steps-- >= 0) {
+			if (id.equals(entry)) {
+				throw new RuntimeException(String.format(MOVE_UNDER_SELF,
+						entry, parent));
+			}
+			id = puts.containsKey(id) ? puts.get(id) : registry.get(id);
+		}
+	}
+
+	/**
+	 * Adds or re-parents an entry without checking for the parent.
+	 * <p>
+	 * This allows the entries to be imported one at a time in any order.
+	 * </p>
+	 *
+	 * @param entry The ID of the entry.
+	 * @param parent The ID of the parent entry. Null or empty if the entry is
+	 * at the root.
+	 */
+	void put(String entry, String parent) {
+		store(entry, parent == null ? "" : parent);
 	}
 
 	/**
@@ -146,14 +327,22 @@ class Registry {
 	 * root.
 	 */
 	List<String> traverseRoot(String entry) {
-		List<String> path = new ArrayList<>();
-
 		if (entry == null) {
+			List<String> path = new ArrayList<>();
 			path.add("*");
 
 			return path;
 		}
 
+		//follow the parents in the index if there is one
+		Index current = index;
+		List<String> indexed = current == null ? null : current.traverseRoot(
+				entry);
+		if (indexed != null) {
+			return indexed;
+		}
+
+		List<String> path = new ArrayList<>();
 		String eId = entry;
 
 		while (registry.containsKey(eId)) {
@@ -176,26 +365,115 @@ class Registry {
 	 */
 	String display(AclEntry loader, String leading, String entryId) {
 		StringBuilder sb = new StringBuilder();
-		List<String> childIds = null;
 
-		if (leading == null) {
-			leading = "";
+		try {
+			display(loader, sb, leading, entryId, Integer.MAX_VALUE,
+					Integer.MAX_VALUE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); //not thrown by StringBuilder
 		}
-		if (entryId == null) {
-			entryId = "";
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes a cascading list of entries in this registry, one entry at a
+	 * time.
+	 * <p>
+	 * The hierarchy is walked without recursion, from the children in the
+	 * index, so only the path to the current entry is held in memory however
+	 * large or deep the hierarchy is. If the limit of entries is reached
+	 * before all are written, a line of <code>...</code> is written in place
+	 * of the rest.
+	 * </p>
+	 *
+	 * @param loader The instance that retrieves other instances.
+	 * @param out The output to write to.
+	 * @param leading The leading space for indented entries.
+	 * @param entryId The ID of the entry to start traversing from.
+	 * @param maxDepth The number of levels to write.
+	 * @param maxNodes The number of entries to write.
+	 * @return The number of entries written.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	int display(AclEntry loader, Appendable out, String leading,
+			String entryId, int maxDepth, int maxNodes) throws IOException {
+		if (maxDepth <= 0) {
+			return 0;
 		}
 
-		childIds = findChildren(entryId);
-		for (String childId: childIds) {
-			AclEntry entry = loader.retrieveEntry(childId);
-			sb.append(leading);
-			sb.append("- ");
-			sb.append(entry.getEntryDescription());
-			sb.append("\n");
-			sb.append(this.display(loader, " " + leading, childId));
+		Index current = index(true);
+		int[] top;
+		int from;
+		int to;
+
+		if (entryId == null || entryId.isEmpty()) {
+			top = current.roots;
+			from = 0;
+			to = top.length;
+		} else {
+			Integer position = current.positions.get(entryId);
+
+			if (position == null) {
+				return 0;
+			}
+			top = current.children;
+			from = current.childStart[position];
+			to = current.childStart[position + 1];
 		}
 
-		return sb.toString();
+		//the next child to write and the end of the children at each level
+		int[] next = new int[8];
+		int[] end = new int[8];
+		int depth = 0;
+		int written = 0;
+		next[0] = from;
+		end[0] = to;
+		while (depth >= 0) {
+			if (next[depth] == end[depth]) {
+				depth--;
+				continue;
+			}
+
+			int entry = (depth == 0 ? top : current.children)[next[depth]++];
+			if (written == maxNodes) {
+				indent(out, depth, leading);
+				out.append("...\n");
+				break;
+			}
+			indent(out, depth, leading);
+			out.append("- ");
+			out.append(loader.retrieveEntry(current.ids[entry])
+					.getEntryDescription());
+			out.append("\n");
+			written++;
+
+			if (depth + 1 < maxDepth) {
+				depth++;
+				if (depth == next.length) {
+					next = Arrays.copyOf(next, depth * 2);
+					end = Arrays.copyOf(end, depth * 2);
+				}
+				next[depth] = current.childStart[entry];
+				end[depth] = current.childStart[entry + 1];
+			}
+		}
+
+		return written;
+	}
+
+	/**
+	 * Writes the indentation of an entry: a space for each level and then the
+	 * leading space.
+	 */
+	static void indent(Appendable out, int depth, String leading)
+			throws IOException {
+		for (int i = 0; i < depth; i += SPACES.length()) {
+			out.append(SPACES, 0, Math.min(SPACES.length(), depth - i));
+		}
+		if (leading != null) {
+			out.append(leading);
+		}
 	}
 
 	/**
@@ -224,12 +502,12 @@ class Registry {
 				removed.addAll(this.removeDescendants(childIds));
 			} else {
 				for (String childId: childIds) {
-					registry.put(childId, parentId);
+					store(childId, parentId);
 				}
 			}
 		}
 
-		registry.remove(entry);
+		delete(entry);
 		removed.add(entry);
 
 		return removed;
@@ -253,23 +531,172 @@ class Registry {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 
+		try {
+			print(sb);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); //not thrown by StringBuilder
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the entries and their parents, one entry per line.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException Re-throws IOException from the output.
+	 */
+	void print(Appendable out) throws IOException {
 		for (Map.Entry<String, String> entry: registry.entrySet()) {
-			sb.append("\t");
-			sb.append(entry.getKey());
+			out.append("\t");
+			out.append(entry.getKey());
 			if (entry.getKey().length() >= 8) {
-				sb.append("\t - \t");
+				out.append("\t - \t");
 			} else {
-				sb.append("\t\t - \t");
+				out.append("\t\t - \t");
 			}
 			if (entry.getValue().equals("")) {
-				sb.append("*");
+				out.append("*");
 			} else {
-				sb.append(entry.getValue());
+				out.append(entry.getValue());
 			}
-			sb.append("\n");
+			out.append("\n");
 		}
+	}
 
-		return sb.toString();
+	/**
+	 * Sets the observer to notify of the changes to the registry.
+	 *
+	 * @param observer The observer. Null to remove the observer.
+	 */
+	void setObserver(ChangeObserver observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * Adds or re-parents an entry.
+	 * <p>
+	 * All changes to the registry go through this method or
+	 * {@link #delete(String)}.
+	 * </p>
+	 *
+	 * @param entry The ID of the entry.
+	 * @param parent The ID of the parent entry, empty if at the root.
+	 */
+	private void store(String entry, String parent) {
+		String previous;
+
+		synchronized (indexLock) {
+			previous = registry.put(entry, parent);
+			if (parent.equals(previous)) {
+				return;
+			}
+
+			//a leaf is moved in the index, but not a subtree
+			Index current = index;
+			if (current != null && (previous != null && !current.removeLeaf(
+					entry) || !current.addLeaf(entry, parent))) {
+				index = null;
+			}
+		}
+		changed(entry, parent, previous);
+	}
+
+	/**
+	 * Removes an entry.
+	 *
+	 * @param entry The ID of the entry.
+	 */
+	private void delete(String entry) {
+		synchronized (indexLock) {
+			if (registry.remove(entry) == null) {
+				return;
+			}
+
+			Index current = index;
+			if (current != null && !current.removeLeaf(entry)) {
+				index = null;
+			}
+		}
+		removed(entry);
+	}
+
+	/**
+	 * Gets the index of the hierarchy, building it if there is none. Only one
+	 * thread builds it while the others wait for it.
+	 *
+	 * @param complete True if the index must also list the children of the
+	 * leaves added and removed since it was built.
+	 * @return The index.
+	 */
+	private Index index(boolean complete) {
+		Index current = index;
+
+		if (current != null && (!complete || !current.isPatched())) {
+			return current;
+		}
+		synchronized (indexLock) {
+			current = index;
+			if (current == null || complete && current.isPatched()) {
+				current = new Index(registry);
+				indexBuilds++;
+				index = current;
+			}
+
+			return current;
+		}
+	}
+
+	/**
+	 * Gets the number of times the index of the hierarchy was built.
+	 *
+	 * @return The number of builds.
+	 */
+	int indexBuilds() {
+		synchronized (indexLock) {
+			return indexBuilds;
+		}
+	}
+
+	/**
+	 * Notifies the observer that an entry was added or re-parented.
+	 *
+	 * @param entry The ID of the entry.
+	 * @param parent The ID of the new parent entry, empty if at the root.
+	 * @param previous The ID of the previous parent entry, null if the entry
+	 * was added.
+	 */
+	void changed(String entry, String parent, String previous) {
+		if (observer != null) {
+			observer.entryChanged(this, entry, parent, previous);
+		}
+	}
+
+	/**
+	 * Notifies the observer that an entry was removed.
+	 *
+	 * @param entry The ID of the entry.
+	 */
+	void removed(String entry) {
+		EntryHandle handle = handles.remove(entry);
+
+		if (handle != null) {
+			handle.invalidate();
+		}
+		if (observer != null) {
+			observer.entryRemoved(this, entry);
+		}
+	}
+
+	/**
+	 * Invalidates the handles of all the entries, e.g. when the registry is
+	 * emptied.
+	 */
+	void invalidateHandles() {
+		for (EntryHandle handle: handles.values()) {
+			handle.invalidate();
+		}
+		handles.clear();
 	}
 
 	private List<String> removeDescendants(List<String> entryIds) {
@@ -278,7 +705,7 @@ class Registry {
 		for (String entryId: entryIds) {
 			String node = entryId;
 
-			registry.remove(node);
+			delete(node);
 			removed.add(node);
 			while (hasChild(node)) {
 				removed.addAll(removeDescendants(findChildren(node)));
@@ -299,4 +726,283 @@ class Registry {
 
 		return children;
 	}
+
+	/**
+	 * An array-based copy of the hierarchy: the entries are numbered, and the
+	 * parent, depth and pre-order and post-order positions of each are kept
+	 * in arrays. An entry is in the subtree of another if its interval of
+	 * positions is within that of the other.
+	 * <p>
+	 * The arrays are not modified once built. Leaves added and removed
+	 * afterwards are kept aside by the thread changing the registry, until
+	 * there are more of them than there are entries in the arrays.
+	 * </p>
+	 */
+	private static final class Index {
+		final String[] ids;
+
+		final Map<String, Integer> positions;
+
+		/**
+		 * The number of the parent of each entry, -1 at the root.
+		 */
+		final int[] parents;
+
+		/**
+		 * The number of ancestors of each entry.
+		 */
+		final int[] depths;
+
+		final int[] pre;
+
+		final int[] post;
+
+		/**
+		 * The children of entry <code>i</code> are at positions
+		 * <code>childStart[i]</code> to <code>childStart[i + 1]</code> of
+		 * <code>children</code>.
+		 */
+		final int[] childStart;
+
+		final int[] children;
+
+		/**
+		 * The entries whose parent is the root, excluding those whose parent
+		 * is missing.
+		 */
+		final int[] roots;
+
+		/**
+		 * The leaves added since the index was built and their parents, empty
+		 * at the root.
+		 */
+		final ConcurrentMap<String, String> leaves = new ConcurrentHashMap<>();
+
+		/**
+		 * The entries in the arrays that were removed since the index was
+		 * built.
+		 */
+		final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * The number of children added less those removed for each entry
+		 * since the index was built. Only used while changing the registry.
+		 */
+		private final Map<String, Integer> childChanges = new HashMap<>();
+
+		/**
+		 * The parents missing from the registry when the index was built,
+		 * which have children.
+		 */
+		private final Set<String> missing = new HashSet<>();
+
+		Index(Map<String, String> registry) {
+			List<Map.Entry<String, String>> entries = new ArrayList<>(registry
+					.entrySet());
+			int n = entries.size();
+
+			ids = new String[n];
+			positions = new HashMap<>(n * 4 / 3 + 1);
+			parents = new int[n];
+			depths = new int[n];
+			pre = new int[n];
+			post = new int[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = entries.get(i).getKey();
+				positions.put(ids[i], i);
+			}
+
+			//the children of each entry, one after another
+			childStart = new int[n + 1];
+			int rootCount = 0;
+			for (int i = 0; i < n; i++) {
+				Integer parent = positions.get(entries.get(i).getValue());
+
+				parents[i] = parent == null ? -1 : parent;
+				if (parent != null) {
+					childStart[parent + 1]++;
+				} else if (entries.get(i).getValue().isEmpty()) {
+					rootCount++;
+				} else {
+					missing.add(entries.get(i).getValue());
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				childStart[i + 1] += childStart[i];
+			}
+
+			children = new int[n];
+			roots = new int[rootCount];
+			rootCount = 0;
+			for (int i = 0; i < n; i++) {
+				if (parents[i] < 0 && entries.get(i).getValue().isEmpty()) {
+					roots[rootCount++] = i;
+				}
+			}
+			int[] filled = Arrays.copyOf(childStart, n);
+			for (int i = 0; i < n; i++) {
+				if (parents[i] >= 0) {
+					children[filled[parents[i]]++] = i;
+				}
+			}
+
+			//depth-first from each root, without recursion
+			Arrays.fill(pre, -1);
+			int[] stack = new int[n];
+			int[] next = new int[n];
+			int order = 0;
+			int finished = 0;
+			for (int root = 0; root < n; root++) {
+				if (parents[root] >= 0) {
+					continue;
+				}
+
+				int top = 0;
+				stack[0] = root;
+				next[0] = childStart[root];
+				pre[root] = order++;
+				while (top >= 0) {
+					int node = stack[top];
+
+					if (next[top] < childStart[node + 1]) {
+						int child = children[next[top]++];
+
+						depths[child] = depths[node] + 1;
+						pre[child] = order++;
+						stack[++top] = child;
+						next[top] = childStart[child];
+					} else {
+						post[node] = finished++;
+						top--;
+					}
+				}
+			}
+			//entries in a cycle are not reachable from any root
+			for (int i = 0; i < n; i++) {
+				if (pre[i] < 0) {
+					positions.remove(ids[i]);
+				}
+			}
+		}
+
+		/**
+		 * Checks if an entry is the ancestor or one of its descendants.
+		 */
+		boolean isWithin(String entry, String ancestor) {
+			//climb the added leaves to an entry in the arrays
+			String node = entry;
+			String parent;
+			while ((parent = leaves.get(node)) != null) {
+				if (node.equals(ancestor)) {
+					return true;
+				}
+				node = parent;
+			}
+			if (leaves.containsKey(ancestor) || removed.contains(node)
+					|| removed.contains(ancestor)) {
+				return false;
+			}
+
+			Integer e = positions.get(node);
+			Integer a = positions.get(ancestor);
+
+			return e != null && a != null && pre[a] <= pre[e]
+					&& post[e] <= post[a];
+		}
+
+		/**
+		 * Lists the entry and its ancestors, or null if the entry is not in
+		 * the index.
+		 */
+		List<String> traverseRoot(String entry) {
+			List<String> climbed = new ArrayList<>();
+			String node = entry;
+			String parent;
+			while ((parent = leaves.get(node)) != null) {
+				climbed.add(node);
+				node = parent;
+			}
+
+			Integer position = node.isEmpty() || removed.contains(node) ? null
+					: positions.get(node);
+			if (position == null && !node.isEmpty()) {
+				return null;
+			}
+
+			List<String> path = new ArrayList<>(climbed.size() + (position
+					== null ? 0 : depths[position] + 1) + 1);
+			path.addAll(climbed);
+			if (position != null) {
+				for (int i = position; i >= 0; i = parents[i]) {
+					path.add(ids[i]);
+				}
+			}
+			path.add("*");
+
+			return path;
+		}
+
+		/**
+		 * Checks if leaves were added or removed since the index was built,
+		 * so that the children in the arrays are out of date.
+		 */
+		boolean isPatched() {
+			return !leaves.isEmpty() || !removed.isEmpty();
+		}
+
+		/**
+		 * Records an entry added to the registry, if it has no children and
+		 * its parent is in the index.
+		 *
+		 * @return False if the index must be built again instead.
+		 */
+		boolean addLeaf(String entry, String parent) {
+			if (leaves.size() + removed.size() >= ids.length
+					|| childCount(entry) != 0 || missing.contains(entry)) {
+				return false;
+			}
+			if (!parent.isEmpty() && !leaves.containsKey(parent)
+					&& (!positions.containsKey(parent) || removed.contains(
+							parent))) {
+				return false;
+			}
+
+			leaves.put(entry, parent);
+			childChanges.merge(parent, 1, Integer::sum);
+
+			return true;
+		}
+
+		/**
+		 * Records an entry removed from the registry, if it has no children.
+		 *
+		 * @return False if the index must be built again instead.
+		 */
+		boolean removeLeaf(String entry) {
+			if (childCount(entry) != 0) {
+				return false;
+			}
+
+			String parent = leaves.remove(entry);
+			if (parent == null) {
+				Integer position = positions.get(entry);
+
+				if (position == null || !removed.add(entry)) {
+					return false;
+				}
+				parent = parents[position] < 0 ? "" : ids[parents[position]];
+			}
+			childChanges.merge(parent, -1, Integer::sum);
+
+			return true;
+		}
+
+		private int childCount(String entry) {
+			Integer position = positions.get(entry);
+
+			return (position == null ? 0 : childStart[position + 1]
+					- childStart[position]) + childChanges.getOrDefault(entry,
+							0);
+		}
+	}
 }
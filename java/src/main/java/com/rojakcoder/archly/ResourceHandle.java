@@ -0,0 +1,14 @@
+package com.rojakcoder.archly;
+
+/**
+ * ResourceHandle is a resource as registered in an Acl, returned by
+ * {@link Acl#addResourceHandle(AclEntry)} and
+ * {@link Acl#lookupResource(AclEntry)}.
+ *
+ * @see RoleHandle
+ */
+public final class ResourceHandle extends EntryHandle {
+	ResourceHandle(String id, AclEntry entry, Registry registry) {
+		super(id, entry, registry);
+	}
+}
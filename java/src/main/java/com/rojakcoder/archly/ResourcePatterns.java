@@ -0,0 +1,280 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ResourcePatterns is an index of the resource patterns that have
+ * permissions.
+ * <p>
+ * A resource pattern is a resource ID made of segments separated by
+ * <code>/</code>, in which a segment of <code>*</code> matches any one
+ * segment and a segment of <code>**</code> matches any number of segments,
+ * including none. For example, <code>reports/&#42;/quarterly</code> matches
+ * <code>reports/2017/quarterly</code> and <code>reports/&#42;&#42;</code>
+ * matches every resource under <code>reports</code>.
+ * </p>
+ * <p>
+ * The patterns are kept in a trie of segments, so all the patterns that
+ * match a resource ID are found in one pass over its segments. The index is
+ * changed only under the write lock of the Acl and is safe to read
+ * concurrently.
+ * </p>
+ */
+final class ResourcePatterns {
+	private static final String SEPARATOR = "/";
+
+	private static final String ANY = "*";
+
+	private static final String ANY_DEPTH = "**";
+
+	/**
+	 * Orders the more specific patterns first: more literal segments, then
+	 * more single-segment wildcards, then by the pattern itself.
+	 */
+	private static final Comparator<String> SPECIFICITY = Comparator
+			.comparingInt((String p) -> -count(p, null))
+			.thenComparingInt(p -> -count(p, ANY))
+			.thenComparing(Comparator.naturalOrder());
+
+	private volatile Node root = new Node(false);
+
+	private volatile int size;
+
+	/**
+	 * Checks if a resource ID is a pattern.
+	 *
+	 * @param id The resource ID.
+	 * @return True if the ID has a segment of <code>*</code> or
+	 * <code>**</code>. The ID <code>*</code> on its own stands for all
+	 * resources and is not a pattern.
+	 */
+	static boolean isPattern(String id) {
+		if (id == null || !id.contains(SEPARATOR)) {
+			return false;
+		}
+		for (String segment: id.split(SEPARATOR, -1)) {
+			if (segment.equals(ANY) || segment.equals(ANY_DEPTH)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Adds a pattern to the index.
+	 *
+	 * @param pattern The pattern.
+	 */
+	void add(String pattern) {
+		Node node = root;
+
+		for (String segment: pattern.split(SEPARATOR, -1)) {
+			node = node.child(segment, true);
+		}
+		if (node.pattern == null) {
+			node.pattern = pattern;
+			size++;
+		}
+	}
+
+	/**
+	 * Removes a pattern from the index. Empty branches of the trie are left
+	 * in place until the index is cleared.
+	 *
+	 * @param pattern The pattern.
+	 */
+	void remove(String pattern) {
+		Node node = root;
+
+		for (String segment: pattern.split(SEPARATOR, -1)) {
+			node = node.child(segment, false);
+			if (node == null) {
+				return;
+			}
+		}
+		if (node.pattern != null) {
+			node.pattern = null;
+			size--;
+		}
+	}
+
+	void clear() {
+		root = new Node(false);
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Finds the patterns that match a resource ID.
+	 *
+	 * @param id The resource ID.
+	 * @return The matching patterns, the most specific first.
+	 */
+	List<String> match(String id) {
+		if (size == 0) {
+			return Collections.emptyList();
+		}
+
+		Set<Node> states = new LinkedHashSet<>();
+		addState(states, root);
+		for (String segment: id.split(SEPARATOR, -1)) {
+			Set<Node> next = new LinkedHashSet<>();
+
+			for (Node node: states) {
+				if (node.anyDepth) {
+					addState(next, node); //consumes one more segment
+				}
+
+				Node literal = node.literals.get(segment);
+				if (literal != null) {
+					addState(next, literal);
+				}
+
+				Node any = node.any;
+				if (any != null) {
+					addState(next, any);
+				}
+			}
+			if (next.isEmpty()) {
+				return Collections.emptyList();
+			}
+			states = next;
+		}
+
+		List<String> matched = new ArrayList<>();
+		for (Node node: states) {
+			String pattern = node.pattern;
+
+			if (pattern != null) {
+				matched.add(pattern);
+			}
+		}
+		if (matched.size() > 1) {
+			Collections.sort(matched, SPECIFICITY);
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Finds the patterns in either of two indices that match a resource ID.
+	 *
+	 * @param id The resource ID.
+	 * @param patterns The index.
+	 * @param other The other index. Null if there is none.
+	 * @return The matching patterns, the most specific first.
+	 */
+	static List<String> match(String id, ResourcePatterns patterns,
+			ResourcePatterns other) {
+		List<String> matched = patterns.match(id);
+
+		if (other == null || other.isEmpty()) {
+			return matched;
+		}
+
+		List<String> otherMatched = other.match(id);
+		if (matched.isEmpty()) {
+			return otherMatched;
+		}
+		if (otherMatched.isEmpty()) {
+			return matched;
+		}
+
+		Set<String> merged = new LinkedHashSet<>(matched);
+		merged.addAll(otherMatched);
+
+		List<String> sorted = new ArrayList<>(merged);
+		Collections.sort(sorted, SPECIFICITY);
+
+		return sorted;
+	}
+
+	/**
+	 * Adds a node and the nodes reachable from it without consuming a
+	 * segment.
+	 */
+	private static void addState(Set<Node> states, Node node) {
+		while (node != null && states.add(node)) {
+			node = node.anyDepthChild; //** can match no segment
+		}
+	}
+
+	/**
+	 * Counts the segments of a pattern.
+	 *
+	 * @param pattern The pattern.
+	 * @param wildcard The wildcard to count, or null to count the literal
+	 * segments.
+	 * @return The number of segments.
+	 */
+	private static int count(String pattern, String wildcard) {
+		int count = 0;
+
+		for (String segment: pattern.split(SEPARATOR, -1)) {
+			boolean literal = !segment.equals(ANY)
+					&& !segment.equals(ANY_DEPTH);
+
+			if (wildcard == null ? literal : segment.equals(wildcard)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static final class Node {
+		final Map<String, Node> literals = new ConcurrentHashMap<>();
+
+		/**
+		 * Whether the node was reached by a <code>**</code> segment.
+		 */
+		final boolean anyDepth;
+
+		volatile Node any;
+
+		volatile Node anyDepthChild;
+
+		/**
+		 * The pattern ending at this node, if it has permissions.
+		 */
+		volatile String pattern;
+
+		Node(boolean anyDepth) {
+			this.anyDepth = anyDepth;
+		}
+
+		Node child(String segment, boolean create) {
+			if (segment.equals(ANY)) {
+				if (any == null && create) {
+					any = new Node(false);
+				}
+				return any;
+			}
+			if (segment.equals(ANY_DEPTH)) {
+				if (anyDepthChild == null && create) {
+					anyDepthChild = new Node(true);
+				}
+				return anyDepthChild;
+			}
+
+			Node child = literals.get(segment);
+			if (child == null && create) {
+				child = new Node(false);
+				literals.put(segment, child);
+			}
+
+			return child;
+		}
+	}
+}
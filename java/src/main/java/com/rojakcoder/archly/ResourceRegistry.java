@@ -1,9 +1,21 @@
 package com.rojakcoder.archly;
 
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * ResourceRegistry keeps track of all registered resources.
  */
 class ResourceRegistry extends Registry {
 	ResourceRegistry() {
 	}
+
+	/**
+	 * Creates the registry over a given map, e.g. a {@link LayeredMap} over
+	 * shared resources or a {@link HamtMap} whose versions can be kept.
+	 *
+	 * @param registry The map of entry IDs to the IDs of their parents.
+	 */
+	ResourceRegistry(ConcurrentMap<String, String> registry) {
+		super(registry);
+	}
 }
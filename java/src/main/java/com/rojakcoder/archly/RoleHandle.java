@@ -0,0 +1,18 @@
+package com.rojakcoder.archly;
+
+/**
+ * RoleHandle is a role as registered in an Acl, returned by
+ * {@link Acl#addRoleHandle(AclEntry)} and {@link Acl#lookupRole(AclEntry)}.
+ * <p>
+ * Access checks with a handle do not look up the ancestors of the role by ID
+ * as long as the hierarchy is unchanged and no role gains its first rule or
+ * loses its last. A handle can be used wherever an
+ * {@link AclEntry} is expected, but only speeds up the checks of the ACL
+ * that made it.
+ * </p>
+ */
+public final class RoleHandle extends EntryHandle {
+	RoleHandle(String id, AclEntry entry, Registry registry) {
+		super(id, entry, registry);
+	}
+}
@@ -1,9 +1,21 @@
 package com.rojakcoder.archly;
 
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * RoleRegistry keeps track of all registered roles/users.
  */
 class RoleRegistry extends Registry {
 	RoleRegistry() {
 	}
+
+	/**
+	 * Creates the registry over a given map, e.g. a {@link LayeredMap} over
+	 * shared roles or a {@link HamtMap} whose versions can be kept.
+	 *
+	 * @param registry The map of entry IDs to the IDs of their parents.
+	 */
+	RoleRegistry(ConcurrentMap<String, String> registry) {
+		super(registry);
+	}
 }
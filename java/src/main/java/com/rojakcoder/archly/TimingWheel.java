@@ -0,0 +1,188 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TimingWheel is a hierarchical timing wheel of items that are due at
+ * certain times.
+ * <p>
+ * Time is divided into ticks. The lowest level of the wheel has a slot for
+ * each of the next 64 ticks, the next level a slot for each of the next 64
+ * rotations of the lowest level, and so on. An item is placed in the slot of
+ * the lowest level that can hold its due time, and is moved down a level
+ * each time the level above turns to its slot, so scheduling and expiring an
+ * item take constant time regardless of how many items there are.
+ * </p>
+ * <p>
+ * Items are not removed when they are no longer relevant; whoever takes the
+ * due items checks that they still apply.
+ * </p>
+ *
+ * @param <T> The type of the items.
+ */
+final class TimingWheel<T> {
+	private static final int BITS = 6;
+
+	private static final int SLOTS = 1 << BITS;
+
+	private static final int MASK = SLOTS - 1;
+
+	/**
+	 * With 4 levels, the wheel spans 2^24 ticks. Items due later than that
+	 * are kept in the slots of the top level and are placed again each time
+	 * their slot comes around.
+	 */
+	private static final int LEVELS = 4;
+
+	private final long tickMillis;
+
+	private final List<Item<T>>[][] slots;
+
+	/**
+	 * The latest tick that has been processed.
+	 */
+	private long current;
+
+	private int size;
+
+	/**
+	 * Creates a timing wheel.
+	 *
+	 * @param tickMillis The length of a tick in milliseconds. Items are due at
+	 * most a tick after their due time.
+	 * @param now The current time in milliseconds.
+	 */
+	TimingWheel(long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.slots = newSlots();
+		this.current = now / tickMillis;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<Item<T>>[][] newSlots() {
+		return (List<Item<T>>[][]) new List<?>[LEVELS][SLOTS];
+	}
+
+	/**
+	 * Schedules an item.
+	 * <p>
+	 * The wheel is not advanced while it is empty, so it catches up with the
+	 * current time first; the next advance then only walks the ticks since.
+	 * </p>
+	 *
+	 * @param item The item.
+	 * @param dueMillis The time in milliseconds when the item is due.
+	 * @param now The current time in milliseconds.
+	 */
+	synchronized void schedule(T item, long dueMillis, long now) {
+		if (size == 0) {
+			current = Math.max(current, now / tickMillis);
+		}
+
+		//round up, so an item is never taken before it is due
+		long due = (dueMillis + tickMillis - 1) / tickMillis;
+
+		place(new Item<>(item, due));
+		size++;
+	}
+
+	/**
+	 * Advances the wheel and takes the items that are due.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return The items that are due, in no particular order.
+	 */
+	synchronized List<T> advance(long now) {
+		long target = now / tickMillis;
+
+		if (size == 0) {
+			current = Math.max(current, target);
+			return Collections.emptyList();
+		}
+
+		List<T> due = new ArrayList<>();
+		while (current < target && size > 0) {
+			current++;
+			for (int level = 1; level < LEVELS; level++) {
+				if ((current & ((1L << (BITS * level)) - 1)) != 0) {
+					break;
+				}
+				cascade(level, due);
+			}
+			take(slots[0], (int) (current & MASK), due);
+		}
+		current = Math.max(current, target);
+
+		return due;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Moves the items in the current slot of a level to the lower levels.
+	 */
+	private void cascade(int level, List<T> due) {
+		int slot = (int) ((current >>> (BITS * level)) & MASK);
+		List<Item<T>> items = slots[level][slot];
+
+		if (items == null) {
+			return;
+		}
+		slots[level][slot] = null;
+		for (Item<T> item: items) {
+			if (item.due <= current) {
+				due.add(item.value);
+				size--;
+			} else {
+				place(item);
+			}
+		}
+	}
+
+	private void take(List<Item<T>>[] level, int slot, List<T> due) {
+		List<Item<T>> items = level[slot];
+
+		if (items == null) {
+			return;
+		}
+		level[slot] = null;
+		for (Item<T> item: items) {
+			due.add(item.value);
+			size--;
+		}
+	}
+
+	private void place(Item<T> item) {
+		long due = Math.max(item.due, current + 1);
+		int level = 0;
+
+		//the lowest level in which the due tick and the current tick only
+		//differ in the bits of that level
+		while (level < LEVELS - 1
+				&& (due >>> (BITS * (level + 1))) != (current >>> (BITS
+						* (level + 1)))) {
+			level++;
+		}
+
+		int slot = (int) ((due >>> (BITS * level)) & MASK);
+		if (slots[level][slot] == null) {
+			slots[level][slot] = new ArrayList<>(2);
+		}
+		slots[level][slot].add(item);
+	}
+
+	private static final class Item<T> {
+		final T value;
+
+		final long due;
+
+		Item(T value, long due) {
+			this.value = value;
+			this.due = due;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.rojakcoder.archly.exceptions;
+
+/**
+ * InvalidConditionException is for when the condition of a rule cannot be
+ * parsed.
+ */
+public class InvalidConditionException extends RuntimeException {
+	private static final long serialVersionUID = 4122571802361784570L;
+
+	/**
+	 * Creates the exception.
+	 *
+	 * @param message The message to go along with the exception.
+	 */
+	public InvalidConditionException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,97 @@
+package com.rojakcoder.archly;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclDiffTest {
+	@Test
+	public void testDiff() {
+		Acl production = Acl.makeInstance();
+		production.addRole(new Role("jedi"));
+		production.addRole(new Role("luke"), new Role("jedi"));
+		production.addRole(new Role("yoda"));
+		production.addResource(new Resource("light-sabre"));
+		production.addResource(new Resource("blaster"));
+		production.allow(new Role("jedi"), new Resource("light-sabre"));
+		production.deny(new Role("yoda"), new Resource("blaster"));
+		for (int i = 0; i < 500; i++) {
+			production.allow(new Role("trooper-" + i), new Resource("blaster"),
+					"READ");
+		}
+
+		Acl staging = Acl.makeInstance();
+		staging.applyDelta(new AclDelta().putRole("jedi", null)
+				.putRole("luke", "jedi").putRole("yoda", null));
+		staging.addResource(new Resource("light-sabre"));
+		staging.addResource(new Resource("blaster"));
+		staging.allow(new Role("jedi"), new Resource("light-sabre"));
+		staging.deny(new Role("yoda"), new Resource("blaster"));
+		for (int i = 0; i < 500; i++) {
+			staging.allow(new Role("trooper-" + i), new Resource("blaster"),
+					"READ");
+		}
+
+		Assert.assertTrue(production.diff(staging).isEmpty());
+		Assert.assertTrue(production.diff(production).isEmpty());
+
+		staging.removeRole(new Role("yoda"), false);
+		staging.applyDelta(new AclDelta().putRole("luke", null)
+				.putRole("vader", null));
+		staging.deny(new Role("trooper-7"), new Resource("blaster"), "READ");
+		staging.allow(new Role("trooper-8"), new Resource("blaster"),
+				"UPDATE");
+		staging.removeResource(new Resource("light-sabre"), false);
+
+		AclDiff diff = production.diff(staging);
+		Assert.assertEquals(diff.getAddedRoles().keySet(),
+				Collections.singleton("vader"));
+		Assert.assertEquals(diff.getRemovedRoles().get("yoda"), "");
+		Assert.assertEquals(diff.getReparentedRoles().get("luke"), "");
+		Assert.assertEquals(diff.getReparentedRoles().size(), 1);
+		Assert.assertTrue(diff.getAddedResources().isEmpty());
+		Assert.assertEquals(diff.getRemovedResources().keySet(),
+				Collections.singleton("light-sabre"));
+		Assert.assertTrue(diff.getRemovedPermissions().containsKey(
+				"yoda::blaster"));
+		Assert.assertTrue(diff.getRemovedPermissions().containsKey(
+				"jedi::light-sabre"));
+		Assert.assertEquals(diff.getChangedPermissions().size(), 2);
+		Assert.assertEquals(diff.getChangedPermissions().get(
+				"trooper-7::blaster").get("READ"), Boolean.FALSE);
+		Assert.assertEquals(diff.size(), 8);
+
+		//applying the delta makes the states the same
+		production.applyDelta(diff.toDelta());
+		Assert.assertTrue(production.diff(staging).isEmpty());
+		Assert.assertEquals(production.exportPermissions(),
+				staging.exportPermissions());
+		Assert.assertEquals(production.exportRoles(), staging.exportRoles());
+	}
+
+	@Test
+	public void testCompare() {
+		Map<String, Map<String, Boolean>> from = new HashMap<>();
+		Map<String, Map<String, Boolean>> to = new HashMap<>();
+		from.put("a::b", actions("READ", true, "CREATE", false));
+		to.put("a::b", actions("READ", false, "CREATE", true));
+		Map<String, String> empty = new HashMap<>();
+
+		AclDiff diff = AclDiff.compare(empty, empty, from, empty, empty, to);
+		Assert.assertEquals(diff.getChangedPermissions().get("a::b"),
+				to.get("a::b"));
+		Assert.assertEquals(diff.size(), 1);
+	}
+
+	private static Map<String, Boolean> actions(String first, boolean a,
+			String second, boolean b) {
+		Map<String, Boolean> actions = new HashMap<>();
+		actions.put(first, a);
+		actions.put(second, b);
+
+		return actions;
+	}
+}
@@ -0,0 +1,101 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclEventFeedTest {
+	@Test
+	public void testEvents() throws InterruptedException {
+		Acl acl = Acl.makeInstance();
+		long start = acl.getSequence();
+		List<AclEvent> received = new ArrayList<>();
+		CountDownLatch latch = new CountDownLatch(1);
+		AclEventFeed feed = acl.subscribe(events -> {
+			synchronized (received) {
+				received.addAll(events);
+				if (received.get(received.size() - 1)
+						.getType() == AclEvent.Type.CLEARED) {
+					latch.countDown();
+				}
+			}
+		});
+
+		Assert.assertEquals(feed.getStartSequence(), start);
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("luke"), new Role("jedi"));
+		acl.allow(new Role("luke"), new Resource("light-sabre"), "READ");
+		acl.removeRole(new Role("jedi"), false);
+		acl.clear();
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+		Assert.assertEquals(received.size(), 7);
+		assertEvent(received.get(0), AclEvent.Type.ROLE_CHANGED, start + 1,
+				"jedi");
+		Assert.assertEquals(received.get(0).getParent(), "");
+		Assert.assertNull(received.get(0).getPreviousParent());
+		assertEvent(received.get(1), AclEvent.Type.ROLE_CHANGED, start + 2,
+				"luke");
+		Assert.assertEquals(received.get(1).getParent(), "jedi");
+		//allowing an unregistered resource registers it
+		assertEvent(received.get(2), AclEvent.Type.RESOURCE_CHANGED,
+				start + 3, "light-sabre");
+		assertEvent(received.get(3), AclEvent.Type.PERMISSION_CHANGED,
+				start + 3, "luke::light-sabre");
+		Assert.assertEquals(received.get(3).getActions().get("READ"),
+				Boolean.TRUE);
+		//removing the parent moves the child up
+		assertEvent(received.get(4), AclEvent.Type.ROLE_CHANGED, start + 4,
+				"luke");
+		Assert.assertEquals(received.get(4).getParent(), "");
+		Assert.assertEquals(received.get(4).getPreviousParent(), "jedi");
+		assertEvent(received.get(5), AclEvent.Type.ROLE_REMOVED, start + 4,
+				"jedi");
+		assertEvent(received.get(6), AclEvent.Type.CLEARED, start + 5, null);
+		Assert.assertEquals(feed.getLastDeliveredSequence(), start + 5);
+
+		feed.close();
+		acl.addRole(new Role("after-close"));
+		Thread.sleep(50);
+		Assert.assertEquals(received.size(), 7);
+		acl.clear();
+	}
+
+	@Test
+	public void testBatching() throws InterruptedException {
+		Acl acl = Acl.makeInstance();
+		List<Integer> sizes = new ArrayList<>();
+		CountDownLatch latch = new CountDownLatch(10);
+		AclEventFeed feed = acl.subscribe(events -> {
+			synchronized (sizes) {
+				sizes.add(events.size());
+			}
+			for (int i = 0; i < events.size(); i++) {
+				latch.countDown();
+			}
+		}, 4, 60000);
+
+		for (int i = 0; i < 8; i++) {
+			acl.addRole(new Role("role-" + i));
+		}
+		//full batches are delivered without waiting for the delay
+		Thread.sleep(200);
+		synchronized (sizes) {
+			Assert.assertEquals(sizes.size(), 2);
+			Assert.assertEquals(sizes.get(0).intValue(), 4);
+			Assert.assertEquals(sizes.get(1).intValue(), 4);
+		}
+		feed.close();
+	}
+
+	private static void assertEvent(AclEvent event, AclEvent.Type type,
+			long sequence, String id) {
+		Assert.assertEquals(event.getType(), type);
+		Assert.assertEquals(event.getSequence(), sequence);
+		Assert.assertEquals(event.getId(), id);
+	}
+}
@@ -0,0 +1,172 @@
+package com.rojakcoder.archly;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclJournalTest {
+	@Test
+	public void testRecover() throws IOException {
+		File dir = Files.createTempDirectory("archly-journal").toFile();
+		AclJournal journal = new AclJournal(dir);
+		Acl acl = journal.recover();
+
+		Assert.assertEquals(acl.exportPermissions().size(), 1); //default deny
+
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("luke"), new Role("jedi"));
+		acl.addResource(new Resource("light-sabre"));
+		acl.allow(new Role("jedi"), new Resource("light-sabre"));
+		acl.deny(new Role("luke"), new Resource("light-sabre"), "DELETE");
+		acl.allowAllResource(new Role("admin"));
+		acl.makeDefaultAllow();
+		acl.applyDelta(new AclDelta().putRole("vader", "jedi")
+				.putResource("blaster", null)
+				.putPermission("vader", "blaster", actions("ALL", false)));
+		journal.close();
+
+		//not journaled after the journal is closed
+		acl.addRole(new Role("after-close"));
+
+		AclJournal reopened = new AclJournal(dir);
+		Acl restored = reopened.recover();
+		Assert.assertEquals(restored.getSequence(), 8);
+		Assert.assertEquals(restored.exportRoles().size(), 4);
+		Assert.assertFalse(restored.exportRoles().containsKey("after-close"));
+		Assert.assertEquals(restored.exportResources(), acl.exportResources());
+		Assert.assertEquals(restored.exportPermissions(),
+				acl.exportPermissions());
+		Assert.assertTrue(restored.isDenied(new Role("luke"), new Resource(
+				"light-sabre"), "DELETE"));
+		Assert.assertTrue(restored.isDenied(new Role("vader"), new Resource(
+				"blaster")));
+
+		//changes after recovery continue the sequence
+		restored.removeRole(new Role("luke"), false);
+		reopened.close();
+		restored = new AclJournal(dir).recover();
+		Assert.assertEquals(restored.getSequence(), 9);
+		Assert.assertFalse(restored.exportRoles().containsKey("luke"));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		File dir = Files.createTempDirectory("archly-journal").toFile();
+		AclJournal journal = new AclJournal(dir);
+		journal.setSyncWrites(false);
+		Acl acl = journal.recover();
+
+		for (int i = 0; i < 100; i++) {
+			acl.allow(new Role("ROLE-" + i), new Resource("RES-" + i % 10));
+		}
+		journal.flush();
+		Assert.assertEquals(journal.getDurableSequence(), 100);
+		journal.compact();
+		//changes made after the compaction are kept in the new segment
+		acl.removeResource(new Resource("RES-0"), false);
+		journal.close();
+
+		String[] names = dir.list();
+		int snapshots = 0;
+		int segments = 0;
+		for (String name: names) {
+			if (name.startsWith("snapshot-")) {
+				snapshots++;
+			} else if (name.startsWith("journal-")) {
+				segments++;
+			}
+		}
+		Assert.assertEquals(snapshots, 1);
+		Assert.assertEquals(segments, 1);
+
+		Acl restored = new AclJournal(dir).recover();
+		Assert.assertEquals(restored.getSequence(), 101);
+		Assert.assertEquals(restored.exportRoles(), acl.exportRoles());
+		Assert.assertEquals(restored.exportResources(), acl.exportResources());
+		Assert.assertEquals(restored.exportPermissions(),
+				acl.exportPermissions());
+	}
+
+	@Test
+	public void testTornWrite() throws IOException {
+		File dir = Files.createTempDirectory("archly-journal").toFile();
+		AclJournal journal = new AclJournal(dir);
+		Acl acl = journal.recover();
+
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("sith"));
+		journal.close();
+
+		//simulate a crash in the middle of a write
+		File segment = dir.listFiles()[0];
+		try (FileOutputStream out = new FileOutputStream(segment, true)) {
+			out.write(new byte[] { 0, 0, 0, 42, 1, 2, 3 });
+		}
+
+		AclJournal reopened = new AclJournal(dir);
+		Acl restored = reopened.recover();
+		Assert.assertEquals(restored.exportRoles().size(), 2);
+		restored.addRole(new Role("yoda"));
+		reopened.close();
+
+		restored = new AclJournal(dir).recover();
+		Assert.assertEquals(restored.exportRoles().size(), 3);
+	}
+
+	@Test
+	public void testWriteFailure() throws Exception {
+		File dir = Files.createTempDirectory("archly-journal").toFile();
+		AclJournal journal = new AclJournal(dir);
+		Acl acl = journal.recover();
+		List<Long> notified = new ArrayList<>();
+		acl.addListener((sequence, mutation) -> notified.add(sequence));
+
+		//make the next write to the segment fail
+		Field segment = AclJournal.class.getDeclaredField("segment");
+		segment.setAccessible(true);
+		((FileChannel) segment.get(journal)).close();
+
+		//the change made before the failure is known is kept and notified
+		acl.addRole(new Role("jedi"));
+		Assert.assertTrue(acl.exportRoles().containsKey("jedi"));
+		Assert.assertEquals(notified, Collections.singletonList(1L));
+
+		//and the later changes are rejected before they are made
+		boolean thrown = false;
+		try {
+			acl.addRole(new Role("sith"));
+		} catch (UncheckedIOException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown, "Change after failure");
+		Assert.assertFalse(acl.exportRoles().containsKey("sith"));
+		Assert.assertEquals(notified, Collections.singletonList(1L));
+		Assert.assertEquals(acl.getSequence(), 1);
+
+		thrown = false;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown, "Failure on close");
+	}
+
+	private static Map<String, Boolean> actions(String action, boolean allow) {
+		Map<String, Boolean> actions = new HashMap<>();
+		actions.put(action, allow);
+		return actions;
+	}
+}
@@ -0,0 +1,131 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclManagerTest {
+	/**
+	 * Loads an ACL with a grant on the tenant's own resource.
+	 */
+	private static class TenantLoader implements AclLoader {
+		final AtomicInteger loads = new AtomicInteger();
+
+		final List<String> evicted = new ArrayList<>();
+
+		volatile CountDownLatch gate;
+
+		volatile boolean failing;
+
+		@Override
+		public Acl load(String tenantId) {
+			loads.incrementAndGet();
+			if (gate != null) {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (failing) {
+				throw new RuntimeException("Snapshot unavailable");
+			}
+
+			Acl acl = Acl.makeInstance();
+			acl.allow(new Role("owner"), new Resource(tenantId));
+
+			return acl;
+		}
+
+		@Override
+		public synchronized void evicted(String tenantId, Acl acl) {
+			evicted.add(tenantId);
+		}
+	}
+
+	@Test
+	public void testLazyLoading() {
+		TenantLoader loader = new TenantLoader();
+		AclManager manager = new AclManager(loader, Long.MAX_VALUE);
+
+		Assert.assertNull(manager.getIfLoaded("t1"));
+		Acl acl = manager.get("t1");
+		Assert.assertTrue(acl.isAllowed(new Role("owner"), new Resource(
+				"t1")));
+		Assert.assertSame(manager.get("t1"), acl);
+		Assert.assertSame(manager.getIfLoaded("t1"), acl);
+		Assert.assertEquals(loader.loads.get(), 1);
+		Assert.assertTrue(manager.getEstimatedSize() > 0);
+
+		//failed loads are tried again
+		loader.failing = true;
+		boolean thrown = false;
+		try {
+			manager.get("t2");
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		Assert.assertEquals(manager.getLoadedCount(), 1);
+		loader.failing = false;
+		Assert.assertNotNull(manager.get("t2"));
+
+		Assert.assertTrue(manager.evict("t1"));
+		Assert.assertFalse(manager.evict("t1"));
+		Assert.assertNotSame(manager.get("t1"), acl);
+	}
+
+	@Test
+	public void testCoalescedLoads() throws Exception {
+		TenantLoader loader = new TenantLoader();
+		AclManager manager = new AclManager(loader, Long.MAX_VALUE);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Acl>> results = new ArrayList<>();
+
+		loader.gate = new CountDownLatch(1);
+		try {
+			for (int i = 0; i < 8; i++) {
+				results.add(pool.submit(() -> manager.get("busy")));
+			}
+			Thread.sleep(100);
+			loader.gate.countDown();
+
+			Acl first = results.get(0).get(5, TimeUnit.SECONDS);
+			for (Future<Acl> result: results) {
+				Assert.assertSame(result.get(5, TimeUnit.SECONDS), first);
+			}
+			Assert.assertEquals(loader.loads.get(), 1);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testEviction() {
+		TenantLoader loader = new TenantLoader();
+		long aclSize = new TenantLoader().load("t").estimateSize();
+		AclManager manager = new AclManager(loader, aclSize * 4);
+
+		for (int i = 0; i < 4; i++) {
+			manager.get("t" + i);
+		}
+		Assert.assertEquals(manager.getEvictionCount(), 0);
+		manager.get("t0"); //t1 is now the coldest
+
+		manager.get("t4");
+		Assert.assertTrue(manager.getEstimatedSize() <= aclSize * 4);
+		Assert.assertEquals(loader.evicted.get(0), "t1");
+		Assert.assertNotNull(manager.getIfLoaded("t0"));
+		Assert.assertNull(manager.getIfLoaded("t1"));
+		Assert.assertEquals(manager.getLoadedCount() + manager
+				.getEvictionCount(), 5);
+	}
+}
@@ -0,0 +1,88 @@
+package com.rojakcoder.archly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclReplayerTest {
+	@Test
+	public void testRecordAndReplay() throws IOException {
+		File trace = Files.createTempFile("archly", ".trace").toFile();
+		Acl acl = Acl.makeInstance();
+		AtomicInteger measured = new AtomicInteger();
+		AclMetrics metrics = new AclMetrics() {
+			@Override
+			public void decided(Check check, String roleId,
+					String resourceId, String action, boolean result,
+					long nanos, int rolePathLength, int resourcePathLength,
+					int probes) {
+				measured.incrementAndGet();
+			}
+		};
+		acl.setMetrics(metrics);
+
+		AclRecorder recorder = new AclRecorder(acl, trace);
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("luke"), new Role("jedi"));
+		acl.addResource(new Resource("light-sabre"));
+		acl.allow(new Role("jedi"), new Resource("light-sabre"));
+		for (int i = 0; i < 50; i++) {
+			acl.isAllowed(new Role("luke"), new Resource("light-sabre"));
+			acl.isDenied(new Role("luke"), new Resource("light-sabre"),
+					"READ");
+		}
+		acl.deny(new Role("luke"), new Resource("light-sabre"), "READ");
+		for (int i = 0; i < 50; i++) {
+			acl.isAllowed(new Role("luke"), new Resource("light-sabre"),
+					"READ");
+			acl.isAllowed(null, null);
+		}
+		recorder.close();
+
+		//the measurements were passed on, and the metrics given back
+		Assert.assertEquals(measured.get(), 200);
+		Assert.assertSame(acl.getMetrics(), metrics);
+		Assert.assertEquals(recorder.getDecisionCount(), 200);
+		Assert.assertEquals(recorder.getMutationCount(), 5);
+		acl.isAllowed(new Role("luke"), new Resource("light-sabre"));
+		Assert.assertEquals(recorder.getDecisionCount(), 200);
+
+		AclReplayer replayer = new AclReplayer(trace);
+		Assert.assertEquals(replayer.getDecisionCount(), 200);
+		Assert.assertEquals(replayer.getMutationCount(), 5);
+
+		AclReplayer.Report report = replayer.replay(Acl.makeInstance(), 4, 0);
+		Assert.assertEquals(report.getDecisions(), 200);
+		Assert.assertEquals(report.getMutations(), 5);
+		Assert.assertEquals(report.getFailedMutations(), 0);
+		Assert.assertEquals(report.getMismatches(), 0,
+				report.getMismatchSamples().toString());
+		Assert.assertTrue(report.getThroughput() > 0);
+		Assert.assertTrue(report.getLatency(50).compareTo(report.getLatency(
+				100)) <= 0);
+
+		//another configuration
+		Acl other = Acl.makeInstance();
+		other.makeDefaultAllow();
+		other.addRole(new Role("jedi"));
+		report = replayer.replay(other, 2, 0);
+		Assert.assertEquals(report.getFailedMutations(), 1);
+		Assert.assertEquals(report.getMismatches(), 50); //isAllowed(null, null)
+		Assert.assertTrue(report.getMismatchSamples().get(0).startsWith(
+				"ADD_ROLE jedi"));
+		Assert.assertTrue(report.getMismatchSamples().contains(
+				"isAllowed(null, null) was false"));
+
+		//paced
+		report = replayer.replay(Acl.makeInstance(), 1, 20000);
+		Assert.assertTrue(report.getElapsed().compareTo(Duration.ofMillis(
+				9)) >= 0);
+
+		Assert.assertTrue(trace.delete());
+	}
+}
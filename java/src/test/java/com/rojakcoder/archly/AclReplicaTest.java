@@ -0,0 +1,75 @@
+package com.rojakcoder.archly;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AclReplicaTest {
+	@Test
+	public void testReplicate() throws IOException, InterruptedException {
+		Acl source = Acl.makeInstance();
+		source.addRole(new Role("jedi"));
+		source.allow(new Role("jedi"), new Resource("light-sabre"));
+
+		AclPrimary primary = new AclPrimary(source, 0);
+		primary.setBacklogSize(8);
+		primary.setHeartbeatInterval(50);
+		primary.start();
+
+		Acl copy = Acl.makeInstance();
+		copy.addRole(new Role("stale"));
+		AclReplica replica = new AclReplica(copy, "localhost",
+				primary.getPort());
+		replica.setRetryDelay(50);
+		replica.start();
+
+		//a new replica is sent a snapshot
+		awaitTrue(() -> replica.getAppliedSequence() == source.getSequence()
+				&& replica.getSnapshotCount() == 1);
+		Assert.assertTrue(source.diff(copy).isEmpty());
+
+		//changes are streamed
+		source.addRole(new Role("luke"), new Role("jedi"));
+		source.deny(new Role("luke"), new Resource("light-sabre"), "DELETE");
+		awaitTrue(() -> replica.getAppliedSequence() == source.getSequence());
+		Assert.assertTrue(copy.isDenied(new Role("luke"), new Resource(
+				"light-sabre"), "DELETE"));
+		Assert.assertEquals(replica.getLag(), 0);
+		Assert.assertEquals(replica.getLagMillis(), 0);
+
+		//catches up from the backlog after a disconnect
+		replica.setRetryDelay(500);
+		replica.disconnect();
+		awaitTrue(() -> !replica.isConnected());
+		source.removeRole(new Role("luke"), false);
+		awaitTrue(() -> replica.getAppliedSequence() == source.getSequence());
+		Assert.assertEquals(replica.getSnapshotCount(), 1);
+		Assert.assertTrue(source.diff(copy).isEmpty());
+
+		//falls back to a snapshot when the backlog has moved on
+		replica.disconnect();
+		awaitTrue(() -> !replica.isConnected());
+		for (int i = 0; i < 20; i++) {
+			source.allow(new Role("trooper-" + i), new Resource("blaster"));
+		}
+		awaitTrue(() -> replica.getAppliedSequence() == source.getSequence());
+		Assert.assertEquals(replica.getSnapshotCount(), 2);
+		Assert.assertTrue(source.diff(copy).isEmpty());
+
+		replica.close();
+		primary.close();
+	}
+
+	private static void awaitTrue(BooleanSupplier condition)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (!condition.getAsBoolean()) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline,
+					"Timed out");
+			Thread.sleep(10);
+		}
+	}
+}
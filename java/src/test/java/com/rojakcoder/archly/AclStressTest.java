@@ -0,0 +1,289 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Runs access checks against concurrent changes and checks the results
+ * against what a sequential ACL would give. How the checks scale with the
+ * number of threads is measured by the contended group of DecisionBenchmark
+ * in the benchmarks module.
+ * <p>
+ * Set the system property <code>archly.stress.millis</code> to run each test
+ * for longer than the default of half a second.
+ * </p>
+ */
+public class AclStressTest {
+	private static final long MILLIS = Long.getLong("archly.stress.millis",
+			500);
+
+	/**
+	 * The actions that the writers change. DELETE is never allowed.
+	 */
+	private static final String[] ACTIONS = { "CREATE", "READ", "UPDATE" };
+
+	private static final int RESOURCES = 16;
+
+	private ExecutorService executor;
+
+	@BeforeClass
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterClass
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Each writer changes the permissions of its own role and checks them
+	 * against its model after every change, while readers check the roles of
+	 * all writers. No grant may be lost.
+	 */
+	@Test
+	public void testWritersAgainstModel() throws Exception {
+		Acl acl = Acl.makeInstance();
+		int writers = Math.max(2, threads());
+		for (int r = 0; r < RESOURCES; r++) {
+			acl.addResource(new Resource("res" + r));
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Future<Map<String, Map<String, Boolean>>>> models = new ArrayList<>();
+		for (int w = 0; w < writers; w++) {
+			String role = "writer" + w;
+			long seed = w;
+
+			acl.addRole(new Role(role));
+			models.add(executor.submit(() -> write(acl, role, seed, running)));
+		}
+
+		List<Future<Long>> readers = new ArrayList<>();
+		for (int r = 0; r < writers; r++) {
+			long seed = 100 + r;
+
+			readers.add(executor.submit(() -> {
+				Random random = new Random(seed);
+				long checks = 0;
+
+				while (running.get()) {
+					Role role = new Role("writer" + random.nextInt(writers));
+					Resource resource = new Resource("res" + random.nextInt(
+							RESOURCES));
+					String action = ACTIONS[random.nextInt(ACTIONS.length)];
+
+					acl.isAllowed(role, resource, action);
+					//no writer grants this action, whatever state is seen
+					if (acl.isAllowed(role, resource, "DELETE")) {
+						Assert.fail(role.getId() + " allowed to delete");
+					}
+					checks += 2;
+				}
+
+				return checks;
+			}));
+		}
+
+		Thread.sleep(MILLIS);
+		running.set(false);
+
+		Map<String, Map<String, Boolean>> expected = new HashMap<>();
+		expected.put("*::*", actions("ALL", false));
+		for (Future<Map<String, Map<String, Boolean>>> model: models) {
+			expected.putAll(model.get(10, TimeUnit.SECONDS));
+		}
+		for (Future<Long> reader: readers) {
+			Assert.assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+		}
+		Assert.assertEquals(acl.exportPermissions(), expected);
+	}
+
+	/**
+	 * Changes that are made of several steps must never be seen half made.
+	 * The role is moved between two parents together with their permissions,
+	 * so it is always allowed, but it would be denied in between.
+	 */
+	@Test
+	public void testMultiStepChangesAreAtomic() throws Exception {
+		Acl acl = Acl.makeInstance();
+		Role role = new Role("r");
+		Resource resource = new Resource("res");
+		acl.addRole(new Role("p1"));
+		acl.addRole(new Role("p2"));
+		acl.addRole(role, new Role("p1"));
+		acl.addResource(resource);
+		acl.allow(new Role("p1"), resource);
+		acl.deny(new Role("p2"), resource);
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Future<Long> writer = executor.submit(() -> {
+			long changes = 0;
+
+			while (running.get()) {
+				String to = changes % 2 == 0 ? "p2" : "p1";
+				String from = changes % 2 == 0 ? "p1" : "p2";
+
+				acl.applyDelta(new AclDelta().putRole("r", to).putPermission(
+						to, "res", actions("ALL", true)).putPermission(from,
+								"res", actions("ALL", false)));
+				changes++;
+			}
+
+			return changes;
+		});
+
+		long checks = check(running, () -> acl.isAllowed(role, resource));
+		Assert.assertTrue(writer.get(10, TimeUnit.SECONDS) > 0);
+		Assert.assertTrue(checks > 0);
+	}
+
+	/**
+	 * An import of permissions is seen either not at all or completely.
+	 */
+	@Test
+	public void testImportsAreAtomic() throws Exception {
+		Acl acl = Acl.makeInstance();
+		Role child = new Role("child");
+		Resource resource = new Resource("res");
+		Map<String, String> roles = new HashMap<>();
+		roles.put("parent", "");
+		roles.put("child", "parent");
+		Map<String, String> resources = new HashMap<>();
+		resources.put("res", "");
+		//the grant is imported before the denial that overrides it
+		Map<String, Map<String, Boolean>> permissions = new LinkedHashMap<>();
+		permissions.put("parent::res", actions("ALL", true));
+		permissions.put("child::res", actions("ALL", false));
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Future<Long> writer = executor.submit(() -> {
+			long imports = 0;
+
+			while (running.get()) {
+				acl.clear();
+				acl.importRoles(roles);
+				acl.importResources(resources);
+				acl.importPermissions(permissions);
+				imports++;
+			}
+
+			return imports;
+		});
+
+		long checks = check(running, () -> !acl.isAllowed(child, resource));
+		Assert.assertTrue(writer.get(10, TimeUnit.SECONDS) > 0);
+		Assert.assertTrue(checks > 0);
+	}
+
+	private Map<String, Map<String, Boolean>> write(Acl acl, String role,
+			long seed, AtomicBoolean running) {
+		Random random = new Random(seed);
+		Role aro = new Role(role);
+		Map<String, Map<String, Boolean>> model = new HashMap<>();
+
+		while (running.get()) {
+			String res = "res" + random.nextInt(RESOURCES);
+			String key = role + "::" + res;
+			String action = ACTIONS[random.nextInt(ACTIONS.length)];
+			Resource aco = new Resource(res);
+			Map<String, Boolean> perm = model.get(key);
+			int op = random.nextInt(100);
+
+			if (op < 40) {
+				acl.allow(aro, aco, action);
+				model.computeIfAbsent(key, k -> new HashMap<>()).put(action,
+						true);
+			} else if (op < 80) {
+				acl.deny(aro, aco, action);
+				model.computeIfAbsent(key, k -> new HashMap<>()).put(action,
+						false);
+			} else if (op < 92 && perm != null && perm.containsKey(action)) {
+				acl.remove(aro, aco, action);
+				perm.remove(action);
+				if (perm.isEmpty()) {
+					model.remove(key);
+				}
+			} else if (op < 98 && perm != null) {
+				acl.remove(aro, aco);
+				model.remove(key);
+			} else if (op >= 98) {
+				acl.removeRole(aro, false);
+				acl.addRole(aro);
+				model.clear();
+			}
+
+			String checked = ACTIONS[random.nextInt(ACTIONS.length)];
+			Map<String, Boolean> actions = model.get(key);
+			boolean expected = actions != null && Boolean.TRUE.equals(actions
+					.get(checked));
+			Assert.assertEquals(acl.isAllowed(aro, aco, checked), expected,
+					key + " " + checked);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Checks an invariant on the threads until the time is up.
+	 *
+	 * @return The number of checks made.
+	 */
+	private long check(AtomicBoolean running, Invariant invariant)
+			throws Exception {
+		List<Future<Long>> readers = new ArrayList<>();
+
+		for (int t = 0; t < threads(); t++) {
+			readers.add(executor.submit(() -> {
+				long checks = 0;
+
+				while (running.get()) {
+					Assert.assertTrue(invariant.holds());
+					checks++;
+				}
+
+				return checks;
+			}));
+		}
+		Thread.sleep(MILLIS);
+		running.set(false);
+
+		long checks = 0;
+		for (Future<Long> reader: readers) {
+			checks += reader.get(10, TimeUnit.SECONDS);
+		}
+
+		return checks;
+	}
+
+	private static int threads() {
+		return Math.min(8, Runtime.getRuntime().availableProcessors());
+	}
+
+	private static Map<String, Boolean> actions(String action, boolean allow) {
+		Map<String, Boolean> actions = new HashMap<>();
+
+		actions.put(action, allow);
+
+		return actions;
+	}
+
+	@FunctionalInterface
+	private interface Invariant {
+		boolean holds();
+	}
+}
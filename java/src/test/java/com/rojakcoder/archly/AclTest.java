@@ -1,13 +1,29 @@
 package com.rojakcoder.archly;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.rojakcoder.archly.exceptions.DuplicateEntryException;
 import com.rojakcoder.archly.exceptions.EntryNotFoundException;
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
 import com.rojakcoder.archly.exceptions.NonEmptyException;
 
 public class AclTest {
@@ -800,6 +816,838 @@ public class AclTest {
 
 	}
 
+	@Test(priority = 47)
+	public void testStreamingImport() {
+		Acl acl = Acl.makeInstance();
+		final int size = 2500;
+		List<Mutation> mutations = new ArrayList<>();
+		acl.addListener((sequence, mutation) -> mutations.add(mutation));
+
+		//generate the entries on the fly instead of holding them in a map
+		Iterator<Map.Entry<String, String>> roles = new Iterator<Map.Entry<String, String>>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				String parent = i == 0 ? "" : "ROLE-" + (i - 1);
+				if (i == size / 2) {
+					//read without holding the lock, so checks can be made
+					Assert.assertFalse(acl.isAllowed(new Role("ROLE-0"),
+							new Resource("doc")));
+				}
+				return new AbstractMap.SimpleEntry<>("ROLE-" + i++, parent);
+			}
+		};
+		Iterator<Map.Entry<String, Map<String, Boolean>>> perms = new Iterator<Map.Entry<String, Map<String, Boolean>>>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Map.Entry<String, Map<String, Boolean>> next() {
+				Map<String, Boolean> perm = new HashMap<>();
+				perm.put("ALL", i % 2 == 0);
+				return new AbstractMap.SimpleEntry<>("ROLE-" + i++ + "::doc",
+						perm);
+			}
+		};
+
+		acl.clear();
+		Assert.assertEquals(acl.importRoles(roles), size);
+		Assert.assertEquals(acl.importResources(Collections.singletonMap(
+				"doc", "").entrySet().spliterator()), 1);
+		Assert.assertEquals(acl.importPermissions(perms), size);
+		//recorded a chunk at a time
+		Assert.assertEquals(mutations.size(), 1 + 3 + 1 + 3);
+		Assert.assertEquals(mutations.get(1).delta.getPutRoles().size(), 1024);
+
+		Assert.assertEquals(acl.exportRoles().size(), size);
+		Assert.assertEquals(acl.exportPermissions().size(), size);
+		Assert.assertTrue(acl.isAllowed(new Role("ROLE-0"), new Resource("doc")));
+		Assert.assertTrue(acl.isDenied(new Role("ROLE-1"), new Resource("doc")));
+		Assert.assertTrue(acl.isAllowed(new Role("ROLE-2498"), new Resource(
+				"doc")));
+
+		boolean thrown = false;
+		try {
+			acl.importRoles(Collections.singletonMap("X", "").entrySet()
+					.iterator());
+		} catch (NonEmptyException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown, "Roles are non-empty");
+	}
+
+	@Test(priority = 45)
+	public void testResourcePatterns() {
+		Acl acl = Acl.makeInstance();
+		Rol analyst = new Rol("analyst");
+		Rol intern = new Rol("intern");
+		acl.addRole(analyst);
+		acl.addRole(intern, analyst);
+		acl.addResource(new Res("reports"));
+		acl.addResource(new Res("reports/2017/quarterly"), new Res("reports"));
+
+		acl.allow(analyst, new Res("reports/*/quarterly"));
+		acl.deny(analyst, new Res("reports/**"), "DELETE");
+		//patterns are not registered as resources
+		Assert.assertFalse(acl.exportResources().containsKey(
+				"reports/*/quarterly"));
+
+		//unregistered resources are matched by the patterns
+		Assert.assertTrue(acl.isAllowed(analyst, new Res(
+				"reports/2018/quarterly"), "READ"));
+		Assert.assertTrue(acl.isAllowed(intern, new Res(
+				"reports/2018/quarterly"), "READ"));
+		Assert.assertFalse(acl.isAllowed(analyst, new Res(
+				"reports/2018/annual"), "READ"));
+		Assert.assertTrue(acl.isDenied(analyst, new Res(
+				"reports/2018/annual"), "DELETE"));
+		Assert.assertTrue(acl.isDenied(analyst, new Res(
+				"reports/2018/q1/summary"), "DELETE"));
+		Assert.assertTrue(acl.isDenied(analyst, new Res("reports"),
+				"DELETE"));
+		//the more specific pattern takes precedence
+		Assert.assertFalse(acl.isDenied(analyst, new Res(
+				"reports/2018/quarterly"), "DELETE"));
+
+		//a rule on the resource takes precedence over the patterns
+		acl.deny(analyst, new Res("reports/2017/quarterly"));
+		Assert.assertTrue(acl.isDenied(analyst, new Res(
+				"reports/2017/quarterly")));
+		//and a pattern on the resource over a rule on its parent
+		acl.allow(analyst, new Res("reports"), "UPDATE");
+		Assert.assertFalse(acl.isAllowed(analyst, new Res(
+				"reports/2018/q1/summary"), "UPDATE"));
+		Assert.assertTrue(acl.isAllowed(analyst, new Res(
+				"reports/2018/quarterly"), "UPDATE"));
+		//a nearer role takes precedence over the patterns
+		acl.deny(intern, new Res("reports/2018/quarterly"), "READ");
+		Assert.assertTrue(acl.isDenied(intern, new Res(
+				"reports/2018/quarterly"), "READ"));
+
+		acl.remove(analyst, new Res("reports/*/quarterly"));
+		Assert.assertFalse(acl.isAllowed(analyst, new Res(
+				"reports/2018/quarterly"), "READ"));
+	}
+
+	@Test(priority = 45)
+	public void testConditionalRules() {
+		Acl acl = Acl.makeInstance();
+		Rol staff = new Rol("staff");
+		Rol intern = new Rol("intern");
+		Res doc = new Res("doc");
+		acl.addRole(staff);
+		acl.addRole(intern, staff);
+		acl.addResource(doc);
+
+		acl.allow(staff, doc, "READ", "hour >= 9 && hour < 17");
+		acl.deny(staff, doc, "ALL", "ip in '10.0.0.0/8'");
+
+		Map<String, Object> attrs = new HashMap<>();
+		attrs.put("hour", 10);
+		attrs.put("ip", "192.168.1.2");
+		Assert.assertTrue(acl.isAllowed(staff, doc, "READ", attrs));
+		Assert.assertTrue(acl.isAllowed(intern, doc, "READ", attrs));
+		Assert.assertFalse(acl.isAllowed(staff, doc, "UPDATE", attrs));
+		attrs.put("hour", 18);
+		Assert.assertFalse(acl.isAllowed(staff, doc, "READ", attrs));
+		//a denial that holds takes precedence
+		attrs.put("hour", 10);
+		attrs.put("ip", "10.1.2.3");
+		Assert.assertFalse(acl.isAllowed(staff, doc, "READ", attrs));
+		Assert.assertTrue(acl.isDenied(staff, doc, "READ", attrs));
+		//conditions do not apply without attributes; the default denies
+		Assert.assertFalse(acl.isAllowed(staff, doc, "READ"));
+		acl.makeDefaultAllow();
+		Assert.assertFalse(acl.isDenied(staff, doc, "READ"));
+		acl.makeDefaultDeny();
+		Assert.assertFalse(acl.isAllowed(staff, doc));
+
+		//the unconditional rule applies when no condition holds
+		acl.allow(staff, doc, "READ");
+		attrs.put("ip", "192.168.1.2");
+		attrs.put("hour", 20);
+		Assert.assertTrue(acl.isAllowed(staff, doc, "READ", attrs));
+		Assert.assertTrue(acl.isAllowed(staff, doc, "READ"));
+		//not even conditions that hold for missing attributes
+		acl.deny(staff, doc, "READ", "!(ip in '10.0.0.0/8')");
+		acl.deny(intern, doc, "ALL", "owner == null");
+		Assert.assertTrue(acl.isAllowed(staff, doc, "READ"));
+		Assert.assertFalse(acl.isDenied(staff, doc, "READ"));
+		Assert.assertTrue(acl.isAllowed(intern, doc, "READ"));
+		Assert.assertFalse(acl.isDenied(intern, doc, "READ"));
+		Assert.assertFalse(acl.isAllowed(staff, doc, "READ",
+				new HashMap<String, Object>()));
+		acl.remove(intern, doc);
+
+		//conditions are only exported on request, and imported with them
+		Map<String, Boolean> plain = new HashMap<>();
+		plain.put("READ", true);
+		Assert.assertEquals(acl.exportPermissions().get("staff::doc"), plain);
+		Assert.assertEquals(acl.exportPermissionsWithRules().get("staff::doc")
+				.size(), 4);
+		//a condition that mentions a time is not a timed action
+		acl.allow(intern, doc, "UPDATE", "note == 'wait until 5'");
+		Acl copy = Acl.makeInstance();
+		copy.clear();
+		copy.importRoles(acl.exportRoles());
+		copy.importResources(acl.exportResources());
+		copy.importPermissions(acl.exportPermissionsWithRules());
+		attrs.put("ip", "10.1.2.3");
+		Assert.assertTrue(copy.isDenied(intern, doc, "CREATE", attrs));
+		attrs.put("ip", "192.168.1.2");
+		attrs.put("note", "wait until 5");
+		Assert.assertTrue(copy.isAllowed(intern, doc, "UPDATE", attrs));
+		Assert.assertFalse(copy.hasExpirer());
+		Assert.assertEquals(copy.exportPermissionsWithRules(), acl
+				.exportPermissionsWithRules());
+		attrs.remove("note");
+
+		//removing the action removes its conditions
+		acl.remove(staff, doc, "READ");
+		attrs.put("ip", "192.168.1.2");
+		attrs.put("hour", 10);
+		Assert.assertFalse(acl.isAllowed(staff, doc, "READ", attrs));
+
+		boolean thrown = false;
+		try {
+			acl.allow(staff, doc, "READ", "hour >=");
+		} catch (InvalidConditionException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown, "Invalid condition");
+	}
+
+	@Test(priority = 45)
+	public void testTimedRules() throws InterruptedException {
+		Acl acl = Acl.makeInstance();
+		Rol guest = new Rol("guest");
+		Res doc = new Res("doc");
+		Instant expiry = Instant.now().plusMillis(300);
+
+		acl.deny(guest, doc, "READ");
+		acl.allow(guest, doc, "READ", expiry);
+		acl.deny(guest, doc, "ALL", expiry);
+		Assert.assertTrue(acl.isAllowed(guest, doc, "READ"));
+		Assert.assertTrue(acl.isDenied(guest, doc, "UPDATE"));
+		//only exported on request
+		Assert.assertFalse(acl.exportPermissions().containsKey("guest::doc"));
+		Assert.assertEquals(acl.exportPermissionsWithRules().get("guest::doc")
+				.size(), 2);
+
+		//replaced by a permanent rule before it expires
+		acl.allow(guest, doc, "UPDATE", expiry);
+		acl.allow(guest, doc, "UPDATE");
+
+		while (Instant.now().isBefore(expiry)) {
+			Thread.sleep(10);
+		}
+		//never honoured once expired, even before it is removed
+		Assert.assertFalse(acl.isAllowed(guest, doc, "READ"));
+		Assert.assertNull(acl.permissions().isDenied("guest", "doc",
+				Permission.Types.DELETE));
+		Assert.assertNull(acl.permissions().isAllowed("guest", "doc"));
+		Assert.assertTrue(acl.isAllowed(guest, doc, "UPDATE"));
+
+		for (int i = 0; i < 100 && acl.exportPermissionsWithRules().get(
+				"guest::doc").size() > 1; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(acl.exportPermissionsWithRules().get("guest::doc"),
+				Collections.singletonMap("UPDATE", true));
+
+		//expired rules are removed in the past as well
+		acl.allow(guest, doc, "READ", Instant.now().minusSeconds(1));
+		Assert.assertFalse(acl.isAllowed(guest, doc, "READ"));
+		for (int i = 0; i < 100 && acl.exportPermissionsWithRules().get(
+				"guest::doc").size() > 1; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(acl.exportPermissionsWithRules().get("guest::doc")
+				.size(), 1);
+		//the removal stops once there are no timed rules left
+		for (int i = 0; i < 100 && acl.hasExpirer(); i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertFalse(acl.hasExpirer());
+		acl.allow(guest, doc, "READ", Instant.now().plusSeconds(60));
+		Assert.assertTrue(acl.hasExpirer());
+		acl.clear();
+		Assert.assertFalse(acl.hasExpirer());
+	}
+
+	@Test(priority = 45)
+	public void testLayeredInstances() {
+		Acl template = Acl.makeInstance();
+		Rol staff = new Rol("staff");
+		Rol admin = new Rol("admin");
+		Res docs = new Res("docs");
+		Res report = new Res("report");
+		template.addRole(staff);
+		template.addRole(admin, staff);
+		template.addResource(docs);
+		template.addResource(report, docs);
+		template.allow(staff, docs, "READ");
+		template.allow(admin, docs);
+		template.allow(staff, new Res("docs/*"), "CREATE");
+
+		AclBase base = template.makeBase();
+		Assert.assertEquals(base.getRoleCount(), 2);
+		Assert.assertEquals(base.getPermissionCount(), 4);
+
+		Acl tenant1 = Acl.makeInstance(base);
+		Acl tenant2 = Acl.makeInstance(base);
+		Assert.assertTrue(tenant1.isAllowed(admin, report, "READ"));
+		Assert.assertTrue(tenant1.isAllowed(staff, report, "READ"));
+		Assert.assertTrue(tenant1.isAllowed(staff, new Res("docs/x"),
+				"CREATE"));
+		Assert.assertFalse(tenant1.isAllowed(staff, report, "UPDATE"));
+
+		//changes stay in the tenant
+		Rol guest = new Rol("guest");
+		tenant1.addRole(guest, staff);
+		tenant1.deny(staff, report, "READ");
+		tenant1.remove(admin, docs);
+		tenant1.allow(staff, docs, "UPDATE");
+		Assert.assertFalse(tenant1.isAllowed(guest, report, "READ"));
+		Assert.assertTrue(tenant1.isAllowed(guest, docs, "READ"));
+		Assert.assertTrue(tenant1.isAllowed(guest, docs, "UPDATE"));
+		Assert.assertFalse(tenant1.isAllowed(admin, report, "DELETE"));
+		Assert.assertEquals(tenant1.exportRoles().size(), 3);
+		Assert.assertEquals(tenant1.exportPermissions().size(), 4);
+
+		Assert.assertTrue(tenant2.isAllowed(staff, report, "READ"));
+		Assert.assertTrue(tenant2.isAllowed(admin, report, "DELETE"));
+		Assert.assertFalse(tenant2.isAllowed(staff, docs, "UPDATE"));
+		Assert.assertEquals(tenant2.exportRoles().size(), 2);
+		Assert.assertTrue(template.diff(tenant2).isEmpty());
+		Assert.assertEquals(template.diff(tenant1).size(), 4);
+
+		//removing a role of the base removes its rules in the tenant only
+		tenant2.removeRole("admin", false);
+		Assert.assertFalse(tenant2.isAllowed(admin, report, "DELETE"));
+		Assert.assertTrue(tenant1.isAllowed(staff, docs, "READ"));
+		Assert.assertEquals(base.getPermissionCount(), 4);
+
+		tenant2.clear();
+		Assert.assertTrue(tenant2.exportRoles().isEmpty());
+		Assert.assertEquals(tenant1.exportResources().size(), 2);
+	}
+
+	@Test(priority = 45)
+	public void testVersionedInstances() {
+		Acl acl = Acl.makeVersionedInstance(3);
+		Role jedi = new Role("jedi");
+		Role luke = new Role("luke");
+		Resource sabre = new Resource("light-sabre");
+
+		AclVersion initial = acl.getVersion();
+		Assert.assertEquals(initial.getSequence(), 0);
+		Assert.assertEquals(initial.getPermissionCount(), 1);
+
+		acl.addRole(jedi);
+		acl.addRole(luke, jedi);
+		acl.addResource(sabre);
+		acl.allow(jedi, sabre);
+		AclVersion allowed = acl.getVersion();
+		Assert.assertEquals(allowed.getSequence(), 4);
+		acl.deny(luke, sabre, "UPDATE");
+		acl.removeRole(luke, false);
+
+		//at most 3 versions are kept
+		List<AclVersion> versions = acl.getVersions();
+		Assert.assertEquals(versions.size(), 3);
+		Assert.assertEquals(versions.get(0), allowed);
+		Assert.assertEquals(versions.get(2), acl.getVersion());
+		Assert.assertNull(acl.getVersion(3));
+		Assert.assertEquals(acl.getVersion(4), allowed);
+		Assert.assertEquals(acl.getVersion(100), acl.getVersion());
+		Assert.assertEquals(acl.getVersionAt(Instant.now()), acl.getVersion());
+		Assert.assertNull(acl.getVersionAt(Instant.EPOCH));
+
+		//past versions are checked as they were
+		Assert.assertTrue(allowed.isAllowed(luke, sabre, "UPDATE"));
+		AclVersion denied = acl.getVersion(5);
+		Assert.assertFalse(denied.isAllowed(luke, sabre, "UPDATE"));
+		Assert.assertTrue(denied.isAllowed(luke, sabre, "READ"));
+		Assert.assertFalse(acl.isAllowed(luke, sabre));
+		Assert.assertEquals(acl.getVersion().getRoleCount(), 1);
+		Assert.assertEquals(denied.exportRoles().get("luke"), "jedi");
+		Assert.assertEquals(denied.exportPermissions(), acl.getVersion(5)
+				.exportPermissions());
+		Assert.assertEquals(acl.getVersion().exportPermissions(), acl
+				.exportPermissions());
+
+		//patterns and timed rules
+		acl.allow(luke, new Resource("droids/**"), "READ");
+		acl.allow(jedi, new Resource("holocron"), "READ", Instant.now()
+				.minusSeconds(1));
+		AclVersion latest = acl.getVersion();
+		Assert.assertTrue(latest.isAllowed(luke, new Resource("droids/r2"),
+				"READ"));
+		Assert.assertTrue(acl.isAllowed(luke, new Resource("droids/r2"),
+				"READ"));
+		Assert.assertFalse(latest.isAllowed(jedi, new Resource("holocron"),
+				"READ"));
+
+		boolean thrown = false;
+		try {
+			Acl.makeInstance().getVersion();
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+	}
+
+	@Test(priority = 45)
+	public void testMetrics() {
+		Acl acl = Acl.makeInstance();
+		List<String> decisions = new ArrayList<>();
+		List<String> mutations = new ArrayList<>();
+		acl.setMetrics(new AclMetrics() {
+			@Override
+			public void decided(Check check, String roleId,
+					String resourceId, String action, boolean result,
+					long nanos, int rolePathLength, int resourcePathLength,
+					int probes) {
+				Assert.assertTrue(nanos >= 0);
+				decisions.add(check + " " + roleId + " " + resourceId + " "
+						+ action + " " + result + " "
+						+ rolePathLength + " " + resourcePathLength + " "
+						+ probes);
+			}
+
+			@Override
+			public void batchDecided(Check check, String roleId,
+					List<String> resourceIds, String action, BitSet results,
+					long nanos, int rolePathLength) {
+				Assert.assertTrue(nanos >= 0);
+				decisions.add(check + " " + roleId + " " + resourceIds + " "
+						+ action + " " + results + " " + rolePathLength);
+			}
+
+			@Override
+			public void mutated(String operation, String first,
+					String second, long nanos, int roleCount,
+					int resourceCount, int permissionCount) {
+				mutations.add(operation + " " + first + " " + second + " "
+						+ roleCount + " " + resourceCount + " "
+						+ permissionCount);
+			}
+
+			@Override
+			public void bulkChanged(String operation, long nanos,
+					int entries) {
+				mutations.add(operation + " " + entries);
+			}
+		});
+		//unsetting the metrics of another ACL leaves these in place
+		Acl other = Acl.makeInstance();
+		other.setMetrics(acl.getMetrics());
+		other.setMetrics(null);
+
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("luke"), new Role("jedi"));
+		acl.addResource(new Resource("light-sabre"));
+		acl.allow(new Role("jedi"), new Resource("light-sabre"));
+		Assert.assertEquals(mutations, Arrays.asList(
+				"ADD_ROLE jedi null 1 0 1", "ADD_ROLE luke jedi 2 0 1",
+				"ADD_RESOURCE light-sabre null 2 1 1",
+				"ALLOW jedi light-sabre 2 1 2"));
+
+		Assert.assertTrue(acl.isAllowed(new Role("luke"), new Resource(
+				"light-sabre")));
+		Assert.assertFalse(acl.isDenied(new Role("luke"), new Resource(
+				"light-sabre"), "READ"));
+		//luke has no rules, so only jedi and the default are on the paths
+		Assert.assertEquals(decisions, Arrays.asList(
+				"ALLOWED luke light-sabre null true 2 2 1",
+				"DENIED luke light-sabre READ false 2 2 1"));
+		//a batch is reported once, with the time of the whole batch
+		decisions.clear();
+		acl.areAllowed(new Role("luke"), Arrays.asList(new Resource(
+				"blaster"), new Resource("light-sabre")), "READ");
+		Assert.assertEquals(decisions, Collections.singletonList(
+				"ALLOWED luke [blaster, light-sabre] READ {1} 2"));
+
+		//bulk changes
+		mutations.clear();
+		acl.removeRole(new Role("jedi"), true);
+		Assert.assertEquals(mutations, Arrays.asList("REMOVE_ROLE jedi null 0 1 1",
+				"REMOVE_ROLE 3"));
+		mutations.clear();
+		Map<String, String> imported = new HashMap<>();
+		imported.put("yoda", "");
+		acl.importRoles(imported);
+		Assert.assertEquals(mutations, Arrays.asList("DELTA null null 1 1 1",
+				"IMPORT_ROLES 1"));
+
+		acl.setMetrics(null);
+		acl.isAllowed(new Role("yoda"), new Resource("light-sabre"));
+		acl.clear();
+		Assert.assertEquals(decisions.size(), 1);
+		Assert.assertEquals(mutations.size(), 2);
+	}
+
+	@Test(priority = 46)
+	public void testApplyDelta() {
+		Acl acl = Acl.makeInstance();
+		Map<String, Boolean> allTrue = new HashMap<>();
+		allTrue.put("ALL", true);
+		Map<String, Boolean> allFalse = new HashMap<>();
+		allFalse.put("ALL", false);
+
+		acl.addRole(new Role("jedi"));
+		acl.addRole(new Role("luke"), new Role("jedi"));
+		acl.addRole(new Role("sith"));
+		acl.addResource(new Resource("light-sabre"));
+		acl.addResource(new Resource("staff"), new Resource("light-sabre"));
+		acl.allow(new Role("jedi"), new Resource("light-sabre"));
+		acl.allow(new Role("sith"), new Resource("light-sabre"));
+
+		AclDelta delta = new AclDelta();
+		Assert.assertTrue(delta.isEmpty());
+		delta.putRole("obiwan", "jedi")
+				.putRole("vader", "jedi")
+				.putRole("vader", "sith") //re-parented before applied
+				.removeRole("luke")
+				.putResource("blaster", null)
+				.removeResource("staff")
+				.putPermission("sith", "light-sabre", allFalse)
+				.putPermission("vader::blaster", allTrue)
+				.removePermission("jedi", "light-sabre")
+				.removeResource("not-present");
+		Assert.assertEquals(delta.size(), 9);
+
+		acl.applyDelta(delta);
+
+		Map<String, String> roles = acl.exportRoles();
+		Assert.assertEquals(roles.size(), 4);
+		Assert.assertEquals(roles.get("vader"), "sith");
+		Assert.assertFalse(roles.containsKey("luke"));
+		Map<String, String> resources = acl.exportResources();
+		Assert.assertEquals(resources.size(), 2);
+		Assert.assertTrue(resources.containsKey("blaster"));
+
+		Assert.assertFalse(acl.isAllowed(new Role("obiwan"), new Resource(
+				"light-sabre")));
+		Assert.assertTrue(acl.isDenied(new Role("vader"), new Resource(
+				"light-sabre")));
+		Assert.assertTrue(acl.isAllowed(new Role("vader"), new Resource(
+				"blaster")));
+
+		//the delta is not affected by changes to the ACL
+		acl.allow(new Role("vader"), new Resource("blaster"), "CREATE");
+		Assert.assertEquals(delta.getPutPermissions().get("vader::blaster")
+				.size(), 1);
+
+		boolean thrown = false;
+		try {
+			acl.applyDelta(null);
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+
+		//no entry may end up within itself, and nothing is applied if one does
+		acl.addRole(new Role("palpatine"));
+		acl.addRole(new Role("maul"), new Role("palpatine"));
+		thrown = false;
+		try {
+			acl.applyDelta(new AclDelta().putRole("obiwan", "").putRole(
+					"palpatine", "maul"));
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		Assert.assertEquals(acl.exportRoles().get("obiwan"), "jedi");
+		Assert.assertEquals(acl.exportRoles().get("palpatine"), "");
+		Assert.assertFalse(acl.isAllowed(new Role("maul"), new Resource(
+				"blaster")));
+		thrown = false;
+		try {
+			acl.applyDelta(new AclDelta().putResource("a", "b").putResource(
+					"b", "c").putResource("c", "a"));
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		Assert.assertFalse(acl.exportResources().containsKey("a"));
+		thrown = false;
+		try {
+			Acl empty = Acl.makeInstance();
+			empty.importRoles(Collections.singletonMap("self", "self"));
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+
+		//entries may be swapped as long as the end result has no loops
+		acl.applyDelta(new AclDelta().putRole("palpatine", "maul").putRole(
+				"maul", ""));
+		Assert.assertTrue(acl.isRoleUnder(new Role("palpatine"), new Role(
+				"maul")));
+	}
+
+	@Test(priority = 47)
+	public void testBatchChecks() {
+		Acl acl = Acl.makeInstance();
+		Random random = new Random(47);
+		String[] actions = { "ALL", "CREATE", "READ", "UPDATE", "DELETE" };
+		List<Resource> resources = new ArrayList<>();
+
+		acl.addRole(new Role("role0"));
+		acl.addResource(new Resource("docs"));
+		resources.add(new Resource("docs"));
+		for (int i = 1; i < 20; i++) {
+			acl.addRole(new Role("role" + i), new Role("role" + random.nextInt(
+					i)));
+		}
+		for (int i = 1; i < 200; i++) {
+			Resource parent = resources.get(random.nextInt(i));
+			Resource resource = new Resource(parent.getId() + "/" + i);
+
+			acl.addResource(resource, parent);
+			resources.add(resource);
+		}
+		for (int i = 0; i < 60; i++) {
+			Role role = new Role("role" + random.nextInt(20));
+			Resource resource = resources.get(random.nextInt(resources.size()));
+			String action = actions[random.nextInt(actions.length)];
+
+			if (random.nextBoolean()) {
+				acl.allow(role, resource, action);
+			} else {
+				acl.deny(role, resource, action);
+			}
+		}
+		acl.allow(new Role("role3"), new Resource("docs/*"), "READ");
+		acl.deny(new Role("role5"), new Resource("docs/**"), "UPDATE");
+		//duplicates, unregistered resources and all resources
+		resources.add(resources.get(7));
+		resources.add(new Resource("docs/unknown"));
+		resources.add(new Resource("elsewhere"));
+		resources.add(null);
+
+		for (int r = 0; r < 20; r++) {
+			Role role = new Role("role" + r);
+
+			for (String action: actions) {
+				BitSet allowed = acl.areAllowed(role, resources, action);
+				List<Resource> filtered = new ArrayList<>();
+
+				for (int i = 0; i < resources.size(); i++) {
+					Resource resource = resources.get(i);
+
+					Assert.assertEquals(allowed.get(i), acl.isAllowed(role,
+							resource, action), role.getId() + " " + action
+									+ " " + resource);
+					if (allowed.get(i)) {
+						filtered.add(resource);
+					}
+				}
+				Assert.assertEquals(acl.filterAllowed(role, resources, action),
+						filtered);
+			}
+		}
+
+		Assert.assertTrue(acl.areAllowed(null, Collections.emptyList(), "READ")
+				.isEmpty());
+		acl.makeDefaultAllow();
+		Assert.assertEquals(acl.areAllowed(new Role("unknown"), Arrays.asList(
+				new Resource("elsewhere")), "READ").cardinality(), 1);
+	}
+
+	@Test(priority = 48)
+	public void testMoves() throws IOException {
+		Acl acl = Acl.makeInstance();
+		List<String> mutations = new ArrayList<>();
+		acl.addListener((sequence, mutation) -> mutations.add(mutation
+				.toString()));
+
+		acl.addRole(new Role("staff"));
+		acl.addRole(new Role("finance"), new Role("staff"));
+		acl.addRole(new Role("accounts"), new Role("finance"));
+		acl.addRole(new Role("tech"), new Role("staff"));
+		acl.addResource(new Resource("ledger"));
+		acl.addResource(new Resource("servers"));
+		acl.addResource(new Resource("invoices"), new Resource("ledger"));
+		acl.allow(new Role("finance"), new Resource("ledger"));
+		acl.allow(new Role("tech"), new Resource("servers"));
+		acl.deny(new Role("accounts"), new Resource("invoices"), "DELETE");
+		Map<String, Map<String, Boolean>> permissions = acl
+				.exportPermissions();
+
+		//the department moves with its rules
+		acl.moveRole(new Role("finance"), new Role("tech"));
+		Assert.assertEquals(acl.exportRoles().get("finance"), "tech");
+		Assert.assertEquals(acl.exportRoles().get("accounts"), "finance");
+		Assert.assertEquals(acl.exportPermissions(), permissions);
+		Assert.assertTrue(acl.isAllowed(new Role("accounts"), new Resource(
+				"servers")));
+		Assert.assertTrue(acl.isRoleUnder(new Role("accounts"), new Role(
+				"tech")));
+		Assert.assertTrue(acl.isDenied(new Role("accounts"), new Resource(
+				"invoices"), "DELETE"));
+
+		acl.moveResource(new Resource("invoices"), new Resource("servers"));
+		Assert.assertTrue(acl.isAllowed(new Role("tech"), new Resource(
+				"invoices"), "READ"));
+		Assert.assertTrue(acl.isDenied(new Role("accounts"), new Resource(
+				"invoices"), "DELETE"));
+		acl.moveResource(new Resource("invoices"), null);
+		Assert.assertEquals(acl.exportResources().get("invoices"), "");
+		Assert.assertFalse(acl.isAllowed(new Role("tech"), new Resource(
+				"invoices"), "READ"));
+
+		//not under itself
+		boolean thrown = false;
+		try {
+			acl.moveRole(new Role("staff"), new Role("accounts"));
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		thrown = false;
+		try {
+			acl.moveRole(new Role("tech"), new Role("tech"));
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		thrown = false;
+		try {
+			acl.moveResource(new Resource("ledger"), new Resource("unknown"));
+		} catch (EntryNotFoundException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		Assert.assertEquals(acl.exportRoles().get("staff"), "");
+
+		Acl paths = Acl.makePathInstance();
+		paths.addResource(new Resource("/org/42"));
+		thrown = false;
+		try {
+			paths.moveResource(new Resource("/org/42"), null);
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+
+		//recorded and journaled like other changes
+		Assert.assertEquals(mutations.subList(mutations.size() - 3, mutations
+				.size()), Arrays.asList("MOVE_ROLE finance tech",
+						"MOVE_RESOURCE invoices servers",
+						"MOVE_RESOURCE invoices"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Mutation.moveRole("finance", "staff").write(new DataOutputStream(
+				bytes));
+		acl.replay(Mutation.read(new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()))));
+		Assert.assertEquals(acl.exportRoles().get("finance"), "staff");
+	}
+
+	@Test(priority = 49)
+	public void testHandles() {
+		Acl acl = Acl.makeInstance();
+		RoleHandle staff = acl.addRoleHandle(new Role("staff"));
+		RoleHandle tech = acl.addRoleHandle(new Role("tech"), staff);
+		ResourceHandle servers = acl.addResourceHandle(new Resource("servers"));
+		ResourceHandle db = acl.addResourceHandle(new Resource("db"), servers);
+		Assert.assertEquals(tech.getId(), "tech");
+		Assert.assertEquals(tech.getEntryDescription(), "tech");
+		Assert.assertEquals(servers.getEntry().getId(), "servers");
+		Assert.assertTrue(tech.isValid());
+
+		//the same decisions as by ID, also after the ACL changes
+		acl.allow(staff, servers, "READ");
+		Assert.assertTrue(acl.isAllowed(tech, db, "READ"));
+		Assert.assertFalse(acl.isDenied(tech, db, "READ"));
+		acl.deny(tech, db, "READ");
+		Assert.assertFalse(acl.isAllowed(tech, db, "READ"));
+		Assert.assertTrue(acl.isDenied(tech, db, "READ"));
+		Assert.assertEquals(acl.isDenied(tech, db, "READ"), acl.isDenied(
+				new Role("tech"), new Resource("db"), "READ"));
+		//the paths are kept while no entry gains its first rule or loses its last
+		Object path = tech.path(pathChanges(acl));
+		Assert.assertNotNull(path);
+		acl.allow(tech, db, "UPDATE");
+		Assert.assertTrue(acl.isAllowed(tech, db, "UPDATE"));
+		Assert.assertSame(tech.path(pathChanges(acl)), path);
+		acl.addRole(new Role("intern"), tech);
+		Assert.assertNull(tech.path(pathChanges(acl)));
+		acl.remove(tech, db);
+		Assert.assertTrue(acl.isAllowed(tech, db, "READ"));
+		acl.moveResource(db, null);
+		Assert.assertFalse(acl.isAllowed(tech, db, "READ"));
+		acl.allow(tech, db);
+		Assert.assertTrue(acl.isAllowed(tech, db));
+		Assert.assertEquals(acl.areAllowed(tech, Arrays.asList(servers, db),
+				"READ").cardinality(), 2);
+
+		//looked up
+		Assert.assertSame(acl.lookupRole(new Role("tech")), tech);
+		Assert.assertSame(acl.lookupResource(db), db);
+		Assert.assertNull(acl.lookupRole(new Role("unknown")));
+		Assert.assertNull(acl.lookupResource(null));
+
+		//invalidated on removal, even if added again
+		acl.removeRole(tech, false);
+		Assert.assertFalse(tech.isValid());
+		Assert.assertTrue(staff.isValid());
+		RoleHandle again = acl.addRoleHandle(new Role("tech"));
+		Assert.assertNotSame(again, tech);
+		boolean thrown = false;
+		try {
+			acl.isAllowed(tech, db);
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		thrown = false;
+		try {
+			acl.allow(tech, db, "READ");
+		} catch (RuntimeException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		Assert.assertFalse(acl.isAllowed(again, db, "READ"));
+		acl.removeResource(servers, true);
+		Assert.assertFalse(servers.isValid());
+		Assert.assertTrue(db.isValid());
+		acl.clear();
+		Assert.assertFalse(staff.isValid());
+		Assert.assertFalse(db.isValid());
+
+		//handles of another ACL are used by ID
+		Acl other = Acl.makeInstance();
+		RoleHandle jedi = other.addRoleHandle(new Role("jedi"));
+		ResourceHandle sabre = other.addResourceHandle(new Resource("sabre"));
+		acl.allow(jedi, sabre);
+		Assert.assertTrue(acl.isAllowed(jedi, sabre));
+		Assert.assertFalse(other.isAllowed(jedi, sabre));
+		Assert.assertNull(acl.lookupRole(staff));
+	}
+
+	private static long pathChanges(Acl acl) {
+		try {
+			Field changes = Acl.class.getDeclaredField("changes");
+			changes.setAccessible(true);
+			return changes.getLong(acl);
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	@Test(priority = 41)
 	public void testRealLife() {
 		Acl acl = Acl.makeInstance();
@@ -0,0 +1,59 @@
+package com.rojakcoder.archly;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rojakcoder.archly.exceptions.InvalidConditionException;
+
+public class ConditionParserTest {
+	@Test
+	public void testCompile() {
+		Map<String, Object> attrs = new HashMap<>();
+		attrs.put("hour", 10);
+		attrs.put("ip", "10.20.30.40");
+		attrs.put("owner", "ann");
+		attrs.put("user.id", "ann");
+		attrs.put("internal", true);
+
+		Assert.assertTrue(Condition.compile("hour >= 9 && hour < 17").test(
+				attrs));
+		Assert.assertTrue(Condition.compile("hour == 10.0").test(attrs));
+		Assert.assertFalse(Condition.compile("hour > 10").test(attrs));
+		Assert.assertTrue(Condition.compile("ip in '10.0.0.0/8'").test(attrs));
+		Assert.assertFalse(Condition.compile("ip in '10.20.31.0/24'").test(
+				attrs));
+		Assert.assertTrue(Condition.compile("owner == user.id").test(attrs));
+		Assert.assertTrue(Condition.compile("owner in ['bob', \"ann\"]").test(
+				attrs));
+		Assert.assertTrue(Condition.compile("internal").test(attrs));
+		Assert.assertTrue(Condition.compile("!(hour < 9 || hour >= 17)").test(
+				attrs));
+		Assert.assertTrue(Condition.compile("owner != 'bob'").test(attrs));
+
+		//missing attributes are null and do not compare
+		Assert.assertTrue(Condition.compile("missing == null").test(attrs));
+		Assert.assertFalse(Condition.compile("missing < 5").test(attrs));
+		Assert.assertFalse(Condition.compile("missing >= 5").test(attrs));
+		Assert.assertFalse(Condition.compile("hour > 'a'").test(attrs));
+		Assert.assertFalse(Condition.compile("internal").test(null));
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] invalid = { "", "hour >", "(hour > 1", "hour > 1 )",
+				"ip in '10.0.0.0/33'", "owner == 'ann", "hour # 1" };
+
+		for (String expression: invalid) {
+			boolean thrown = false;
+			try {
+				Condition.compile(expression);
+			} catch (InvalidConditionException e) {
+				thrown = true;
+			}
+			Assert.assertTrue(thrown, expression);
+		}
+	}
+}
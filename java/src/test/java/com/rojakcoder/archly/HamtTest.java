@@ -0,0 +1,87 @@
+package com.rojakcoder.archly;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HamtTest {
+	@Test
+	public void testVersions() {
+		Hamt<String> empty = Hamt.empty();
+		Hamt<String> one = empty.put("a", "1");
+		Hamt<String> two = one.put("b", "2");
+		Hamt<String> changed = two.put("a", "10");
+		Hamt<String> removed = changed.remove("b");
+
+		//the older versions are not affected
+		Assert.assertEquals(empty.size(), 0);
+		Assert.assertNull(empty.get("a"));
+		Assert.assertEquals(one.size(), 1);
+		Assert.assertNull(one.get("b"));
+		Assert.assertEquals(two.get("a"), "1");
+		Assert.assertEquals(changed.size(), 2);
+		Assert.assertEquals(changed.get("a"), "10");
+		Assert.assertEquals(removed.size(), 1);
+		Assert.assertNull(removed.get("b"));
+
+		//unchanged tries are returned as is
+		Assert.assertSame(two.put("b", "2"), two);
+		Assert.assertSame(two.remove("c"), two);
+		Assert.assertSame(one.remove("a").size(), 0);
+	}
+
+	@Test
+	public void testMany() {
+		Map<String, Integer> expected = new HashMap<>();
+		Hamt<Integer> trie = Hamt.empty();
+
+		for (int i = 0; i < 5000; i++) {
+			trie = trie.put("key" + i, i);
+			expected.put("key" + i, i);
+		}
+		Hamt<Integer> full = trie;
+		for (int i = 0; i < 5000; i += 3) {
+			trie = trie.remove("key" + i);
+			expected.remove("key" + i);
+		}
+
+		Assert.assertEquals(full.size(), 5000);
+		Assert.assertEquals(full.get("key3"), Integer.valueOf(3));
+		Assert.assertEquals(trie.size(), expected.size());
+		Assert.assertNull(trie.get("key3"));
+
+		Map<String, Integer> actual = new HashMap<>();
+		for (Map.Entry<String, Integer> entry: trie) {
+			actual.put(entry.getKey(), entry.getValue());
+		}
+		Assert.assertEquals(actual, expected);
+	}
+
+	@Test
+	public void testCollisions() {
+		//"Aa" and "BB" have the same hash code
+		Hamt<String> trie = Hamt.<String> empty().put("Aa", "1").put("BB",
+				"2").put("AaBB", "3").put("BBAa", "4").put("AaAa", "5");
+
+		Assert.assertEquals(trie.size(), 5);
+		Assert.assertEquals(trie.get("Aa"), "1");
+		Assert.assertEquals(trie.get("BB"), "2");
+		Assert.assertEquals(trie.get("AaBB"), "3");
+		Assert.assertEquals(trie.get("BBAa"), "4");
+		Assert.assertEquals(trie.get("AaAa"), "5");
+
+		trie = trie.remove("Aa").put("BB", "20");
+		Assert.assertEquals(trie.size(), 4);
+		Assert.assertNull(trie.get("Aa"));
+		Assert.assertEquals(trie.get("BB"), "20");
+
+		int count = 0;
+		for (Map.Entry<String, String> entry: trie) {
+			Assert.assertEquals(trie.get(entry.getKey()), entry.getValue());
+			count++;
+		}
+		Assert.assertEquals(count, 4);
+	}
+}
@@ -0,0 +1,46 @@
+package com.rojakcoder.archly;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LayeredMapTest {
+	@Test
+	public void testLayers() {
+		Map<String, String> base = new HashMap<>();
+		base.put("a", "1");
+		base.put("b", "2");
+
+		LayeredMap<String> map = new LayeredMap<>(base);
+		Assert.assertEquals(map.size(), 2);
+		Assert.assertEquals(map.get("a"), "1");
+		Assert.assertEquals(map.changeCount(), 0);
+
+		map.put("c", "3");
+		map.put("a", "10");
+		map.remove("b");
+		Assert.assertEquals(map.size(), 2);
+		Assert.assertEquals(map.get("a"), "10");
+		Assert.assertNull(map.get("b"));
+		Assert.assertFalse(map.containsKey("b"));
+		Assert.assertEquals(map.changeCount(), 3);
+		Assert.assertEquals(new HashMap<>(map).toString(), "{a=10, c=3}");
+		//the base is not changed
+		Assert.assertEquals(base.get("a"), "1");
+		Assert.assertEquals(base.get("b"), "2");
+
+		//changing back to the base drops the change
+		map.put("a", "1");
+		map.put("b", "2");
+		map.remove("c");
+		Assert.assertEquals(map.changeCount(), 0);
+		Assert.assertEquals(map, base);
+
+		map.clear();
+		Assert.assertTrue(map.isEmpty());
+		Assert.assertNull(map.get("a"));
+		Assert.assertEquals(base.size(), 2);
+	}
+}
@@ -0,0 +1,102 @@
+package com.rojakcoder.archly;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rojakcoder.archly.exceptions.DuplicateEntryException;
+import com.rojakcoder.archly.exceptions.EntryNotFoundException;
+
+public class PathRegistryTest {
+	@Test
+	public void testRegistry() {
+		PathRegistry reg = new PathRegistry();
+
+		reg.add("/org/42/proj/7");
+		reg.add("/org/42/proj/8");
+		Assert.assertEquals(reg.size(), 2);
+		//the ancestors are in the registry without being registered
+		Assert.assertTrue(reg.has("/org/42"));
+		Assert.assertTrue(reg.hasChild("/org/42"));
+		Assert.assertFalse(reg.entries().containsKey("/org/42"));
+		Assert.assertEquals(reg.traverseRoot("/org/42/proj/7"), Arrays.asList(
+				"/org/42/proj/7", "/org/42/proj", "/org/42", "/org", "*"));
+		//unknown entries stop at the nearest known ancestor
+		Assert.assertEquals(reg.traverseRoot("/org/42/doc/1"), Arrays.asList(
+				"/org/42", "/org", "*"));
+		Assert.assertEquals(reg.traverseRoot("elsewhere"),
+				Collections.singletonList("*"));
+		Assert.assertTrue(reg.isWithin("/org/42/proj/7", "/org/42"));
+		Assert.assertTrue(reg.isWithin("/org/42/doc/1", "/org/42"));
+		Assert.assertTrue(reg.isWithin("/org/42", "/org/42"));
+		Assert.assertFalse(reg.isWithin("/org/421", "/org/42"));
+		Assert.assertFalse(reg.isWithin("/org/42", "/org/42/proj"));
+		Assert.assertFalse(reg.isWithin("/org/43/proj", "/org/43"));
+		Assert.assertTrue(reg.isWithin("elsewhere", "*"));
+
+		boolean thrown = false;
+		try {
+			reg.add("/org/42/proj/7");
+		} catch (DuplicateEntryException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+		//an intermediate entry can be registered explicitly
+		reg.add("/org/42", "/org");
+		Assert.assertEquals(reg.entries().get("/org/42"), "/org");
+		thrown = false;
+		try {
+			reg.add("/org/43/proj", "/org/42");
+		} catch (EntryNotFoundException e) {
+			thrown = true;
+		}
+		Assert.assertTrue(thrown);
+
+		Map<String, String> expected = new HashMap<>();
+		expected.put("/org/42/proj/7", "/org/42/proj");
+		expected.put("/org/42/proj/8", "/org/42/proj");
+		expected.put("/org/42", "/org");
+		Assert.assertEquals(reg.export(), expected);
+
+		//the descendants stay under their paths
+		Assert.assertEquals(reg.remove("/org/42", false),
+				Collections.singletonList("/org/42"));
+		Assert.assertTrue(reg.has("/org/42/proj/7"));
+		Assert.assertEquals(reg.size(), 2);
+
+		//including the ancestor that was not registered
+		Assert.assertEquals(reg.remove("/org/42/proj", true).size(), 3);
+		Assert.assertFalse(reg.has("/org"));
+		Assert.assertEquals(reg.size(), 0);
+	}
+
+	@Test
+	public void testPathInstance() {
+		Acl acl = Acl.makePathInstance();
+		Rol editor = new Rol("editor");
+
+		acl.addResource(new Res("/org/42/proj/7/doc/99"));
+		acl.allow(editor, new Res("/org/42"), "UPDATE");
+		acl.deny(editor, new Res("/org/42/proj/7"), "UPDATE");
+		//applies to the resources under the path without registering them
+		Assert.assertTrue(acl.isAllowed(editor, new Res("/org/42/proj/8"),
+				"UPDATE"));
+		Assert.assertTrue(acl.isDenied(editor, new Res(
+				"/org/42/proj/7/doc/99"), "UPDATE"));
+
+		Assert.assertTrue(acl.isResourceUnder(new Res("/org/42/proj/7/doc/99"),
+				new Res("/org/42/proj")));
+		Assert.assertTrue(acl.visualize().contains(
+				"\t/org/42/proj/7/doc/99\t - \t/org/42/proj/7/doc\n"));
+
+		acl.removeResource("/org/42/proj/7", true);
+		Assert.assertFalse(acl.exportResources().containsKey(
+				"/org/42/proj/7/doc/99"));
+		Assert.assertFalse(acl.exportPermissions().containsKey(
+				"editor::/org/42/proj/7"));
+	}
+}
@@ -1,5 +1,9 @@
 package com.rojakcoder.archly;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -17,6 +21,126 @@ public class PermissionTest {
 		testRemoveByResourceRole();
 	}
 
+	@Test
+	public void testRuleSummaries() {
+		Permission perm = new Permission();
+		List<String> path = Arrays.asList("luke", "jedi", "*");
+
+		//only the default permission
+		Assert.assertEquals(perm.withRoleRules(path),
+				Collections.singletonList("*"));
+
+		perm.allow("jedi", "light-sabre");
+		perm.deny("jedi", "blaster", Permission.Types.CREATE);
+		Assert.assertEquals(perm.withRoleRules(path), Arrays.asList("jedi",
+				"*"));
+		Assert.assertEquals(perm.withResourceRules(Arrays.asList("blaster",
+				"armoury", "*")), Arrays.asList("blaster", "*"));
+
+		perm.removeKey("jedi::light-sabre");
+		Assert.assertEquals(perm.withRoleRules(path), Arrays.asList("jedi",
+				"*"));
+		Assert.assertEquals(perm.withResourceRules(Arrays.asList(
+				"light-sabre", "*")), Collections.singletonList("*"));
+
+		perm.removeByRole("jedi");
+		Assert.assertEquals(perm.withRoleRules(path),
+				Collections.singletonList("*"));
+
+		perm.clear();
+		Assert.assertTrue(perm.withRoleRules(path).isEmpty());
+	}
+
+	@Test
+	public void testRuledResources() {
+		Permission perm = new Permission();
+		Permission.ResourcePath path = new Permission.ResourcePath(
+				Arrays.asList("page", "section", "book", "*"));
+
+		perm.allow("jedi", "book");
+		perm.allow("jedi", "page");
+		perm.allow("jedi", "library");
+		//nearest resource first, regardless of the order of the rules
+		Assert.assertEquals(perm.ruledResources("jedi", path), Arrays.asList(
+				"page", "book"));
+		Assert.assertTrue(perm.ruledResources("sith", path).isEmpty());
+		Assert.assertEquals(perm.ruledResources("*", path),
+				Collections.singletonList("*"));
+
+		//more rules than resources in the path
+		Permission.ResourcePath shortPath = new Permission.ResourcePath(
+				Arrays.asList("book", "*"));
+		Assert.assertEquals(perm.ruledResources("jedi", shortPath),
+				Collections.singletonList("book"));
+
+		perm.removeKey("jedi::page");
+		Assert.assertEquals(perm.ruledResources("jedi", path),
+				Collections.singletonList("book"));
+
+		//roles with too many rules are not listed
+		for (int i = 0; i < Permission.MAX_LISTED; i++) {
+			perm.allow("jedi", "scroll-" + i);
+		}
+		Assert.assertEquals(perm.ruledResources("jedi", path), path.ids);
+		perm.removeByRole("jedi");
+		Assert.assertTrue(perm.ruledResources("jedi", path).isEmpty());
+		perm.allow("jedi", "section");
+		Assert.assertEquals(perm.ruledResources("jedi", path),
+				Collections.singletonList("section"));
+	}
+
+	@Test
+	public void testSeparatorInIds() {
+		Permission perm = new Permission();
+		List<String> path = Arrays.asList("org::admin", "org", "*");
+		Permission.ResourcePath resources = new Permission.ResourcePath(
+				Arrays.asList("doc::1", "doc", "*"));
+
+		perm.allow("org::admin", "doc");
+		perm.allow("org", "doc::1");
+		Assert.assertEquals(perm.withRoleRules(path), Arrays.asList(
+				"org::admin", "org", "*"));
+		Assert.assertEquals(perm.ruledResources("org::admin", resources),
+				Collections.singletonList("doc"));
+		Assert.assertEquals(perm.ruledResources("org", resources),
+				Collections.singletonList("doc::1"));
+		Assert.assertTrue(perm.isAllowed("org::admin", "doc"));
+
+		perm.remove("org", "doc::1");
+		Assert.assertEquals(perm.withRoleRules(path), Arrays.asList(
+				"org::admin", "*"));
+		Assert.assertEquals(perm.withResourceRules(resources.ids), Arrays
+				.asList("doc", "*"));
+
+		//an imported key is found under every way it can be split
+		perm.importEntry("org::admin::doc::1", Collections.singletonMap(
+				"ALL", true));
+		Assert.assertEquals(perm.ruledResources("org::admin", resources),
+				Arrays.asList("doc::1", "doc"));
+		Assert.assertEquals(perm.ruledResources("org", resources),
+				Collections.emptyList());
+		perm.removeKey("org::admin::doc::1");
+		Assert.assertEquals(perm.ruledResources("org::admin", resources),
+				Collections.singletonList("doc"));
+		Assert.assertEquals(perm.withRoleRules(path), Arrays.asList(
+				"org::admin", "*"));
+
+		Acl acl = Acl.makeInstance();
+		acl.addRole(new Role("org"));
+		acl.addRole(new Role("org::admin"), new Role("org"));
+		acl.addResource(new Resource("doc"));
+		acl.addResource(new Resource("doc::1"), new Resource("doc"));
+		acl.allow(new Role("org::admin"), new Resource("doc"));
+		Assert.assertTrue(acl.isAllowed(new Role("org::admin"), new Resource(
+				"doc::1")));
+		acl.remove(new Role("org::admin"), new Resource("doc"));
+		acl.allow(new Role("org"), new Resource("doc::1"));
+		Assert.assertTrue(acl.isAllowed(new Role("org::admin"), new Resource(
+				"doc::1")));
+		Assert.assertFalse(acl.isAllowed(new Role("org::admin"), new Resource(
+				"doc")));
+	}
+
 	private void testIsAllowedDenied() {
 		String res1 = new String("RES-1");
 		String rol1 = new String("ROLE-1");
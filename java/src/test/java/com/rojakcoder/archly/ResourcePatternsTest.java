@@ -0,0 +1,44 @@
+package com.rojakcoder.archly;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ResourcePatternsTest {
+	@Test
+	public void testMatch() {
+		ResourcePatterns patterns = new ResourcePatterns();
+
+		Assert.assertTrue(ResourcePatterns.isPattern("a/*"));
+		Assert.assertTrue(ResourcePatterns.isPattern("**/b"));
+		Assert.assertFalse(ResourcePatterns.isPattern("*"));
+		Assert.assertFalse(ResourcePatterns.isPattern("a/b*"));
+
+		patterns.add("a/**");
+		patterns.add("a/*/c");
+		patterns.add("a/**/c");
+		patterns.add("**/c");
+		patterns.add("a/*/*");
+
+		Assert.assertEquals(patterns.match("a/b/c"), Arrays.asList("a/*/c",
+				"a/**/c", "a/*/*", "**/c", "a/**"));
+		Assert.assertEquals(patterns.match("a/c"), Arrays.asList("a/**/c",
+				"**/c", "a/**"));
+		Assert.assertEquals(patterns.match("a"), Collections.singletonList(
+				"a/**"));
+		Assert.assertEquals(patterns.match("x/y/z/c"), Collections
+				.singletonList("**/c"));
+		Assert.assertTrue(patterns.match("b/c/d").isEmpty());
+
+		patterns.remove("**/c");
+		patterns.remove("a/**");
+		Assert.assertEquals(patterns.match("a/c"), Collections.singletonList(
+				"a/**/c"));
+
+		patterns.clear();
+		Assert.assertTrue(patterns.isEmpty());
+		Assert.assertTrue(patterns.match("a/b/c").isEmpty());
+	}
+}
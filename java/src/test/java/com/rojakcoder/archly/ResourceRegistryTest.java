@@ -1,5 +1,7 @@
 package com.rojakcoder.archly;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.List;
 
 import org.testng.Assert;
@@ -128,6 +130,67 @@ public class ResourceRegistryTest {
 		String expReg = "\t" + u1 + "\t\t - \t*\n";
 		Assert.assertEquals(outReg, expReg);
 	}
+
+	@Test(priority = 5)
+	public void testDisplayLimits() throws IOException {
+		ResourceRegistry reg = new ResourceRegistry();
+		Resource loader = new Resource("loader");
+
+		reg.add("r0");
+		for (int i = 1; i < 50000; i++) {
+			reg.add("r" + i, "r" + (i - 1));
+		}
+		reg.add("s0");
+		reg.add("s1", "s0");
+
+		//deeper than the stack would allow with recursion
+		long[] length = new long[1];
+		Appendable counter = new Appendable() {
+			@Override
+			public Appendable append(CharSequence csq) {
+				length[0] += csq.length();
+				return this;
+			}
+
+			@Override
+			public Appendable append(CharSequence csq, int start, int end) {
+				length[0] += end - start;
+				return this;
+			}
+
+			@Override
+			public Appendable append(char c) {
+				length[0]++;
+				return this;
+			}
+		};
+		Assert.assertEquals(reg.display(loader, counter, null, null,
+				Integer.MAX_VALUE, Integer.MAX_VALUE), 50002);
+		long expected = 0;
+		for (int i = 0; i < 50000; i++) {
+			expected += i + ("- r" + i + "\n").length();
+		}
+		expected += "- s0\n - s1\n".length();
+		Assert.assertEquals(length[0], expected);
+
+		StringWriter out = new StringWriter();
+		Assert.assertEquals(reg.display(loader, out, "", "r0", 2,
+				Integer.MAX_VALUE), 2);
+		Assert.assertEquals(out.toString(), "- r1\n - r2\n");
+
+		out = new StringWriter();
+		Assert.assertEquals(reg.display(loader, out, ">", "s0", 5, 5), 1);
+		Assert.assertEquals(out.toString(), ">- s1\n");
+
+		out = new StringWriter();
+		Assert.assertEquals(reg.display(loader, out, null, "r10", 5, 3), 3);
+		Assert.assertEquals(out.toString(), "- r11\n - r12\n  - r13\n"
+				+ "   ...\n");
+
+		out = new StringWriter();
+		Assert.assertEquals(reg.display(loader, out, null, null, 0, 10), 0);
+		Assert.assertEquals(out.toString(), "");
+	}
 }
 
 class Resource implements AclEntry {
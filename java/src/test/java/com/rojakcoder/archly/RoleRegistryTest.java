@@ -1,6 +1,9 @@
 package com.rojakcoder.archly;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -49,6 +52,87 @@ public class RoleRegistryTest {
 		System.out.println(reg);
 		System.out.println(Registry.print(path));
 	}
+
+	@Test(priority = 2)
+	public void testSubtrees() {
+		RoleRegistry reg = new RoleRegistry();
+		Random random = new Random(2);
+
+		Assert.assertFalse(reg.isWithin("r0", "r0"));
+		for (int round = 0; round < 20; round++) {
+			//grow, move and shrink the hierarchy, checking after each change
+			for (int i = 0; i < 20; i++) {
+				String entry = "r" + random.nextInt(100);
+				List<String> entries = new ArrayList<>(reg.entries().keySet());
+
+				if (!reg.has(entry)) {
+					if (entries.isEmpty()) {
+						reg.add(entry);
+					} else {
+						reg.add(entry, entries.get(random.nextInt(entries
+								.size())));
+					}
+				} else if (random.nextInt(4) == 0) {
+					reg.remove(entry, random.nextBoolean());
+				} else if (random.nextInt(4) == 0) {
+					try {
+						reg.move(entry, entries.get(random.nextInt(entries
+								.size())));
+					} catch (RuntimeException e) {
+						//moved under itself
+					}
+				}
+				checkSubtrees(reg);
+			}
+		}
+
+		//leaves are added and removed without building the index again
+		int builds = reg.indexBuilds();
+		for (int i = 100; i < 200; i++) {
+			List<String> entries = new ArrayList<>(reg.entries().keySet());
+
+			reg.add("r" + i, entries.get(random.nextInt(entries.size())));
+			Assert.assertTrue(reg.isWithin("r" + i, reg.traverseRoot("r" + i)
+					.get(1)));
+			if (i % 3 == 0) {
+				reg.remove("r" + i, false);
+				Assert.assertFalse(reg.isWithin("r" + i, "r" + i));
+			}
+		}
+		Assert.assertTrue(reg.indexBuilds() - builds <= 3, "built "
+				+ (reg.indexBuilds() - builds) + " times");
+		checkSubtrees(reg);
+		reg.display(new Role("r0"), "", null);
+		checkSubtrees(reg);
+	}
+
+	/**
+	 * Compares the subtree checks with the parents in the registry.
+	 */
+	private static void checkSubtrees(RoleRegistry reg) {
+		Map<String, String> parents = reg.entries();
+
+		for (int e = 0; e < 200; e++) {
+			String entry = "r" + e;
+			List<String> path = new ArrayList<>();
+
+			for (String node = entry; parents.containsKey(node); node = parents
+					.get(node)) {
+				path.add(node);
+			}
+			path.add("*");
+			Assert.assertEquals(reg.traverseRoot(entry), path);
+			for (int a = 0; a < 200; a++) {
+				String ancestor = "r" + a;
+
+				Assert.assertEquals(reg.isWithin(entry, ancestor), path
+						.contains(ancestor), entry + " within " + ancestor);
+			}
+			Assert.assertTrue(reg.isWithin(entry, "*"));
+			Assert.assertTrue(reg.isWithin(entry, null));
+			Assert.assertFalse(reg.isWithin(null, entry));
+		}
+	}
 }
 
 class Role implements AclEntry {
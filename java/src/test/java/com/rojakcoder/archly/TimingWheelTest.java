@@ -0,0 +1,73 @@
+package com.rojakcoder.archly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TimingWheelTest {
+	@Test
+	public void testAdvance() {
+		TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+
+		wheel.schedule("soon", 1015, 1000);
+		wheel.schedule("later", 1000 + 10 * 100, 1000); //next level
+		wheel.schedule("much later", 1000 + 10 * 64 * 64 * 3, 1000);
+		wheel.schedule("past", 500, 1000);
+		Assert.assertEquals(wheel.size(), 4);
+
+		Assert.assertEquals(wheel.advance(1009), Collections.emptyList());
+		Assert.assertEquals(wheel.advance(1010), Collections.singletonList(
+				"past"));
+		//never taken before it is due
+		Assert.assertEquals(wheel.advance(1019), Collections.emptyList());
+		Assert.assertEquals(wheel.advance(1020), Collections.singletonList(
+				"soon"));
+		Assert.assertEquals(wheel.advance(1999), Collections.emptyList());
+		Assert.assertEquals(wheel.advance(2000), Collections.singletonList(
+				"later"));
+		Assert.assertEquals(wheel.advance(1000 + 10 * 64 * 64 * 3 - 1),
+				Collections.emptyList());
+		Assert.assertEquals(wheel.advance(1000 + 10 * 64 * 64 * 3),
+				Collections.singletonList("much later"));
+		Assert.assertEquals(wheel.size(), 0);
+	}
+
+	@Test
+	public void testBeyondSpan() {
+		TimingWheel<Integer> wheel = new TimingWheel<>(1, 0);
+		long span = 1L << 24;
+
+		wheel.schedule(1, span + 5, 0);
+		wheel.schedule(2, 3 * span + 7, 0);
+		wheel.schedule(3, span - 1, 0);
+
+		List<Integer> due = new ArrayList<>();
+		for (long now = 0; now <= 3 * span + 7; now += span / 4) {
+			due.addAll(wheel.advance(now));
+		}
+		due.addAll(wheel.advance(3 * span + 6));
+		Assert.assertEquals(due, Arrays.asList(3, 1));
+		Assert.assertEquals(wheel.advance(3 * span + 7), Collections
+				.singletonList(2));
+	}
+
+	@Test(timeOut = 10000)
+	public void testIdleGap() {
+		TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+
+		wheel.schedule("first", 5, 0);
+		Assert.assertEquals(wheel.advance(5), Collections.singletonList(
+				"first"));
+
+		//nothing advances the empty wheel for a long time, about 35 years
+		long now = 1L << 40;
+		wheel.schedule("after the gap", now + 20, now);
+		Assert.assertEquals(wheel.advance(now + 19), Collections.emptyList());
+		Assert.assertEquals(wheel.advance(now + 20), Collections.singletonList(
+				"after the gap"));
+	}
+}